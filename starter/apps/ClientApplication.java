@@ -1,7 +1,12 @@
 package apps;
 
+import java.io.*;
 import java.util.*;
 
+import common.*;
+import naming.*;
+import rmi.RMIException;
+
 /** Base class of client applications.
 
     <p>
@@ -30,9 +35,18 @@ import java.util.*;
     at the next call to <code>report</code>. Fatal errors are those in which
     resources which must be released to continue running the application safely
     cannot be released.
+
+    <p>
+    Applications that hold a lock while they talk only to storage servers
+    keep the lock leased with <code>renewLease</code>.
  */
 abstract class ClientApplication extends Application
 {
+    /** Number of times <code>renewLease</code> calls the naming server in
+        each lease period, so that a few late or failed calls do not let the
+        lease expire. */
+    private static final int                RENEWALS_PER_LEASE = 6;
+
     /** Fatal error message, if a fatal error has occurred. */
     private String                          fatal_error_message = null;
     /** Aggregated list of application error messages. */
@@ -53,6 +67,72 @@ abstract class ClientApplication extends Application
     protected abstract void coreLogic(String[] arguments)
         throws ApplicationFailure;
 
+    /** Keeps the locks of this client leased during a long operation.
+
+        <p>
+        The naming server releases the locks of a client that makes no call
+        to it for a whole lease period. An application transferring a file
+        talks only to a storage server meanwhile, so the returned timer calls
+        the naming server several times in each lease period until it is
+        cancelled. The first call that fails is reported as an application
+        failure, since the locks may be released before the operation ends;
+        the timer goes on calling, in case the naming server can be reached
+        again before the lease expires.
+
+        @param naming_server Stub for the naming server holding the locks.
+        @param path Path locked by the application, queried by the calls.
+        @return The timer making the calls, to be cancelled before the locks
+                are released.
+        @throws ApplicationFailure If the lease period cannot be obtained from
+                                   the naming server.
+     */
+    protected Timer renewLease(final Service naming_server, final Path path)
+        throws ApplicationFailure
+    {
+        long        interval;
+
+        try
+        {
+            interval = Math.max(1, naming_server.getLeasePeriod() /
+                                   RENEWALS_PER_LEASE);
+        }
+        catch(RMIException e)
+        {
+            throw new ApplicationFailure("cannot obtain lease period for " +
+                                         path + ": " + e.getMessage());
+        }
+
+        Timer       timer = new Timer("lease-renewal", true);
+
+        timer.schedule(new TimerTask()
+        {
+            /** Whether a failed call has been reported. */
+            private boolean     reported = false;
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    naming_server.isDirectory(path);
+                }
+                catch(FileNotFoundException e) { }
+                catch(RMIException e)
+                {
+                    if(!reported)
+                    {
+                        reported = true;
+                        report(new ApplicationFailure("cannot renew lease " +
+                                                      "on " + path + ": " +
+                                                      e.getMessage()));
+                    }
+                }
+            }
+        }, interval, interval);
+
+        return timer;
+    }
+
     /** Wraps <code>coreLogic</code> in an exception handler.
 
         @param arguments Command line arguments.
@@ -108,7 +188,7 @@ abstract class ClientApplication extends Application
 
         @param failure Application failure.
      */
-    protected void report(ApplicationFailure failure)
+    protected synchronized void report(ApplicationFailure failure)
     {
         failures.add(failure);
         report();
@@ -119,7 +199,7 @@ abstract class ClientApplication extends Application
         <p>
         The exit status is zero if there are no errors, and non-zero otherwise.
      */
-    private void printErrorsAndExit()
+    private synchronized void printErrorsAndExit()
     {
         int     exit_status = EXIT_SUCCESS;
 
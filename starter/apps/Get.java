@@ -1,6 +1,7 @@
 package apps;
 
 import java.io.*;
+import java.util.Timer;
 
 import common.*;
 import naming.*;
@@ -79,6 +80,8 @@ public class Get extends ClientApplication
                                          t.getMessage());
         }
 
+        Timer               renewal = null;
+
         // Create an input stream reading bytes from the remote file, and an
         // output stream for writing bytes to a local copy of the file.
         // Repeatedly read up to BLOCK_SIZE bytes from the remote file, and
@@ -89,6 +92,9 @@ public class Get extends ClientApplication
 
         try
         {
+            // Keep the lock while the file is read from the storage server.
+            renewal = renewLease(naming_server, source.path);
+
             read_buffer = new byte[BLOCK_SIZE];
             output_stream = new FileOutputStream(destination);
             input_stream = new DFSInputStream(naming_server, source.path);
@@ -123,6 +129,9 @@ public class Get extends ClientApplication
         {
             // In all cases, make an effort to close all streams, and to
             // unlock the file.
+            if(renewal != null)
+                renewal.cancel();
+
             if(input_stream != null)
             {
                 try
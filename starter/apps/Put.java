@@ -1,6 +1,7 @@
 package apps;
 
 import java.io.*;
+import java.util.Timer;
 
 import common.*;
 import naming.*;
@@ -90,12 +91,17 @@ public class Put extends ClientApplication
                                          t.getMessage());
         }
 
+        Timer               renewal = null;
+
         byte[]              read_buffer;
         InputStream         input_stream = null;
         DFSOutputStream     output_stream = null;
 
         try
         {
+            // Keep the lock while the file is written to the storage server.
+            renewal = renewLease(naming_server, path_to_lock);
+
             // Path to receive the new file. This will either be the destination
             // path as provided, or if the path refers to a directory, then a
             // new file within that directory.
@@ -184,6 +190,9 @@ public class Put extends ClientApplication
         {
             // In all cases, make an effort to close all streams and unlock
             // the parent directory.
+            if(renewal != null)
+                renewal.cancel();
+
             if(output_stream != null)
             {
                 try
@@ -201,10 +201,10 @@ public class DFSOutputStream extends OutputStream
 
         // Create the data buffer that will be sent over the network. If the
         // buffer offset is zero and all the bytes in the user-provided buffer
-        // are to be written, the user-provided buffer will be serialized
-        // directly. Otherwise, make a new buffer, copy the requisite number of
-        // bytes from the proper offset in the user-provided buffer to the new
-        // buffer, and later serialize the new buffer.
+        // are to be written, the user-provided buffer will be sent directly.
+        // Otherwise, make a new buffer, copy the requisite number of bytes from
+        // the proper offset in the user-provided buffer to the new buffer, and
+        // later send the new buffer.
         byte[]      data;
 
         if((buffer_offset == 0) && (buffer.length == write_length))
@@ -212,9 +212,7 @@ public class DFSOutputStream extends OutputStream
         else
         {
             data = new byte[write_length];
-
-            for(int index = 0; index < write_length; ++index)
-                data[index] = buffer[buffer_offset + index];
+            System.arraycopy(buffer, buffer_offset, data, 0, write_length);
         }
 
         // Send the write request to the server. If the write request succeds,
@@ -3,6 +3,9 @@ package common;
 import java.io.*;
 import java.util.*;
 
+import rmi.io.ValueCodec;
+import rmi.io.WireCodec;
+
 /** Distributed filesystem paths.
 
     <p>
@@ -30,6 +33,39 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     public static final String illegalSeparator = ":";
     private static final long serialVersionUID = 10171991L;
 
+    /** The tag under which paths are written by the RMI wire codec. */
+    public static final int WIRE_TAG = WireCodec.FIRST_USER_TAG;
+
+    // Paths are passed to almost every remote call, so they are written as a
+    // component count followed by the components rather than serialized.
+    static
+    {
+        WireCodec.register(WIRE_TAG, Path.class, new ValueCodec<Path>() {
+            @Override
+            public void write(DataOutput out, Path path) throws IOException
+            {
+                out.writeInt(path.pathComponents.size());
+                for (String component: path.pathComponents){
+                    WireCodec.writeString(out, component);
+                }
+            }
+
+            @Override
+            public Path read(DataInput in) throws IOException
+            {
+                int count = in.readInt();
+                if (count < 0) {
+                    throw new StreamCorruptedException("Negative path length: " + count);
+                }
+                ArrayList<String> components = new ArrayList<String>(Math.min(count, 16));
+                for (int i = 0; i < count; i++){
+                    components.add(WireCodec.readString(in));
+                }
+                return new Path(components);
+            }
+        });
+    }
+
     /** Creates a new path which represents the root directory. */
     public Path()
     {
@@ -363,14 +399,16 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
         if (!other.getClass().equals(Path.class)){
             return false;
         }
-        return compareTo((Path)other) == 0;
+        // Compared by components rather than as strings, so that looking a
+        // path up in a map allocates nothing.
+        return pathComponents.equals(((Path)other).pathComponents);
     }
 
     /** Returns the hash code of the path. */
     @Override
     public int hashCode()
     {
-        return toString().hashCode();
+        return pathComponents.hashCode();
     }
 
     /** Converts the path to a string.
@@ -2,39 +2,93 @@ package naming;
 
 import common.Path;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by Sreejith Unnikrishnan on 5/9/16.
  */
 public class DfsLock {
-    public String id;
-    public Path lockedPath;
-    public boolean isExclusive;
-    public boolean isInternal;
-    public CountDownLatch notification;
+    public final long id;
+    public final Path lockedPath;
+    public final boolean isExclusive;
+    public final boolean isInternal;
 
-    public DfsLock(String id, Path path, boolean exclusive, boolean internal) {
+    // The node the lock is held on once granted, and the shared locks held on
+    // it before and after this one. Guarded by the latch of the node.
+    TreeNode holder;
+    DfsLock previousHolder;
+    DfsLock nextHolder;
+    // Whether the lock was asked for by a leased client, in which case it is
+    // only released through the lease. Set before the lock is queued.
+    boolean leased;
+    // The lease of the client holding the lock, if it is leased, and the other
+    // locks of the client. Guarded by the lock of the lease.
+    LockLeases.Lease lease;
+    DfsLock previousLeased;
+    DfsLock nextLeased;
+
+    // The sender is parked on the lock itself rather than on a latch, so that
+    // waiting for a lock allocates nothing more.
+    private volatile boolean granted;
+    private volatile Thread waiter;
+    // The node the lock was dropped at because the next node on its path was
+    // deleted while the lock waited, or null. The intention locks the lock
+    // left above that node are then released by its sender, see
+    // LockManager.abandon.
+    private volatile TreeNode failedAt;
+
+    public DfsLock(long id, Path path, boolean exclusive, boolean internal) {
         this.id = id;
         lockedPath = path;
         isExclusive = exclusive;
         isInternal = internal;
-        notification = new CountDownLatch(1);
     }
 
-    public DfsLock(DfsLock dfsLock) {
-        id = dfsLock.id;
-        lockedPath = dfsLock.lockedPath;
-        isExclusive = dfsLock.isExclusive;
-        isInternal = dfsLock.isInternal;
-        notification = new CountDownLatch(1);
+    public void notifySender(){
+        granted = true;
+        Thread thread = waiter;
+        if (thread != null){
+            LockSupport.unpark(thread);
+        }
     }
 
-    public void notifySender(){
-        notification.countDown();
+    // Wakes the sender of a lock dropped at the given node. Must be called
+    // with the latch of the node held.
+    public void notifyFailure(TreeNode node){
+        failedAt = node;
+        Thread thread = waiter;
+        if (thread != null){
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isGranted() {
+        return granted;
+    }
+
+    public boolean isFailed() {
+        return failedAt != null;
+    }
+
+    TreeNode failedAt() {
+        return failedAt;
     }
 
+    // Waits until the lock is granted or dropped, see isFailed.
     public void waitLock() throws InterruptedException {
-        notification.await();
+        if (granted || failedAt != null){
+            return;
+        }
+        waiter = Thread.currentThread();
+        try {
+            while (!granted && failedAt == null){
+                LockSupport.park(this);
+                if (Thread.interrupted()){
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter = null;
+        }
     }
 }
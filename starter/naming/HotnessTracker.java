@@ -0,0 +1,157 @@
+package naming;
+
+/** Tracks how often files are read, and derives the number of replicas each
+    file should have.
+
+    <p>
+    The heat of a file is its number of reads, each weighed down by half for
+    every half-life that has passed since it was made. A file read at a steady
+    rate therefore settles at a heat of about the reads made in 1.44
+    half-lives, and a file no longer read cools by half every half-life. A
+    file wants one replica, plus one for every <code>readsPerReplica</code> of
+    heat, up to <code>maxReplicas</code>.
+
+    <p>
+    A replica is only shed once the heat drops below half of what it took to
+    add it, so that a file read at a rate near a threshold does not gain and
+    lose a replica in turn.
+
+    <p>
+    The heat is kept in the <code>TreeNode</code> of each file. The tracker
+    has no state of its own, and its methods must be called with the latch of
+    the node held.
+ */
+class HotnessTracker
+{
+    /** System property setting the half-life of reads, in milliseconds. */
+    static final String     HALF_LIFE_PROPERTY = "naming.hotnessHalfLife";
+    /** System property setting the heat that earns a file a replica. */
+    static final String     READS_PER_REPLICA_PROPERTY =
+        "naming.readsPerReplica";
+    /** System property setting the most replicas a file may have. */
+    static final String     MAX_REPLICAS_PROPERTY = "naming.maxReplicas";
+
+    /** Half-life of reads, in milliseconds, when the property is not set. */
+    static final long       DEFAULT_HALF_LIFE = 10000;
+    /** Heat per replica when the property is not set. */
+    static final int        DEFAULT_READS_PER_REPLICA = 20;
+    /** Most replicas of a file when the property is not set. */
+    static final int        DEFAULT_MAX_REPLICAS = 8;
+
+    /** Half-life of reads, in nanoseconds. */
+    private final long      halfLife;
+    /** Heat that earns a file each replica after the first. */
+    private final int       readsPerReplica;
+    /** Most replicas a file may have. */
+    private final int       maxReplicas;
+
+    /** Creates a tracker.
+
+        @param halfLifeMillis Half-life of reads, in milliseconds.
+        @param readsPerReplica Heat that earns a file each replica after the
+                               first.
+        @param maxReplicas Most replicas a file may have.
+        @throws IllegalArgumentException If any argument is not positive.
+     */
+    HotnessTracker(long halfLifeMillis, int readsPerReplica, int maxReplicas)
+    {
+        if(halfLifeMillis <= 0 || readsPerReplica <= 0 || maxReplicas <= 0)
+        {
+            throw new IllegalArgumentException("Hotness parameters must be " +
+                                               "positive");
+        }
+
+        this.halfLife = halfLifeMillis * 1000000L;
+        this.readsPerReplica = readsPerReplica;
+        this.maxReplicas = maxReplicas;
+    }
+
+    /** Creates a tracker with the parameters set by the system properties,
+        using the default for any property not set or not valid. */
+    static HotnessTracker fromProperties()
+    {
+        long        halfLife = Long.getLong(HALF_LIFE_PROPERTY,
+                                            DEFAULT_HALF_LIFE);
+        int         readsPerReplica =
+            Integer.getInteger(READS_PER_REPLICA_PROPERTY,
+                               DEFAULT_READS_PER_REPLICA);
+        int         maxReplicas = Integer.getInteger(MAX_REPLICAS_PROPERTY,
+                                                     DEFAULT_MAX_REPLICAS);
+
+        return new HotnessTracker(
+            (halfLife > 0) ? halfLife : DEFAULT_HALF_LIFE,
+            (readsPerReplica > 0) ? readsPerReplica : DEFAULT_READS_PER_REPLICA,
+            (maxReplicas > 0) ? maxReplicas : DEFAULT_MAX_REPLICAS);
+    }
+
+    /** Returns the half-life of reads, in milliseconds. */
+    long getHalfLifeMillis()
+    {
+        return halfLife / 1000000L;
+    }
+
+    /** Records a read of a file.
+
+        @param file The node of the file.
+        @param now The time of the read, from <code>System.nanoTime</code>.
+        @return The number of replicas the file wants.
+     */
+    int recordRead(TreeNode file, long now)
+    {
+        double      heat = heat(file, now) + 1;
+        file.readHeat = heat;
+        return replicasFor(heat);
+    }
+
+    /** Returns the heat of a file, decayed to the given time.
+
+        @param file The node of the file.
+        @param now The time, from <code>System.nanoTime</code>.
+     */
+    double heat(TreeNode file, long now)
+    {
+        if(file.readHeat == 0)
+        {
+            file.readHeatTime = now;
+            return 0;
+        }
+
+        long        elapsed = now - file.readHeatTime;
+        if(elapsed > 0)
+        {
+            file.readHeat *= Math.pow(0.5, (double)elapsed / halfLife);
+            file.readHeatTime = now;
+        }
+        return file.readHeat;
+    }
+
+    /** Returns the number of replicas a file should have, given the number
+        it has.
+
+        <p>
+        The result is at least the number of replicas the file wants, and
+        less than the number it has only if the file has cooled to half the
+        heat that earned the replicas beyond the result.
+
+        @param file The node of the file.
+        @param replicas The number of replicas the file has.
+        @param now The time, from <code>System.nanoTime</code>.
+        @return The number of replicas to keep or grow to.
+     */
+    int targetReplicas(TreeNode file, int replicas, long now)
+    {
+        double      heat = heat(file, now);
+        int         wanted = replicasFor(heat);
+        if(replicas <= wanted)
+            return wanted;
+
+        return Math.max(wanted, Math.min(replicas, replicasFor(2 * heat)));
+    }
+
+    /** Returns the number of replicas a file of the given heat wants. */
+    private int replicasFor(double heat)
+    {
+        double      replicas = 1 + Math.floor(heat / readsPerReplica);
+        return (int)Math.min(replicas, maxReplicas);
+    }
+}
@@ -0,0 +1,469 @@
+package naming;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import rmi.Skeleton;
+
+/** Leases the locks held by remote clients, and releases the locks of
+    clients that stop calling.
+
+    <p>
+    Clients are told apart by the client ID their stubs send, which is
+    different for every client process, even on the same host. Every call a
+    client makes to the naming server renews its lease, which costs a map
+    lookup and a store; there is no separate renewal call. A client that is
+    waiting for a lock is known to be alive, and its lease does not expire
+    while it waits; the calls of other clients have no effect on it. Once a
+    client has not called for a whole lease period, its locks are released,
+    and the requests queued behind them are granted. Locks taken by calls that
+    send no client ID, such as those made in the JVM of the naming server and
+    those of replica management tasks, are not leased. A leased lock is only
+    ever released through its lease, so that a client cannot release a lock
+    granted to another once its own has expired.
+
+    <p>
+    A lease is created when its client first asks for a lock, and dropped
+    once it has expired, so that only the clients that have locked something
+    in the last lease period have one.
+
+    <p>
+    Leases are expired on a timing wheel. The wheel has a slot for each tick,
+    a fraction of the lease period, and each lease is filed in the slot of
+    the tick at which it may expire. Renewing a lease does not move it; when
+    its slot comes round, a lease renewed meanwhile is filed again for its
+    new expiry time, and one not renewed is dropped and has its locks
+    released. A tick thus only looks at the leases that may have expired,
+    and renewal never takes the lock of the wheel.
+
+    <p>
+    The leases are thread-safe.
+ */
+class LockLeases
+{
+    /** System property setting the lease period, in milliseconds. */
+    static final String     LEASE_PROPERTY = "naming.lockLease";
+    /** Lease period, in milliseconds, when the property is not set. */
+    static final long       DEFAULT_LEASE = 30000;
+
+    /** Number of ticks in a lease period. */
+    private static final int    TICKS_PER_LEASE = 8;
+    /** Number of slots in the wheel. */
+    private static final int    SLOTS = 64;
+
+    /** Lock manager releasing the locks of expired leases. */
+    private final LockManager   locks;
+    /** Lease period, in nanoseconds. */
+    private final long          period;
+    /** Length of a tick, in nanoseconds. */
+    private final long          tick;
+    /** Time from which ticks are counted, from <code>System.nanoTime</code>. */
+    private final long          origin;
+    /** Lease of each client, by client ID. */
+    private final ConcurrentHashMap<Long, Lease> leases =
+        new ConcurrentHashMap<>();
+
+    /** Guards the wheel and the tick reached. */
+    private final ReentrantLock wheelLock = new ReentrantLock();
+    /** Leases due at each tick, in the slot of the tick modulo the number of
+        slots. */
+    private final Lease[]       slots = new Lease[SLOTS];
+    /** Last tick the wheel has reached. */
+    private long                currentTick = 0;
+
+    /** Lease of a client. */
+    static class Lease
+    {
+        /** Client ID of the client. */
+        final long              client;
+        /** Time of the last call from the client, from
+            <code>System.nanoTime</code>. */
+        volatile long           renewed;
+
+        /** Guards the fields below. */
+        final ReentrantLock     lock = new ReentrantLock();
+        /** Locks held by the client, linked through the locks. */
+        DfsLock                 first;
+        /** Number of calls from the client waiting for a lock. */
+        int                     waiting;
+        /** Whether the lease has expired and been dropped. */
+        boolean                 dropped;
+
+        /** Tick at which the lease is due, and the leases due in the same
+            slot. Guarded by the lock of the wheel. */
+        long                    dueTick;
+        Lease                   nextDue;
+        Lease                   previousDue;
+
+        Lease(long client)
+        {
+            this.client = client;
+        }
+    }
+
+    /** Creates the leases.
+
+        @param locks Lock manager releasing the locks of expired leases.
+        @param periodMillis Lease period, in milliseconds.
+        @throws IllegalArgumentException If the period is not positive.
+     */
+    LockLeases(LockManager locks, long periodMillis)
+    {
+        if(periodMillis <= 0)
+            throw new IllegalArgumentException("Lease period must be positive");
+
+        this.locks = locks;
+        this.period = periodMillis * 1000000L;
+        this.tick = Math.max(1, period / TICKS_PER_LEASE);
+        this.origin = System.nanoTime();
+    }
+
+    /** Creates the leases with the period set by the system property, or the
+        default if it is not set or not valid.
+
+        @param locks Lock manager releasing the locks of expired leases.
+     */
+    static LockLeases fromProperty(LockManager locks)
+    {
+        long        period = Long.getLong(LEASE_PROPERTY, DEFAULT_LEASE);
+        return new LockLeases(locks, (period > 0) ? period : DEFAULT_LEASE);
+    }
+
+    /** Returns the lease period, in milliseconds. */
+    long getPeriodMillis()
+    {
+        return period / 1000000L;
+    }
+
+    /** Returns the length of a tick, in milliseconds, at which
+        <code>tick</code> should be called. */
+    long getTickMillis()
+    {
+        return Math.max(1, tick / 1000000L);
+    }
+
+    /** Checks whether the current call comes from a client whose locks are
+        leased.
+
+        @return <code>true</code> if the caller sent a client ID.
+     */
+    boolean isLeased()
+    {
+        return Skeleton.getCallerId() != 0;
+    }
+
+    /** Renews the lease of the client making the current call.
+
+        @return The lease of the client, or <code>null</code> if the client
+                has none.
+     */
+    Lease renew()
+    {
+        long            caller = Skeleton.getCallerId();
+        if(caller == 0)
+            return null;
+
+        Lease           lease = leases.get(caller);
+        if(lease != null)
+            lease.renewed = System.nanoTime();
+        return lease;
+    }
+
+    /** Notes that the client making the current call has started waiting for
+        a lock, giving it a lease if it has none.
+
+        @return The lease of the client, or <code>null</code> if the caller is
+                not leased.
+     */
+    Lease beginWait()
+    {
+        long            caller = Skeleton.getCallerId();
+        if(caller == 0)
+            return null;
+
+        while(true)
+        {
+            Lease       lease = leases.get(caller);
+            if(lease == null)
+            {
+                Lease   created = new Lease(caller);
+                created.renewed = System.nanoTime();
+                lease = leases.putIfAbsent(caller, created);
+                if(lease == null)
+                {
+                    lease = created;
+                    file(lease, lease.renewed + period);
+                }
+            }
+
+            lease.lock.lock();
+            try
+            {
+                // A lease dropped meanwhile has left the map; the next one
+                // found or created replaces it.
+                if(!lease.dropped)
+                {
+                    lease.waiting++;
+                    lease.renewed = System.nanoTime();
+                    return lease;
+                }
+            }
+            finally
+            {
+                lease.lock.unlock();
+            }
+        }
+    }
+
+    /** Notes that a client has stopped waiting for a lock, and renews its
+        lease.
+
+        @param lease The lease of the client, or <code>null</code>.
+     */
+    void endWait(Lease lease)
+    {
+        if(lease == null)
+            return;
+
+        lease.lock.lock();
+        try
+        {
+            lease.waiting--;
+            lease.renewed = System.nanoTime();
+        }
+        finally
+        {
+            lease.lock.unlock();
+        }
+    }
+
+    /** Adds a lock granted to a client to its lease.
+
+        @param lease The lease of the client, or <code>null</code>, in which
+                     case the lock is not leased.
+        @param lock The lock.
+     */
+    void acquired(Lease lease, DfsLock lock)
+    {
+        if(lease == null)
+            return;
+
+        lease.lock.lock();
+        try
+        {
+            if(!lease.dropped)
+            {
+                lock.lease = lease;
+                lock.previousLeased = null;
+                lock.nextLeased = lease.first;
+                if(lease.first != null)
+                    lease.first.previousLeased = lock;
+                lease.first = lock;
+                return;
+            }
+        }
+        finally
+        {
+            lease.lock.unlock();
+        }
+
+        // The lease expired before the lock could be added to it.
+        locks.release(lock);
+    }
+
+    /** Releases a lock the client holds on the given node.
+
+        @param lease The lease of the client, or <code>null</code>.
+        @param node The node of the lock.
+        @param exclusive Whether the lock is exclusive.
+        @return <code>true</code> if a lock was released, <code>false</code>
+                if the client holds no such lock on the node.
+     */
+    boolean release(Lease lease, TreeNode node, boolean exclusive)
+    {
+        if(lease == null)
+            return false;
+
+        DfsLock         found = null;
+
+        lease.lock.lock();
+        try
+        {
+            for(DfsLock lock = lease.first; lock != null;
+                lock = lock.nextLeased)
+            {
+                if(lock.holder == node && lock.isExclusive == exclusive)
+                {
+                    found = lock;
+                    unlink(lock);
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            lease.lock.unlock();
+        }
+
+        return found != null && locks.release(found);
+    }
+
+    /** Advances the wheel to the current time, releasing the locks of the
+        leases that have expired. */
+    void tick()
+    {
+        long            now = System.nanoTime();
+        Lease           due = null;
+
+        wheelLock.lock();
+        try
+        {
+            long        nowTick = (now - origin) / tick;
+            while(currentTick < nowTick)
+            {
+                ++currentTick;
+                int     slot = (int)(currentTick % SLOTS);
+                Lease   lease = slots[slot];
+                while(lease != null)
+                {
+                    Lease   next = lease.nextDue;
+                    if(lease.dueTick <= currentTick)
+                    {
+                        unfile(lease, slot);
+                        lease.nextDue = due;
+                        due = lease;
+                    }
+                    lease = next;
+                }
+            }
+        }
+        finally
+        {
+            wheelLock.unlock();
+        }
+
+        while(due != null)
+        {
+            Lease       next = due.nextDue;
+            due.nextDue = null;
+            check(due, now);
+            due = next;
+        }
+    }
+
+    /** Checks a lease whose slot has come round, filing it again if it has
+        been renewed, and dropping it and releasing its locks if it has
+        expired.
+
+        @param lease The lease, no longer filed in the wheel.
+        @param now The current time, from <code>System.nanoTime</code>.
+     */
+    private void check(Lease lease, long now)
+    {
+        DfsLock         expired = null;
+        boolean         dropped = false;
+        long            due;
+
+        lease.lock.lock();
+        try
+        {
+            due = lease.renewed + period;
+            if(due > now || lease.waiting > 0)
+            {
+                due = Math.max(due, now + tick);
+            }
+            else
+            {
+                expired = lease.first;
+                for(DfsLock lock = expired; lock != null;
+                    lock = lock.nextLeased)
+                {
+                    lock.lease = null;
+                }
+                lease.first = null;
+                lease.dropped = true;
+                dropped = true;
+                leases.remove(lease.client, lease);
+            }
+        }
+        finally
+        {
+            lease.lock.unlock();
+        }
+
+        if(!dropped)
+        {
+            file(lease, due);
+            return;
+        }
+
+        while(expired != null)
+        {
+            DfsLock     next = expired.nextLeased;
+            expired.previousLeased = null;
+            expired.nextLeased = null;
+            locks.release(expired);
+            expired = next;
+        }
+    }
+
+    /** Removes a lock from the list of its lease. Must be called with the lock
+        of the lease held. */
+    private static void unlink(DfsLock lock)
+    {
+        Lease           lease = lock.lease;
+
+        if(lock.previousLeased == null)
+            lease.first = lock.nextLeased;
+        else
+            lock.previousLeased.nextLeased = lock.nextLeased;
+        if(lock.nextLeased != null)
+            lock.nextLeased.previousLeased = lock.previousLeased;
+
+        lock.previousLeased = null;
+        lock.nextLeased = null;
+        lock.lease = null;
+    }
+
+    /** Files a lease in the slot of the tick at which it is due.
+
+        @param lease The lease, not filed in the wheel.
+        @param due Time at which the lease is due, from
+                   <code>System.nanoTime</code>.
+     */
+    private void file(Lease lease, long due)
+    {
+        wheelLock.lock();
+        try
+        {
+            long        dueTick = (due - origin + tick - 1) / tick;
+            lease.dueTick = Math.max(dueTick, currentTick + 1);
+
+            int         slot = (int)(lease.dueTick % SLOTS);
+            lease.previousDue = null;
+            lease.nextDue = slots[slot];
+            if(slots[slot] != null)
+                slots[slot].previousDue = lease;
+            slots[slot] = lease;
+        }
+        finally
+        {
+            wheelLock.unlock();
+        }
+    }
+
+    /** Removes a lease from its slot. Must be called with the lock of the
+        wheel held. */
+    private void unfile(Lease lease, int slot)
+    {
+        if(lease.previousDue == null)
+            slots[slot] = lease.nextDue;
+        else
+            lease.previousDue.nextDue = lease.nextDue;
+        if(lease.nextDue != null)
+            lease.nextDue.previousDue = lease.previousDue;
+
+        lease.previousDue = null;
+        lease.nextDue = null;
+    }
+}
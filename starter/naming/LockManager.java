@@ -0,0 +1,269 @@
+package naming;
+
+import java.util.ArrayDeque;
+
+/** Queues, grants and releases the locks on the directory tree.
+
+    <p>
+    Each node of the tree has a queue of pending locks, the locks held on it,
+    and counts of the shared and exclusive locks held below it, all guarded
+    by the latch of the node. The exclusive lock is kept in a field, and the
+    shared locks are linked through the locks themselves into lists, oldest
+    first, so that a lock is added and removed in constant time, and one to
+    release is found at the head of a list. A lock request is queued at the
+    root, and moves down one node at a time towards its path, leaving an
+    intention lock on every directory it passes, until it is granted at the
+    node of its path. A lock that cannot move on waits in the queue of the
+    node it has reached, and moves on when the locks ahead of it are
+    released.
+
+    <p>
+    Intention locks are counts rather than held locks, so passing a directory
+    costs an increment, and an exclusive lock on a directory waits for the
+    counts to drop to zero. Only an exclusive lock on a directory holds back
+    locks passing through it. A shared lock on a directory is granted
+    alongside intention locks of either kind, since <code>Service.lock</code>
+    has the directories above a locked path locked for shared access, which a
+    shared lock must not wait for.
+
+    <p>
+    Latches are taken hand over hand: a lock moving to a child is queued
+    there with the latches of both the parent and the child held, and the
+    parent latch is released before the child queue is checked. Locks
+    therefore reach each node in the order they left its parent, so that
+    requests are still granted in the order they were made, as
+    <code>Service.lock</code> requires, while requests in disjoint subtrees
+    hold only the latch of the root in common, and that only briefly.
+
+    <p>
+    A thread holds two latches only while moving a lock to a child, so
+    latches are only ever nested down the tree, and cannot deadlock.
+
+    <p>
+    Granting and releasing a lock allocates nothing beyond the lock itself:
+    held locks are linked into their node, the lock is released from the node
+    it was granted on and its intention locks from the parents of that node,
+    and the nodes that locks move to are collected in a list kept by each
+    thread.
+ */
+class LockManager
+{
+    /** Root of the directory tree. */
+    private final TreeNode      root;
+
+    /** Nodes whose queues have received locks, kept by each thread. Every
+        method drains the list before it returns. */
+    private static final ThreadLocal<ArrayDeque<TreeNode>>  movedLists =
+        new ThreadLocal<ArrayDeque<TreeNode>>() {
+            @Override
+            protected ArrayDeque<TreeNode> initialValue()
+            {
+                return new ArrayDeque<>();
+            }
+        };
+
+    /** Creates a lock manager for the given tree.
+
+        @param root Root of the directory tree.
+     */
+    LockManager(TreeNode root)
+    {
+        this.root = root;
+    }
+
+    /** Queues a lock request. The lock is granted, and its sender notified,
+        when the locks queued before it along its path allow it.
+
+        @param lock The lock requested. The nodes along its path must exist.
+     */
+    void enqueue(DfsLock lock)
+    {
+        ArrayDeque<TreeNode>    moved = movedLists.get();
+
+        root.latch.lock();
+        try
+        {
+            root.addLock(lock, moved);
+        }
+        finally
+        {
+            root.latch.unlock();
+        }
+
+        drain(moved);
+    }
+
+    /** Releases a granted lock from its node, and its intention locks from
+        the directories above, granting the locks queued behind it.
+
+        @param lock The lock.
+        @return <code>true</code> if the lock was released,
+                <code>false</code> if it is not held.
+     */
+    boolean release(DfsLock lock)
+    {
+        TreeNode                node = lock.holder;
+        ArrayDeque<TreeNode>    moved = movedLists.get();
+
+        if(node == null)
+            return false;
+
+        node.latch.lock();
+        try
+        {
+            if(!node.removeLock(lock, moved))
+                return false;
+        }
+        finally
+        {
+            node.latch.unlock();
+        }
+
+        drain(moved);
+        releaseIntentions(node, lock.isExclusive);
+        return true;
+    }
+
+    /** Releases a lock held by an unleased client on the given node.
+
+        <p>
+        The lock is found and removed from its node under the same latch, so
+        that two clients releasing locks of the same kind on the same path
+        release two different locks. Shared locks held by clients are kept
+        apart from those of replica tasks, and those of unleased clients ahead
+        of leased ones, so that finding one takes constant time however many
+        are held. Leased locks are released through their lease only.
+
+        @param node The node of the lock.
+        @param exclusive Whether the lock is exclusive.
+        @return The lock released, or <code>null</code> if no unleased client
+                holds such a lock.
+     */
+    DfsLock releaseHeld(TreeNode node, boolean exclusive)
+    {
+        ArrayDeque<TreeNode>    moved = movedLists.get();
+        DfsLock                 lock;
+
+        node.latch.lock();
+        try
+        {
+            lock = node.removeClientLock(exclusive, moved);
+            if(lock == null)
+                return null;
+        }
+        finally
+        {
+            node.latch.unlock();
+        }
+
+        drain(moved);
+        releaseIntentions(node, exclusive);
+        return lock;
+    }
+
+    /** Removes a lock whose requester stopped waiting for it. The lock may
+        have been granted meanwhile, in which case it is released.
+
+        <p>
+        The lock is followed down its path: every node it is neither waiting
+        at nor held on is one it has passed, and the intention lock it left
+        there is released. Since locks only move down, and the latch of each
+        node is taken after that of its parent is released, a lock not found
+        at a node has moved below it. A lock dropped because its path was
+        deleted is found at the node it was dropped at, having left intention
+        locks only above it.
+
+        @param lock The lock.
+     */
+    void withdraw(DfsLock lock)
+    {
+        ArrayDeque<TreeNode>    moved = movedLists.get();
+        TreeNode                node = root;
+        int                     depth = lock.lockedPath.pathComponents.size();
+
+        for(int i = 0; node != null; ++i)
+        {
+            boolean         found;
+            node.latch.lock();
+            try
+            {
+                found = node.removePendingLock(lock, moved) ||
+                        node.removeLock(lock, moved) ||
+                        lock.failedAt() == node;
+                if(!found && i < depth)
+                    node.releaseIntention(lock.isExclusive, moved);
+            }
+            finally
+            {
+                node.latch.unlock();
+            }
+
+            drain(moved);
+            if(found || i == depth)
+                break;
+
+            node = node.getChild(lock.lockedPath.pathComponents.get(i));
+        }
+    }
+
+    /** Releases the intention locks left by a lock that was dropped because
+        its path was deleted while it waited. Called by the sender of the
+        lock, once, after it has seen that the lock failed.
+
+        @param lock The lock.
+     */
+    void abandon(DfsLock lock)
+    {
+        releaseIntentions(lock.failedAt(), lock.isExclusive);
+    }
+
+    /** Releases the intention locks a lock left on the directories above
+        its node.
+
+        @param node The node of the lock.
+        @param exclusive Whether the lock is exclusive.
+     */
+    private static void releaseIntentions(TreeNode node, boolean exclusive)
+    {
+        ArrayDeque<TreeNode>    moved = movedLists.get();
+
+        for(TreeNode parent = node.parent; parent != null;
+            parent = parent.parent)
+        {
+            parent.latch.lock();
+            try
+            {
+                parent.releaseIntention(exclusive, moved);
+            }
+            finally
+            {
+                parent.latch.unlock();
+            }
+
+            drain(moved);
+        }
+    }
+
+    /** Checks the queues of the nodes that locks have moved to, and of the
+        nodes those locks move on to in turn.
+
+        @param moved The nodes whose queues have received locks. Emptied.
+     */
+    private static void drain(ArrayDeque<TreeNode> moved)
+    {
+        while(!moved.isEmpty())
+        {
+            TreeNode        node = moved.poll();
+
+            node.latch.lock();
+            try
+            {
+                node.checkPendingQueue(moved);
+            }
+            finally
+            {
+                node.latch.unlock();
+            }
+        }
+    }
+}
@@ -5,8 +5,17 @@ import java.net.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import common.DfsUtils;
 import rmi.*;
@@ -38,15 +47,55 @@ import storage.*;
  */
 public class NamingServer implements Service, Registration
 {
+    /** System property setting the time, in milliseconds, after which a
+        storage server that has stopped sending heartbeats is suspected dead. */
+    public static final String HEARTBEAT_TIMEOUT_PROPERTY =
+        "naming.heartbeatTimeout";
+    /** Heartbeat timeout, in milliseconds, when the property is not set. */
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT = 5000;
+
     protected TreeNode filesystem = new TreeNode();
-    protected HashSet<StorageInfo> availableStorages = new HashSet<>();
+    // Grants the locks on the tree, with a latch per node rather than treeLock
+    private final LockManager locks = new LockManager(filesystem);
+    // Identifiers of locks, in the order they are requested
+    private final AtomicLong nextLockId = new AtomicLong();
+    // Leases on the locks of remote clients, renewed by every call a client
+    // makes, so that the locks of a client that has died are released
+    private final LockLeases leases = LockLeases.fromProperty(locks);
+    private ScheduledExecutorService leaseTimer;
+    // Registered storage servers. Replica tasks iterate over them while
+    // servers register, so the set is copied on write, like the storages of
+    // a node: registrations are rare next to the reads.
+    protected final Set<StorageInfo> availableStorages = new CopyOnWriteArraySet<>();
     private Skeleton<Registration> registrationSkeleton;
     private Skeleton<Service> serviceSkeleton;
     private boolean wasStartAttempted = false;
-    private Random random = new Random();
     private DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss:SSSZ");
     
     private ExecutorService replicationThreadPool = Executors.newCachedThreadPool();
+    // Latest replica management task submitted for each file
+    private HashMap<Path, Future<?>> replicaTasks = new HashMap<>();
+    // Decides how many copies of each file to keep, from how often it is read
+    final HotnessTracker hotness = HotnessTracker.fromProperties();
+    // Files that have been given extra copies, which sweepReplicas sheds
+    // once the files cool down
+    private HashSet<TreeNode> replicatedFiles = new HashSet<>();
+    private ScheduledExecutorService replicaSweeper;
+    // Guards replicaTasks, replicatedFiles and file creation. A lock rather
+    // than a monitor, so that calls blocked on it or holding it across a
+    // storage server call do not pin the carrier of a virtual thread. It may
+    // be held while taking node latches, never the other way around.
+    final ReentrantLock treeLock = new ReentrantLock();
+    // Registered storage servers by client stub, so that heartbeats find their
+    // server without waiting for treeLock.
+    private final ConcurrentHashMap<Storage, StorageInfo> storagesByStub =
+        new ConcurrentHashMap<>();
+    private volatile long heartbeatTimeout =
+        Long.getLong(HEARTBEAT_TIMEOUT_PROPERTY, DEFAULT_HEARTBEAT_TIMEOUT);
+    private volatile ReplicaPolicy replicaPolicy = ReplicaPolicies.fromProperty();
+    // Chooses the storage servers of new files, weighing their heartbeats.
+    private final PlacementEngine placement =
+        new PlacementEngine(PlacementPolicy.fromProperty());
 
     /** Creates the naming server object.
 
@@ -79,7 +128,46 @@ public class NamingServer implements Service, Registration
 
             InetSocketAddress serviceAddress = new InetSocketAddress(NamingStubs.SERVICE_PORT);
             serviceSkeleton = new Skeleton<>(Service.class, this, serviceAddress);
+            // Registration has a skeleton of its own; unlock gets a lane of
+            // its own, so that it is never queued behind blocked lock calls,
+            // and so does lock, so that however many lock calls are blocked,
+            // the holder of a lock can still look up the storage of its file
+            // before it unlocks it.
+            serviceSkeleton.prioritize("unlock");
+            serviceSkeleton.isolate("lock");
             serviceSkeleton.start();
+
+            replicaSweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "naming-replica-sweeper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = hotness.getHalfLifeMillis();
+            replicaSweeper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sweepReplicas();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+
+            leaseTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "naming-lease-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long tick = leases.getTickMillis();
+            leaseTimer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    expireLeases();
+                }
+            }, tick, tick, TimeUnit.MILLISECONDS);
         } finally {
             wasStartAttempted = true;
         }
@@ -101,6 +189,12 @@ public class NamingServer implements Service, Registration
             serviceSkeleton.stop();
             // TODO: interrupt as many of the threads that are executing naming server code as possible
             replicationThreadPool.shutdown();
+            if (replicaSweeper != null) {
+                replicaSweeper.shutdownNow();
+            }
+            if (leaseTimer != null) {
+                leaseTimer.shutdownNow();
+            }
         }
         stopped(null);
     }
@@ -124,92 +218,225 @@ public class NamingServer implements Service, Registration
     {
 //    	System.out.println("Requesting for : " + path + ":" + exclusive);
         //DfsUtils.safePrintln("Attempt to lock, exclusive: "+exclusive+ " " +path.toString());
-        DfsLock mainLock = propagateLock(path, exclusive);
-
-        //DfsUtils.safePrintln("Waiting for lock for "+path.toString());
+        LockLeases.Lease lease = leases.beginWait();
+        DfsLock mainLock;
         try {
-//        	System.out.println("waiting for : " + mainLock.lockedPath + ":" + mainLock.isExclusive);
-            mainLock.waitLock();
-//            System.out.println("Got lock on : " + mainLock.lockedPath + ":" + mainLock.isExclusive);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            mainLock = propagateLock(path, exclusive, lease != null);
+
+            //DfsUtils.safePrintln("Waiting for lock for "+path.toString());
+            try {
+//            	System.out.println("waiting for : " + mainLock.lockedPath + ":" + mainLock.isExclusive);
+                mainLock.waitLock();
+//                System.out.println("Got lock on : " + mainLock.lockedPath + ":" + mainLock.isExclusive);
+            } catch (InterruptedException e) {
+                // The call ran past its deadline, or the server is stopping.
+                // Nobody will release the lock, so it must not be left queued.
+                withdrawLock(mainLock);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for lock on " + path);
+            }
+        } finally {
+            leases.endWait(lease);
+        }
+        if (mainLock.isFailed()) {
+            locks.abandon(mainLock);
+            throw new FileNotFoundException("Path deleted while waiting for lock: " + path);
         }
+        if (Skeleton.isCallExpired()) {
+            // The lock was granted after the caller gave up on the call, so
+            // the caller will never release it.
+            withdrawLock(mainLock);
+            throw new IllegalStateException("Deadline passed while waiting for lock on " + path);
+        }
+        leases.acquired(lease, mainLock);
         //DfsUtils.safePrintln("Lock acuired for "+path.toString());
     }
 
-    private synchronized DfsLock propagateLock(Path path, boolean exclusive) throws FileNotFoundException {
+    // Removes a lock whose caller stopped waiting for it, from every node
+    // along its path. The lock may have been granted meanwhile, in which case
+    // it is released.
+    void withdrawLock(DfsLock lock) {
+        locks.withdraw(lock);
+    }
+
+    private DfsLock propagateLock(Path path, boolean exclusive, boolean leased) throws FileNotFoundException {
         // TODO: check if path.isRoot
         TreeNode last = tryGetNodeFor(path);
-        String lockId = createLockId();
-        DfsLock mainLock = new DfsLock(lockId, path, exclusive, false);
-
-//        boolean reachedEndOfPath = true;
-//        TreeNode current = filesystem;
-        filesystem.addLock(mainLock);
-//        for (String component: path.getPathWithoutLastComponent()){
-//            current = filesystem.getChild(component);
-//            if (current.canLockProceed()){
-//                current.addLock(new DfsLock(lockId, path, false));
-//            } else {
-//                current.addLock(new DfsLock(lockId, path, exclusive));
-//                reachedEndOfPath = false;
-//                break;
-//            }
-//        }
-//
-//        if (reachedEndOfPath){
-//            last.addLock(mainLock);
-//        }
-        
-        if(last.nodeType == TreeNode.NodeType.FILE) {
-	        boolean replicaManagementRequired = false;
-	        if(!exclusive) {
-	        	last.readCounter++;
-	        	if(last.readCounter >= 20) {
-	        		last.readCounter = last.readCounter % 20;
-	        		replicaManagementRequired = true;
-	        	}
-	        } else {
-	        	replicaManagementRequired = true;
-	        }
-	        
-	        if(replicaManagementRequired) {
-		        DfsLock replicationLock = new DfsLock(createLockId(), path, exclusive, true);
-		        filesystem.addLock(replicationLock);
-		        
-	        	Runnable task = new ReplicaManagementTask(this, path, last, !exclusive);
-	        	replicationThreadPool.execute(task);
-	        }
+        DfsLock mainLock = new DfsLock(createLockId(), path, exclusive, false);
+        mainLock.leased = leased;
+
+        if (last.nodeType != TreeNode.NodeType.FILE) {
+            locks.enqueue(mainLock);
+        } else if (!exclusive) {
+            locks.enqueue(mainLock);
+
+            // A read may raise the number of copies the file wants, up to
+            // one on every storage server.
+            int target;
+            last.latch.lock();
+            try {
+                target = hotness.recordRead(last, System.nanoTime());
+            } finally {
+                last.latch.unlock();
+            }
+            target = Math.min(target, availableStorages.size());
+            if (last.storages.size() < target) {
+                treeLock.lock();
+                try {
+                    if (last.storages.size() < target && !isReplicaTaskPending(path)) {
+                        scheduleReplicaTask(path, last, target, false);
+                        replicatedFiles.add(last);
+                    }
+                } finally {
+                    treeLock.unlock();
+                }
+            }
+        } else {
+            // A writer is queued behind the invalidation of the other copies
+            // of the file, so that getStorage can only hand it the copy that
+            // is kept. treeLock keeps a replica task from being queued in
+            // between.
+            treeLock.lock();
+            try {
+                if (last.storages.size() > 1 || isReplicaTaskPending(path)) {
+                    scheduleReplicaTask(path, last, 1, true);
+                }
+                locks.enqueue(mainLock);
+            } finally {
+                treeLock.unlock();
+            }
         }
-        
+
         return mainLock;
     }
 
-    private String createLockId() {
-//        String nowAsISO = df.format(new Date());
-//        return nowAsISO;
-    	return UUID.randomUUID().toString();
+    // Queues an internal lock on a file and submits the task bringing its
+    // copies to the given number, behind that lock. Must be called with
+    // treeLock held.
+    private void scheduleReplicaTask(Path path, TreeNode file, int target, boolean exclusive) {
+        DfsLock replicationLock = new DfsLock(createLockId(), path, exclusive, true);
+        locks.enqueue(replicationLock);
+
+        Runnable task = new ReplicaManagementTask(this, path, file, target, replicationLock);
+        replicaTasks.put(path, replicationThreadPool.submit(task));
+    }
+
+    // Releases the lock of a replica management task. Reads that arrive while
+    // the copies of a file are made do not start another task, so a file
+    // that has grown hotter meanwhile is given one here, as long as the task
+    // made progress and the file is not being deleted.
+    void finishReplicaTask(Path path, TreeNode file, DfsLock lock, boolean grew) {
+        treeLock.lock();
+        try {
+            if (lock.isFailed()) {
+                locks.abandon(lock);
+            } else {
+                locks.release(lock);
+            }
+            if (!grew || !replicaTasks.containsKey(path) || getNode(path) != file) {
+                return;
+            }
+
+            int replicas = file.storages.size();
+            int target = Math.min(targetReplicas(file, replicas, System.nanoTime()), availableStorages.size());
+            if (replicas < target) {
+                scheduleReplicaTask(path, file, target, false);
+            }
+        } finally {
+            treeLock.unlock();
+        }
+    }
+
+    // Checks whether the copies of a file are being changed. Must be called
+    // with treeLock held.
+    private boolean isReplicaTaskPending(Path path) {
+        Future<?> task = replicaTasks.get(path);
+        return task != null && !task.isDone();
+    }
+
+    /** Releases the locks of clients whose leases have expired.
+
+        <p>
+        The naming server calls this method every tick of its lease timer
+        once started.
+     */
+    void expireLeases() {
+        leases.tick();
+    }
+
+    /** Sheds the copies of replicated files that have cooled down.
+
+        <p>
+        Files gain copies as they are read, but lose them only here, since a
+        file nobody reads is never looked at otherwise. The naming server
+        calls this method every half-life of the hotness tracker once
+        started.
+     */
+    void sweepReplicas() {
+        treeLock.lock();
+        try {
+            long now = System.nanoTime();
+            Iterator<TreeNode> it = replicatedFiles.iterator();
+            while (it.hasNext()) {
+                TreeNode file = it.next();
+                Path path = file.getPathToCurrent();
+                if (getNode(path) != file) {
+                    // Deleted.
+                    it.remove();
+                    continue;
+                }
+                if (isReplicaTaskPending(path)) {
+                    continue;
+                }
+
+                int replicas = file.storages.size();
+                int target = targetReplicas(file, replicas, now);
+                if (target < replicas) {
+                    scheduleReplicaTask(path, file, target, true);
+                } else if (replicas <= 1) {
+                    it.remove();
+                }
+            }
+        } finally {
+            treeLock.unlock();
+        }
+    }
+
+    // Returns the number of copies a file should have, under its latch.
+    private int targetReplicas(TreeNode file, int replicas, long now) {
+        file.latch.lock();
+        try {
+            return hotness.targetReplicas(file, replicas, now);
+        } finally {
+            file.latch.unlock();
+        }
+    }
+
+    private long createLockId() {
+        return nextLockId.getAndIncrement();
     }
 
     @Override
-    public synchronized void unlock(Path path, boolean exclusive)
+    public void unlock(Path path, boolean exclusive)
     {
+        LockLeases.Lease lease = leases.renew();
         TreeNode last;
         try {
             last = tryGetNodeFor(path);
         } catch (FileNotFoundException e) {
             throw new IllegalArgumentException(e.toString());
         }
-        String lockId = last.getLockIdForRelease(path, exclusive);
-        if (lockId == null){
-            throw new IllegalArgumentException("Lock didn't find");
+        // A leased client releases its own lock, and nobody else's: once its
+        // lease has expired, the lock may have been granted to another client.
+        // Locks of unleased callers are alike, so any of them will do.
+        if (leases.isLeased()){
+            if (!leases.release(lease, last, exclusive)){
+                throw new IllegalArgumentException("Lock didn't find");
+            }
+            return;
         }
-
-        TreeNode current = filesystem;
-        current.removeLock(lockId);
-        for (String component: path){
-            current = current.getChild(component);
-            current.removeLock(lockId);
+        if (locks.releaseHeld(last, exclusive) == null){
+            throw new IllegalArgumentException("Lock didn't find");
         }
         //DfsUtils.safePrintln("Lock released, exclusive: "+exclusive+ " " +path.toString());
     }
@@ -223,11 +450,11 @@ public class NamingServer implements Service, Registration
             return filesystem;
         }
 
-        for (String component: path)
+        // Indexed, so that looking up the node of a lock allocates nothing.
+        for (int i = 0; i < path.pathComponents.size(); i++)
         {
-            if (current.hasChild(component)){
-                current = current.getChild(component);
-            } else {
+            current = current.getChild(path.pathComponents.get(i));
+            if (current == null){
                 return null;
             }
         }
@@ -246,9 +473,17 @@ public class NamingServer implements Service, Registration
         return node;
     }
 
+    @Override
+    public long getLeasePeriod()
+    {
+        leases.renew();
+        return leases.getPeriodMillis();
+    }
+
     @Override
     public boolean isDirectory(Path path) throws FileNotFoundException
     {
+        leases.renew();
         TreeNode node = tryGetNodeFor(path);
         return node.nodeType == TreeNode.NodeType.DIRECTORY;
     }
@@ -256,12 +491,89 @@ public class NamingServer implements Service, Registration
     @Override
     public String[] list(Path directory) throws FileNotFoundException
     {
+        leases.renew();
         TreeNode node = tryGetNodeFor(directory);
         if (node.nodeType == TreeNode.NodeType.FILE) {
             throw new FileNotFoundException("Can`t call list() on a file");
         }
 
-        return node.children.keySet().toArray(new String[node.children.size()]);
+        return node.childNames();
+    }
+
+    // Pages through the children under the latch of the directory, a chunk at
+    // a time, rather than copying the whole listing when the stream is opened.
+    @Override
+    public RemoteStream<String[]> listStream(Path directory)
+        throws FileNotFoundException
+    {
+        leases.renew();
+        final TreeNode node = tryGetNodeFor(directory);
+        if (node.nodeType == TreeNode.NodeType.FILE) {
+            throw new FileNotFoundException("Can`t call listStream() on a file");
+        }
+
+        final Iterator<String> names;
+        final int version;
+        node.latch.lock();
+        try {
+            names = node.children.keySet().iterator();
+            version = node.childrenVersion;
+        } finally {
+            node.latch.unlock();
+        }
+
+        return new RemoteStream<String[]>() {
+            private boolean closed = false;
+
+            @Override
+            public boolean hasNext() throws IOException {
+                if (closed){
+                    return false;
+                }
+                node.latch.lock();
+                try {
+                    checkVersion();
+                    return names.hasNext();
+                } finally {
+                    node.latch.unlock();
+                }
+            }
+
+            @Override
+            public String[] next() throws IOException {
+                if (closed){
+                    throw new NoSuchElementException("End of listing.");
+                }
+                node.latch.lock();
+                try {
+                    checkVersion();
+                    if (!names.hasNext()){
+                        throw new NoSuchElementException("End of listing.");
+                    }
+                    ArrayList<String> chunk = new ArrayList<>();
+                    while (names.hasNext() && chunk.size() < LIST_CHUNK_SIZE){
+                        chunk.add(names.next());
+                    }
+                    return chunk.toArray(new String[chunk.size()]);
+                } finally {
+                    node.latch.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+            }
+
+            // The directory should stay locked while it is listed; if it was
+            // changed anyway, the rest of the listing cannot be trusted.
+            private void checkVersion() throws IOException {
+                if (node.childrenVersion != version){
+                    throw new IOException("Directory changed while listed: "
+                            + directory);
+                }
+            }
+        };
     }
 
     protected boolean isValidCreationPath(Path path){
@@ -298,6 +610,7 @@ public class NamingServer implements Service, Registration
     @Override
     public boolean createFile(Path file) throws RMIException, FileNotFoundException
     {
+        leases.renew();
         if (isValidCreationPath(file)){
             TreeNode parent = getParentNode(file);
             if (checkParentForCreation(parent, file)){
@@ -307,32 +620,37 @@ public class NamingServer implements Service, Registration
         return false;
     }
 
-    private synchronized boolean createFileInStorageAndTree(TreeNode parent, Path file) throws RMIException {
-        StorageInfo storage = chooseStorage();
-        boolean result = storage.commandStub.create(file);
-
-        if (result){
-            TreeNode newNode = parent.addChild(new TreeNode(parent,file.last(), TreeNode.NodeType.FILE));
-            storage.addFile(newNode);
-            newNode.storages.add(storage);
-//            addStorageToPath(storage, newNode);
-            return true;
+    private boolean createFileInStorageAndTree(TreeNode parent, Path file) throws RMIException {
+        treeLock.lock();
+        try {
+            StorageInfo storage = chooseStorage();
+            boolean result = storage.commandStub.create(file);
+
+            if (result){
+                TreeNode newNode = parent.addChild(new TreeNode(parent,file.last(), TreeNode.NodeType.FILE));
+                storage.addFile(newNode);
+                newNode.storages.add(storage);
+//                addStorageToPath(storage, newNode);
+                return true;
+            }
+            return false;
+        } finally {
+            treeLock.unlock();
         }
-        return false;
-    }
-
-    private synchronized int generateRandomInt(int uppperBound) {
-    	return random.nextInt(uppperBound);
     }
 
     private StorageInfo chooseStorage() {
-        int choice = generateRandomInt(availableStorages.size());
-        return (StorageInfo) availableStorages.toArray()[choice];
+        StorageInfo storage = placement.choose(heartbeatTimeout);
+        if (storage == null){
+            throw new IllegalStateException("No storage servers are connected to the naming server");
+        }
+        return storage;
     }
 
     @Override
     public boolean createDirectory(Path directory) throws FileNotFoundException
     {
+        leases.renew();
         if (isValidCreationPath(directory)){
             TreeNode parent = getParentNode(directory);
             if (checkParentForCreation(parent, directory)){
@@ -344,11 +662,11 @@ public class NamingServer implements Service, Registration
     }
     
     private void removeFromTree(TreeNode node) {
-    	ArrayList<TreeNode> children = new ArrayList<>(node.children.values());
+    	ArrayList<TreeNode> children = node.childNodes();
     	while(!children.isEmpty()) {
     		TreeNode child = children.get(0);
     		removeFromTree(child);
-    		children = new ArrayList<>(node.children.values());
+    		children = node.childNodes();
     	}
     	
     	node.parent.removeChild(node);
@@ -356,6 +674,7 @@ public class NamingServer implements Service, Registration
 
     @Override
     public boolean delete(Path path) throws FileNotFoundException, RMIException {
+        leases.renew();
         if (isValidCreationPath(path)) {
             TreeNode node = tryGetNodeFor(path);
 
@@ -365,10 +684,11 @@ public class NamingServer implements Service, Registration
             		result = result && info.commandStub.delete(path);
             	}
             } else {
-	            for (StorageInfo info : node.storages) {
+            	awaitReplicaManagement(path);
+	            for (StorageInfo info : new ArrayList<>(node.storages)) {
 	                result = info.commandStub.delete(path);
 	                if(result) {
-	                	info.paths.remove(path);
+	                	info.removeFile(node);
 	                }
 	            }
             }
@@ -383,9 +703,33 @@ public class NamingServer implements Service, Registration
         return false;
     }
 
+    // Waits for the replica management task of a file, if one is in progress,
+    // so that a deletion sees every replica the task creates.
+    private void awaitReplicaManagement(Path file) {
+        Future<?> task;
+        treeLock.lock();
+        try {
+            task = replicaTasks.remove(file);
+        } finally {
+            treeLock.unlock();
+        }
+        if (task == null) {
+            return;
+        }
+
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("[ERROR] Replica management failed for " + file);
+        }
+    }
+
     @Override
     public Storage getStorage(Path file) throws FileNotFoundException
     {
+        leases.renew();
         if (file == null) {
             throw new NullPointerException("Given null Path argument");
         }
@@ -397,11 +741,49 @@ public class NamingServer implements Service, Registration
             throw new FileNotFoundException("Expected path to file, found directory along the path " + file.toString());
         }
         
-        // TODO: ping the Storage Server before giving it to client. Maybe it's dead and file isn't available
-        
-        StorageInfo chosenStorageInfo = node.storages.get(0);
-        
-        return chosenStorageInfo.clientStub;
+        // Servers suspected dead are skipped, so that clients do not wait for
+        // a connection to them to time out.
+        ArrayList<StorageInfo> live = new ArrayList<>(node.storages.size());
+        for (StorageInfo storage : node.storages) {
+            if (!storage.isSuspected(heartbeatTimeout)) {
+                live.add(storage);
+            }
+        }
+        if (live.isEmpty()) {
+            throw new FileNotFoundException("No live storage server hosts the file " + file.toString());
+        }
+        return replicaPolicy.choose(Collections.unmodifiableList(live), Skeleton.getCallerAddress()).clientStub;
+    }
+
+    /** Sets the policy choosing the replica of a file that
+        <code>getStorage</code> returns.
+
+        @param policy The policy; see <code>ReplicaPolicies</code> for the
+                      built-in ones.
+        @throws NullPointerException If <code>policy</code> is
+                                     <code>null</code>.
+     */
+    public void setReplicaPolicy(ReplicaPolicy policy)
+    {
+        if (policy == null){
+            throw new NullPointerException("Replica policy is null");
+        }
+        replicaPolicy = policy;
+    }
+
+    /** Sets the policy choosing the storage server on which
+        <code>createFile</code> creates a file.
+
+        @param policy The policy.
+        @throws NullPointerException If <code>policy</code> is
+                                     <code>null</code>.
+     */
+    public void setPlacementPolicy(PlacementPolicy policy)
+    {
+        if (policy == null){
+            throw new NullPointerException("Placement policy is null");
+        }
+        placement.setPolicy(policy);
     }
 
     // The method register is documented in Registration.java.
@@ -414,6 +796,47 @@ public class NamingServer implements Service, Registration
 
     }
 
+    // The method heartbeat is documented in Registration.java.
+    @Override
+    public boolean heartbeat(Storage client_stub, StorageStatus status)
+    {
+        if (client_stub == null || status == null){
+            throw new NullPointerException("Some of heartbeat arguments is null");
+        }
+        StorageInfo storage = storagesByStub.get(client_stub);
+        if (storage == null){
+            return false;
+        }
+        storage.heartbeat(status);
+        placement.update(storage);
+        return true;
+    }
+
+    /** Sets the time after which a storage server that has stopped sending
+        heartbeats is suspected dead.
+
+        @param timeoutMillis The timeout, in milliseconds.
+        @throws IllegalArgumentException If the timeout is not positive.
+     */
+    public void setHeartbeatTimeout(long timeoutMillis)
+    {
+        if (timeoutMillis <= 0){
+            throw new IllegalArgumentException("Heartbeat timeout must be positive");
+        }
+        heartbeatTimeout = timeoutMillis;
+    }
+
+    /** Checks whether a storage server is suspected dead.
+
+        @param storage The storage server.
+        @return <code>true</code> if the storage server has sent heartbeats,
+                but none within the heartbeat timeout.
+     */
+    boolean isSuspected(StorageInfo storage)
+    {
+        return storage.isSuspected(heartbeatTimeout);
+    }
+
     private void checkRegisterArgs(Storage client_stub, Command command_stub, Path[] files){
         if (client_stub == null || command_stub == null || files == null){
             throw new NullPointerException("Some of register arguments is null");
@@ -435,6 +858,8 @@ public class NamingServer implements Service, Registration
     private Path[] registerStorage(Storage client_stub, Command command_stub, Path[] files){
         StorageInfo storage = new StorageInfo(client_stub, command_stub);
         availableStorages.add(storage);
+        storagesByStub.put(client_stub, storage);
+        placement.add(storage);
         Path[] duplicatePaths = addPathsAndGetDuplicates(storage, files);
         return duplicatePaths;
     }
@@ -0,0 +1,295 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import storage.StorageStatus;
+
+/** Chooses the storage server on which a new file is created.
+
+    <p>
+    Each registered storage server is given a weight by the placement policy,
+    from the state it reported with its last heartbeat, and servers are chosen
+    at random in proportion to their weights. Choosing at random, rather than
+    always taking the best server, spreads the files created between two
+    heartbeats instead of sending them all to the same server.
+
+    <p>
+    The weights are kept in a binary indexed tree, so that a heartbeat updates
+    the weight of its server, and a server is chosen, in time logarithmic in
+    the number of servers. Storage servers that have never reported are given
+    the average weight of those that have. A server found suspected dead when
+    chosen has its weight cleared until it reports again.
+
+    <p>
+    The engine is thread-safe.
+ */
+class PlacementEngine
+{
+    /** Weight given to unreported servers when no server has reported. */
+    private static final long   UNIT = PlacementPolicy.UNIT;
+
+    /** Guards all fields below. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Policy weighing the servers. */
+    private PlacementPolicy     policy;
+    /** Servers that have reported, by slot. */
+    private StorageInfo[]       slots = new StorageInfo[8];
+    /** Weight of the server in each slot. */
+    private long[]              weights = new long[8];
+    /** Binary indexed tree of the weights, indexed from one. */
+    private long[]              tree = new long[9];
+    /** Number of slots in use. */
+    private int                 used = 0;
+    /** Sum of all weights. */
+    private long                total = 0;
+    /** Slot of each server that has reported. */
+    private final IdentityHashMap<StorageInfo, Integer> slotOf =
+        new IdentityHashMap<>();
+    /** Servers that have never reported, in no particular order. */
+    private final ArrayList<StorageInfo> unreported = new ArrayList<>();
+    /** Position of each server in <code>unreported</code>. */
+    private final IdentityHashMap<StorageInfo, Integer> unreportedIndex =
+        new IdentityHashMap<>();
+
+    /** Creates an engine with no servers.
+
+        @param policy The policy weighing the servers.
+     */
+    PlacementEngine(PlacementPolicy policy)
+    {
+        this.policy = policy;
+    }
+
+    /** Adds a newly registered storage server.
+
+        @param storage The storage server. If it has already reported, its
+                       state is weighed at once.
+     */
+    void add(StorageInfo storage)
+    {
+        lock.lock();
+        try
+        {
+            if(slotOf.containsKey(storage) ||
+               unreportedIndex.containsKey(storage))
+            {
+                return;
+            }
+
+            if(storage.getStatus() == null)
+            {
+                unreportedIndex.put(storage, unreported.size());
+                unreported.add(storage);
+            }
+            else
+                setWeight(slotFor(storage), policy.weigh(storage.getStatus()));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Weighs the state a storage server has just reported.
+
+        @param storage The storage server, which must have been added.
+     */
+    void update(StorageInfo storage)
+    {
+        StorageStatus   status = storage.getStatus();
+        if(status == null)
+            return;
+
+        lock.lock();
+        try
+        {
+            Integer     index = unreportedIndex.remove(storage);
+            if(index != null)
+            {
+                // Move the last unreported server into the freed position.
+                StorageInfo last = unreported.remove(unreported.size() - 1);
+                if(last != storage)
+                {
+                    unreported.set(index, last);
+                    unreportedIndex.put(last, index);
+                }
+            }
+            else if(!slotOf.containsKey(storage))
+                return;
+
+            setWeight(slotFor(storage), policy.weigh(status));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Changes the placement policy, weighing all servers again.
+
+        @param policy The new policy.
+     */
+    void setPolicy(PlacementPolicy policy)
+    {
+        lock.lock();
+        try
+        {
+            this.policy = policy;
+            for(int i = 0; i < used; ++i)
+                weights[i] = policy.weigh(slots[i].getStatus());
+            rebuild(slots.length);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Chooses the storage server on which to create a new file.
+
+        @param heartbeatTimeout The time, in milliseconds, after which a
+                                server that has stopped reporting is suspected
+                                dead.
+        @return The server chosen, or <code>null</code> if no server has been
+                added. If every server is suspected dead or weighs nothing, a
+                server is chosen uniformly among all of them.
+     */
+    StorageInfo choose(long heartbeatTimeout)
+    {
+        ThreadLocalRandom   random = ThreadLocalRandom.current();
+
+        lock.lock();
+        try
+        {
+            while(true)
+            {
+                // Unreported servers weigh the average of reported ones.
+                long    average = (used == 0) ? UNIT : total / used;
+                if(average == 0 && total > 0)
+                    average = 1;
+                long    unreportedTotal = average * unreported.size();
+
+                if(total + unreportedTotal <= 0)
+                    return chooseAny(random);
+
+                long    target = random.nextLong(total + unreportedTotal);
+                if(target >= total)
+                    return unreported.get((int)((target - total) / average));
+
+                int     slot = find(target);
+                StorageInfo storage = slots[slot];
+                if(!storage.isSuspected(heartbeatTimeout))
+                    return storage;
+
+                // Choose again without the suspected server. It regains its
+                // weight with its next heartbeat.
+                setWeight(slot, 0);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Chooses a server uniformly among all servers added.
+
+        @param random The source of randomness.
+        @return The server, or <code>null</code> if there is none.
+     */
+    private StorageInfo chooseAny(ThreadLocalRandom random)
+    {
+        int     count = used + unreported.size();
+        if(count == 0)
+            return null;
+
+        int     choice = random.nextInt(count);
+        return (choice < used) ? slots[choice] : unreported.get(choice - used);
+    }
+
+    /** Returns the slot of a server, giving it a new slot with no weight if
+        it has none. */
+    private int slotFor(StorageInfo storage)
+    {
+        Integer     slot = slotOf.get(storage);
+        if(slot != null)
+            return slot;
+
+        if(used == slots.length)
+        {
+            int     capacity = slots.length * 2;
+            StorageInfo[]   grownSlots = new StorageInfo[capacity];
+            long[]          grownWeights = new long[capacity];
+            System.arraycopy(slots, 0, grownSlots, 0, used);
+            System.arraycopy(weights, 0, grownWeights, 0, used);
+            slots = grownSlots;
+            weights = grownWeights;
+            rebuild(capacity);
+        }
+
+        slots[used] = storage;
+        weights[used] = 0;
+        slotOf.put(storage, used);
+        return used++;
+    }
+
+    /** Sets the weight of a slot, updating the tree and the total. */
+    private void setWeight(int slot, long weight)
+    {
+        long    delta = weight - weights[slot];
+        if(delta == 0)
+            return;
+
+        weights[slot] = weight;
+        total += delta;
+        for(int i = slot + 1; i < tree.length; i += i & -i)
+            tree[i] += delta;
+    }
+
+    /** Returns the slot in which the given offset into the total weight
+        falls: the first slot whose cumulative weight exceeds it.
+
+        @param target An offset, at least zero and less than the total.
+     */
+    private int find(long target)
+    {
+        int     index = 0;
+        for(int step = Integer.highestOneBit(tree.length - 1); step > 0;
+            step >>= 1)
+        {
+            int     next = index + step;
+            if(next < tree.length && tree[next] <= target)
+            {
+                index = next;
+                target -= tree[next];
+            }
+        }
+        // index is the last position whose cumulative weight is at most the
+        // target; the slot after it holds the target.
+        return index;
+    }
+
+    /** Rebuilds the tree, with the given number of slots, from the weights.
+     */
+    private void rebuild(int capacity)
+    {
+        tree = new long[capacity + 1];
+        total = 0;
+        for(int i = 0; i < used; ++i)
+        {
+            tree[i + 1] = weights[i];
+            total += weights[i];
+        }
+
+        // Each position passes its sum on to the next position covering it.
+        for(int i = 1; i <= capacity; ++i)
+        {
+            int     parent = i + (i & -i);
+            if(parent <= capacity)
+                tree[parent] += tree[i];
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package naming;
+
+import storage.StorageStatus;
+
+/** Policies by which the naming server chooses the storage server on which
+    a new file is created.
+
+    <p>
+    A policy weighs each storage server from the state it reported with its
+    last heartbeat, and servers are chosen at random in proportion to their
+    weights. Storage servers that have never reported weigh as much as the
+    average server that has.
+
+    <p>
+    The naming server uses the policy named by the
+    <code>naming.placementPolicy</code> system property, or
+    {@link #MOST_FREE_SPACE} if the property is not set.
+ */
+public enum PlacementPolicy
+{
+    /** Every server weighs the same. */
+    RANDOM
+    {
+        @Override
+        long weigh(StorageStatus status)
+        {
+            return UNIT;
+        }
+    },
+
+    /** Servers weigh their free space. A server with less than a mebibyte
+        free is not chosen while others have more. */
+    MOST_FREE_SPACE
+    {
+        @Override
+        long weigh(StorageStatus status)
+        {
+            return Math.max(status.getFreeSpace(), 0) >> 20;
+        }
+    },
+
+    /** Servers weigh the inverse of the client calls they had in progress.
+     */
+    LEAST_LOADED
+    {
+        @Override
+        long weigh(StorageStatus status)
+        {
+            return UNIT / (1 + Math.max(status.getPendingCalls(), 0));
+        }
+    },
+
+    /** Servers weigh the inverse of the number of files they host. */
+    FEWEST_FILES
+    {
+        @Override
+        long weigh(StorageStatus status)
+        {
+            return UNIT / (1 + Math.max(status.getFiles(), 0));
+        }
+    };
+
+    /** System property naming the placement policy of new naming servers. */
+    public static final String  POLICY_PROPERTY = "naming.placementPolicy";
+
+    /** Weight of a server under the policies that do not weigh bytes. */
+    static final long           UNIT = 1L << 20;
+
+    /** Returns the weight of a storage server that reported the given state.
+     */
+    abstract long weigh(StorageStatus status);
+
+    /** Returns the policy with the given name.
+
+        @param name One of <code>random</code>, <code>most-free-space</code>,
+                    <code>least-loaded</code> and <code>fewest-files</code>.
+        @return The policy.
+        @throws IllegalArgumentException If there is no policy with the given
+                                         name.
+     */
+    public static PlacementPolicy forName(String name)
+    {
+        try
+        {
+            return valueOf(name.toUpperCase().replace('-', '_'));
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Unknown placement policy: " +
+                                               name);
+        }
+    }
+
+    /** Returns the policy named by the <code>naming.placementPolicy</code>
+        system property. An unknown name is reported, and the default policy
+        used instead.
+     */
+    static PlacementPolicy fromProperty()
+    {
+        String      name = System.getProperty(POLICY_PROPERTY);
+        if(name == null)
+            return MOST_FREE_SPACE;
+
+        try
+        {
+            return forName(name);
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println("[ERROR] " + e.getMessage() + "; using " +
+                               "most-free-space");
+            return MOST_FREE_SPACE;
+        }
+    }
+}
@@ -7,7 +7,9 @@ import rmi.RMIException;
 /** Naming server registration interface.
 
     <p>
-    This interface is used once, on startup, by each storage server.
+    This interface is used once, on startup, by each storage server, to
+    register, and then at a fixed interval to report that the storage server
+    is still alive.
  */
 public interface Registration
 {
@@ -52,4 +54,36 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Reports that a registered storage server is alive.
+
+        <p>
+        Storage servers call this method every few seconds once registered.
+        The naming server suspects a storage server that has reported before,
+        but not recently, to be dead, and stops directing clients to it until
+        it reports again. Storage servers that never report are trusted.
+
+        <p>
+        The default implementation ignores the report, and returns
+        <code>true</code>.
+
+        @param client_stub Client service stub of the storage server, as
+                           given to <code>register</code>.
+        @param status The current state of the storage server.
+        @return <code>true</code> if the storage server is registered with the
+                naming server; <code>false</code> if it is unknown, for
+                instance because the naming server has restarted.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default boolean heartbeat(Storage client_stub, StorageStatus status)
+        throws RMIException
+    {
+        if(client_stub == null || status == null)
+            throw new NullPointerException("Some of heartbeat arguments is null");
+
+        return true;
+    }
 }
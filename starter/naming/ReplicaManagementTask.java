@@ -21,97 +21,128 @@ public class ReplicaManagementTask implements Runnable {
 	private StorageInfo currentStorageInfo;
 
 	/**
-	 * It is True if this task must do a file replication to new storage nodes;
-	 * False if it is an invalidation task to delete nodes from all other
-	 * storage nodes.
+	 * The number of copies of the file the task leaves. When the file has
+	 * fewer, copies are made on new storage nodes; when it has more, the
+	 * copies added last are deleted. A target of one invalidates all copies
+	 * but the current one.
 	 */
-	private boolean isReplicationTask;
+	private int targetReplicas;
 
+	/**
+	 * The internal lock taken on the file for this task. It is handed over by
+	 * the naming server rather than looked up on the file node, because it
+	 * may still be pending on an ancestor when the task starts.
+	 */
+	private DfsLock lock;
+
+	/**
+	 * Creates a task bringing the copies of a file to the given number. The
+	 * lock must be shared if the file is to gain copies, and exclusive if it
+	 * may lose some, so that no client reads from a copy as it is deleted.
+	 */
 	public ReplicaManagementTask(NamingServer namingServer, Path file, TreeNode node,
-			boolean isReplicationTask) {
+			int targetReplicas, DfsLock lock) {
 		this.file = file;
+		this.lock = lock;
 		this.node = node;
 		this.namingServer = namingServer;
 		this.currentStorageInfo = node.storages.get(0);
-		this.isReplicationTask = isReplicationTask;
+		this.targetReplicas = targetReplicas;
 	}
 
 	public void run() {
 
-		// TODO: perform replication or invalidation based on isReplicationTask;
-		// (try to) acquire locks accordingly for replication and invalidation
-		// on other servers
-		
 		// Lock was already requested
-		boolean isExclusiveLock = !isReplicationTask;
-		DfsLock lock = node.getInternalLock(file, isExclusiveLock);
-		
 		try {
 //			System.err.println("waiting to replicate : " + lock.lockedPath + ":" + isExclusiveLock);
             lock.waitLock();
 //            System.err.println("Beginning replication : " + lock.lockedPath + ":" + isExclusiveLock);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+			// The naming server is stopping. The copies must not be changed
+			// without the lock, and nobody else will take it out of the queues.
+			namingServer.withdrawLock(lock);
+			Thread.currentThread().interrupt();
+			return;
         }
-		
+
+		// The lock is released however the task ends, or the file would stay
+		// locked for good.
+		boolean grew = false;
+		try {
+			// The file was deleted while the task waited for its lock.
+			if (!lock.isFailed()) {
+				grew = manageReplicas();
+			}
+		} finally {
+			namingServer.finishReplicaTask(file, node, lock, grew);
+		}
+	}
+
+	/**
+	 * Brings the copies of the file to the target number. Must be called with
+	 * the lock of the task granted. Returns whether copies were added.
+	 */
+	private boolean manageReplicas() {
+		boolean grew = false;
 		// Do file replication on new storage nodes
-		if (isReplicationTask) {
+		if (node.storages.size() < targetReplicas) {
 			StorageInfo src = currentStorageInfo;
-			StorageInfo dest = null;
+			int missing = targetReplicas - node.storages.size();
+			int copied = 0;
 
-			HashSet<StorageInfo> availableStorages = namingServer.availableStorages;
-			Iterator<StorageInfo> it = availableStorages.iterator();
-			while(it.hasNext()) {
+			// The set is copied on write, so storage servers registering
+			// meanwhile do not disturb the iteration.
+			Iterator<StorageInfo> it = namingServer.availableStorages.iterator();
+			// A file in demand gains all the copies it is missing at once.
+			while(it.hasNext() && missing > 0) {
 				StorageInfo considerInfo = it.next();
 				Command consider = considerInfo.commandStub;
-				if (!consider.equals(src.commandStub) && !considerInfo.paths.contains(node)) {
-					dest = considerInfo;
-					break;
+				// A copy on a server suspected dead would be handed to no client.
+				if (consider.equals(src.commandStub) || considerInfo.hasFile(node)
+						|| namingServer.isSuspected(considerInfo)) {
+					continue;
 				}
-			}
-			
-			if (dest == null) {
-				System.err.println("[ERROR] No available storage servers to replicate file. Need Patience!");
-			} else {
+
 				try {
-					dest.commandStub.copy(file, src.clientStub);
-					dest.addFile(node);
-		            node.storages.add(dest);
+					considerInfo.commandStub.copy(file, src.clientStub);
+					considerInfo.addFile(node);
+		            node.storages.add(considerInfo);
+		            missing--;
+		            copied++;
 				} catch(Exception e) {
 					System.err.println("[ERROR] Replication on new storage nodes failed!");
 					e.printStackTrace();
 				}
 			}
-		// Do invalidate operation on all other storage nodes
+
+			if (copied == 0) {
+				System.err.println("[ERROR] No available storage servers to replicate file. Need Patience!");
+			}
+			grew = copied > 0;
+		// Delete the copies beyond the target, the ones added last first
 		} else {
 			StorageInfo src = currentStorageInfo;
 
-            HashSet<StorageInfo> availableStorages = namingServer.availableStorages;
-            Iterator<StorageInfo> it = availableStorages.iterator();
-            while(it.hasNext()) {
-                StorageInfo considerInfo = it.next();
+            ArrayList<StorageInfo> hosts = new ArrayList<>(node.storages);
+            for (int i = hosts.size() - 1; i >= 0 && node.storages.size() > targetReplicas; i--) {
+                StorageInfo considerInfo = hosts.get(i);
                 Command consider = considerInfo.commandStub;
-                if (!consider.equals(src.commandStub) && considerInfo.paths.contains(node)) {
-					try {	
+                if (!consider.equals(src.commandStub)) {
+					try {
 							consider.delete(file);
 							node.storages.remove(considerInfo);
-							considerInfo.paths.remove(node);
-							
+							considerInfo.removeFile(node);
+
 					} catch (Exception e) {
 						System.err.println("[ERROR] Failed during invalidation of replicas");
 						e.printStackTrace();
 					}
 				}
             }
-            
+
 		}
-		
-		TreeNode current = namingServer.filesystem;
-        current.removeLock(lock.id);
-        for (String component: file){
-            current = current.getChild(component);
-            current.removeLock(lock.id);
-        }
+
+		return grew;
 	}
 
 }
@@ -0,0 +1,269 @@
+package naming;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rmi.Stub;
+import storage.StorageStatus;
+
+/** Built-in replica selection policies.
+
+    <p>
+    The load of a storage server is the number of client calls it had in
+    progress when it last reported, which is at most a heartbeat interval old.
+    A storage server that has never reported counts as idle.
+
+    <p>
+    The naming server uses the policy named by the
+    <code>naming.replicaPolicy</code> system property, or
+    {@link #DEFAULT_POLICY} if the property is not set.
+ */
+public final class ReplicaPolicies
+{
+    /** System property naming the replica policy of new naming servers. */
+    public static final String  POLICY_PROPERTY = "naming.replicaPolicy";
+    /** Name of the policy used when the property is not set. */
+    public static final String  DEFAULT_POLICY = "same-host";
+
+    /** Prevents the class from being instantiated. */
+    private ReplicaPolicies()
+    {
+    }
+
+    /** Returns the policy that always chooses the first replica, the storage
+        server that hosted the file first. Reads never spread over the copies.
+     */
+    public static ReplicaPolicy first()
+    {
+        return new ReplicaPolicy()
+        {
+            @Override
+            public StorageInfo choose(List<StorageInfo> replicas,
+                                      InetAddress client)
+            {
+                return replicas.get(0);
+            }
+        };
+    }
+
+    /** Returns a policy choosing the replicas in turn.
+
+        <p>
+        One counter is shared by all files, so that successive reads of any
+        files spread evenly when the files have the same number of replicas.
+     */
+    public static ReplicaPolicy roundRobin()
+    {
+        return new ReplicaPolicy()
+        {
+            /** Number of choices made. */
+            private final AtomicInteger     turn = new AtomicInteger();
+
+            @Override
+            public StorageInfo choose(List<StorageInfo> replicas,
+                                      InetAddress client)
+            {
+                int     next = turn.getAndIncrement() & Integer.MAX_VALUE;
+                return replicas.get(next % replicas.size());
+            }
+        };
+    }
+
+    /** Returns a policy choosing the least loaded replica. Ties go to the
+        earlier replica.
+
+        <p>
+        As the reported loads change only once per heartbeat, every read in
+        between goes to the same replica. {@link #twoChoices()} spreads reads
+        better when many arrive at once.
+     */
+    public static ReplicaPolicy leastLoaded()
+    {
+        return new ReplicaPolicy()
+        {
+            @Override
+            public StorageInfo choose(List<StorageInfo> replicas,
+                                      InetAddress client)
+            {
+                StorageInfo     best = replicas.get(0);
+                for(int i = 1; i < replicas.size(); ++i)
+                {
+                    if(load(replicas.get(i)) < load(best))
+                        best = replicas.get(i);
+                }
+                return best;
+            }
+        };
+    }
+
+    /** Returns a policy choosing the less loaded of two replicas picked at
+        random.
+
+        <p>
+        Comparing two random replicas, rather than taking the least loaded
+        one, keeps reads spread while the reported loads are stale, yet avoids
+        overloaded replicas nearly as well.
+     */
+    public static ReplicaPolicy twoChoices()
+    {
+        return new ReplicaPolicy()
+        {
+            @Override
+            public StorageInfo choose(List<StorageInfo> replicas,
+                                      InetAddress client)
+            {
+                int         count = replicas.size();
+                if(count == 1)
+                    return replicas.get(0);
+
+                ThreadLocalRandom   random = ThreadLocalRandom.current();
+                int         first = random.nextInt(count);
+                // A second, different replica.
+                int         second = (first + 1 + random.nextInt(count - 1)) %
+                                     count;
+
+                StorageInfo one = replicas.get(first);
+                StorageInfo other = replicas.get(second);
+                return (load(other) < load(one)) ? other : one;
+            }
+        };
+    }
+
+    /** Returns a policy choosing a replica on the client's host when there is
+        one, and leaving the choice to another policy otherwise.
+
+        @param fallback The policy choosing among the replicas on the client's
+                        host, if there are several, or among all replicas if
+                        there are none.
+        @throws NullPointerException If <code>fallback</code> is
+                                     <code>null</code>.
+     */
+    public static ReplicaPolicy sameHost(final ReplicaPolicy fallback)
+    {
+        if(fallback == null)
+            throw new NullPointerException("Fallback policy is null");
+
+        return new ReplicaPolicy()
+        {
+            @Override
+            public StorageInfo choose(List<StorageInfo> replicas,
+                                      InetAddress client)
+            {
+                if(client == null)
+                    return fallback.choose(replicas, client);
+
+                List<StorageInfo>   local = null;
+                for(int i = 0; i < replicas.size(); ++i)
+                {
+                    StorageInfo     replica = replicas.get(i);
+                    if(!sameHost(replica, client))
+                        continue;
+
+                    if(local == null)
+                        local = new ArrayList<>(2);
+                    local.add(replica);
+                }
+
+                return fallback.choose(local == null ? replicas : local,
+                                       client);
+            }
+        };
+    }
+
+    /** Returns the built-in policy with the given name.
+
+        @param name One of <code>first</code>, <code>round-robin</code>,
+                    <code>least-loaded</code>, <code>two-choices</code> and
+                    <code>same-host</code>. The last prefers replicas on the
+                    client's host and otherwise uses
+                    <code>two-choices</code>.
+        @return The policy.
+        @throws IllegalArgumentException If there is no policy with the given
+                                         name.
+     */
+    public static ReplicaPolicy forName(String name)
+    {
+        switch(name)
+        {
+        case "first":
+            return first();
+        case "round-robin":
+            return roundRobin();
+        case "least-loaded":
+            return leastLoaded();
+        case "two-choices":
+            return twoChoices();
+        case "same-host":
+            return sameHost(twoChoices());
+        default:
+            throw new IllegalArgumentException("Unknown replica policy: " +
+                                               name);
+        }
+    }
+
+    /** Returns the policy named by the <code>naming.replicaPolicy</code>
+        system property. An unknown name is reported, and the default policy
+        used instead.
+     */
+    static ReplicaPolicy fromProperty()
+    {
+        String      name = System.getProperty(POLICY_PROPERTY, DEFAULT_POLICY);
+
+        try
+        {
+            return forName(name);
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println("[ERROR] " + e.getMessage() + "; using " +
+                               DEFAULT_POLICY);
+            return forName(DEFAULT_POLICY);
+        }
+    }
+
+    /** Returns the load of a storage server: the client calls it had in
+        progress when it last reported.
+
+        @param storage The storage server.
+        @return The load; zero if the server has never reported.
+     */
+    static int load(StorageInfo storage)
+    {
+        StorageStatus   status = storage.getStatus();
+        return (status == null) ? 0 : status.getPendingCalls();
+    }
+
+    /** Checks whether a storage server runs on the given host.
+
+        @param storage The storage server.
+        @param host The address of the host.
+        @return <code>true</code> if the client stub of the storage server
+                calls the given host.
+     */
+    private static boolean sameHost(StorageInfo storage, InetAddress host)
+    {
+        InetSocketAddress   address;
+        try
+        {
+            address = Stub.addressOf(storage.clientStub);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return false;
+        }
+
+        InetAddress     storageHost = address.getAddress();
+        if(storageHost == null)
+            return false;
+
+        // Loopback addresses name the naming server's host, whichever they
+        // are, and are not compared with its other addresses.
+        if(host.isLoopbackAddress() || storageHost.isLoopbackAddress())
+            return host.isLoopbackAddress() && storageHost.isLoopbackAddress();
+        return storageHost.equals(host);
+    }
+}
@@ -0,0 +1,31 @@
+package naming;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/** Policy by which the naming server chooses the replica of a file that a
+    client reads from.
+
+    <p>
+    <code>NamingServer.getStorage</code> passes the policy the storage servers
+    hosting the file that are not suspected dead, in the order in which they
+    received the file. The load each storage server reported with its last
+    heartbeat is available through <code>StorageInfo.getStatus</code>. Built-in
+    policies are provided by <code>ReplicaPolicies</code>.
+
+    <p>
+    Policies are called concurrently, by every thread serving a client, and
+    must be thread-safe.
+ */
+public interface ReplicaPolicy
+{
+    /** Chooses the replica to read from.
+
+        @param replicas The live storage servers hosting the file. The list is
+                        never empty, and must not be modified.
+        @param client The address of the client host, or <code>null</code> if
+                      it is not known.
+        @return One of the storage servers in <code>replicas</code>.
+     */
+    public StorageInfo choose(List<StorageInfo> replicas, InetAddress client);
+}
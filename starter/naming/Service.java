@@ -1,8 +1,12 @@
 package naming;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
 import common.*;
 import rmi.RMIException;
+import rmi.RemoteStream;
 import storage.Storage;
 
 /** Naming server client service interface.
@@ -87,12 +91,29 @@ public interface Service
         <code>A</code> and <code>B</code> for shared access. User <code>D</code>
         must wait until <code>C</code> is done with the lock.
 
+        <p>
+        Locks taken remotely are leased to the client process. Every call the
+        client makes to this interface renews the lease. If the client
+        makes no call for a whole lease period while it is not waiting for a
+        lock, the server assumes it has died and releases its locks. A client
+        that holds a lock for longer than that without other calls must
+        renew the lease with any call, such as <code>isDirectory</code>.
+
+        <p>
+        This method should not be called through a stub made by
+        <code>Stub.withTimeout</code>. The server withdraws a lock granted
+        after the deadline of the call, but a lock granted just before the
+        deadline may reach the client after it, and is then left held with
+        nobody to release it. Calling <code>unlock</code> after a timed-out
+        call does not help, since it may release the lock of another caller.
+
         @param path The file or directory to be locked.
         @param exclusive If <code>true</code>, the object is to be locked for
                          exclusive access. Otherwise, it is to be locked for
                          shared access.
         @throws FileNotFoundException If the object specified by
-                                      <code>path</code> cannot be found.
+                                      <code>path</code> cannot be found, or
+                                      is deleted while the lock is awaited.
         @throws IllegalStateException If the object is a file, the file is
                                       being locked for write access, and a stale
                                       copy cannot be deleted from a storage
@@ -123,6 +144,26 @@ public interface Service
      */
     public void unlock(Path path, boolean exclusive) throws RMIException;
 
+    /** Returns the period of the leases on the locks of clients.
+
+        <p>
+        The naming server releases the locks of a client that makes no call to
+        it for a whole lease period. A client holding a lock while it talks
+        only to storage servers should call the naming server well within this
+        period to keep its locks.
+
+        <p>
+        The default implementation returns the default lease period.
+
+        @return The lease period, in milliseconds.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default long getLeasePeriod() throws RMIException
+    {
+        return LockLeases.DEFAULT_LEASE;
+    }
+
     /** Determines whether a path refers to a directory.
 
         <p>
@@ -158,6 +199,66 @@ public interface Service
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
+    /** The largest number of entries in a chunk of the streams returned by
+        <code>listStream</code>. */
+    public static final int LIST_CHUNK_SIZE = 1024;
+
+    /** Lists the contents of a directory as a stream of chunks.
+
+        <p>
+        The entries are returned in chunks of at most {@link #LIST_CHUNK_SIZE}
+        entries, which are fetched from the server as they are consumed, so
+        that a very large directory is never sent in a single message. The
+        directory should be locked for shared access until the stream has been
+        read to its end or closed.
+
+        <p>
+        The default implementation splits the result of <code>list</code>.
+
+        @param directory The directory to be listed.
+        @return A stream of the directory entries. The entries are not
+                guaranteed to be in any particular order.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default RemoteStream<String[]> listStream(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        final String[]  entries = list(directory);
+
+        return new RemoteStream<String[]>()
+        {
+            /** Index of the first entry of the next chunk. */
+            private int     position = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return position < entries.length;
+            }
+
+            @Override
+            public String[] next()
+            {
+                if(!hasNext())
+                    throw new NoSuchElementException("End of listing.");
+
+                int     end = Math.min(entries.length,
+                                       position + LIST_CHUNK_SIZE);
+                String[] chunk = Arrays.copyOfRange(entries, position, end);
+                position = end;
+                return chunk;
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
     /** Creates the given file, if it does not exist.
 
         <p>
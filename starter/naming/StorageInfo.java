@@ -3,10 +3,11 @@ package naming;
 import common.Path;
 import storage.Command;
 import storage.Storage;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import storage.StorageStatus;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by Sreejith Unnikrishnan on 5/9/16.
@@ -14,7 +15,17 @@ import java.util.List;
 public class StorageInfo {
     public Command commandStub;
     public Storage clientStub;
-    public ArrayList<TreeNode> paths;
+    // The files the storage server hosts. Replica management tasks change
+    // them while clients create and delete files, so they are only used under
+    // pathsLock.
+    private final ArrayList<TreeNode> paths;
+    private final ReentrantLock pathsLock = new ReentrantLock();
+
+    /** Time of the last heartbeat, from <code>System.nanoTime</code>, or zero
+        if the storage server has never sent one. */
+    private volatile long lastHeartbeat;
+    /** State reported with the last heartbeat, or <code>null</code>. */
+    private volatile StorageStatus status;
 
     public StorageInfo(Command command){
         commandStub = command;
@@ -27,7 +38,60 @@ public class StorageInfo {
         paths = new ArrayList<TreeNode>();
     }
     public void addFile(TreeNode file){
-        paths.add(file);
+        pathsLock.lock();
+        try {
+            paths.add(file);
+        } finally {
+            pathsLock.unlock();
+        }
+    }
+
+    public void removeFile(TreeNode file){
+        pathsLock.lock();
+        try {
+            paths.remove(file);
+        } finally {
+            pathsLock.unlock();
+        }
+    }
+
+    public boolean hasFile(TreeNode file){
+        pathsLock.lock();
+        try {
+            return paths.contains(file);
+        } finally {
+            pathsLock.unlock();
+        }
+    }
+
+    /** Records a heartbeat from the storage server.
+
+        @param status The state reported.
+     */
+    public void heartbeat(StorageStatus status){
+        this.status = status;
+        long now = System.nanoTime();
+        // Zero marks a server that has never reported.
+        lastHeartbeat = (now == 0) ? 1 : now;
+    }
+
+    /** Returns the state reported with the last heartbeat, or
+        <code>null</code> if the storage server has never sent one. */
+    public StorageStatus getStatus(){
+        return status;
+    }
+
+    /** Checks whether the storage server is suspected to be dead: it has sent
+        heartbeats, but none in the given time. A storage server that has
+        never sent a heartbeat is not suspected.
+
+        @param timeoutMillis The time, in milliseconds, after which a silent
+                             storage server is suspected.
+        @return <code>true</code> if the storage server is suspected dead.
+     */
+    public boolean isSuspected(long timeoutMillis){
+        long last = lastHeartbeat;
+        return last != 0 && System.nanoTime() - last > timeoutMillis * 1000000L;
     }
 
 //    public void addPaths(List<Path> paths){
@@ -3,9 +3,12 @@ package naming;
 import common.DfsUtils;
 import common.Path;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by Sreejith Unnikrishnan on 5/9/16.
@@ -22,14 +25,39 @@ public class TreeNode {
 
     // Metadata
     public int numAccesses;
-    public int readCounter;
+    // Reads of the file, decayed by HotnessTracker, and when they were last
+    // decayed. Guarded by latch.
+    public double readHeat;
+    public long readHeatTime;
 //    public boolean markedForDeletion = false;
-    public ArrayList<StorageInfo> storages = new ArrayList<>();
+    // Replica management tasks add and remove copies while clients look the
+    // storages up, so the list is copied on write: readers never see it
+    // change under them, and copies change far less often than they are read.
+    public final CopyOnWriteArrayList<StorageInfo> storages = new CopyOnWriteArrayList<>();
 
     // Locks
-    public LinkedList<DfsLock> currentLocks = new LinkedList<>();
-    public LinkedList<DfsLock> pendingLocks = new LinkedList<>();
-
+    // Locks held on this node itself: the exclusive lock, if any, and the
+    // shared locks, those of clients apart from those of replica tasks, so
+    // that unlock finds one to release at once. Locks waiting at this node,
+    // whether for it or for a node below, are queued in order.
+    public DfsLock exclusiveHolder;
+    public final HolderList sharedHolders = new HolderList();
+    public final HolderList internalSharedHolders = new HolderList();
+    public final ArrayDeque<DfsLock> pendingLocks = new ArrayDeque<>();
+    // Intention locks: the shared and exclusive locks below this node that
+    // have passed through it. They leave the node locked for shared access,
+    // as Service.lock requires of the directories along a locked path.
+    public int intentionShared;
+    public int intentionExclusive;
+    // Guards children, the lock queues and the read heat of this node. A
+    // thread holding the latch of a node may take the latch of a child, never
+    // that of its parent, so latches are taken down the tree only.
+    public final ReentrantLock latch = new ReentrantLock();
+    // Counts changes to children, so that a listing paged through them can
+    // tell that they changed between pages. Guarded by latch.
+    public int childrenVersion;
+    // Number of components in the path of this node, or -1 until computed
+    private int depth = -1;
 
     public TreeNode(){
         this.nodeType = NodeType.DIRECTORY;
@@ -47,10 +75,38 @@ public class TreeNode {
 
     public boolean hasChild(String component){
         // TODO: check if contains will compare by value, not by reference
-        return children.containsKey(component);
+        latch.lock();
+        try {
+            return children.containsKey(component);
+        } finally {
+            latch.unlock();
+        }
     }
     public TreeNode getChild(String component){
-        return children.get(component);
+        latch.lock();
+        try {
+            return children.get(component);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    // Copies of the children and their names, safe to use without the latch.
+    public ArrayList<TreeNode> childNodes(){
+        latch.lock();
+        try {
+            return new ArrayList<>(children.values());
+        } finally {
+            latch.unlock();
+        }
+    }
+    public String[] childNames(){
+        latch.lock();
+        try {
+            return children.keySet().toArray(new String[children.size()]);
+        } finally {
+            latch.unlock();
+        }
     }
 
     public void addStorage(StorageInfo storage){
@@ -62,151 +118,181 @@ public class TreeNode {
 
     public TreeNode addChild(TreeNode child) {
         child.parent = this;
-        children.put(child.nodeName, child);
+        latch.lock();
+        try {
+            children.put(child.nodeName, child);
+            childrenVersion++;
+        } finally {
+            latch.unlock();
+        }
         return child;
     }
 
     public void removeChild(TreeNode node) {
-        this.children.remove(node.nodeName);
+        latch.lock();
+        try {
+            if (this.children.remove(node.nodeName) != null){
+                childrenVersion++;
+            }
+        } finally {
+            latch.unlock();
+        }
     }
 
-    public boolean canLockProceed() {
-        if (currentLocks.isEmpty()) {
-            return true;
-        }
-        // some locks are in currentLocks
-        if (currentLocks.peek().isExclusive) { //
+    public boolean isLocked() {
+        return exclusiveHolder != null || sharedHolders.first != null
+                || internalSharedHolders.first != null;
+    }
+
+    // The lock queue methods below must be called with the latch held. Locks
+    // that move on towards their path are queued at the child, and the child
+    // added to moved; the caller must then check the queue of each child in
+    // moved, see LockManager.
+
+    public void addLock(DfsLock dfsLock, Collection<TreeNode> moved) {
+        pendingLocks.add(dfsLock);
+        checkPendingQueue(moved);
+    }
+
+    // Removes a lock held on this node, granting the locks queued behind it.
+    // Returns false if the lock is not held here.
+    public boolean removeLock(DfsLock dfsLock, Collection<TreeNode> moved) {
+        if (dfsLock.holder != this){
             return false;
         }
-        // some read locks in currentLocks
-        if (pendingLocks.isEmpty()){
-            // some read locks in currentLocks and no locks in pendingLocks
-            return true;
+        if (dfsLock.isExclusive){
+            exclusiveHolder = null;
+        } else if (dfsLock.isInternal){
+            internalSharedHolders.remove(dfsLock);
         } else {
-            // some read locks in currentLocks and write locks in pendingLocks
-            return false;
+            sharedHolders.remove(dfsLock);
         }
+        dfsLock.holder = null;
+        checkPendingQueue(moved);
+        return true;
     }
 
-    public void addLock(DfsLock dfsLock) {
-        pendingLocks.add(dfsLock);
-        checkPendingQueue();
-//        System.out.println(nodeName);
-//        System.out.print("Pending: ");
-//        for(DfsLock lock: pendingLocks) {
-//        	System.out.print(lock.lockedPath + ":" + lock.isExclusive + ":" + lock.isInternal + ", ");
-//        }
-//        System.out.println();
-//        
-//        System.out.print("Current: ");
-//        for(DfsLock lock: pendingLocks) {
-//        	System.out.print(lock.lockedPath + ":" + lock.isExclusive + ":" + lock.isInternal + ", ");
-//        }
-//        System.out.println();
-//        System.out.println();
-    }
-
-    public void removeLock(String lockId) {
-        for (DfsLock dfsLock: currentLocks){
-            if (dfsLock.id.equals(lockId)){
-                currentLocks.remove(dfsLock);
-                //DfsUtils.safePrintln("Removed lock: " + dfsLock.isExclusive+ " " + dfsLock.lockedPath);
-                //DfsUtils.safePrintln("Current locks: "+currentLocks.size());
-                checkPendingQueue();
-                return;
+    // Removes a lock of the given kind held on this node by an unleased
+    // client, granting the locks queued behind it. Internal locks are held by
+    // replica management tasks, which release them themselves, and leased
+    // locks are released through their lease. Returns the lock, or null if
+    // no unleased client holds such a lock here.
+    public DfsLock removeClientLock(boolean exclusive, Collection<TreeNode> moved) {
+        DfsLock dfsLock;
+        if (exclusive){
+            dfsLock = exclusiveHolder;
+            if (dfsLock == null || dfsLock.isInternal || dfsLock.leased){
+                return null;
+            }
+        } else {
+            // Unleased locks are held ahead of leased ones.
+            dfsLock = sharedHolders.first;
+            if (dfsLock == null || dfsLock.leased){
+                return null;
             }
         }
-        // TODO: do we need to check locks in pendingLocks? Maybe released lock hasn't been even aquired
+        removeLock(dfsLock, moved);
+        return dfsLock;
     }
 
-    public String getLockIdForRelease(Path path, boolean exclusive) {
-        if (currentLocks.size() > 1){
-            // currentLocks contain multiple read locks, let's find the one for curent path
-            for (DfsLock dfsLock: currentLocks){
-                if (dfsLock.lockedPath.equals(path) && dfsLock.isExclusive == exclusive){
-                    return dfsLock.id;
-                }
-            }
-            return null;
-        } else if (currentLocks.size() > 0 && currentLocks.peek().isExclusive == exclusive &&
-                currentLocks.peek().lockedPath.equals(path)) {
-            // only one lock, R or W, in the current locks available for release
-            return currentLocks.peek().id;
-        }
-        return null;
-    }
-    
-    public DfsLock getInternalLock(Path path, boolean exclusive) {
-    	for (DfsLock dfsLock: currentLocks){
-    		if (dfsLock.lockedPath.equals(path) && dfsLock.isExclusive == exclusive && dfsLock.isInternal == true){
-                return dfsLock;
-            }
-        }
-    	
-    	for (DfsLock dfsLock: pendingLocks){
-    		if (dfsLock.lockedPath.equals(path) && dfsLock.isExclusive == exclusive && dfsLock.isInternal == true){
-                return dfsLock;
-            }
+    // Removes a lock still waiting at this node, granting the locks queued
+    // behind it. Returns false if the lock is not waiting here.
+    public boolean removePendingLock(DfsLock dfsLock, Collection<TreeNode> moved) {
+        if (!pendingLocks.remove(dfsLock)){
+            return false;
         }
-    	
-    	return null;
+        checkPendingQueue(moved);
+        return true;
     }
 
+    // Releases the intention lock left by a lock below this node.
+    public void releaseIntention(boolean exclusive, Collection<TreeNode> moved) {
+        if (exclusive) {
+            intentionExclusive--;
+        } else {
+            intentionShared--;
+        }
+        // Only an exclusive lock on this node waits for intentions.
+        if (intentionShared + intentionExclusive == 0) {
+            checkPendingQueue(moved);
+        }
+    }
 
-    private void checkPendingQueue() {
+    // Grants the locks waiting at this node, in order, until one cannot be
+    // granted. A lock for this node is held here; a lock for a node below
+    // leaves an intention lock and moves on to the child on its path.
+    public void checkPendingQueue(Collection<TreeNode> moved) {
         while (true){
             DfsLock dfsLock = pendingLocks.peek();
             if (dfsLock == null){
                 break;
             }
-            //DfsUtils.safePrintln("Dfs path "+dfsLock.lockedPath+" current path "+getPathToCurrent().toString());
-            boolean canMoveR = currentLocks.isEmpty() ? true : !currentLocks.peek().isExclusive;
-            if (canMoveR){
-                if (dfsLock.lockedPath.equals(getPathToCurrent())){
-                    //DfsUtils.safePrintln("First branch : if");
-                    // R lock for any node or W lock for current node
-                    boolean canMoveRW = currentLocks.isEmpty();
-                    if (!dfsLock.isExclusive || canMoveRW){
-                        pendingLocks.pollFirst();
-                        currentLocks.add(dfsLock);
-//                        if(!dfsLock.isExclusive) {
-//                        	readCounter++;
-//                        }
-                        checkNotifySender(dfsLock);
-                    } else {
-                        break;
-                    }
+            // An exclusive lock on this node holds back every other lock on
+            // it or below it.
+            if (exclusiveHolder != null){
+                break;
+            }
+
+            if (dfsLock.lockedPath.pathComponents.size() == depth()){
+                // Shared locks are compatible with intention locks; an
+                // exclusive lock waits for all locks below to be released.
+                if (dfsLock.isExclusive && (isLocked()
+                        || intentionShared + intentionExclusive > 0)){
+                    break;
+                }
+                pendingLocks.pollFirst();
+                if (dfsLock.isExclusive){
+                    exclusiveHolder = dfsLock;
+                } else if (dfsLock.isInternal){
+                    internalSharedHolders.add(dfsLock);
+                } else if (dfsLock.leased){
+                    sharedHolders.add(dfsLock);
                 } else {
-                    //DfsUtils.safePrintln("Inside the second branch : else");
-                    // need to move lock for different path down to child
-                    // TODO: check if the child exist and not deleted
-                    DfsLock copyLock = new DfsLock(dfsLock.id, dfsLock.lockedPath, false, dfsLock.isInternal);
-                    currentLocks.add(copyLock);
-//                    if(!copyLock.isExclusive) {
-//                    	readCounter++;
-//                    }
-                    propagateLock(dfsLock);
+                    sharedHolders.addFirst(dfsLock);
                 }
+                dfsLock.holder = this;
+                dfsLock.notifySender();
             } else {
-                break;
+                propagateLock(dfsLock, moved);
             }
         }
     }
 
-    private void propagateLock(DfsLock dfsLock){
-        Path currentPath = getPathToCurrent();
-        String component = currentPath.getNextComponentOf(dfsLock.lockedPath);
-        //DfsUtils.safePrintln("Next component: "+component);
-        TreeNode child = getChild(component);
+    // Moves the lock at the head of the queue on to the child on its path,
+    // leaving an intention lock on this node. If the child was deleted while
+    // the lock waited, the lock is dropped instead and its sender woken; the
+    // intention locks it left above this node are released by the sender,
+    // since the latches of parents cannot be taken here.
+    private void propagateLock(DfsLock dfsLock, Collection<TreeNode> moved){
+        TreeNode child = children.get(dfsLock.lockedPath.pathComponents.get(depth()));
         pendingLocks.pollFirst();
-        child.addLock(dfsLock);
+        if (child == null){
+            dfsLock.notifyFailure(this);
+            return;
+        }
+        if (dfsLock.isExclusive){
+            intentionExclusive++;
+        } else {
+            intentionShared++;
+        }
+        // Queued with both latches held, so that locks reach the child in the
+        // order they left this node.
+        child.latch.lock();
+        try {
+            child.pendingLocks.add(dfsLock);
+        } finally {
+            child.latch.unlock();
+        }
+        moved.add(child);
     }
 
-    private void checkNotifySender(DfsLock dfsLock) {
-        Path pathToCurrent = getPathToCurrent();
-        if (dfsLock.lockedPath.equals(pathToCurrent)){
-            dfsLock.notifySender();
+    // Returns the number of components in the path of this node. Nodes are
+    // never moved, so it is computed once.
+    public int depth() {
+        if (depth < 0) {
+            depth = (parent == null) ? 0 : parent.depth() + 1;
         }
+        return depth;
     }
 
     public Path getPathToCurrent() {
@@ -231,4 +317,52 @@ public class TreeNode {
         return current;
     }
 
+    // Shared locks held on a node, oldest first, linked through the locks
+    // themselves so that holding and releasing a lock allocates nothing.
+    public static class HolderList {
+        public DfsLock first;
+        public DfsLock last;
+        public int size;
+
+        void add(DfsLock dfsLock) {
+            dfsLock.previousHolder = last;
+            dfsLock.nextHolder = null;
+            if (last == null){
+                first = dfsLock;
+            } else {
+                last.nextHolder = dfsLock;
+            }
+            last = dfsLock;
+            size++;
+        }
+
+        void addFirst(DfsLock dfsLock) {
+            dfsLock.previousHolder = null;
+            dfsLock.nextHolder = first;
+            if (first == null){
+                last = dfsLock;
+            } else {
+                first.previousHolder = dfsLock;
+            }
+            first = dfsLock;
+            size++;
+        }
+
+        void remove(DfsLock dfsLock) {
+            if (dfsLock.previousHolder == null){
+                first = dfsLock.nextHolder;
+            } else {
+                dfsLock.previousHolder.nextHolder = dfsLock.nextHolder;
+            }
+            if (dfsLock.nextHolder == null){
+                last = dfsLock.previousHolder;
+            } else {
+                dfsLock.nextHolder.previousHolder = dfsLock.previousHolder;
+            }
+            dfsLock.previousHolder = null;
+            dfsLock.nextHolder = null;
+            size--;
+        }
+    }
+
 }
@@ -0,0 +1,262 @@
+package rmi;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import rmi.io.Message;
+import rmi.io.RMIResponse;
+import rmi.io.WireProtocol;
+
+/**
+ * A batch of remote calls to one skeleton, sent in a single round trip.
+ *
+ * <p>
+ * Calls are queued through stubs obtained from {@link #stub(Class, Class)},
+ * which implement an asynchronous interface as described in
+ * {@link Stub#createAsync(Class, Class, InetSocketAddress)}: each call returns
+ * a future at once and sends nothing. {@link #flush()} then sends all queued
+ * calls in one request. The skeleton executes them one after the other, in
+ * the order they were queued, and answers with the results of all of them in
+ * one response, so that a thousand calls cost one round trip rather than a
+ * thousand. For example:
+ *
+ * <pre>
+ * Batch batch = new Batch(service);
+ * AsyncService queued = batch.stub(AsyncService.class, Service.class);
+ * ArrayList&lt;CompletableFuture&lt;Boolean&gt;&gt; created = new ArrayList&lt;&gt;();
+ * for (Path path : paths) {
+ * 	created.add(queued.createFile(path));
+ * }
+ * batch.flush();
+ * </pre>
+ *
+ * <p>
+ * The calls of a batch are independent: an exception thrown by one call
+ * completes its own future and does not stop the calls after it. A batch may
+ * be flushed any number of times, and may be used from several threads.
+ */
+public class Batch {
+
+	/**
+	 * The network address of the skeleton the calls are sent to.
+	 */
+	private final InetSocketAddress address;
+	/**
+	 * The encoded calls queued since the last flush.
+	 */
+	private ArrayList<Message> calls = new ArrayList<>();
+	/**
+	 * The future returned for each queued call.
+	 */
+	private ArrayList<CompletableFuture<Object>> results = new ArrayList<>();
+
+	/**
+	 * Creates an empty batch of calls to the skeleton at the given address.
+	 *
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @throws NullPointerException
+	 *             If <code>address</code> is <code>null</code>.
+	 */
+	public Batch(InetSocketAddress address) {
+		if (address == null) {
+			throw new NullPointerException("address should be non-null.");
+		}
+
+		this.address = address;
+	}
+
+	/**
+	 * Creates an empty batch of calls to the skeleton an existing stub calls.
+	 *
+	 * @param stub
+	 *            A stub created by one of the <code>Stub.create</code>
+	 *            methods.
+	 * @throws NullPointerException
+	 *             If <code>stub</code> is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub.
+	 */
+	public Batch(Object stub) {
+		this(Stub.addressOf(stub));
+	}
+
+	/**
+	 * Returns a stub queuing its calls in this batch.
+	 *
+	 * @param a
+	 *            The asynchronous interface implemented by the stub.
+	 * @param c
+	 *            The remote interface implemented by the skeleton.
+	 * @param <A>
+	 *            The asynchronous interface type.
+	 * @param <T>
+	 *            The remote interface type.
+	 * @return the queuing stub
+	 * @throws NullPointerException
+	 *             If any argument is <code>null</code>.
+	 * @throws Error
+	 *             If <code>c</code> is not a remote interface, or if
+	 *             <code>a</code> is not an interface whose methods all return
+	 *             futures and correspond to remote methods of <code>c</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public <A, T> A stub(Class<A> a, Class<T> c) {
+		if (a == null || c == null) {
+			throw new NullPointerException("Paramater of stub should be non-null.");
+		}
+
+		if (!RemotePattern.isRemoteInterface(c)) {
+			throw new Error("c is not a remote interface.");
+		}
+
+		final HashMap<Method, Method> remoteMethods = Stub.asyncMethods(a, c);
+		RemoteInterface.hierarchyOf(c);
+
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Method remote = remoteMethods.get(method);
+				if (remote == null) {
+					// equals, hashCode and toString.
+					return method.invoke(this, args);
+				}
+
+				return queue(remote, args);
+			}
+		};
+
+		return (A) Proxy.newProxyInstance(a.getClassLoader(), new Class<?>[] { a }, handler);
+	}
+
+	/**
+	 * Returns the number of calls queued since the last flush.
+	 *
+	 * @return number of queued calls
+	 */
+	public synchronized int size() {
+		return calls.size();
+	}
+
+	/**
+	 * Sends the queued calls to the skeleton in one request, and waits for
+	 * the response. When the method returns, the future of every call flushed
+	 * has been completed, with its result or with the exception it threw. An
+	 * empty batch sends nothing.
+	 *
+	 * <p>
+	 * Calls queued while the flush is in progress are left for the next flush.
+	 *
+	 * @throws RMIException
+	 *             If the request cannot be sent or its response received. The
+	 *             futures of the flushed calls are completed exceptionally
+	 *             with the same exception.
+	 */
+	public void flush() throws RMIException {
+		ArrayList<Message> flushedCalls;
+		ArrayList<CompletableFuture<Object>> flushedResults;
+
+		synchronized (this) {
+			if (calls.isEmpty()) {
+				return;
+			}
+
+			flushedCalls = calls;
+			flushedResults = results;
+			calls = new ArrayList<>();
+			results = new ArrayList<>();
+		}
+
+		RMIResponse response;
+		try {
+			Message request;
+			try {
+				request = WireProtocol.encodeBatchRequest(flushedCalls);
+			} catch (IOException e) {
+				throw new RMIException("Failed to encode the batch.", e);
+			}
+			response = WireProtocol.decodeResponse(Stub.transmit(address, request));
+		} catch (RMIException e) {
+			fail(flushedResults, e);
+			throw e;
+		} catch (IOException | ClassNotFoundException e) {
+			RMIException failure = new RMIException("Failed to decode the results of the batch.", e);
+			fail(flushedResults, failure);
+			throw failure;
+		}
+
+		if (!response.isBatch()) {
+			// The skeleton could not read the batch at all.
+			RMIException failure = new RMIException("The batch was rejected.", response.getException());
+			fail(flushedResults, failure);
+			throw failure;
+		}
+
+		List<RMIResponse> responses = response.getBatch();
+		if (responses.size() != flushedResults.size()) {
+			RMIException failure = new RMIException(
+					"Expected " + flushedResults.size() + " results but received " + responses.size() + ".");
+			fail(flushedResults, failure);
+			throw failure;
+		}
+
+		for (int i = 0; i < responses.size(); i++) {
+			RMIResponse single = responses.get(i);
+			if (single.getException() == null) {
+				flushedResults.get(i).complete(Stub.resolve(address, single.getReturnValue()));
+			} else {
+				flushedResults.get(i).completeExceptionally(single.getException());
+			}
+		}
+	}
+
+	/**
+	 * Queues a call. A call whose arguments cannot be encoded is not queued;
+	 * its future fails at once.
+	 *
+	 * @param method
+	 *            The remote method.
+	 * @param args
+	 *            The arguments.
+	 * @return the future of the call
+	 */
+	private CompletableFuture<Object> queue(Method method, Object[] args) {
+		CompletableFuture<Object> result = new CompletableFuture<>();
+
+		Message call;
+		try {
+			call = Stub.encodeCall(method, args);
+		} catch (RMIException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+
+		synchronized (this) {
+			calls.add(call);
+			results.add(result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Completes the futures of flushed calls exceptionally.
+	 *
+	 * @param flushed
+	 *            The futures.
+	 * @param failure
+	 *            The exception.
+	 */
+	private static void fail(List<CompletableFuture<Object>> flushed, RMIException failure) {
+		for (CompletableFuture<Object> result : flushed) {
+			result.completeExceptionally(failure);
+		}
+	}
+}
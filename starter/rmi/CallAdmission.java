@@ -0,0 +1,277 @@
+package rmi;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits the remote calls read by a running skeleton into its executor.
+ *
+ * <p>
+ * Calls are admitted in one of three lanes: the priority lane, for the
+ * methods marked with {@link Skeleton#prioritize(String)} and the methods the
+ * skeleton answers itself, the isolated lane, for the methods marked with
+ * {@link Skeleton#isolate(String)}, and the normal lane for all others. Each
+ * lane runs at most a fixed number of calls at once. A call arriving when its
+ * lane is full waits in the queue of the lane, and a call arriving when that
+ * queue is full too is rejected at once with an {@link OverloadedException}. A
+ * thread finishing a call goes on with the next call waiting in its lane, so
+ * the executor never holds more calls than the lanes let run.
+ *
+ * <p>
+ * The lanes share no threads, so calls that block in the server object, such
+ * as a crowd of lock requests, can neither hold up nor starve the priority
+ * calls that would release them. Isolating those blocking calls also keeps
+ * them from filling the normal lane, which the holder of a lock needs for its
+ * other calls before it releases the lock.
+ */
+final class CallAdmission {
+
+	/**
+	 * The lanes in which calls are admitted.
+	 */
+	enum LaneKind {
+		/**
+		 * Calls to methods neither prioritized nor isolated.
+		 */
+		NORMAL,
+		/**
+		 * Calls to prioritized methods and built-in methods.
+		 */
+		PRIORITY,
+		/**
+		 * Calls to isolated methods.
+		 */
+		ISOLATED
+	}
+
+	/**
+	 * The calls of one lane.
+	 */
+	private static final class Lane {
+		/**
+		 * The number of calls that may run at once.
+		 */
+		final int limit;
+		/**
+		 * The number of calls that may wait for their turn.
+		 */
+		final int queueLength;
+		/**
+		 * The calls waiting for their turn, in order of arrival.
+		 */
+		final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+		/**
+		 * The number of calls running.
+		 */
+		int running;
+
+		/**
+		 * Creates a lane.
+		 *
+		 * @param limit
+		 *            The number of calls that may run at once.
+		 * @param queueLength
+		 *            The number of calls that may wait.
+		 */
+		Lane(int limit, int queueLength) {
+			this.limit = limit;
+			this.queueLength = queueLength;
+		}
+	}
+
+	/**
+	 * The executor running the calls.
+	 */
+	private final ExecutorService executor;
+	/**
+	 * Guards the state of all lanes. A lock rather than a monitor, so that a
+	 * virtual thread does not pin its carrier while it holds it.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * The lane of ordinary calls.
+	 */
+	private final Lane normal;
+	/**
+	 * The lane of priority calls.
+	 */
+	private final Lane priority;
+	/**
+	 * The lane of isolated calls.
+	 */
+	private final Lane isolated;
+
+	/**
+	 * Creates the admission control of a running skeleton.
+	 *
+	 * @param executor
+	 *            The executor running the calls.
+	 * @param maxCalls
+	 *            The number of ordinary calls that may run at once.
+	 * @param priorityCalls
+	 *            The number of priority calls that may run at once.
+	 * @param isolatedCalls
+	 *            The number of isolated calls that may run at once, or
+	 *            <code>Integer.MAX_VALUE</code> for no limit.
+	 * @param queueLength
+	 *            The number of calls that may wait in each lane.
+	 */
+	CallAdmission(ExecutorService executor, int maxCalls, int priorityCalls, int isolatedCalls, int queueLength) {
+		this.executor = executor;
+		this.normal = new Lane(maxCalls, queueLength);
+		this.priority = new Lane(priorityCalls, queueLength);
+		this.isolated = new Lane(isolatedCalls, queueLength);
+	}
+
+	/**
+	 * Runs a call in the executor, or queues it if its lane is full.
+	 *
+	 * @param call
+	 *            The call.
+	 * @param kind
+	 *            The lane in which the call is admitted.
+	 * @throws OverloadedException
+	 *             If the lane and its queue are full.
+	 * @throws RejectedExecutionException
+	 *             If the executor has been shut down.
+	 */
+	void execute(Runnable call, LaneKind kind) throws OverloadedException {
+		Lane lane = (kind == LaneKind.PRIORITY) ? priority : (kind == LaneKind.ISOLATED) ? isolated : normal;
+
+		lock.lock();
+		try {
+			if (lane.running == lane.limit) {
+				if (lane.waiting.size() == lane.queueLength) {
+					throw new OverloadedException("Server busy: too many calls in progress.");
+				}
+				lane.waiting.add(call);
+				return;
+			}
+			lane.running++;
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			executor.execute(new Runner(lane, call));
+		} catch (RejectedExecutionException e) {
+			finished(lane);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of calls running or waiting in all lanes.
+	 *
+	 * @return the number of calls admitted and not yet completed.
+	 */
+	int inProgress() {
+		lock.lock();
+		try {
+			return normal.running + normal.waiting.size() + priority.running + priority.waiting.size()
+					+ isolated.running + isolated.waiting.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether the executor has been shut down, in which case no
+	 * further calls are admitted.
+	 *
+	 * @return <code>true</code> if the skeleton is stopping.
+	 */
+	boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	/**
+	 * Frees the slot of a call that has completed, or hands it to the next
+	 * call waiting in the lane.
+	 *
+	 * @param lane
+	 *            The lane of the call.
+	 * @return the next call to run in the slot, or <code>null</code> if none
+	 *         is waiting.
+	 */
+	private Runnable finished(Lane lane) {
+		lock.lock();
+		try {
+			Runnable next = lane.waiting.poll();
+			if (next == null) {
+				lane.running--;
+			}
+			return next;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs a call in a slot of its lane, then the calls waiting in the lane
+	 * until none is left.
+	 */
+	private final class Runner implements Runnable {
+		/**
+		 * The lane whose slot is held.
+		 */
+		private final Lane lane;
+		/**
+		 * The first call to run.
+		 */
+		private final Runnable first;
+
+		/**
+		 * Creates the runner of a call.
+		 *
+		 * @param lane
+		 *            The lane whose slot is held.
+		 * @param first
+		 *            The call.
+		 */
+		Runner(Lane lane, Runnable first) {
+			this.lane = lane;
+			this.first = first;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			Runnable call = first;
+			while (call != null) {
+				try {
+					call.run();
+				} catch (RuntimeException | Error e) {
+					// Hand the slot on before the thread dies with the
+					// exception, so that the calls waiting still run.
+					Runnable next = finished(lane);
+					if (next != null) {
+						resubmit(next);
+					}
+					throw e;
+				}
+				call = finished(lane);
+			}
+		}
+
+		/**
+		 * Runs a call in a new task of the executor, holding the slot of the
+		 * call before it.
+		 *
+		 * @param call
+		 *            The call.
+		 */
+		private void resubmit(Runnable call) {
+			try {
+				executor.execute(new Runner(lane, call));
+			} catch (RejectedExecutionException e) {
+				// The skeleton is stopping, and the calls still waiting are
+				// dropped with their connections.
+			}
+		}
+	}
+}
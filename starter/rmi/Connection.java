@@ -0,0 +1,389 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import rmi.io.Message;
+import rmi.io.WireProtocol;
+
+/**
+ * A persistent, multiplexed stub-side connection to a remote skeleton.
+ *
+ * <p>
+ * The protocol header is exchanged once, when the connection is opened. After
+ * that, requests and responses travel as frames written by
+ * {@link WireProtocol}. The connection only moves frames: requests are encoded
+ * by the caller before they are sent, and responses are decoded by the caller
+ * once they arrive.
+ *
+ * <p>
+ * Any number of threads may have calls in progress on the connection at once.
+ * Each request is tagged with a call ID. The skeleton runs the calls
+ * concurrently and may answer them in any order; a reader thread owned by the
+ * connection matches each response to its waiting caller by call ID.
+ *
+ * <p>
+ * A skeleton running on the same host is reached through its Unix domain
+ * socket, if it has one, and over TCP otherwise.
+ *
+ * <p>
+ * Connections are handed out and taken back by a {@link ConnectionPool}.
+ */
+class Connection implements Runnable {
+
+	/**
+	 * The client ID sent by the stubs of this process, so that skeletons can
+	 * tell it from other processes on the same host. Never zero, which marks
+	 * a peer that is not a client.
+	 */
+	static final long CLIENT_ID = newClientId();
+
+	/**
+	 * The network address of the skeleton this connection is attached to.
+	 */
+	private final InetSocketAddress address;
+	/**
+	 * The underlying TCP socket or domain socket channel.
+	 */
+	private final Closeable endpoint;
+	/**
+	 * Whether the connection has been closed.
+	 */
+	private volatile boolean closed;
+	/**
+	 * The stream on which requests are written, under <code>writeLock</code>.
+	 */
+	private final DataOutputStream out;
+	/**
+	 * Serializes the writing of requests to <code>out</code>. A lock rather
+	 * than a monitor, so that a virtual thread blocked writing does not pin
+	 * its carrier thread.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/**
+	 * The stream from which responses are read by the reader thread.
+	 */
+	private final DataInputStream in;
+	/**
+	 * The calls awaiting a response, by call ID.
+	 */
+	private final ConcurrentHashMap<Long, CompletableFuture<Message>> pendingCalls = new ConcurrentHashMap<>();
+	/**
+	 * The source of call IDs.
+	 */
+	private final AtomicLong nextCallId = new AtomicLong();
+	/**
+	 * Whether both ends offered compression, so that requests are compressed.
+	 */
+	private final boolean compression;
+	/**
+	 * The error that broke the connection, or <code>null</code> while the
+	 * connection is usable.
+	 */
+	private volatile IOException failure;
+	/**
+	 * Whether the skeleton has answered at least one call on this connection.
+	 */
+	private volatile boolean reused;
+	/**
+	 * The number of calls in progress, as accounted by the pool. Guarded by the
+	 * pool lock.
+	 */
+	int activeCalls;
+	/**
+	 * The time, in milliseconds, at which the last call in progress completed.
+	 * Guarded by the pool lock.
+	 */
+	long lastUsed;
+
+	/**
+	 * Opens a new connection to the skeleton at the given address, exchanges
+	 * the protocol headers, and starts the reader thread. Compression is
+	 * offered if the <code>rmi.compression</code> system property is set.
+	 *
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @throws IOException
+	 *             If the connection cannot be established.
+	 */
+	Connection(InetSocketAddress address) throws IOException {
+		this.address = address;
+
+		SocketChannel local = LocalSockets.connect(address);
+		Socket socket = (local == null) ? new Socket() : null;
+		this.endpoint = (local == null) ? socket : local;
+
+		int features = Boolean.getBoolean(Skeleton.COMPRESSION_PROPERTY) ? WireProtocol.FEATURE_COMPRESSION : 0;
+		try {
+			if (local == null) {
+				socket.connect(address);
+				socket.setTcpNoDelay(true);
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			} else {
+				out = new DataOutputStream(new BufferedOutputStream(LocalSockets.outputStream(local)));
+				in = new DataInputStream(new BufferedInputStream(LocalSockets.inputStream(local)));
+			}
+			WireProtocol.writeHeader(out, features, CLIENT_ID);
+			out.flush();
+			features &= WireProtocol.readHeader(in).features;
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		this.compression = (features & WireProtocol.FEATURE_COMPRESSION) != 0;
+		this.lastUsed = System.currentTimeMillis();
+
+		Thread reader = new Thread(this, "rmi-connection-" + address);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Picks the client ID of this process.
+	 *
+	 * @return a random, non-zero ID
+	 */
+	private static long newClientId() {
+		SecureRandom random = new SecureRandom();
+		long id;
+		do {
+			id = random.nextLong();
+		} while (id == 0);
+		return id;
+	}
+
+	/**
+	 * Sends a request to the skeleton and waits for its response.
+	 *
+	 * @param request
+	 *            The request encoded by
+	 *            {@link WireProtocol#encodeRequest(rmi.io.RMIRequest)}. Its
+	 *            call ID is assigned by this method.
+	 * @return The response message sent back by the skeleton.
+	 * @throws IOException
+	 *             If the request cannot be written, in which case a
+	 *             {@link RequestNotSentException} is thrown, or the connection
+	 *             fails before the response arrives.
+	 */
+	Message call(Message request) throws IOException {
+		try {
+			return send(request).join();
+		} catch (CompletionException e) {
+			throw asIOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Sends a request to the skeleton and waits for its response until a
+	 * deadline. A response arriving after the deadline is dropped; the
+	 * connection remains usable.
+	 *
+	 * @param request
+	 *            The request encoded by
+	 *            {@link WireProtocol#encodeRequest(rmi.io.RMIRequest)}. Its
+	 *            call ID is assigned by this method.
+	 * @param deadline
+	 *            The deadline, in the time base of <code>System.nanoTime</code>.
+	 * @return The response message sent back by the skeleton.
+	 * @throws IOException
+	 *             If the request cannot be written, in which case a
+	 *             {@link RequestNotSentException} is thrown, or the connection
+	 *             fails before the response arrives.
+	 * @throws RMIException
+	 *             If the deadline passes, or the thread is interrupted, before
+	 *             the response arrives.
+	 */
+	Message call(Message request, long deadline) throws IOException, RMIException {
+		CompletableFuture<Message> pending = send(request);
+		try {
+			return pending.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (ExecutionException e) {
+			throw asIOException(e.getCause());
+		} catch (TimeoutException e) {
+			pendingCalls.values().remove(pending);
+			throw new DeadlineExceededException("No response before the deadline.");
+		} catch (InterruptedException e) {
+			pendingCalls.values().remove(pending);
+			Thread.currentThread().interrupt();
+			throw new RMIException("Interrupted while waiting for the response.", e);
+		}
+	}
+
+	/**
+	 * Sends a request to the skeleton without waiting for the response.
+	 *
+	 * @param request
+	 *            The request encoded by
+	 *            {@link WireProtocol#encodeRequest(rmi.io.RMIRequest)}. Its
+	 *            call ID is assigned by this method.
+	 * @return A future completed with the response message, or
+	 *         completed exceptionally if the connection fails first.
+	 * @throws RequestNotSentException
+	 *             If the connection has already failed or the request cannot be
+	 *             written.
+	 */
+	CompletableFuture<Message> send(Message request) throws IOException {
+		if (compression) {
+			request = WireProtocol.compress(request);
+		}
+
+		long callId = nextCallId.incrementAndGet();
+		CompletableFuture<Message> pending = new CompletableFuture<>();
+
+		pendingCalls.put(callId, pending);
+		// Checked after registering, so that a concurrent fail() either sees
+		// this call or is seen here.
+		if (failure != null) {
+			pendingCalls.remove(callId);
+			throw new RequestNotSentException(failure);
+		}
+
+		writeLock.lock();
+		try {
+			WireProtocol.writeFrame(out, callId, request);
+			out.flush();
+		} catch (IOException e) {
+			// The frame was not written whole, so the skeleton cannot have
+			// decoded it. The calls already sent fail with the plain cause.
+			pendingCalls.remove(callId);
+			fail(e);
+			throw new RequestNotSentException(e);
+		} finally {
+			writeLock.unlock();
+		}
+
+		return pending;
+	}
+
+	/**
+	 * Reads responses and completes the matching pending calls until the
+	 * connection fails or is closed.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Message response = WireProtocol.readFrame(in);
+				reused = true;
+
+				CompletableFuture<Message> pending = pendingCalls.remove(response.getCallId());
+				if (pending != null) {
+					pending.complete(response);
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Marks the connection as broken, closes it, and fails every call still
+	 * waiting for a response.
+	 *
+	 * @param cause
+	 *            The error that broke the connection.
+	 */
+	private void fail(IOException cause) {
+		if (failure == null) {
+			failure = cause;
+		}
+		close();
+
+		Iterator<CompletableFuture<Message>> it = pendingCalls.values().iterator();
+		while (it.hasNext()) {
+			CompletableFuture<Message> pending = it.next();
+			it.remove();
+			pending.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Wraps a connection failure for rethrowing to a new caller.
+	 *
+	 * @param cause
+	 *            The error that broke the connection.
+	 * @return an <code>IOException</code> describing the failure.
+	 */
+	private static IOException asIOException(Throwable cause) {
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		return new IOException(cause);
+	}
+
+	/**
+	 * Returns the network address of the skeleton.
+	 *
+	 * @return skeleton address
+	 */
+	InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Checks whether the connection can still carry calls.
+	 *
+	 * @return {@code true} if the connection has not failed or been closed.
+	 */
+	boolean isOpen() {
+		return failure == null && !closed;
+	}
+
+	/**
+	 * Checks whether the skeleton has already answered a call on this
+	 * connection. A failure on a reused connection usually means that the
+	 * skeleton closed it while it was idle in the pool.
+	 *
+	 * @return {@code true} if at least one response has been received;
+	 *         {@code false} if the connection is fresh.
+	 */
+	boolean isReused() {
+		return reused;
+	}
+
+	/**
+	 * Closes the connection, ignoring any errors. The reader thread exits and
+	 * fails the calls still in progress.
+	 */
+	void close() {
+		closed = true;
+		try {
+			endpoint.close();
+		} catch (IOException e) {
+			// Nothing useful can be done; the connection is discarded anyway.
+		}
+	}
+
+	/**
+	 * Thrown when a request could not be written whole to a connection. The
+	 * skeleton cannot have run the call, so it may safely be sent again. A
+	 * connection failing after the request was written throws a plain
+	 * <code>IOException</code> instead, as the call may have run.
+	 */
+	static class RequestNotSentException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RequestNotSentException(Throwable cause) {
+			super(cause);
+		}
+	}
+}
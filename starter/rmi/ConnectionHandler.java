@@ -0,0 +1,406 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import rmi.io.Message;
+import rmi.io.RMIResponse;
+import rmi.io.WireProtocol;
+
+/**
+ * The runnable object executed in the thread pool that reads remote method
+ * call requests from a persistent client connection.
+ *
+ * <p>
+ * Requests are multiplexed: each request read from the connection is handed
+ * to a separate {@link MethodInvocationTask}, so many calls from the same
+ * client may be in progress at once. Responses are written back as the calls
+ * complete, in any order, and carry the call ID of their request so that the
+ * stub can match them up.
+ *
+ * @param <T>
+ *            the generic remote interface this connection handler represents.
+ */
+public class ConnectionHandler<T> implements Runnable, ResponseChannel {
+
+	/**
+	 * The skeleton object on which the remote method calls are executed.
+	 */
+	private Skeleton<T> container;
+	/**
+	 * The object that the skeleton and this connection represent.
+	 */
+	private T serverObject;
+	/**
+	 * The remote interface class object that the skeleton and this connection
+	 * represent.
+	 */
+	private Class<T> serverClass;
+	/**
+	 * The client connection on which requests are read and responses written,
+	 * or <code>null</code> if the client connected on the domain socket.
+	 */
+	private Socket clientConnection;
+	/**
+	 * The domain socket connection on which requests are read and responses
+	 * written, or <code>null</code> if the client connected over TCP.
+	 */
+	private SocketChannel localConnection;
+	/**
+	 * The admission control through which the individual remote calls enter
+	 * the thread pool.
+	 */
+	private CallAdmission calls;
+	/**
+	 * The stream on which responses are written; shared by all calls in
+	 * progress on the connection.
+	 */
+	private DataOutputStream outStream;
+	/**
+	 * Serializes the writing of responses to <code>outStream</code>. A lock
+	 * rather than a monitor, so that a virtual thread blocked writing does not
+	 * pin its carrier thread.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/**
+	 * Whether both ends offered compression, so that responses are compressed.
+	 * Set before the first call is read.
+	 */
+	private boolean compression;
+	/**
+	 * The client ID sent by the stub. Set before the first call is read.
+	 */
+	private long clientId;
+	/**
+	 * The number of calls read from the connection whose response has not been
+	 * written yet.
+	 */
+	private int activeCalls;
+	/**
+	 * Whether the connection is to be closed once the active calls complete.
+	 */
+	private boolean closing;
+
+	/**
+	 * The constructor to create a new {@link ConnectionHandler} instance.
+	 *
+	 * @param container
+	 *            The skeleton object
+	 * @param serverObject
+	 *            The generic server object
+	 * @param serverClass
+	 *            The class object of server
+	 * @param clientConnection
+	 *            The accepted client socket
+	 * @param calls
+	 *            The admission control of the remote calls
+	 */
+	ConnectionHandler(Skeleton<T> container, T serverObject, Class<T> serverClass, Socket clientConnection,
+			CallAdmission calls) {
+		this.container = container;
+		this.serverObject = serverObject;
+		this.serverClass = serverClass;
+		this.clientConnection = clientConnection;
+		this.calls = calls;
+	}
+
+	/**
+	 * Creates a {@link ConnectionHandler} for a connection accepted on the
+	 * domain socket of the skeleton.
+	 *
+	 * @param container
+	 *            The skeleton object
+	 * @param serverObject
+	 *            The generic server object
+	 * @param serverClass
+	 *            The class object of server
+	 * @param localConnection
+	 *            The accepted channel, in blocking mode
+	 * @param calls
+	 *            The admission control of the remote calls
+	 */
+	ConnectionHandler(Skeleton<T> container, T serverObject, Class<T> serverClass, SocketChannel localConnection,
+			CallAdmission calls) {
+		this.container = container;
+		this.serverObject = serverObject;
+		this.serverClass = serverClass;
+		this.localConnection = localConnection;
+		this.calls = calls;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+		DataInputStream inStream;
+		int features = container.usesCompression() ? WireProtocol.FEATURE_COMPRESSION : 0;
+
+		try {
+			if (clientConnection != null) {
+				clientConnection.setTcpNoDelay(true);
+				outStream = new DataOutputStream(new BufferedOutputStream(clientConnection.getOutputStream()));
+				inStream = new DataInputStream(new BufferedInputStream(clientConnection.getInputStream()));
+			} else {
+				outStream = new DataOutputStream(new BufferedOutputStream(LocalSockets.outputStream(localConnection)));
+				inStream = new DataInputStream(new BufferedInputStream(LocalSockets.inputStream(localConnection)));
+			}
+			WireProtocol.writeHeader(outStream, features, 0);
+			outStream.flush();
+			WireProtocol.Header header = WireProtocol.readHeader(inStream);
+			features &= header.features;
+			clientId = header.clientId;
+		} catch (IOException e) {
+			container.service_error(new RMIException(e));
+
+			closeConnection();
+			return; // Nothing can be done so simply exit.
+		}
+		compression = (features & WireProtocol.FEATURE_COMPRESSION) != 0;
+
+		while (true) {
+			Message frame;
+			try {
+				frame = WireProtocol.readFrame(inStream);
+			} catch (EOFException e) {
+				break; // The stub closed the connection between two calls.
+			} catch (IOException e) {
+				if (!isClosing()) {
+					System.err.println("Failed to get read request from client connection: " + "ServerClass: "
+							+ serverClass.getName() + ", " + "IPAddress: "
+							+ container.getBindAddress().getAddress().toString() + ", " + "Port: "
+							+ container.getBindAddress().getPort());
+					container.service_error(new RMIException(e));
+				}
+				break;
+			}
+
+			if (!beginRequest()) {
+				break; // The skeleton is stopping; the stub will see the
+						// connection close and retry elsewhere.
+			}
+
+			// Only the route of the request is read here; the request is decoded
+			// by the thread running the call.
+			long received = System.nanoTime();
+			WireProtocol.Route route;
+			try {
+				route = WireProtocol.readRoute(frame);
+			} catch (IOException e) {
+				// The frame was read whole, so only this call is lost.
+				container.service_error(new RMIException(e));
+				RMIResponse response = new RMIResponse(new RMIException("Failed to decode the request.", e));
+				sendResponse(frame.getCallId(), encodeResponse(container, response));
+				endRequest();
+				continue;
+			}
+
+			try {
+				calls.execute(new MethodInvocationTask<T>(container, serverObject, serverClass, this, frame, received),
+						container.getDispatchTable().laneOf(route));
+			} catch (OverloadedException e) {
+				sendResponse(frame.getCallId(), encodeResponse(container, new RMIResponse(e)));
+				endRequest();
+			} catch (RejectedExecutionException e) {
+				endRequest(); // The thread pool is shutting down.
+				break;
+			}
+		}
+
+		shutdown();
+	}
+
+	/**
+	 * Writes the response to a completed call back to the stub. Called by the
+	 * {@link MethodInvocationTask} that executed the call.
+	 *
+	 * @param callId
+	 *            the call ID of the request.
+	 * @param message
+	 *            the encoded response.
+	 */
+	@Override
+	public void sendResponse(long callId, Message message) {
+		if (compression) {
+			message = WireProtocol.compress(message);
+		}
+
+		writeLock.lock();
+		try {
+			WireProtocol.writeFrame(outStream, callId, message);
+			outStream.flush();
+		} catch (IOException e) {
+			if (!isClosing()) {
+				System.err.println("Failed to write response to client connection: " + "ServerClass: "
+						+ serverClass.getName() + ", " + "IPAddress: "
+						+ container.getBindAddress().getAddress().toString() + ", " + "Port: "
+						+ container.getBindAddress().getPort());
+				container.service_error(new RMIException(e));
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes a response. A return value or exception that cannot be encoded
+	 * is reported to the skeleton and replaced by an <code>RMIException</code>
+	 * telling the stub so. In the response to a batch, only the calls whose
+	 * results cannot be encoded are replaced.
+	 *
+	 * @param container
+	 *            The skeleton the call was made on.
+	 * @param response
+	 *            The response.
+	 * @return encoded message, without the call ID.
+	 */
+	static Message encodeResponse(Skeleton<?> container, RMIResponse response) {
+		if (response.isBatch()) {
+			ArrayList<Message> responses = new ArrayList<>(response.getBatch().size());
+			for (RMIResponse single : response.getBatch()) {
+				responses.add(encodeResponse(container, single));
+			}
+			return encodeBatchResponse(container, responses);
+		}
+
+		try {
+			return WireProtocol.encodeResponse(response);
+		} catch (IOException e) {
+			return encodeFailure(container, e);
+		}
+	}
+
+	/**
+	 * Encodes the response to a batch request. A response too large for a
+	 * frame is reported to the skeleton and replaced by an
+	 * <code>RMIException</code> telling the stub so.
+	 *
+	 * @param container
+	 *            The skeleton the calls were made on.
+	 * @param responses
+	 *            The encoded responses to the calls, in order.
+	 * @return encoded message, without the call ID.
+	 */
+	static Message encodeBatchResponse(Skeleton<?> container, List<Message> responses) {
+		try {
+			return WireProtocol.encodeBatchResponse(responses);
+		} catch (IOException e) {
+			return encodeFailure(container, e);
+		}
+	}
+
+	/**
+	 * Reports a response that cannot be encoded to the skeleton, and encodes
+	 * an <code>RMIException</code> telling the stub so in its place.
+	 *
+	 * @param container
+	 *            The skeleton the call was made on.
+	 * @param cause
+	 *            The encoding failure.
+	 * @return encoded message, without the call ID.
+	 */
+	private static Message encodeFailure(Skeleton<?> container, IOException cause) {
+		container.service_error(new RMIException(cause));
+		try {
+			return WireProtocol.encodeResponse(
+					new RMIResponse(new RMIException("Failed to encode the response: " + cause.getMessage())));
+		} catch (IOException unexpected) {
+			throw new IllegalStateException(unexpected);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InetAddress remoteAddress() {
+		return (clientConnection != null) ? clientConnection.getInetAddress() : InetAddress.getLoopbackAddress();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long clientId() {
+		return clientId;
+	}
+
+	/**
+	 * Marks the start of a remote call on this connection.
+	 *
+	 * @return {@code true} if the call may proceed; {@code false} if the
+	 *         connection is closing and the call must be dropped.
+	 */
+	private synchronized boolean beginRequest() {
+		if (closing) {
+			return false;
+		}
+		activeCalls++;
+		return true;
+	}
+
+	/**
+	 * Marks the end of a remote call on this connection, once its response has
+	 * been written. The last call to complete on a closing connection closes
+	 * it.
+	 */
+	@Override
+	public synchronized void endRequest() {
+		activeCalls--;
+		if (closing && activeCalls == 0) {
+			closeConnection();
+		}
+	}
+
+	/**
+	 * Checks whether the connection is closing.
+	 *
+	 * @return {@code true} if the connection is being shut down.
+	 */
+	private synchronized boolean isClosing() {
+		return closing;
+	}
+
+	/**
+	 * Asks the connection to close. An idle connection, with no calls in
+	 * progress, is closed immediately. Otherwise, no further requests are
+	 * accepted and the connection is closed once the responses to the calls
+	 * in progress have been written.
+	 */
+	public synchronized void shutdown() {
+		closing = true;
+		if (activeCalls == 0) {
+			closeConnection();
+		}
+	}
+
+	/**
+	 * The method closes the client connection.
+	 */
+	private void closeConnection() {
+		try {
+			if (clientConnection != null) {
+				clientConnection.close();
+			} else {
+				localConnection.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to close client connection: " + "ServerClass: " + serverClass.getName() + ", "
+					+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
+					+ container.getBindAddress().getPort());
+
+			container.service_error(new RMIException(e));
+		}
+	}
+}
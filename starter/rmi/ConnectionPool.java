@@ -0,0 +1,472 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of persistent stub connections, keyed by skeleton address.
+ *
+ * <p>
+ * Opening a TCP connection for every remote call dominates the latency of small
+ * calls. Stubs therefore send their requests over connections kept open by this
+ * pool. Each request and response is sent as a frame tagged with the ID of its
+ * call, so one connection carries many calls at once, and responses may arrive
+ * in any order. All stubs in a JVM share the pool returned by
+ * {@link #getSharedPool()}.
+ *
+ * <p>
+ * A connection is not reserved for any one caller: calls from many threads
+ * share it. A call is placed on the least busy open connection to its skeleton.
+ * A new connection is opened only when every open connection already carries
+ * <code>maxCallsPerConnection</code> calls and fewer than
+ * <code>maxConnections</code> connections are open. Past that limit calls are
+ * still placed on the least busy connection. Connections still being opened
+ * count against the limit, and a call finding no open connection to its
+ * skeleton while one is being opened waits for that connection rather than
+ * opening its own, so that a burst of calls does not open a burst of
+ * connections. Calls never wait for a connection to become free: a call such as
+ * <code>Service.unlock</code> must not queue behind calls blocked in
+ * <code>Service.lock</code> on the same server.
+ *
+ * <p>
+ * Connections are closed once they have carried no calls for
+ * <code>idleTimeout</code> milliseconds.
+ */
+public class ConnectionPool {
+
+	/**
+	 * Default maximum number of connections opened to each skeleton address.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+	/**
+	 * Default number of calls in progress on a connection beyond which a new
+	 * connection is opened.
+	 */
+	public static final int DEFAULT_MAX_CALLS_PER_CONNECTION = 64;
+	/**
+	 * Default time, in milliseconds, after which an idle connection is closed.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	/**
+	 * The pool shared by all stubs in this JVM.
+	 */
+	private static final ConnectionPool sharedPool = new ConnectionPool();
+
+	/**
+	 * Open connections for each skeleton address.
+	 */
+	private final HashMap<InetSocketAddress, ArrayList<Connection>> openConnections = new HashMap<>();
+	/**
+	 * Connections being opened to each skeleton address, counted against
+	 * <code>maxConnections</code>.
+	 */
+	private final HashMap<InetSocketAddress, ArrayList<CompletableFuture<Connection>>> pendingOpens = new HashMap<>();
+	/**
+	 * Maximum number of connections opened to each skeleton address.
+	 */
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	/**
+	 * Number of calls in progress on a connection beyond which a new
+	 * connection is opened.
+	 */
+	private int maxCallsPerConnection = DEFAULT_MAX_CALLS_PER_CONNECTION;
+	/**
+	 * Time, in milliseconds, after which an idle connection is closed.
+	 */
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	/**
+	 * The daemon thread that periodically closes expired idle connections;
+	 * created when the first connection is opened.
+	 */
+	private ScheduledExecutorService evictor;
+
+	/**
+	 * Number of calls placed on an already open connection.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	/**
+	 * Number of calls that had to open a new connection.
+	 */
+	private final AtomicLong misses = new AtomicLong();
+	/**
+	 * Number of idle connections closed because they expired.
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+	/**
+	 * Number of calls placed on a connection already carrying
+	 * <code>maxCallsPerConnection</code> calls, because the connection limit
+	 * had been reached.
+	 */
+	private final AtomicLong overflows = new AtomicLong();
+
+	/**
+	 * Returns the pool shared by all stubs in this JVM.
+	 *
+	 * @return the shared connection pool
+	 */
+	public static ConnectionPool getSharedPool() {
+		return sharedPool;
+	}
+
+	/**
+	 * Borrows a connection to the given skeleton, opening a new one if no open
+	 * connection has spare capacity.
+	 *
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @return A connection on which the caller may place one call. It must be
+	 *         released or discarded when the call completes.
+	 * @throws IOException
+	 *             If a new connection cannot be established.
+	 */
+	Connection acquire(InetSocketAddress address) throws IOException {
+		CompletableFuture<Connection> opening;
+		boolean opener = false;
+
+		synchronized (this) {
+			ArrayList<Connection> open = openConnections.get(address);
+			ArrayList<CompletableFuture<Connection>> pending = pendingOpens.get(address);
+			Connection leastBusy = null;
+
+			if (open != null) {
+				Iterator<Connection> it = open.iterator();
+				while (it.hasNext()) {
+					Connection c = it.next();
+					if (!c.isOpen()) {
+						it.remove();
+					} else if (leastBusy == null || c.activeCalls < leastBusy.activeCalls) {
+						leastBusy = c;
+					}
+				}
+			}
+
+			int connections = ((open == null) ? 0 : open.size()) + ((pending == null) ? 0 : pending.size());
+			if (leastBusy != null) {
+				boolean saturated = leastBusy.activeCalls >= maxCallsPerConnection;
+				if (!saturated || connections >= maxConnections) {
+					if (saturated) {
+						overflows.incrementAndGet();
+					}
+					hits.incrementAndGet();
+					leastBusy.activeCalls++;
+					return leastBusy;
+				}
+			}
+
+			if (leastBusy == null && pending != null && !pending.isEmpty()) {
+				// A connection to the skeleton is being opened: share it
+				// rather than open one per caller.
+				opening = pending.get(0);
+			} else {
+				opening = new CompletableFuture<>();
+				if (pending == null) {
+					pending = new ArrayList<>();
+					pendingOpens.put(address, pending);
+				}
+				pending.add(opening);
+				opener = true;
+			}
+		}
+
+		if (!opener) {
+			Connection connection;
+			try {
+				connection = opening.join();
+			} catch (CompletionException e) {
+				throw new IOException(e.getCause().getMessage(), e.getCause());
+			}
+			synchronized (this) {
+				hits.incrementAndGet();
+				connection.activeCalls++;
+			}
+			return connection;
+		}
+
+		misses.incrementAndGet();
+		Connection connection;
+		try {
+			connection = new Connection(address);
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				removePending(address, opening);
+			}
+			opening.completeExceptionally(e);
+			throw e;
+		}
+
+		synchronized (this) {
+			removePending(address, opening);
+			ArrayList<Connection> open = openConnections.get(address);
+			if (open == null) {
+				open = new ArrayList<>();
+				openConnections.put(address, open);
+			}
+			open.add(connection);
+			connection.activeCalls++;
+			startEvictor();
+		}
+		opening.complete(connection);
+
+		return connection;
+	}
+
+	/**
+	 * Forgets a connection that has finished opening. Must be called with the
+	 * pool lock held.
+	 *
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @param opening
+	 *            The future of the connection.
+	 */
+	private void removePending(InetSocketAddress address, CompletableFuture<Connection> opening) {
+		ArrayList<CompletableFuture<Connection>> pending = pendingOpens.get(address);
+		if (pending != null) {
+			pending.remove(opening);
+			if (pending.isEmpty()) {
+				pendingOpens.remove(address);
+			}
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool after a successful call.
+	 *
+	 * @param connection
+	 *            The connection to return.
+	 */
+	synchronized void release(Connection connection) {
+		connection.activeCalls--;
+		connection.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Removes and closes a connection that failed during a call. If the
+	 * connection had been reused, the other idle connections to the same
+	 * skeleton are closed as well: the skeleton has most likely been stopped
+	 * or restarted.
+	 *
+	 * @param connection
+	 *            The failed connection.
+	 */
+	void discard(Connection connection) {
+		ArrayList<Connection> stale = new ArrayList<>();
+		stale.add(connection);
+
+		synchronized (this) {
+			connection.activeCalls--;
+
+			ArrayList<Connection> open = openConnections.get(connection.getAddress());
+			if (open != null) {
+				open.remove(connection);
+
+				if (connection.isReused()) {
+					Iterator<Connection> it = open.iterator();
+					while (it.hasNext()) {
+						Connection c = it.next();
+						if (c.activeCalls == 0) {
+							it.remove();
+							stale.add(c);
+						}
+					}
+				}
+
+				if (open.isEmpty()) {
+					openConnections.remove(connection.getAddress());
+				}
+			}
+		}
+
+		for (Connection c : stale) {
+			c.close();
+		}
+	}
+
+	/**
+	 * Closes all connections held by the pool. Calls still in progress on
+	 * them fail.
+	 */
+	public void clear() {
+		ArrayList<Connection> closing = new ArrayList<>();
+		synchronized (this) {
+			for (ArrayList<Connection> open : openConnections.values()) {
+				closing.addAll(open);
+			}
+			openConnections.clear();
+		}
+
+		for (Connection c : closing) {
+			c.close();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of connections opened to each skeleton address.
+	 *
+	 * @param maxConnections
+	 *            The new limit.
+	 * @throws IllegalArgumentException
+	 *             If the limit is not positive.
+	 */
+	public synchronized void setMaxConnections(int maxConnections) {
+		if (maxConnections <= 0) {
+			throw new IllegalArgumentException("Maximum connections must be positive.");
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Sets the number of calls in progress on a connection beyond which a new
+	 * connection is opened.
+	 *
+	 * @param maxCallsPerConnection
+	 *            The new limit.
+	 * @throws IllegalArgumentException
+	 *             If the limit is not positive.
+	 */
+	public synchronized void setMaxCallsPerConnection(int maxCallsPerConnection) {
+		if (maxCallsPerConnection <= 0) {
+			throw new IllegalArgumentException("Maximum calls per connection must be positive.");
+		}
+		this.maxCallsPerConnection = maxCallsPerConnection;
+	}
+
+	/**
+	 * Sets the time after which an idle connection is closed.
+	 *
+	 * @param idleTimeout
+	 *            The timeout in milliseconds.
+	 * @throws IllegalArgumentException
+	 *             If the timeout is not positive.
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		if (idleTimeout <= 0) {
+			throw new IllegalArgumentException("Idle timeout must be positive.");
+		}
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Returns the number of calls placed on an already open connection.
+	 *
+	 * @return pool hits
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of calls that had to open a new connection.
+	 *
+	 * @return pool misses
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of idle connections closed because they expired.
+	 *
+	 * @return evicted connections
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of calls placed on a fully loaded connection because
+	 * the connection limit for the skeleton had been reached.
+	 *
+	 * @return overflowed calls
+	 */
+	public long getOverflowCount() {
+		return overflows.get();
+	}
+
+	/**
+	 * Returns the number of connections currently held open by the pool.
+	 *
+	 * @return open connections
+	 */
+	public synchronized int getOpenCount() {
+		int count = 0;
+		for (ArrayList<Connection> open : openConnections.values()) {
+			count += open.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Starts the eviction thread if it is not running yet. Must be called with
+	 * the pool lock held.
+	 */
+	private void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "rmi-connection-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		long period = Math.max(idleTimeout / 2, 1);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictExpired();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes every connection that has carried no calls within the idle
+	 * timeout, and forgets connections that have failed.
+	 */
+	private void evictExpired() {
+		ArrayList<Connection> expired = new ArrayList<>();
+
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() - idleTimeout;
+			Iterator<Map.Entry<InetSocketAddress, ArrayList<Connection>>> entries = openConnections.entrySet()
+					.iterator();
+			while (entries.hasNext()) {
+				ArrayList<Connection> open = entries.next().getValue();
+				Iterator<Connection> it = open.iterator();
+				while (it.hasNext()) {
+					Connection c = it.next();
+					if (!c.isOpen()) {
+						it.remove();
+					} else if (c.activeCalls == 0 && c.lastUsed < deadline) {
+						it.remove();
+						expired.add(c);
+					}
+				}
+				if (open.isEmpty()) {
+					entries.remove();
+				}
+			}
+		}
+
+		for (Connection c : expired) {
+			evictions.incrementAndGet();
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package rmi;
+
+/**
+ * Thrown by a stub when a call made with a timeout does not complete in time.
+ *
+ * <p>
+ * The deadline of the call travels with the request. A skeleton receiving a
+ * request whose deadline has already passed, for instance because the call
+ * waited for a worker thread, rejects it without calling the server object. A
+ * call still running when its deadline passes has its thread interrupted, so
+ * that a server method blocked in an interruptible wait gives up. The stub
+ * stops waiting for the response at the deadline, whether or not the server
+ * method has returned.
+ *
+ * @see Stub#withTimeout(Object, long, java.util.concurrent.TimeUnit)
+ */
+public class DeadlineExceededException extends RMIException {
+
+	private static final long serialVersionUID = 3471106658153094212L;
+
+	/**
+	 * Creates a <code>DeadlineExceededException</code> with the given message
+	 * string.
+	 *
+	 * @param message
+	 *            The exception message.
+	 */
+	public DeadlineExceededException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,152 @@
+package rmi;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interrupts the thread running a remote call when the deadline of the call
+ * passes.
+ *
+ * <p>
+ * All timers share a single daemon thread. A timer is started by the thread
+ * about to run the call, and finished by the same thread once the call has
+ * returned; an interrupt delivered by the timer is cleared then, so that it
+ * does not leak into whatever the thread runs next. An interrupt the thread
+ * had before the call is kept.
+ *
+ * <p>
+ * Each thread also keeps the timer of the call it is running, so that the
+ * server object can tell through {@link Skeleton#isCallExpired()} whether the
+ * caller has given up on the call.
+ */
+final class DeadlineTimer implements Runnable {
+
+	/**
+	 * The executor firing the timers.
+	 */
+	private static final ScheduledThreadPoolExecutor scheduler = newScheduler();
+	/**
+	 * The timer of the call each thread is running.
+	 */
+	private static final ThreadLocal<DeadlineTimer> current = new ThreadLocal<>();
+
+	/**
+	 * The thread running the call.
+	 */
+	private final Thread thread;
+	/**
+	 * Whether the thread was interrupted before the call.
+	 */
+	private final boolean wasInterrupted;
+	/**
+	 * The deadline, in the time base of <code>System.nanoTime</code>.
+	 */
+	private final long deadline;
+	/**
+	 * The timer of the call enclosing this one in the same thread, if any.
+	 */
+	private final DeadlineTimer enclosing;
+	/**
+	 * The scheduled firing of the timer.
+	 */
+	private ScheduledFuture<?> firing;
+	/**
+	 * Whether the call has returned. Guarded by the timer.
+	 */
+	private boolean finished;
+	/**
+	 * Whether the timer has interrupted the thread. Guarded by the timer.
+	 */
+	private boolean fired;
+
+	private DeadlineTimer(long deadline) {
+		this.thread = Thread.currentThread();
+		this.wasInterrupted = thread.isInterrupted();
+		this.deadline = deadline;
+		this.enclosing = current.get();
+	}
+
+	/**
+	 * Starts a timer interrupting the current thread at a deadline.
+	 *
+	 * @param deadline
+	 *            The deadline, in the time base of
+	 *            <code>System.nanoTime</code>.
+	 * @return the timer, to be finished by the current thread
+	 */
+	static DeadlineTimer start(long deadline) {
+		DeadlineTimer timer = new DeadlineTimer(deadline);
+		timer.firing = scheduler.schedule(timer, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		current.set(timer);
+		return timer;
+	}
+
+	/**
+	 * Checks whether the deadline of the call the current thread is running
+	 * has passed.
+	 *
+	 * @return <code>true</code> if the thread is running a call with a
+	 *         deadline, and the deadline has passed
+	 */
+	static boolean isExpired() {
+		DeadlineTimer timer = current.get();
+		return timer != null && timer.deadline - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Stops the timer once the call has returned, and clears the interrupt it
+	 * delivered, if any.
+	 *
+	 * @return <code>true</code> if the deadline passed during the call
+	 */
+	boolean finish() {
+		boolean interrupted;
+		synchronized (this) {
+			finished = true;
+			interrupted = fired;
+		}
+		firing.cancel(false);
+		if (enclosing == null) {
+			current.remove();
+		} else {
+			current.set(enclosing);
+		}
+
+		if (interrupted && !wasInterrupted) {
+			Thread.interrupted();
+		}
+		return interrupted;
+	}
+
+	/**
+	 * Interrupts the thread, unless the call has returned.
+	 */
+	@Override
+	public synchronized void run() {
+		if (!finished) {
+			fired = true;
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Creates the executor firing the timers, on a daemon thread, dropping
+	 * cancelled timers at once.
+	 *
+	 * @return the executor
+	 */
+	private static ScheduledThreadPoolExecutor newScheduler() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "rmi-deadline-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
+}
@@ -0,0 +1,348 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import rmi.io.WireProtocol;
+
+/**
+ * The table through which a skeleton dispatches remote calls to its server
+ * object.
+ *
+ * <p>
+ * The table is built once, when the skeleton is constructed. It maps each
+ * interface fingerprint of the remote interface and its ancestors to an array
+ * of entries indexed by method ordinal, so that finding the method for a
+ * request costs one hash lookup and one array access. Each entry holds a
+ * <code>MethodHandle</code> adapted to take the server object and the
+ * argument array, the boxed parameter types used to validate arguments
+ * before the call, and the counters of the calls made.
+ *
+ * <p>
+ * Besides the remote interface, the table holds the methods of {@link Stats}
+ * and {@link StreamService}, which every skeleton answers itself rather than
+ * passing to the server object.
+ *
+ * <p>
+ * The only part of the table that may change is the lane in which each method
+ * is admitted, set by {@link #prioritize(String)} and {@link #isolate(String)}
+ * before the skeleton starts. Built-in methods run in the priority lane.
+ */
+final class DispatchTable {
+
+	/**
+	 * The generic type to which all method handles are adapted.
+	 */
+	private static final MethodType invokerType = MethodType.methodType(Object.class, Object.class,
+			Object[].class);
+
+	/**
+	 * A remote method ready to be invoked.
+	 */
+	static final class Entry {
+		/**
+		 * The interface method.
+		 */
+		final Method method;
+		/**
+		 * The handle invoking the method, of type
+		 * <code>(Object, Object[])Object</code>.
+		 */
+		private final MethodHandle invoker;
+		/**
+		 * The parameter types, with primitive types replaced by their wrappers.
+		 */
+		private final Class<?>[] argumentTypes;
+		/**
+		 * Which parameters are of primitive type, and so reject
+		 * <code>null</code>.
+		 */
+		private final boolean[] primitive;
+		/**
+		 * Whether the method is answered by the skeleton itself rather than
+		 * by the server object.
+		 */
+		final boolean builtIn;
+		/**
+		 * The lane in which calls to the method are admitted.
+		 */
+		volatile CallAdmission.LaneKind lane;
+		/**
+		 * The counters of the calls made to the method.
+		 */
+		final MethodCounters counters = new MethodCounters();
+
+		/**
+		 * Creates the entry for a method.
+		 *
+		 * @param method
+		 *            The interface method.
+		 * @param builtIn
+		 *            Whether the method is answered by the skeleton itself.
+		 * @throws IllegalAccessException
+		 *             If no method handle can be created for the method.
+		 */
+		Entry(Method method, boolean builtIn) throws IllegalAccessException {
+			Class<?>[] parameterTypes = method.getParameterTypes();
+
+			this.method = method;
+			this.builtIn = builtIn;
+			this.lane = builtIn ? CallAdmission.LaneKind.PRIORITY : CallAdmission.LaneKind.NORMAL;
+			this.argumentTypes = new Class<?>[parameterTypes.length];
+			this.primitive = new boolean[parameterTypes.length];
+			for (int i = 0; i < parameterTypes.length; i++) {
+				primitive[i] = parameterTypes[i].isPrimitive();
+				argumentTypes[i] = primitive[i] ? MethodType.methodType(parameterTypes[i]).wrap().returnType()
+						: parameterTypes[i];
+			}
+
+			// Remote interfaces need not be public.
+			method.setAccessible(true);
+			this.invoker = MethodHandles.lookup().unreflect(method).asSpreader(Object[].class, parameterTypes.length)
+					.asType(invokerType);
+		}
+
+		/**
+		 * Checks that the arguments can be passed to the method.
+		 *
+		 * @param arguments
+		 *            The arguments read from the request.
+		 * @return <code>true</code> if the arguments match the parameters in
+		 *         number and type; <code>false</code> otherwise.
+		 */
+		boolean accepts(Object[] arguments) {
+			if (arguments.length != argumentTypes.length) {
+				return false;
+			}
+			for (int i = 0; i < arguments.length; i++) {
+				if (arguments[i] == null ? primitive[i] : !argumentTypes[i].isInstance(arguments[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Invokes the method. The arguments must have been checked with
+		 * {@link #accepts(Object[])}.
+		 *
+		 * @param target
+		 *            The server object.
+		 * @param arguments
+		 *            The arguments.
+		 * @return the value returned by the method; <code>null</code> for
+		 *         <code>void</code> methods.
+		 * @throws Throwable
+		 *             Whatever the method throws.
+		 */
+		Object invoke(Object target, Object[] arguments) throws Throwable {
+			return (Object) invoker.invokeExact(target, arguments);
+		}
+
+		/**
+		 * Returns the name of the method, with its declaring interface and
+		 * parameter types.
+		 *
+		 * @return method name, such as <code>Service.lock(Path, boolean)</code>
+		 */
+		String name() {
+			StringBuilder name = new StringBuilder();
+			name.append(method.getDeclaringClass().getSimpleName()).append('.').append(method.getName()).append('(');
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			for (int i = 0; i < parameterTypes.length; i++) {
+				name.append(i == 0 ? "" : ", ").append(parameterTypes[i].getSimpleName());
+			}
+			return name.append(')').toString();
+		}
+	}
+
+	/**
+	 * The entries of each interface, by fingerprint, indexed by ordinal.
+	 */
+	private final Map<Long, Entry[]> entries;
+
+	/**
+	 * Builds the dispatch table for a remote interface and its ancestors.
+	 *
+	 * @param iface
+	 *            The remote interface class object.
+	 * @throws Error
+	 *             If a method handle cannot be created for one of the methods.
+	 */
+	DispatchTable(Class<?> iface) {
+		HashMap<Long, Entry[]> table = new HashMap<>();
+
+		addInterfaces(table, iface, false);
+		// A server implementing Stats itself keeps its own methods.
+		addInterfaces(table, Stats.class, true);
+		addInterfaces(table, StreamService.class, true);
+
+		this.entries = Collections.unmodifiableMap(table);
+	}
+
+	/**
+	 * Adds the entries of a remote interface and its ancestors to a table,
+	 * keeping the entries already present.
+	 *
+	 * @param table
+	 *            The table being built.
+	 * @param iface
+	 *            The remote interface class object.
+	 * @param builtIn
+	 *            Whether the methods are answered by the skeleton itself.
+	 */
+	private static void addInterfaces(Map<Long, Entry[]> table, Class<?> iface, boolean builtIn) {
+		for (RemoteInterface description : RemoteInterface.hierarchyOf(iface).values()) {
+			if (table.containsKey(description.getFingerprint())) {
+				continue;
+			}
+
+			Method[] methods = description.getMethods();
+			Entry[] interfaceEntries = new Entry[methods.length];
+			for (int i = 0; i < methods.length; i++) {
+				try {
+					interfaceEntries[i] = new Entry(methods[i], builtIn);
+				} catch (IllegalAccessException | RuntimeException e) {
+					throw new Error("Cannot dispatch calls to " + methods[i], e);
+				}
+			}
+			table.put(description.getFingerprint(), interfaceEntries);
+		}
+	}
+
+	/**
+	 * Returns whether the table has methods for the given interface.
+	 *
+	 * @param interfaceId
+	 *            The interface fingerprint sent by the stub.
+	 * @return <code>true</code> if the interface is the remote interface, one
+	 *         of its ancestors, {@link Stats} or {@link StreamService}.
+	 */
+	boolean hasInterface(long interfaceId) {
+		return entries.containsKey(interfaceId);
+	}
+
+	/**
+	 * Finds the entry for a remote method.
+	 *
+	 * @param interfaceId
+	 *            The interface fingerprint sent by the stub.
+	 * @param methodId
+	 *            The method ordinal sent by the stub.
+	 * @return the entry; <code>null</code> if there is no such method.
+	 */
+	Entry lookup(long interfaceId, int methodId) {
+		Entry[] interfaceEntries = entries.get(interfaceId);
+		if (interfaceEntries == null || methodId < 0 || methodId >= interfaceEntries.length) {
+			return null;
+		}
+		return interfaceEntries[methodId];
+	}
+
+	/**
+	 * Moves every method of the remote interface with the given name to the
+	 * priority lane.
+	 *
+	 * @param methodName
+	 *            The name of the methods.
+	 * @throws IllegalArgumentException
+	 *             If the remote interface has no method with that name.
+	 */
+	void prioritize(String methodName) {
+		admit(methodName, CallAdmission.LaneKind.PRIORITY);
+	}
+
+	/**
+	 * Moves every method of the remote interface with the given name to the
+	 * isolated lane.
+	 *
+	 * @param methodName
+	 *            The name of the methods.
+	 * @throws IllegalArgumentException
+	 *             If the remote interface has no method with that name.
+	 */
+	void isolate(String methodName) {
+		admit(methodName, CallAdmission.LaneKind.ISOLATED);
+	}
+
+	/**
+	 * Moves every method of the remote interface with the given name to a
+	 * lane.
+	 *
+	 * @param methodName
+	 *            The name of the methods.
+	 * @param lane
+	 *            The lane.
+	 * @throws IllegalArgumentException
+	 *             If the remote interface has no method with that name.
+	 */
+	private void admit(String methodName, CallAdmission.LaneKind lane) {
+		boolean found = false;
+		for (Entry[] interfaceEntries : entries.values()) {
+			for (Entry entry : interfaceEntries) {
+				if (!entry.builtIn && entry.method.getName().equals(methodName)) {
+					entry.lane = lane;
+					found = true;
+				}
+			}
+		}
+		if (!found) {
+			throw new IllegalArgumentException("No remote method named " + methodName + ".");
+		}
+	}
+
+	/**
+	 * Returns the lane in which a request is admitted. A batch is admitted in
+	 * the isolated lane if any of its calls is, since it may block as long as
+	 * that call, and in the priority lane only if all of its calls are.
+	 *
+	 * @param route
+	 *            The route of the request read from the connection.
+	 * @return the lane of the request
+	 */
+	CallAdmission.LaneKind laneOf(WireProtocol.Route route) {
+		boolean priority = true;
+		for (int i = 0; i < route.interfaceIds.length; i++) {
+			Entry entry = lookup(route.interfaceIds[i], route.methodIds[i]);
+			if (entry == null) {
+				priority = false;
+			} else if (entry.lane == CallAdmission.LaneKind.ISOLATED) {
+				return CallAdmission.LaneKind.ISOLATED;
+			} else if (entry.lane != CallAdmission.LaneKind.PRIORITY) {
+				priority = false;
+			}
+		}
+		return priority ? CallAdmission.LaneKind.PRIORITY : CallAdmission.LaneKind.NORMAL;
+	}
+
+	/**
+	 * Returns a snapshot of the counters of every method in the table.
+	 *
+	 * @return the counters of each method, sorted by method name
+	 */
+	MethodStats[] snapshot() {
+		ArrayList<MethodStats> stats = new ArrayList<>();
+		for (Entry[] interfaceEntries : entries.values()) {
+			for (Entry entry : interfaceEntries) {
+				stats.add(entry.counters.snapshot(entry.name()));
+			}
+		}
+
+		MethodStats[] sorted = stats.toArray(new MethodStats[stats.size()]);
+		Arrays.sort(sorted, new Comparator<MethodStats>() {
+			@Override
+			public int compare(MethodStats first, MethodStats second) {
+				return first.getName().compareTo(second.getName());
+			}
+		});
+		return sorted;
+	}
+}
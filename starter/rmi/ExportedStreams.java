@@ -0,0 +1,313 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The streams returned by the remote methods of a skeleton and not yet read to
+ * their end.
+ *
+ * <p>
+ * When a remote method returns a {@link RemoteStream}, the skeleton takes the
+ * first chunk at once and sends it back in a {@link StreamHandle}. A stream
+ * with further chunks is kept here under a random ID, and the stub fetches them
+ * with calls on {@link StreamService}, each naming the chunk it wants. A stub
+ * may have several such calls in flight, and the skeleton may run them in any
+ * order, so a call for a chunk also takes from the stream the chunks before it
+ * that have not been taken yet, and holds them until they are fetched. How far
+ * ahead a stub may ask is bounded, which bounds the chunks held.
+ *
+ * <p>
+ * A stream is released when its end has been fetched, when the stub closes
+ * it, when it has not been used for {@link #IDLE_TIMEOUT} milliseconds, and
+ * when the skeleton stops.
+ */
+final class ExportedStreams {
+
+	/**
+	 * The time, in milliseconds, after which a stream that has not been used
+	 * is closed.
+	 */
+	static final long IDLE_TIMEOUT = 60000;
+	/**
+	 * How many chunks ahead of the first chunk not yet taken from a stream a
+	 * stub may ask for.
+	 */
+	static final int MAX_AHEAD = 64;
+
+	/**
+	 * A stream kept for its stub.
+	 */
+	private static final class Exported {
+		/**
+		 * The stream returned by the remote method.
+		 */
+		final RemoteStream<?> source;
+		/**
+		 * Serializes the use of the stream. A lock rather than a monitor, so
+		 * that a virtual thread waiting for a chunk does not pin its carrier.
+		 */
+		final ReentrantLock lock = new ReentrantLock();
+		/**
+		 * The chunks taken from the stream and not yet fetched, by number.
+		 */
+		final HashMap<Long, Object> ahead = new HashMap<>();
+		/**
+		 * The number of the next chunk to be taken from the stream.
+		 */
+		long taken = 1;
+		/**
+		 * Whether the stream has no more chunks.
+		 */
+		boolean ended;
+		/**
+		 * The exception thrown by the stream, which all later chunks fail
+		 * with.
+		 */
+		Exception failure;
+		/**
+		 * Whether the end of the stream, or its failure, has been fetched
+		 * under the number of the first chunk missing. Requests for chunks
+		 * past it may be answered first.
+		 */
+		boolean endFetched;
+		/**
+		 * The time, in milliseconds, at which the stream was last used.
+		 */
+		volatile long lastUsed = System.currentTimeMillis();
+
+		/**
+		 * Creates the record of a stream.
+		 *
+		 * @param source
+		 *            The stream returned by the remote method.
+		 */
+		Exported(RemoteStream<?> source) {
+			this.source = source;
+		}
+	}
+
+	/**
+	 * The streams kept, by ID.
+	 */
+	private final ConcurrentHashMap<Long, Exported> streams = new ConcurrentHashMap<>();
+
+	/**
+	 * Takes the first chunk of a stream returned by a remote method, and keeps
+	 * the stream if it has more.
+	 *
+	 * @param source
+	 *            The stream.
+	 * @return the handle to send in place of the stream.
+	 * @throws RMIException
+	 *             If the stream fails to produce its first chunk.
+	 * @throws IOException
+	 *             If the stream fails to produce its first chunk.
+	 */
+	StreamHandle export(RemoteStream<?> source) throws RMIException, IOException {
+		expire();
+
+		Object first;
+		boolean end;
+		try {
+			first = source.hasNext() ? checked(source.next()) : null;
+			end = first == null || !source.hasNext();
+		} catch (RMIException | IOException | RuntimeException e) {
+			source.close();
+			throw e;
+		}
+
+		if (end) {
+			source.close();
+			return new StreamHandle(0, first, true);
+		}
+
+		long id;
+		Exported exported = new Exported(source);
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0 || streams.putIfAbsent(id, exported) != null);
+
+		return new StreamHandle(id, first, false);
+	}
+
+	/**
+	 * Returns a chunk of a stream, taking it and the chunks before it from the
+	 * stream if they have not been taken yet.
+	 *
+	 * @param id
+	 *            The ID of the stream.
+	 * @param sequence
+	 *            The number of the chunk.
+	 * @return the chunk, or <code>null</code> if the stream ends before it.
+	 * @throws IllegalArgumentException
+	 *             If the chunk has already been fetched, or is too far ahead.
+	 * @throws RMIException
+	 *             If there is no stream with the given ID, or the stream fails
+	 *             to produce a chunk.
+	 * @throws IOException
+	 *             If the stream fails to produce a chunk.
+	 */
+	Object next(long id, long sequence) throws RMIException, IOException {
+		Exported exported = streams.get(id);
+		if (exported == null) {
+			throw new RMIException("No such stream: " + Long.toHexString(id));
+		}
+
+		exported.lock.lock();
+		try {
+			exported.lastUsed = System.currentTimeMillis();
+
+			Object chunk = exported.ahead.remove(sequence);
+			if (chunk != null) {
+				release(id, exported);
+				return chunk;
+			}
+			if (sequence < exported.taken) {
+				throw new IllegalArgumentException("Chunk " + sequence + " has already been fetched.");
+			}
+			if (sequence - exported.taken >= MAX_AHEAD) {
+				throw new IllegalArgumentException("Chunk " + sequence + " is too far ahead.");
+			}
+
+			while (!exported.ended && exported.failure == null) {
+				try {
+					if (!exported.source.hasNext()) {
+						exported.ended = true;
+						break;
+					}
+					chunk = checked(exported.source.next());
+				} catch (RMIException | IOException | RuntimeException e) {
+					exported.failure = e;
+					break;
+				}
+
+				if (exported.taken++ == sequence) {
+					return chunk;
+				}
+				exported.ahead.put(exported.taken - 1, chunk);
+			}
+
+			if (sequence == exported.taken) {
+				exported.endFetched = true;
+			}
+			release(id, exported);
+			if (exported.failure instanceof RMIException) {
+				throw (RMIException) exported.failure;
+			} else if (exported.failure instanceof IOException) {
+				throw (IOException) exported.failure;
+			} else if (exported.failure != null) {
+				throw (RuntimeException) exported.failure;
+			}
+			return null;
+		} finally {
+			exported.lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes a stream and forgets it. Closing an unknown stream has no effect.
+	 *
+	 * @param id
+	 *            The ID of the stream.
+	 */
+	void close(long id) {
+		Exported exported = streams.remove(id);
+		if (exported != null) {
+			close(exported);
+		}
+	}
+
+	/**
+	 * Closes and forgets all streams.
+	 */
+	void closeAll() {
+		Iterator<Map.Entry<Long, Exported>> it = streams.entrySet().iterator();
+		while (it.hasNext()) {
+			Exported exported = it.next().getValue();
+			it.remove();
+			close(exported);
+		}
+	}
+
+	/**
+	 * Returns the number of streams kept.
+	 *
+	 * @return stream count
+	 */
+	int size() {
+		return streams.size();
+	}
+
+	/**
+	 * Closes the streams that have not been used for {@link #IDLE_TIMEOUT}
+	 * milliseconds, whose stubs have most likely gone away.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		Iterator<Exported> it = streams.values().iterator();
+		while (it.hasNext()) {
+			Exported exported = it.next();
+			if (now - exported.lastUsed > IDLE_TIMEOUT) {
+				it.remove();
+				close(exported);
+			}
+		}
+	}
+
+	/**
+	 * Forgets a stream once it can yield nothing more: it has ended or failed,
+	 * and all chunks taken from it as well as its end have been fetched. The
+	 * caller holds the lock of the stream.
+	 *
+	 * @param id
+	 *            The ID of the stream.
+	 * @param exported
+	 *            The stream.
+	 */
+	private void release(long id, Exported exported) {
+		if (exported.endFetched && exported.ahead.isEmpty()) {
+			if (streams.remove(id, exported)) {
+				exported.source.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes a stream that has been forgotten, once no chunk is being taken
+	 * from it.
+	 *
+	 * @param exported
+	 *            The stream.
+	 */
+	private static void close(Exported exported) {
+		exported.lock.lock();
+		try {
+			exported.source.close();
+		} finally {
+			exported.lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks a chunk taken from a stream.
+	 *
+	 * @param chunk
+	 *            The chunk.
+	 * @return the chunk
+	 * @throws NullPointerException
+	 *             If the chunk is <code>null</code>, which would read as the
+	 *             end of the stream.
+	 */
+	private static Object checked(Object chunk) {
+		if (chunk == null) {
+			throw new NullPointerException("Streams may not contain null chunks.");
+		}
+		return chunk;
+	}
+}
@@ -9,18 +9,25 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
  * The listener thread that hosts the server socket and accepts and services
- * multiple connections in {@link MethodInvocationTask} worker threads for each
- * remote method call made on other skeleton object.
+ * multiple connections. Each connection is read by a {@link ConnectionHandler},
+ * which runs every remote method call made on the skeleton object in a
+ * {@link MethodInvocationTask} worker thread.
  *
  * @param <T>
  *            the generic remote interface this listener thread represents.
  */
-public class ListenerThread<T> extends Thread {
+public class ListenerThread<T> extends SkeletonListener {
 
 	/**
 	 * The skeleton object that this listener thread instance represents.
@@ -38,21 +45,40 @@ public class ListenerThread<T> extends Thread {
 	 * The server socket on which the listener listens for connections.
 	 */
 	private ServerSocket listenerSocket;
+	/**
+	 * The domain server channel on which local clients connect, or
+	 * <code>null</code> if the skeleton listens on TCP only.
+	 */
+	private ServerSocketChannel localChannel;
+	/**
+	 * The thread accepting connections on <code>localChannel</code>.
+	 */
+	private Thread localAcceptor;
 	/**
 	 * The boolean status representing if the listener thread is
 	 * running/listening or not.
 	 */
-	private boolean isActive;
+	private volatile boolean isActive;
 	/**
 	 * The cause due to which the listener thread terminated. {@code null} if
 	 * termination was requested and not due to an exception.
 	 */
 	private Throwable cause;
 	/**
-	 * The thread pool running the worker threads that service individual remote
-	 * method calls.
+	 * The thread pool running the worker threads that read connections and
+	 * service individual remote method calls.
 	 */
-	private ExecutorService threadPool = Executors.newCachedThreadPool();
+	private ExecutorService threadPool;
+	/**
+	 * The admission control through which calls enter the thread pool.
+	 */
+	private CallAdmission calls;
+	/**
+	 * The open client connections, each read by a {@link ConnectionHandler} in
+	 * the thread pool.
+	 */
+	private Set<ConnectionHandler<T>> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<ConnectionHandler<T>, Boolean>());
 
 	/**
 	 * The constructor for the listener thread.
@@ -67,11 +93,64 @@ public class ListenerThread<T> extends Thread {
 	 *		The listener socket
 	 */
 	public ListenerThread(Skeleton<T> container, Class<T> serverClass, T serverObject, ServerSocket listenerSocket) {
+		this(container, serverClass, serverObject, listenerSocket, Executors.newCachedThreadPool());
+	}
+
+	/**
+	 * The constructor for the listener thread, with the thread pool in which
+	 * connections are read and calls executed.
+	 * 
+	 * @param container
+	 *		The skeleton object
+	 * @param serverClass
+	 *		The class object of server
+	 * @param serverObject
+	 *		The generic server object
+	 * @param listenerSocket
+	 *		The listener socket
+	 * @param threadPool
+	 *		The thread pool; shut down when the listener terminates
+	 */
+	public ListenerThread(Skeleton<T> container, Class<T> serverClass, T serverObject, ServerSocket listenerSocket,
+			ExecutorService threadPool) {
+		this(container, serverClass, serverObject, listenerSocket, null, threadPool, new CallAdmission(threadPool,
+				Skeleton.DEFAULT_MAX_CALLS, Skeleton.DEFAULT_PRIORITY_CALLS, Skeleton.DEFAULT_ISOLATED_CALLS,
+				Skeleton.DEFAULT_WORKER_QUEUE_LENGTH));
+	}
+
+	/**
+	 * The constructor for a listener thread accepting connections on a domain
+	 * socket as well.
+	 * 
+	 * @param container
+	 *		The skeleton object
+	 * @param serverClass
+	 *		The class object of server
+	 * @param serverObject
+	 *		The generic server object
+	 * @param listenerSocket
+	 *		The listener socket
+	 * @param localChannel
+	 *		The bound domain server channel, in blocking mode, or
+	 *		<code>null</code>; closed when the listener terminates
+	 * @param threadPool
+	 *		The thread pool; shut down when the listener terminates
+	 * @param calls
+	 *		The admission control of the calls, running them in the thread pool
+	 */
+	ListenerThread(Skeleton<T> container, Class<T> serverClass, T serverObject, ServerSocket listenerSocket,
+			ServerSocketChannel localChannel, ExecutorService threadPool, CallAdmission calls) {
+		super("rmi-listener-" + serverClass.getSimpleName());
 		this.container = container;
 		this.serverObject = serverObject;
 		this.serverClass = serverClass;
 		this.listenerSocket = listenerSocket;
-		this.isActive = false;
+		this.localChannel = localChannel;
+		this.threadPool = threadPool;
+		this.calls = calls;
+		// Active from construction, so that a terminate() issued before the
+		// thread gets scheduled still stops the accept loop.
+		this.isActive = true;
 		this.cause = null;
 	}
 
@@ -80,7 +159,16 @@ public class ListenerThread<T> extends Thread {
 	 */
 	public void run() {
 
-		isActive = true;
+		if (localChannel != null) {
+			localAcceptor = new Thread(getName() + "-local") {
+				@Override
+				public void run() {
+					acceptLocal();
+				}
+			};
+			localAcceptor.start();
+		}
+
 		while (isActive) {
 			Socket clientConnection = null;
 			try {
@@ -113,9 +201,33 @@ public class ListenerThread<T> extends Thread {
 				}
 			}
 
-			MethodInvocationTask<T> handler = new MethodInvocationTask<T>(container, serverObject, serverClass,
-					clientConnection);
-			threadPool.execute(handler);
+			if (clientConnection == null) {
+				continue;
+			}
+
+			serve(new ConnectionHandler<T>(container, serverObject, serverClass, clientConnection, calls));
+		}
+
+		// No connection may be added once the handlers are shut down below.
+		closeLocalChannel();
+		if (localAcceptor != null) {
+			boolean interrupted = false;
+			while (localAcceptor.isAlive()) {
+				try {
+					localAcceptor.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Connections are persistent, so their threads would otherwise block
+		// waiting for requests that will never be served.
+		for (ConnectionHandler<T> handler : connections) {
+			handler.shutdown();
 		}
 
 		//System.out.println("Shutting down thread pool...");
@@ -134,13 +246,61 @@ public class ListenerThread<T> extends Thread {
 	/**
 	 * The method to initiate termination of the listener thread.
 	 */
+	@Override
 	public void terminate() {
-		if (this.isActive) {
-			this.isActive = false;
-			closeConnection();
-		} else {
-			closeConnection();
-			container.confirmTermination(null);
+		this.isActive = false;
+		closeConnection();
+		closeLocalChannel();
+	}
+
+	/**
+	 * Accepts connections on the domain socket until the listener terminates.
+	 * Run by <code>localAcceptor</code>. If the domain socket fails, local
+	 * clients fall back to TCP.
+	 */
+	private void acceptLocal() {
+		while (isActive) {
+			SocketChannel clientConnection;
+			try {
+				clientConnection = localChannel.accept();
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				container.service_error(new RMIException(e));
+				closeLocalChannel();
+				break;
+			}
+
+			serve(new ConnectionHandler<T>(container, serverObject, serverClass, clientConnection, calls));
+		}
+	}
+
+	/**
+	 * Reads an accepted connection in the thread pool until it closes.
+	 *
+	 * @param handler
+	 *		The handler of the connection
+	 */
+	private void serve(final ConnectionHandler<T> handler) {
+		connections.add(handler);
+		threadPool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					handler.run();
+				} finally {
+					connections.remove(handler);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes the domain server channel, if any, and removes its socket file.
+	 */
+	private void closeLocalChannel() {
+		if (localChannel != null && localChannel.isOpen()) {
+			LocalSockets.close(localChannel);
 		}
 	}
 
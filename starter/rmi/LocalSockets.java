@@ -0,0 +1,312 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Unix domain sockets through which stubs reach skeletons running on the
+ * same host without going through the TCP stack.
+ *
+ * <p>
+ * A skeleton listening on TCP address <code>a</code> and port <code>p</code>
+ * also listens on the domain socket <code>a-p.sock</code>, or
+ * <code>any-p.sock</code> if it listens on all addresses, in a directory
+ * private to the user running it. A stub about to connect to a local address
+ * <code>a</code> with port <code>p</code> first tries the socket of that
+ * address, then the socket of a skeleton listening on all addresses, and
+ * falls back to TCP if neither exists or accepts the connection. The TCP
+ * address identifies the skeleton, as it would over TCP, so no discovery or
+ * negotiation is needed, and skeletons sharing a port on different addresses
+ * keep separate sockets. Only processes of the same user share the directory:
+ * another user cannot plant a socket there to intercept calls.
+ *
+ * <p>
+ * Domain sockets are used when the runtime and the operating system support
+ * them. Skeletons can be kept off them with
+ * {@link Skeleton#setLocalSockets(boolean)}, and both skeletons and stubs
+ * with the <code>rmi.localSockets</code> system property.
+ */
+final class LocalSockets {
+
+	/**
+	 * The directory holding the sockets of the user, or <code>null</code> if
+	 * domain sockets are not available.
+	 */
+	private static final Path directory = openDirectory();
+	/**
+	 * Whether each address is one of the addresses of this host.
+	 */
+	private static final ConcurrentHashMap<InetAddress, Boolean> localAddresses = new ConcurrentHashMap<>();
+
+	private LocalSockets() {
+	}
+
+	/**
+	 * Checks whether domain sockets are supported and the socket directory is
+	 * usable.
+	 *
+	 * @return <code>true</code> if domain sockets can be used
+	 */
+	static boolean available() {
+		return directory != null;
+	}
+
+	/**
+	 * Checks whether the <code>rmi.localSockets</code> system property allows
+	 * domain sockets.
+	 *
+	 * @return <code>false</code> if the property is <code>false</code>
+	 */
+	static boolean allowed() {
+		return !"false".equalsIgnoreCase(System.getProperty(Skeleton.LOCAL_SOCKETS_PROPERTY));
+	}
+
+	/**
+	 * Binds the domain socket of a TCP address. A socket file left behind by a
+	 * process that held the address before is replaced; a socket that still
+	 * accepts connections is not.
+	 *
+	 * @param address
+	 *            The TCP address the skeleton is bound to, possibly the
+	 *            wildcard address.
+	 * @param port
+	 *            The TCP port the skeleton is bound to.
+	 * @return the bound server channel, in blocking mode
+	 * @throws BindException
+	 *             If another skeleton is listening on the socket.
+	 * @throws IOException
+	 *             If the socket cannot be bound.
+	 */
+	static ServerSocketChannel bind(InetAddress address, int port) throws IOException {
+		Path path = path(address, port);
+		if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			try {
+				SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+				throw new BindException("Domain socket in use: " + path);
+			} catch (BindException e) {
+				throw e;
+			} catch (IOException e) {
+				// Nobody listens on it: left behind by a skeleton that stopped
+				// abruptly.
+			}
+			Files.deleteIfExists(path);
+		}
+
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(UnixDomainSocketAddress.of(path), Skeleton.maxQueueLength);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Closes a domain server channel and removes its socket file.
+	 *
+	 * @param channel
+	 *            The channel returned by {@link #bind(InetAddress, int)}.
+	 */
+	static void close(ServerSocketChannel channel) {
+		try {
+			Path path = ((UnixDomainSocketAddress) channel.getLocalAddress()).getPath();
+			channel.close();
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			// A leftover file is replaced when the port is bound again.
+		}
+	}
+
+	/**
+	 * Connects to the domain socket of a skeleton, if it runs on this host.
+	 *
+	 * @param address
+	 *            The TCP address of the skeleton.
+	 * @return a connected channel, in blocking mode, or <code>null</code> if
+	 *         the skeleton is to be reached over TCP
+	 */
+	static SocketChannel connect(InetSocketAddress address) {
+		if (!available() || !allowed() || address.isUnresolved() || !isLocal(address.getAddress())) {
+			return null;
+		}
+
+		SocketChannel channel = connect(path(address.getAddress(), address.getPort()));
+		if (channel == null && !address.getAddress().isAnyLocalAddress()) {
+			channel = connect(path(null, address.getPort()));
+		}
+		return channel;
+	}
+
+	/**
+	 * Connects to a domain socket.
+	 *
+	 * @param path
+	 *            The path of the socket.
+	 * @return a connected channel, in blocking mode, or <code>null</code> if
+	 *         nobody listens on the socket
+	 */
+	private static SocketChannel connect(Path path) {
+		if (!Files.exists(path)) {
+			return null;
+		}
+
+		try {
+			return SocketChannel.open(UnixDomainSocketAddress.of(path));
+		} catch (IOException e) {
+			return null; // Left behind by a skeleton that stopped abruptly.
+		}
+	}
+
+	/**
+	 * Returns the path of the domain socket of a TCP address.
+	 *
+	 * @param address
+	 *            The TCP address, or <code>null</code> or the wildcard address
+	 *            for a skeleton listening on all addresses.
+	 * @param port
+	 *            The TCP port.
+	 * @return the socket path
+	 */
+	static Path path(InetAddress address, int port) {
+		String host = (address == null || address.isAnyLocalAddress()) ? "any" : address.getHostAddress();
+		return directory.resolve(host + "-" + port + ".sock");
+	}
+
+	/**
+	 * Checks whether an address belongs to this host.
+	 *
+	 * @param address
+	 *            The address.
+	 * @return <code>true</code> for loopback and wildcard addresses, and the
+	 *         addresses of the network interfaces
+	 */
+	static boolean isLocal(InetAddress address) {
+		Boolean local = localAddresses.get(address);
+		if (local == null) {
+			try {
+				local = address.isLoopbackAddress() || address.isAnyLocalAddress()
+						|| NetworkInterface.getByInetAddress(address) != null;
+			} catch (SocketException e) {
+				local = false;
+			}
+			localAddresses.put(address, local);
+		}
+		return local;
+	}
+
+	/**
+	 * Returns a stream reading from a connected channel. Unlike
+	 * <code>Channels.newInputStream</code>, reads do not hold a lock that
+	 * writes on the same channel need.
+	 *
+	 * @param channel
+	 *            The channel, in blocking mode.
+	 * @return the stream
+	 */
+	static InputStream inputStream(final SocketChannel channel) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Returns a stream writing to a connected channel. Unlike
+	 * <code>Channels.newOutputStream</code>, writes do not hold a lock that
+	 * reads on the same channel need.
+	 *
+	 * @param channel
+	 *            The channel, in blocking mode.
+	 * @return the stream
+	 */
+	static OutputStream outputStream(final SocketChannel channel) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Creates the directory holding the sockets of the user, readable by the
+	 * user only.
+	 *
+	 * @return the directory, or <code>null</code> if domain sockets are not
+	 *         supported or the directory cannot be used safely
+	 */
+	private static Path openDirectory() {
+		try {
+			// Fails on systems without domain sockets.
+			SocketChannel.open(StandardProtocolFamily.UNIX).close();
+
+			String user = System.getProperty("user.name");
+			Set<PosixFilePermission> private_ = PosixFilePermissions.fromString("rwx------");
+			Path path = Paths.get(System.getProperty("java.io.tmpdir"), "rmi-" + user);
+			try {
+				Files.createDirectory(path, PosixFilePermissions.asFileAttribute(private_));
+			} catch (FileAlreadyExistsException e) {
+				// Created by an earlier process; checked below.
+			}
+
+			if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)
+					|| !Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName().equals(user)
+					|| !Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS).equals(private_)) {
+				return null;
+			}
+			return path;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The live counters of one remote method of a skeleton.
+ *
+ * <p>
+ * Recording a call costs a handful of uncontended atomic additions, and no
+ * allocation. Latencies are counted in a histogram of log-linear buckets, in
+ * the manner of HdrHistogram: each power of two is split into
+ * <code>2^SUB_BUCKET_BITS</code> buckets of equal width, so that a bucket is
+ * never wider than about 3% of the values it holds, from nanoseconds up to
+ * about eighteen minutes. Longer latencies are counted in the last bucket.
+ */
+final class MethodCounters {
+
+	/**
+	 * The number of bits of a value kept below its leading bit.
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+	/**
+	 * The number of buckets per power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/**
+	 * The position of the leading bit of the largest value counted exactly.
+	 */
+	private static final int MAX_EXPONENT = 39;
+	/**
+	 * The number of latency buckets.
+	 */
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	/**
+	 * The calls by latency bucket. The number of calls is their sum.
+	 */
+	private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+	/**
+	 * The calls that threw an exception.
+	 */
+	private final LongAdder errors = new LongAdder();
+	/**
+	 * The encoded bytes of the arguments.
+	 */
+	private final LongAdder bytesIn = new LongAdder();
+	/**
+	 * The encoded bytes of the return values and exceptions.
+	 */
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Records a completed call.
+	 *
+	 * @param latency
+	 *            The time spent in the server object, in nanoseconds.
+	 * @param failed
+	 *            Whether the call threw an exception.
+	 * @param in
+	 *            The encoded length of the request.
+	 * @param out
+	 *            The encoded length of the response.
+	 */
+	void record(long latency, boolean failed, int in, int out) {
+		latencies.incrementAndGet(bucketOf(latency));
+		if (failed) {
+			errors.increment();
+		}
+		bytesIn.add(in);
+		bytesOut.add(out);
+	}
+
+	/**
+	 * Returns a snapshot of the counters. Counters updated while the snapshot
+	 * is taken may be seen in any combination of states.
+	 *
+	 * @param name
+	 *            The name of the method.
+	 * @return the snapshot
+	 */
+	MethodStats snapshot(String name) {
+		long[] counts = new long[BUCKETS];
+		int used = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = latencies.get(i);
+			if (counts[i] != 0) {
+				used = i + 1;
+			}
+		}
+
+		long[] trimmed = new long[used];
+		System.arraycopy(counts, 0, trimmed, 0, used);
+		return new MethodStats(name, errors.sum(), bytesIn.sum(), bytesOut.sum(), trimmed);
+	}
+
+	/**
+	 * Returns the bucket counting a latency.
+	 *
+	 * @param value
+	 *            The latency, in nanoseconds.
+	 * @return bucket index
+	 */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (value < 0) ? 0 : (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Returns the largest latency counted by a bucket.
+	 *
+	 * @param bucket
+	 *            The bucket index.
+	 * @return latency, in nanoseconds
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -5,18 +5,38 @@
 package rmi;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
 
+import rmi.io.Message;
 import rmi.io.RMIRequest;
 import rmi.io.RMIResponse;
+import rmi.io.WireProtocol;
 
 /**
- * The runnable object executed in the thread pool that services a client
- * connection to execute the remote method call on the {@link Skeleton} object.
+ * The runnable object executed in the thread pool that executes a single
+ * remote method call, or the calls of a batch request, on the {@link Skeleton}
+ * object and writes the response back on the connection the request arrived
+ * on.
+ *
+ * <p>
+ * The request is decoded by the task, not by the thread that read it, so that
+ * inflating a large compressed request or deserializing its arguments holds up
+ * only its own call.
+ *
+ * <p>
+ * The task also records each call in the counters of its method: the time
+ * spent in the server object, whether an exception was thrown, and the
+ * encoded lengths of the request and response.
+ *
+ * <p>
+ * A call whose deadline has passed by the time the task runs is rejected with
+ * a {@link DeadlineExceededException}, without calling the server object. A
+ * call still running at its deadline has its thread interrupted.
+ *
+ * <p>
+ * A {@link RemoteStream} returned by a call is kept by the skeleton, and only
+ * its handle and first chunk are sent back.
  *
  * @param <T>
  *            the generic remote interface this listener thread represents.
@@ -37,71 +57,45 @@ public class MethodInvocationTask<T> implements Runnable {
 	 */
 	private Class<T> serverClass;
 	/**
-	 * The client connection that the task accepts remote method calls and
-	 * returns the response on.
+	 * The client connection that the request arrived on and that the response
+	 * is written to.
+	 */
+	private ResponseChannel connection;
+	/**
+	 * The encoded request to execute, as read from the connection.
 	 */
-	private Socket clientConnection;
+	private Message request;
+	/**
+	 * The time, from {@link System#nanoTime()}, at which the request was read,
+	 * from which the deadlines of its calls run.
+	 */
+	private long received;
 
 	/**
-         * The constructor to create a new {@link MethodInvocationTask} instance.
-         *
-         * @param container
-         *              The skeleton object
-         * @param serverClass
-         *              The class object of server
-         * @param serverObject
-         *              The generic server object
-         * @param clientConnection
-         *              The listener socket
-         */
-	public MethodInvocationTask(Skeleton<T> container, T serverObject, Class<T> serverClass, Socket clientConnection) {
+	 * The constructor to create a new {@link MethodInvocationTask} instance.
+	 *
+	 * @param container
+	 *            The skeleton object
+	 * @param serverObject
+	 *            The generic server object
+	 * @param serverClass
+	 *            The class object of server
+	 * @param connection
+	 *            The client connection the request arrived on
+	 * @param request
+	 *            The encoded remote method call request
+	 * @param received
+	 *            The time, from {@link System#nanoTime()}, at which the
+	 *            request was read
+	 */
+	public MethodInvocationTask(Skeleton<T> container, T serverObject, Class<T> serverClass,
+			ResponseChannel connection, Message request, long received) {
 		this.container = container;
 		this.serverObject = serverObject;
 		this.serverClass = serverClass;
-		this.clientConnection = clientConnection;
-	}
-
-	/**
-	 * The method returns a member {@link Method} instance of the given remote
-	 * interface that matches with the given method signature provided in the
-	 * remote call requests.
-	 * 
-	 * @param clazz
-	 *            The remote interface class object that this
-	 *            {@link MethodInvocationTask} represents.
-	 * @param methodName
-	 *            The remote method name that has been requested in the remote
-	 *            call.
-	 * @param argumentTypes
-	 *            The expected argument types of the remote method to be called.
-	 * @return {@link Method} instance; {@code null} if not such method is
-	 *         found.
-	 */
-	private Method getMatchingMethod(Class clazz, String methodName, String[] argumentTypes) {
-		for (Method method : clazz.getDeclaredMethods()) {
-			Class[] paramTypes = method.getParameterTypes();
-			if (methodName.equals(method.getName()) && (argumentTypes.length == paramTypes.length)) {
-				boolean found = true;
-				for (int i = 0; i < argumentTypes.length; i++) {
-					if (!paramTypes[i].getName().equals(argumentTypes[i])) {
-						found = false;
-					}
-				}
-
-				if (found) {
-					return method;
-				}
-			}
-		}
-
-		for (Class iface : clazz.getInterfaces()) {
-			Method method = getMatchingMethod(iface, methodName, argumentTypes);
-			if (method != null) {
-				return method;
-			}
-		}
-
-		return null;
+		this.connection = connection;
+		this.request = request;
+		this.received = received;
 	}
 
 	/**
@@ -109,157 +103,119 @@ public class MethodInvocationTask<T> implements Runnable {
 	 */
 	@Override
 	public void run() {
-		ObjectOutputStream outStream;
-		ObjectInputStream inStream;
-
-		try {
-			outStream = new ObjectOutputStream(clientConnection.getOutputStream());
-			outStream.flush();
-		} catch (IOException e) {
-			//System.err.println("Failed to get OutputStream from client connection: " + "ServerClass: "
-			//		+ serverClass.getName() + ", " + "IPAddress: " + container.getBindAddress().getAddress().toString()
-			//		+ ", " + "Port: " + container.getBindAddress().getPort());
-
-			container.service_error(new RMIException(e));
-
-			closeConnection();
-			return; // Nothing can be done so simply exit.
-		} catch (NullPointerException e) {
-			container.service_error(new RMIException(e));
-
-			closeConnection();
-			return; // Nothing can be done so simply exit.
-		}
-		try {
-			inStream = new ObjectInputStream(clientConnection.getInputStream());
-		} catch (IOException e) {
-			//System.err.println("Failed to get IntputStream from client connection: " + "ServerClass: "
-			//		+ serverClass.getName() + ", " + "IPAddress: " + container.getBindAddress().getAddress().toString()
-			//		+ ", " + "Port: " + container.getBindAddress().getPort());
-
-			container.service_error(new RMIException(e));
-
-			closeConnection();
-			return; // Nothing can be done so simply exit.
-		} catch (NullPointerException e) {
-			container.service_error(new RMIException(e));
-
-			closeConnection();
-			return; // Nothing can be done so simply exit.
-		}
-
+		Message response;
 		RMIRequest request;
 		try {
-			request = (RMIRequest) inStream.readObject();
+			request = WireProtocol.decodeRequest(this.request, received);
 		} catch (ClassNotFoundException | IOException e) {
-			System.err.println("Failed to get read request from client connection: " + "ServerClass: "
-					+ serverClass.getName() + ", " + "IPAddress: " + container.getBindAddress().getAddress().toString()
-					+ ", " + "Port: " + container.getBindAddress().getPort());
+			// The frame was read whole, so only this call is lost.
 			container.service_error(new RMIException(e));
+			response = ConnectionHandler.encodeResponse(container,
+					new RMIResponse(new RMIException("Failed to decode the request.", e)));
+			connection.sendResponse(this.request.getCallId(), response);
+			connection.endRequest();
+			return;
+		}
 
-			closeConnection();
-			return; // Nothing can be done so simply exit.
+		ResponseChannel caller = Skeleton.enterCall(connection);
+		try {
+			if (request.isBatch()) {
+				// The calls of a batch run one after the other, in order, so
+				// that each call sees the effects of the calls queued before it.
+				ArrayList<Message> responses = new ArrayList<>(request.getBatch().size());
+				for (RMIRequest call : request.getBatch()) {
+					responses.add(invoke(call));
+				}
+				response = ConnectionHandler.encodeBatchResponse(container, responses);
+			} else {
+				response = invoke(request);
+			}
+		} finally {
+			Skeleton.enterCall(caller);
 		}
 
+		connection.sendResponse(request.getCallId(), response);
+		connection.endRequest();
+	}
+
+	/**
+	 * Executes a single remote method call on the server object, encodes its
+	 * response and records the call.
+	 * 
+	 * @param request
+	 *            the remote call request read from the connection.
+	 * @return the encoded response carrying the return value or the exception
+	 *         thrown.
+	 */
+	private Message invoke(RMIRequest request) {
 		RMIResponse response;
-		String className = request.getClassName();
-		String methodName = request.getMethodName();
+		long interfaceId = request.getInterfaceId();
+		int methodId = request.getMethodId();
 		Object[] arguments = request.getArguments();
-		String[] argumentTypes = request.getArgumentTypes();
 
-		if (isAncestorOrEqual(serverClass, className)) {
+		if (request.getTimeout() != 0 && request.getDeadline() - System.nanoTime() <= 0) {
+			// The caller has given up already; running the call would only
+			// lengthen the queue behind it.
+			response = new RMIResponse(new DeadlineExceededException("Deadline passed before the call started."));
+			return ConnectionHandler.encodeResponse(container, response);
+		}
 
-			Method matchingMethod = getMatchingMethod(serverClass, methodName, argumentTypes);
-			if (matchingMethod != null) {
-				try {
-					Object returnValue = matchingMethod.invoke(serverObject, arguments);
-					response = new RMIResponse(returnValue);
-				} catch (InvocationTargetException e) {
-					response = new RMIResponse((Exception) e.getTargetException());
-				} catch (IllegalArgumentException | IllegalAccessException e) {
-					System.err.println(
-							"Failed to invoke the designated method: " + "ServerClass: " + serverClass.getName() + ", "
-									+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", "
-									+ "Port: " + container.getBindAddress().getPort() + ", " + "ClientClass: "
-									+ className + ", " + "Method: " + methodName + ", " + "Arguments: " + arguments);
-					RMIException exception = new RMIException(e);
-					container.service_error(exception);
-					response = new RMIResponse(exception);
+		DispatchTable.Entry entry = container.getDispatchTable().lookup(interfaceId, methodId);
+		if (entry != null && entry.accepts(arguments)) {
+			Object target = entry.builtIn ? container.getBuiltIns() : serverObject;
+			DeadlineTimer timer = (request.getTimeout() != 0) ? DeadlineTimer.start(request.getDeadline()) : null;
+			long start = System.nanoTime();
+			try {
+				Object returnValue = entry.invoke(target, arguments);
+				if (returnValue instanceof RemoteStream && entry.method.getReturnType() == RemoteStream.class) {
+					returnValue = container.getStreams().export((RemoteStream<?>) returnValue);
 				}
-			} else {
-				System.err.println("Failed to find a matching method: " + "ServerClass: " + serverClass.getName() + ", "
-						+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
-						+ container.getBindAddress().getPort() + ", " + "ClientClass: " + className + ", " + "Method: "
-						+ methodName + ", " + "Arguments: " + arguments);
-				RMIException exception = new RMIException(new NoSuchMethodException("No such remote method."));
+				response = new RMIResponse(returnValue);
+			} catch (Exception e) {
+				response = new RMIResponse(e);
+			} catch (Throwable t) {
+				System.err.println("Remote method failed with an error: " + "ServerClass: " + serverClass.getName()
+						+ ", " + "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
+						+ container.getBindAddress().getPort() + ", " + "Method: " + entry.method.getName());
+				RMIException exception = new RMIException(t);
 				container.service_error(exception);
 				response = new RMIResponse(exception);
+			} finally {
+				if (timer != null) {
+					timer.finish();
+				}
 			}
+			long latency = System.nanoTime() - start;
+
+			Message encoded = ConnectionHandler.encodeResponse(container, response);
+			entry.counters.record(latency, response.getException() != null, request.getLength(), encoded.length());
+			return encoded;
+		} else if (entry != null) {
+			System.err.println("Failed to invoke the designated method: " + "ServerClass: " + serverClass.getName()
+					+ ", " + "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
+					+ container.getBindAddress().getPort() + ", " + "Method: " + entry.method.getName() + ", "
+					+ "Arguments: " + Arrays.toString(arguments));
+			RMIException exception = new RMIException(new IllegalArgumentException("Argument type mismatch."));
+			container.service_error(exception);
+			response = new RMIResponse(exception);
+		} else if (container.getDispatchTable().hasInterface(interfaceId)) {
+			System.err.println("Failed to find a matching method: " + "ServerClass: " + serverClass.getName() + ", "
+					+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
+					+ container.getBindAddress().getPort() + ", " + "Method: " + methodId);
+			RMIException exception = new RMIException(new NoSuchMethodException("No such remote method."));
+			container.service_error(exception);
+			response = new RMIResponse(exception);
 		} else {
 			System.err.println("Failed to find a matching class: " + "ServerClass: " + serverClass.getName() + ", "
 					+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
-					+ container.getBindAddress().getPort() + ", " + "ClientClass: " + className + ", " + "Method: "
-					+ methodName + ", " + "Arguments: " + arguments);
+					+ container.getBindAddress().getPort() + ", " + "ClientClass: "
+					+ Long.toHexString(interfaceId) + ", " + "Method: " + methodId);
 			RMIException exception = new RMIException(new ClassNotFoundException("No such remote class."));
 			container.service_error(exception);
 			response = new RMIResponse(exception);
 		}
 
-		try {
-			outStream.writeObject(response);
-		} catch (IOException e) {
-			System.err.println("Failed to write response to client connection: " + "ServerClass: "
-					+ serverClass.getName() + ", " + "IPAddress: " + container.getBindAddress().getAddress().toString()
-					+ ", " + "Port: " + container.getBindAddress().getPort() + ", " + "ClientClass: " + className + ", "
-					+ "Method: " + methodName + ", " + "Arguments: " + arguments);
-			container.service_error(new RMIException(e));
-		}
-
-		closeConnection();
-	}
-
-	/**
-	 * The methods checks if the expected {@code ancestorClass} represents the
-	 * interface either equal or inherited by the {@code currentClass} interface
-	 * class object.
-	 * 
-	 * @param currentClass
-	 *            the class object whose ancestry needs to searched in.
-	 * @param ancestorClassName
-	 *            the class to be expected in the ancestry of the
-	 *            {@code currentClass}
-	 * @return {@code true} if the expected interface is in the given classes
-	 *         hierarchy; {@code false} otherwise.
-	 */
-	private boolean isAncestorOrEqual(Class currentClass, String ancestorClassName) {
-		if (currentClass.getName().equals(ancestorClassName)) {
-			return true;
-		} else {
-			for (Class iface : serverClass.getInterfaces()) {
-				if (isAncestorOrEqual(iface, ancestorClassName)) {
-					return true;
-				}
-			}
-		}
-
-		return false;
-	}
-
-	/**
-	 * The method closes the client connection for the remote method call.
-	 */
-	private void closeConnection() {
-		try {
-			clientConnection.close();
-		} catch (IOException e) {
-			System.err.println("Failed to close client connection: " + "ServerClass: " + serverClass.getName() + ", "
-					+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
-					+ container.getBindAddress().getPort());
-
-			container.service_error(new RMIException(e));
-		} catch (NullPointerException e) {
-			container.service_error(new RMIException(e));
-		}
+		return ConnectionHandler.encodeResponse(container, response);
 	}
 
 }
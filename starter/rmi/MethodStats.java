@@ -0,0 +1,158 @@
+package rmi;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of the counters of one remote method of a skeleton, as returned
+ * by {@link Stats#getMethodStats()}.
+ *
+ * <p>
+ * The latency of a call is the time spent in the server object, from the
+ * moment the call is dispatched until the method returns or throws. Byte
+ * counts are those of the encoded arguments and results, before any
+ * compression. Counters start when the skeleton is created, and are never
+ * reset.
+ */
+public final class MethodStats implements Serializable {
+
+	private static final long serialVersionUID = 4820374937425106243L;
+
+	/**
+	 * The name of the method, with its declaring interface and parameter
+	 * types.
+	 */
+	private final String name;
+	/**
+	 * The calls that threw an exception.
+	 */
+	private final long errors;
+	/**
+	 * The encoded bytes of the arguments.
+	 */
+	private final long bytesIn;
+	/**
+	 * The encoded bytes of the return values and exceptions.
+	 */
+	private final long bytesOut;
+	/**
+	 * The calls by latency bucket, up to the last bucket counting any call.
+	 */
+	private final long[] latencies;
+
+	/**
+	 * Creates a snapshot.
+	 *
+	 * @param name
+	 *            The name of the method.
+	 * @param errors
+	 *            The calls that threw an exception.
+	 * @param bytesIn
+	 *            The encoded bytes of the arguments.
+	 * @param bytesOut
+	 *            The encoded bytes of the results.
+	 * @param latencies
+	 *            The calls by latency bucket.
+	 */
+	MethodStats(String name, long errors, long bytesIn, long bytesOut, long[] latencies) {
+		this.name = name;
+		this.errors = errors;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Returns the name of the method, such as
+	 * <code>Service.lock(Path, boolean)</code>.
+	 *
+	 * @return method name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of calls completed.
+	 *
+	 * @return number of calls
+	 */
+	public long getCalls() {
+		long calls = 0;
+		for (long count : latencies) {
+			calls += count;
+		}
+		return calls;
+	}
+
+	/**
+	 * Returns the number of calls that threw an exception.
+	 *
+	 * @return number of failed calls
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Returns the number of bytes of encoded arguments received.
+	 *
+	 * @return bytes received
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * Returns the number of bytes of encoded results sent.
+	 *
+	 * @return bytes sent
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * Returns the latency below which the given fraction of calls completed.
+	 * The result is rounded up to the end of its histogram bucket, and so
+	 * exceeds the exact value by at most about 3%.
+	 *
+	 * @param quantile
+	 *            The fraction of calls, such as <code>0.99</code> for the
+	 *            99th percentile.
+	 * @return latency, in nanoseconds, or <code>0</code> if no call completed
+	 * @throws IllegalArgumentException
+	 *             If the quantile is not between <code>0</code> and
+	 *             <code>1</code>.
+	 */
+	public long getLatency(double quantile) {
+		if (!(quantile >= 0 && quantile <= 1)) {
+			throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+		}
+
+		long calls = getCalls();
+		if (calls == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * calls));
+		long seen = 0;
+		for (int i = 0; i < latencies.length; i++) {
+			seen += latencies[i];
+			if (seen >= rank) {
+				return MethodCounters.highestValueOf(i);
+			}
+		}
+		return MethodCounters.highestValueOf(latencies.length - 1);
+	}
+
+	/**
+	 * Returns the name, counts and median, 99th and 99.9th percentile
+	 * latencies, in microseconds.
+	 */
+	@Override
+	public String toString() {
+		return name + ": " + getCalls() + " calls, " + errors + " errors, " + bytesIn + " bytes in, " + bytesOut
+				+ " bytes out, latency p50 " + getLatency(0.5) / 1000 + " us, p99 " + getLatency(0.99) / 1000
+				+ " us, p999 " + getLatency(0.999) / 1000 + " us";
+	}
+}
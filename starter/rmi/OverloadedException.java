@@ -0,0 +1,31 @@
+package rmi;
+
+/**
+ * Thrown by a stub when the skeleton turned its call away because it was
+ * overloaded.
+ *
+ * <p>
+ * A skeleton runs a bounded number of calls at once and lets a bounded number
+ * more wait for their turn. A call arriving when both are full is rejected at
+ * once, without calling the server object, rather than being left to wait
+ * with no end in sight. The call had no effect, so the caller may try again
+ * later.
+ *
+ * @see Skeleton#setMaxCalls(int)
+ * @see Skeleton#setWorkerQueueLength(int)
+ */
+public class OverloadedException extends RMIException {
+
+	private static final long serialVersionUID = -6043187519620328861L;
+
+	/**
+	 * Creates an <code>OverloadedException</code> with the given message
+	 * string.
+	 *
+	 * @param message
+	 *            The exception message.
+	 */
+	public OverloadedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,230 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import rmi.io.WireProtocol;
+
+/**
+ * The wire description of the remote methods declared by a single interface.
+ *
+ * <p>
+ * Stubs do not send interface and method names with every call. Instead, the
+ * remote methods declared by an interface are sorted by signature and numbered,
+ * and the interface is identified by a 64-bit fingerprint of its name and of
+ * those signatures. A stub and a skeleton built against the same version of an
+ * interface therefore agree on the fingerprint and the method ordinals without
+ * any negotiation, and a skeleton receiving a fingerprint it does not know
+ * rejects the call rather than invoking the wrong method.
+ *
+ * <p>
+ * Building a description also initializes the classes of all parameter and
+ * return types of the remote methods, so that any wire codecs they register
+ * with {@link rmi.io.WireCodec} are in place before the first call is decoded.
+ */
+final class RemoteInterface {
+
+	/**
+	 * Descriptions already built, by interface.
+	 */
+	private static final ConcurrentHashMap<Class<?>, RemoteInterface> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * The interface described.
+	 */
+	private final Class<?> iface;
+	/**
+	 * The fingerprint identifying the interface on the wire.
+	 */
+	private final long fingerprint;
+	/**
+	 * The remote methods declared by the interface, indexed by ordinal.
+	 */
+	private final Method[] methods;
+	/**
+	 * The ordinal of each remote method.
+	 */
+	private final Map<Method, Integer> ordinals;
+
+	/**
+	 * Builds the description of the given interface.
+	 *
+	 * @param iface
+	 *            The interface class object.
+	 */
+	private RemoteInterface(Class<?> iface) {
+		ArrayList<Method> remoteMethods = new ArrayList<>();
+		for (Method method : iface.getDeclaredMethods()) {
+			if (!Modifier.isStatic(method.getModifiers()) && RemotePattern.isRemoteMethod(method)) {
+				remoteMethods.add(method);
+			}
+		}
+
+		Collections.sort(remoteMethods, new Comparator<Method>() {
+			@Override
+			public int compare(Method m1, Method m2) {
+				return signature(m1).compareTo(signature(m2));
+			}
+		});
+
+		this.iface = iface;
+		this.methods = remoteMethods.toArray(new Method[remoteMethods.size()]);
+		this.ordinals = new HashMap<>();
+
+		// 64-bit FNV-1a over the interface name and the sorted signatures.
+		long hash = 0xcbf29ce484222325L;
+		StringBuilder description = new StringBuilder(iface.getName());
+		for (int i = 0; i < methods.length; i++) {
+			ordinals.put(methods[i], i);
+			description.append(';').append(signature(methods[i]));
+			initialize(methods[i].getReturnType());
+			for (Class<?> type : methods[i].getParameterTypes()) {
+				initialize(type);
+			}
+		}
+		for (byte b : description.toString().getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		// Zero marks batch requests on the wire.
+		this.fingerprint = (hash == WireProtocol.BATCH_INTERFACE_ID) ? 1 : hash;
+	}
+
+	/**
+	 * Returns the description of the given interface, building it on first
+	 * use.
+	 *
+	 * @param iface
+	 *            The interface class object.
+	 * @return description of the remote methods declared by the interface
+	 */
+	static RemoteInterface of(Class<?> iface) {
+		RemoteInterface description = cache.get(iface);
+		if (description == null) {
+			description = new RemoteInterface(iface);
+			RemoteInterface existing = cache.putIfAbsent(iface, description);
+			if (existing != null) {
+				description = existing;
+			}
+		}
+		return description;
+	}
+
+	/**
+	 * Collects the descriptions of the given interface and of every interface
+	 * it extends, by fingerprint. This is the set of interfaces whose methods a
+	 * skeleton for <code>iface</code> can serve.
+	 *
+	 * @param iface
+	 *            The remote interface class object.
+	 * @return descriptions by fingerprint
+	 */
+	static Map<Long, RemoteInterface> hierarchyOf(Class<?> iface) {
+		HashMap<Long, RemoteInterface> hierarchy = new HashMap<>();
+		collect(iface, hierarchy);
+		return hierarchy;
+	}
+
+	/**
+	 * Adds the description of the given interface and its ancestors to the map.
+	 *
+	 * @param iface
+	 *            The interface class object.
+	 * @param hierarchy
+	 *            The descriptions collected so far.
+	 */
+	private static void collect(Class<?> iface, Map<Long, RemoteInterface> hierarchy) {
+		RemoteInterface description = of(iface);
+		if (hierarchy.put(description.fingerprint, description) == null) {
+			for (Class<?> parent : iface.getInterfaces()) {
+				collect(parent, hierarchy);
+			}
+		}
+	}
+
+	/**
+	 * Returns the fingerprint identifying the interface on the wire.
+	 *
+	 * @return interface fingerprint
+	 */
+	long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Returns the remote methods declared by the interface, indexed by ordinal.
+	 *
+	 * @return copy of the method table
+	 */
+	Method[] getMethods() {
+		return Arrays.copyOf(methods, methods.length);
+	}
+
+	/**
+	 * Returns the ordinal of a remote method declared by the interface.
+	 *
+	 * @param method
+	 *            The method.
+	 * @return method ordinal
+	 * @throws IllegalArgumentException
+	 *             If the method is not a remote method declared by the
+	 *             interface.
+	 */
+	int ordinalOf(Method method) {
+		Integer ordinal = ordinals.get(method);
+		if (ordinal == null) {
+			throw new IllegalArgumentException("Not a remote method of " + iface.getName() + ": " + method);
+		}
+		return ordinal;
+	}
+
+	/**
+	 * Returns the signature by which methods are ordered: the name, parameter
+	 * type names and return type name.
+	 *
+	 * @param method
+	 *            The method.
+	 * @return method signature
+	 */
+	private static String signature(Method method) {
+		StringBuilder signature = new StringBuilder(method.getName()).append('(');
+		for (Class<?> type : method.getParameterTypes()) {
+			signature.append(type.getName()).append(',');
+		}
+		return signature.append(')').append(method.getReturnType().getName()).toString();
+	}
+
+	/**
+	 * Initializes a parameter or return type, or the component type of an
+	 * array type, so that the codec it registers, if any, is available.
+	 *
+	 * @param type
+	 *            The type.
+	 */
+	private static void initialize(Class<?> type) {
+		while (type.isArray()) {
+			type = type.getComponentType();
+		}
+		if (type.isPrimitive()) {
+			return;
+		}
+		if (type == RemoteStream.class) {
+			// Streams travel as handles.
+			type = StreamHandle.class;
+		}
+		try {
+			Class.forName(type.getName(), true, type.getClassLoader());
+		} catch (ClassNotFoundException | LinkageError e) {
+			// The type cannot be initialized here; its values fall back to
+			// Java serialization.
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package rmi;
+
+import java.io.IOException;
+
+/**
+ * A sequence of chunks returned by a remote method, for results too large to
+ * be returned at once, such as the contents of a large file.
+ *
+ * <p>
+ * A remote method declared to return <code>RemoteStream</code> is implemented
+ * by returning a stream that produces its chunks on demand. The skeleton sends
+ * the first chunk with the response to the call and keeps the stream; the stub
+ * returns a stream of its own, which fetches the remaining chunks as they are
+ * consumed. The stub keeps only a bounded number of chunk requests in flight,
+ * and the skeleton produces a chunk only when it is requested, so neither end
+ * holds more than a few chunks at a time, however long the stream.
+ *
+ * <p>
+ * Chunks may be of any type that can be returned by a remote method, and must
+ * not be <code>null</code>. Byte arrays are sent as raw data, as described in
+ * {@link rmi.io.WireProtocol}.
+ *
+ * <p>
+ * A stream that is not read to its end should be closed, so that the skeleton
+ * can release it at once rather than when it expires. Streams are not safe for
+ * use by several threads at once.
+ *
+ * @param <T>
+ *            the type of the chunks.
+ */
+public interface RemoteStream<T> extends AutoCloseable {
+
+	/**
+	 * Checks whether the stream has another chunk, waiting for it to arrive if
+	 * necessary.
+	 *
+	 * @return <code>true</code> if {@link #next()} will return a chunk;
+	 *         <code>false</code> at the end of the stream.
+	 * @throws IOException
+	 *             If the chunk cannot be produced by the server.
+	 * @throws RMIException
+	 *             If the chunk cannot be fetched due to a network error, or the
+	 *             stream has expired on the server.
+	 */
+	public boolean hasNext() throws RMIException, IOException;
+
+	/**
+	 * Returns the next chunk of the stream.
+	 *
+	 * @return the chunk; never <code>null</code>.
+	 * @throws java.util.NoSuchElementException
+	 *             At the end of the stream.
+	 * @throws IOException
+	 *             If the chunk cannot be produced by the server.
+	 * @throws RMIException
+	 *             If the chunk cannot be fetched due to a network error, or the
+	 *             stream has expired on the server.
+	 */
+	public T next() throws RMIException, IOException;
+
+	/**
+	 * Closes the stream, releasing it on the server. Closing a stream that has
+	 * been read to its end, or closed already, has no effect.
+	 */
+	@Override
+	public void close();
+}
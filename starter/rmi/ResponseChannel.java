@@ -0,0 +1,49 @@
+package rmi;
+
+import java.net.InetAddress;
+
+import rmi.io.Message;
+
+/**
+ * The server side of a client connection, as seen by the
+ * {@link MethodInvocationTask} executing a call that arrived on it.
+ *
+ * <p>
+ * Implemented by {@link ConnectionHandler} for the blocking transport and by
+ * {@link SelectorConnection} for the selector transport.
+ */
+interface ResponseChannel {
+
+	/**
+	 * Writes the response to a completed call back to the stub.
+	 *
+	 * @param callId
+	 *            the call ID of the request.
+	 * @param response
+	 *            the response, encoded by
+	 *            {@link ConnectionHandler#encodeResponse(Skeleton, rmi.io.RMIResponse)}.
+	 */
+	void sendResponse(long callId, Message response);
+
+	/**
+	 * Marks the end of a remote call on the connection, once its response has
+	 * been written. The last call to complete on a closing connection closes
+	 * it.
+	 */
+	void endRequest();
+
+	/**
+	 * Returns the address of the host the connection comes from.
+	 *
+	 * @return the remote address; the loopback address for a connection on a
+	 *         Unix domain socket.
+	 */
+	InetAddress remoteAddress();
+
+	/**
+	 * Returns the client ID the stub sent when it opened the connection.
+	 *
+	 * @return the client ID; zero for a peer that sent none.
+	 */
+	long clientId();
+}
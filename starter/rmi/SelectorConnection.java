@@ -0,0 +1,506 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import rmi.io.Message;
+import rmi.io.RMIResponse;
+import rmi.io.WireProtocol;
+
+/**
+ * A client connection served by the selector transport.
+ *
+ * <p>
+ * The connection does not own a thread. The I/O thread of the selector it is
+ * registered with calls {@link #read()} when bytes arrive, which reassembles
+ * the frames, reads only the route of each request to pick its lane, and
+ * hands it to the bounded worker pool as a {@link MethodInvocationTask}, which
+ * decodes it. Workers write their responses directly to
+ * the non-blocking channel; whatever does not fit in the socket buffer is
+ * queued and written by the I/O thread through {@link #flush()} when the
+ * channel becomes writable again.
+ *
+ * <p>
+ * The protocol is the one spoken by {@link ConnectionHandler}, and so is the
+ * shutdown behavior: a closing connection accepts no further requests and is
+ * closed once the responses to the calls in progress have been written.
+ *
+ * @param <T>
+ *            the generic remote interface this connection represents.
+ */
+class SelectorConnection<T> implements ResponseChannel {
+
+	/**
+	 * Initial size of the buffer into which frames are read. The buffer grows
+	 * to hold larger frames.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	/**
+	 * The skeleton object on which the remote method calls are executed.
+	 */
+	private final Skeleton<T> container;
+	/**
+	 * The object that the skeleton and this connection represent.
+	 */
+	private final T serverObject;
+	/**
+	 * The remote interface class object that the skeleton and this connection
+	 * represent.
+	 */
+	private final Class<T> serverClass;
+	/**
+	 * The non-blocking client channel.
+	 */
+	private final SocketChannel channel;
+	/**
+	 * The address of the host the connection comes from.
+	 */
+	private final InetAddress remoteAddress;
+	/**
+	 * The admission control through which the individual remote calls enter
+	 * the worker pool.
+	 */
+	private final CallAdmission calls;
+	/**
+	 * The open connections of the listener, from which this connection removes
+	 * itself when closed.
+	 */
+	private final Set<SelectorConnection<T>> openConnections;
+	/**
+	 * The registration of the channel with its selector; set by the I/O
+	 * thread when the connection is registered.
+	 */
+	private volatile SelectionKey key;
+	/**
+	 * Bytes read from the channel and not yet consumed, in read mode between
+	 * calls to {@link #read()}. Only used by the I/O thread.
+	 */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	/**
+	 * Whether the header of the stub has been read and checked. Only used by
+	 * the I/O thread.
+	 */
+	private boolean headerRead;
+	/**
+	 * The features offered by the skeleton, and once the header of the stub has
+	 * been read, those offered by both ends.
+	 */
+	private int features;
+	/**
+	 * Whether both ends offered compression, so that responses are compressed.
+	 * Set by the I/O thread before the first call is dispatched.
+	 */
+	private boolean compression;
+	/**
+	 * The client ID sent by the stub. Set by the I/O thread before the first
+	 * call is dispatched.
+	 */
+	private long clientId;
+	/**
+	 * Whether requests are still read from the channel. Cleared when the stub
+	 * closes its side or the connection starts closing, so that the selector
+	 * stops reporting the channel readable.
+	 */
+	private volatile boolean reading = true;
+	/**
+	 * Frames not yet written whole, oldest first, each as the buffers of a
+	 * gathering write. Also the lock ordering all writes to the channel.
+	 */
+	private final ArrayDeque<ByteBuffer[]> writeQueue = new ArrayDeque<>();
+	/**
+	 * Whether the channel is to be closed as soon as the write queue is empty.
+	 * Guarded by <code>writeQueue</code>.
+	 */
+	private boolean closeWhenFlushed;
+	/**
+	 * The number of calls read from the connection whose response has not been
+	 * written yet.
+	 */
+	private int activeCalls;
+	/**
+	 * Whether the connection is to be closed once the active calls complete.
+	 */
+	private boolean closing;
+
+	/**
+	 * Creates a connection for an accepted channel. The header is queued for
+	 * writing, and is sent when the connection is registered.
+	 *
+	 * @param container
+	 *            The skeleton object
+	 * @param serverObject
+	 *            The generic server object
+	 * @param serverClass
+	 *            The class object of server
+	 * @param channel
+	 *            The accepted client channel, in non-blocking mode
+	 * @param calls
+	 *            The admission control of the remote calls
+	 * @param openConnections
+	 *            The open connections of the listener; this connection is added
+	 *            now and removed when closed
+	 */
+	SelectorConnection(Skeleton<T> container, T serverObject, Class<T> serverClass, SocketChannel channel,
+			CallAdmission calls, Set<SelectorConnection<T>> openConnections) {
+		this.container = container;
+		this.serverObject = serverObject;
+		this.serverClass = serverClass;
+		this.channel = channel;
+		this.remoteAddress = remoteAddressOf(channel);
+		this.calls = calls;
+		this.openConnections = openConnections;
+		openConnections.add(this);
+
+		features = container.usesCompression() ? WireProtocol.FEATURE_COMPRESSION : 0;
+		ByteBuffer header = ByteBuffer.allocate(WireProtocol.HEADER_LENGTH);
+		header.putInt(WireProtocol.MAGIC).putInt(WireProtocol.VERSION).putInt(features).putLong(0).flip();
+		writeQueue.add(new ByteBuffer[] { header });
+		readBuffer.flip();
+	}
+
+	/**
+	 * Registers the channel with a selector and starts sending the header.
+	 * Called by the I/O thread owning the selector.
+	 *
+	 * @param selector
+	 *            The selector of the I/O thread.
+	 */
+	void register(Selector selector) {
+		try {
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+			flush();
+		} catch (IOException e) {
+			container.service_error(new RMIException(e));
+			close();
+		}
+	}
+
+	/**
+	 * Reads the bytes available on the channel and dispatches every complete
+	 * request frame. Called by the I/O thread when the channel is readable.
+	 */
+	void read() {
+		try {
+			readBuffer.compact();
+			int count = channel.read(readBuffer);
+			readBuffer.flip();
+			if (count < 0) {
+				stopReading();
+				shutdown(); // The stub closed the connection.
+				return;
+			}
+
+			if (!headerRead) {
+				if (readBuffer.remaining() < WireProtocol.HEADER_LENGTH) {
+					return;
+				}
+				byte[] bytes = new byte[WireProtocol.HEADER_LENGTH];
+				readBuffer.get(bytes);
+				WireProtocol.Header header = WireProtocol.readHeader(new DataInputStream(new ByteArrayInputStream(bytes)));
+				features &= header.features;
+				clientId = header.clientId;
+				compression = (features & WireProtocol.FEATURE_COMPRESSION) != 0;
+				headerRead = true;
+			}
+
+			while (readBuffer.remaining() >= 4) {
+				int length = WireProtocol.frameLength(readBuffer);
+				if (readBuffer.remaining() < length) {
+					if (readBuffer.capacity() < length) {
+						ByteBuffer larger = ByteBuffer.allocate(length);
+						larger.put(readBuffer).flip();
+						readBuffer = larger;
+					}
+					break;
+				}
+
+				Message frame = WireProtocol.readFrame(readBuffer);
+				if (readBuffer.capacity() > INITIAL_BUFFER_SIZE && !readBuffer.hasRemaining()) {
+					// Do not hold on to the buffer of a large frame.
+					readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+					readBuffer.flip();
+				}
+				if (!dispatch(frame)) {
+					stopReading();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			if (!isClosing()) {
+				System.err.println("Failed to get read request from client connection: " + "ServerClass: "
+						+ serverClass.getName() + ", " + "IPAddress: "
+						+ container.getBindAddress().getAddress().toString() + ", " + "Port: "
+						+ container.getBindAddress().getPort());
+				container.service_error(new RMIException(e));
+			}
+			stopReading();
+			shutdown();
+		}
+	}
+
+	/**
+	 * Stops reading requests from the channel.
+	 */
+	private void stopReading() {
+		reading = false;
+		synchronized (writeQueue) {
+			if (key.isValid()) {
+				key.interestOps(interestOps());
+			}
+		}
+	}
+
+	/**
+	 * Returns the operations the selector is to watch for. Must be called with
+	 * the <code>writeQueue</code> lock held.
+	 *
+	 * @return interest set of the channel
+	 */
+	private int interestOps() {
+		return (reading ? SelectionKey.OP_READ : 0) | (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Reads the route of a request frame and hands the call to the admission
+	 * control.
+	 *
+	 * @param frame
+	 *            The message read from the frame.
+	 * @return <code>true</code> if further frames may be read;
+	 *         <code>false</code> if the connection is closing.
+	 */
+	private boolean dispatch(Message frame) {
+		if (!beginRequest()) {
+			return false; // The skeleton is stopping; the stub will see the
+							// connection close and retry elsewhere.
+		}
+
+		// Only the route of the request is read here; the request is decoded
+		// by the thread running the call.
+		long received = System.nanoTime();
+		WireProtocol.Route route;
+		try {
+			route = WireProtocol.readRoute(frame);
+		} catch (IOException e) {
+			// The frame was read whole, so only this call is lost.
+			container.service_error(new RMIException(e));
+			RMIResponse response = new RMIResponse(new RMIException("Failed to decode the request.", e));
+			sendResponse(frame.getCallId(), ConnectionHandler.encodeResponse(container, response));
+			endRequest();
+			return true;
+		}
+
+		try {
+			calls.execute(new MethodInvocationTask<T>(container, serverObject, serverClass, this, frame, received),
+					container.getDispatchTable().laneOf(route));
+		} catch (OverloadedException e) {
+			// The lane of the call and its queue are full: fail this call
+			// rather than stall the I/O thread and every other connection.
+			sendResponse(frame.getCallId(), ConnectionHandler.encodeResponse(container, new RMIResponse(e)));
+			endRequest();
+		} catch (RejectedExecutionException e) {
+			endRequest(); // The worker pool is shutting down.
+			shutdown();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the response to a completed call back to the stub. Called by the
+	 * {@link MethodInvocationTask} that executed the call.
+	 *
+	 * <p>
+	 * As much of the frame as the socket buffer accepts is written at once;
+	 * the rest is queued for the I/O thread.
+	 *
+	 * @param callId
+	 *            the call ID of the request.
+	 * @param message
+	 *            the encoded response.
+	 */
+	@Override
+	public void sendResponse(long callId, Message message) {
+		if (compression) {
+			message = WireProtocol.compress(message);
+		}
+		ByteBuffer[] frame = WireProtocol.frameBuffers(callId, message);
+
+		try {
+			synchronized (writeQueue) {
+				if (writeQueue.isEmpty()) {
+					channel.write(frame);
+				}
+				if (frame[frame.length - 1].hasRemaining()) {
+					writeQueue.add(frame);
+					key.interestOps(interestOps());
+					key.selector().wakeup();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			if (!isClosing()) {
+				System.err.println("Failed to write response to client connection: " + "ServerClass: "
+						+ serverClass.getName() + ", " + "IPAddress: "
+						+ container.getBindAddress().getAddress().toString() + ", " + "Port: "
+						+ container.getBindAddress().getPort());
+				container.service_error(new RMIException(e));
+			}
+			close();
+		}
+	}
+
+	/**
+	 * Writes queued frames for as long as the channel accepts them. Called by
+	 * the I/O thread when the channel is writable.
+	 */
+	void flush() {
+		try {
+			synchronized (writeQueue) {
+				while (!writeQueue.isEmpty()) {
+					ByteBuffer[] frame = writeQueue.peek();
+					channel.write(frame);
+					if (frame[frame.length - 1].hasRemaining()) {
+						key.interestOps(interestOps());
+						return;
+					}
+					writeQueue.poll();
+				}
+
+				if (closeWhenFlushed) {
+					close();
+				} else {
+					key.interestOps(interestOps());
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Marks the start of a remote call on this connection.
+	 *
+	 * @return {@code true} if the call may proceed; {@code false} if the
+	 *         connection is closing and the call must be dropped.
+	 */
+	private synchronized boolean beginRequest() {
+		if (closing) {
+			return false;
+		}
+		activeCalls++;
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InetAddress remoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long clientId() {
+		return clientId;
+	}
+
+	/**
+	 * Returns the address of the host a channel comes from.
+	 *
+	 * @param channel
+	 *            The accepted channel.
+	 * @return the remote address; the loopback address for a channel on a
+	 *         Unix domain socket, or one already closed.
+	 */
+	private static InetAddress remoteAddressOf(SocketChannel channel) {
+		try {
+			SocketAddress remote = channel.getRemoteAddress();
+			if (remote instanceof InetSocketAddress) {
+				return ((InetSocketAddress) remote).getAddress();
+			}
+		} catch (IOException e) {
+			// Closed already; no call will be read from it.
+		}
+		return InetAddress.getLoopbackAddress();
+	}
+
+	/**
+	 * Marks the end of a remote call on this connection, once its response has
+	 * been written or queued. The last call to complete on a closing
+	 * connection closes it.
+	 */
+	@Override
+	public synchronized void endRequest() {
+		activeCalls--;
+		if (closing && activeCalls == 0) {
+			closeWhenFlushed();
+		}
+	}
+
+	/**
+	 * Checks whether the connection is closing.
+	 *
+	 * @return {@code true} if the connection is being shut down.
+	 */
+	private synchronized boolean isClosing() {
+		return closing;
+	}
+
+	/**
+	 * Asks the connection to close. An idle connection, with no calls in
+	 * progress, is closed once its queued responses are written. Otherwise, no
+	 * further requests are accepted and the connection is closed once the
+	 * responses to the calls in progress have been written.
+	 */
+	synchronized void shutdown() {
+		closing = true;
+		if (activeCalls == 0) {
+			closeWhenFlushed();
+		}
+	}
+
+	/**
+	 * Closes the channel once the queued frames are written.
+	 */
+	private void closeWhenFlushed() {
+		synchronized (writeQueue) {
+			if (writeQueue.isEmpty()) {
+				close();
+			} else {
+				closeWhenFlushed = true;
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel immediately, discarding queued frames. The channel
+	 * is also deregistered from its selector.
+	 */
+	void close() {
+		openConnections.remove(this);
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close client connection: " + "ServerClass: " + serverClass.getName() + ", "
+					+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
+					+ container.getBindAddress().getPort());
+
+			container.service_error(new RMIException(e));
+		}
+	}
+}
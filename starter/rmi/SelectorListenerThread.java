@@ -0,0 +1,373 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The listener of the selector transport. Accepts connections on a
+ * non-blocking server channel and spreads them over a fixed number of I/O
+ * threads, each multiplexing its connections with a {@link Selector}. The I/O
+ * threads read and decode requests, and the calls run in the worker executor
+ * chosen by the skeleton: a bounded pool of platform threads, or a virtual
+ * thread per call.
+ *
+ * <p>
+ * The number of platform threads serving the skeleton is therefore fixed,
+ * however many clients connect. With a bounded pool, a call arriving while
+ * every worker is busy and the worker queue is full fails with an
+ * <code>RMIException</code> instead of creating another thread.
+ *
+ * @param <T>
+ *            the generic remote interface this listener thread represents.
+ */
+class SelectorListenerThread<T> extends SkeletonListener {
+
+	/**
+	 * The skeleton object that this listener thread instance represents.
+	 */
+	private final Skeleton<T> container;
+	/**
+	 * The server object on which remote method calls are executed.
+	 */
+	private final T serverObject;
+	/**
+	 * The remote interface class object represented by this listener thread.
+	 */
+	private final Class<T> serverClass;
+	/**
+	 * The bound, non-blocking server channel.
+	 */
+	private final ServerSocketChannel listenerChannel;
+	/**
+	 * The bound, non-blocking domain server channel, or <code>null</code> if
+	 * the skeleton listens on TCP only.
+	 */
+	private final ServerSocketChannel localChannel;
+	/**
+	 * The selector on which the listener waits for connections.
+	 */
+	private final Selector acceptSelector;
+	/**
+	 * The I/O threads among which accepted connections are spread.
+	 */
+	private final ArrayList<IoThread> ioThreads;
+	/**
+	 * The executor running the remote calls.
+	 */
+	private final ExecutorService workers;
+	/**
+	 * The admission control through which calls enter the executor.
+	 */
+	private final CallAdmission calls;
+	/**
+	 * The open client connections.
+	 */
+	private final Set<SelectorConnection<T>> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<SelectorConnection<T>, Boolean>());
+	/**
+	 * The boolean status representing if the listener thread is
+	 * running/listening or not.
+	 */
+	private volatile boolean isActive;
+	/**
+	 * The cause due to which the listener thread terminated. {@code null} if
+	 * termination was requested and not due to an exception.
+	 */
+	private Throwable cause;
+
+	/**
+	 * The constructor for the listener thread.
+	 *
+	 * @param container
+	 *            The skeleton object
+	 * @param serverClass
+	 *            The class object of server
+	 * @param serverObject
+	 *            The generic server object
+	 * @param listenerChannel
+	 *            The bound server channel
+	 * @param localChannel
+	 *            The bound domain server channel, or <code>null</code>
+	 * @param ioThreadCount
+	 *            The number of I/O threads
+	 * @param workers
+	 *            The executor running the remote calls; shut down when the
+	 *            listener terminates
+	 * @param calls
+	 *            The admission control of the calls, running them in the
+	 *            executor
+	 * @throws IOException
+	 *             If the selectors cannot be opened.
+	 */
+	SelectorListenerThread(Skeleton<T> container, Class<T> serverClass, T serverObject,
+			ServerSocketChannel listenerChannel, ServerSocketChannel localChannel, int ioThreadCount,
+			ExecutorService workers, CallAdmission calls) throws IOException {
+		super("rmi-listener-" + serverClass.getSimpleName());
+		this.container = container;
+		this.serverObject = serverObject;
+		this.serverClass = serverClass;
+		this.listenerChannel = listenerChannel;
+		this.localChannel = localChannel;
+		this.workers = workers;
+		this.calls = calls;
+
+		listenerChannel.configureBlocking(false);
+		this.acceptSelector = Selector.open();
+		listenerChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		if (localChannel != null) {
+			localChannel.configureBlocking(false);
+			localChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		}
+
+		this.ioThreads = new ArrayList<>(ioThreadCount);
+		try {
+			for (int i = 0; i < ioThreadCount; i++) {
+				ioThreads.add(new IoThread(getName() + "-io-" + i));
+			}
+		} catch (IOException e) {
+			for (IoThread ioThread : ioThreads) {
+				ioThread.selector.close();
+			}
+			acceptSelector.close();
+			throw e;
+		}
+
+		// Active from construction, so that a terminate() issued before the
+		// thread gets scheduled still stops the accept loop.
+		this.isActive = true;
+		this.cause = null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+		for (IoThread ioThread : ioThreads) {
+			ioThread.start();
+		}
+
+		int next = 0;
+		while (isActive) {
+			try {
+				acceptSelector.select();
+
+				Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					ServerSocketChannel server = (ServerSocketChannel) keys.next().channel();
+					keys.remove();
+
+					SocketChannel client;
+					while (isActive && (client = server.accept()) != null) {
+						try {
+							client.configureBlocking(false);
+							if (server == listenerChannel) {
+								client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+							}
+						} catch (IOException e) {
+							container.service_error(new RMIException(e));
+							client.close();
+							continue;
+						}
+
+						SelectorConnection<T> connection = new SelectorConnection<T>(container, serverObject,
+								serverClass, client, calls, connections);
+						ioThreads.get(next).add(connection);
+						next = (next + 1) % ioThreads.size();
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				break;
+			} catch (IOException e) {
+				if (listenerChannel.isOpen()) {
+					System.err.println("Failed to accept client connection: " + "ServerClass: " + serverClass.getName()
+							+ ", " + "IPAddress: " + container.getBindAddress().getAddress().toString() + ", "
+							+ "Port: " + container.getBindAddress().getPort());
+					isActive = container.listen_error(e);
+					if (!isActive) {
+						cause = (Throwable) e;
+					}
+				}
+			}
+		}
+
+		closeChannel();
+
+		// Stop reading further requests, and let calls in progress complete
+		// as far as the worker pool shutdown below allows.
+		for (SelectorConnection<T> connection : connections) {
+			connection.shutdown();
+		}
+
+		workers.shutdown();
+		if (!workers.isTerminated()) {
+			workers.shutdownNow();
+		}
+
+		for (IoThread ioThread : ioThreads) {
+			ioThread.terminate();
+		}
+		for (IoThread ioThread : ioThreads) {
+			boolean interrupted = false;
+			while (ioThread.isAlive()) {
+				try {
+					ioThread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		container.confirmTermination(cause);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void terminate() {
+		this.isActive = false;
+		closeChannel();
+		acceptSelector.wakeup();
+	}
+
+	/**
+	 * Closes the server channels and the accept selector, so that no more
+	 * connections are accepted.
+	 */
+	private void closeChannel() {
+		try {
+			if (localChannel != null && localChannel.isOpen()) {
+				LocalSockets.close(localChannel);
+			}
+			listenerChannel.close();
+			acceptSelector.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close listener socket. Ignoring the exception: " + "ServerClass: "
+					+ serverClass.getName());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * An I/O thread, reading requests from and flushing responses to the
+	 * connections registered with its selector.
+	 */
+	private class IoThread extends Thread {
+
+		/**
+		 * The selector multiplexing the connections of this thread.
+		 */
+		private final Selector selector;
+		/**
+		 * Connections accepted for this thread and not registered yet.
+		 */
+		private final ConcurrentLinkedQueue<SelectorConnection<T>> pending = new ConcurrentLinkedQueue<>();
+		/**
+		 * Whether the thread is to keep serving its connections.
+		 */
+		private volatile boolean running = true;
+
+		/**
+		 * Creates an I/O thread.
+		 *
+		 * @param name
+		 *            The thread name.
+		 * @throws IOException
+		 *             If the selector cannot be opened.
+		 */
+		IoThread(String name) throws IOException {
+			super(name);
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Hands an accepted connection to the thread. Channels can only be
+		 * registered without blocking by the thread selecting on the selector,
+		 * so the connection is queued and the selector woken up.
+		 *
+		 * @param connection
+		 *            The accepted connection.
+		 */
+		void add(SelectorConnection<T> connection) {
+			pending.add(connection);
+			selector.wakeup();
+		}
+
+		/**
+		 * Stops the thread, which closes the connections still registered with
+		 * it.
+		 */
+		void terminate() {
+			running = false;
+			selector.wakeup();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+
+					SelectorConnection<T> connection;
+					while ((connection = pending.poll()) != null) {
+						connection.register(selector);
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						@SuppressWarnings("unchecked")
+						SelectorConnection<T> selected = (SelectorConnection<T>) key.attachment();
+						if (key.isValid() && key.isWritable()) {
+							selected.flush();
+						}
+						if (key.isValid() && key.isReadable()) {
+							selected.read();
+						}
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				if (running) {
+					container.service_error(new RMIException(e));
+				}
+			} finally {
+				SelectorConnection<T> connection;
+				while ((connection = pending.poll()) != null) {
+					connection.close();
+				}
+				for (SelectionKey key : selector.keys()) {
+					@SuppressWarnings("unchecked")
+					SelectorConnection<T> registered = (SelectorConnection<T>) key.attachment();
+					registered.close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Nothing more can be done with it.
+				}
+			}
+		}
+	}
+}
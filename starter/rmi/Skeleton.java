@@ -5,8 +5,16 @@
 package rmi;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import rmi.io.Message;
 
 /**
  * RMI skeleton
@@ -29,13 +37,197 @@ import java.net.ServerSocket;
  * The skeleton's response to these exceptions can be customized by deriving a
  * class from <code>Skeleton</code> and overriding <code>listen_error</code> or
  * <code>service_error</code>.
+ *
+ * <p>
+ * Connections are served by one of two transports, chosen with
+ * {@link #setTransport(Transport)} before the skeleton is started. The default
+ * is taken from the <code>rmi.transport</code> system property, and is
+ * {@link Transport#BLOCKING} when the property is not set.
+ *
+ * <p>
+ * With either transport, calls may instead run on virtual threads, chosen
+ * with {@link #setVirtualThreads(boolean)} or the
+ * <code>rmi.virtualThreads</code> system property. A call blocked in the
+ * server object then holds no platform thread, so that a server such as the
+ * naming server can have very many calls blocked in <code>lock</code> at
+ * once. Virtual threads require Java 21 or later.
+ *
+ * <p>
+ * With either transport, the skeleton runs a bounded number of calls at once,
+ * set with {@link #setMaxCalls(int)}, and lets a bounded number more wait
+ * for their turn, set with {@link #setWorkerQueueLength(int)}. A call arriving
+ * beyond both is rejected at once with an {@link OverloadedException}. Methods
+ * marked with {@link #prioritize(String)} are admitted in a separate lane,
+ * with its own limit, so that calls releasing a resource never wait behind
+ * calls blocked acquiring it. Methods marked with {@link #isolate(String)},
+ * those blocked acquiring it, are admitted in a third lane, so that however
+ * many of them are blocked, the holder of the resource can still make its
+ * other calls before it releases it. On virtual threads the isolated lane has
+ * no limit.
+ *
+ * <p>
+ * Stubs in the same JVM as a running skeleton call it directly, in the
+ * calling thread, without going through a socket. By default arguments and
+ * results are still copied, through the same encoding as remote calls, so
+ * that the server object sees the calls exactly as it would see remote ones.
+ * {@link #setInProcess(InProcess)} or the <code>rmi.inProcess</code> system
+ * property can pass them by reference instead, or keep every call on the
+ * network. Calls made in the calling thread are not subject to the limits
+ * above.
  */
 public class Skeleton<T> {
 
+	/**
+	 * The ways in which a skeleton serves its connections.
+	 */
+	public enum Transport {
+		/**
+		 * A thread blocked in <code>accept</code>, one thread reading each
+		 * connection, and one thread for each call in progress. The number of
+		 * threads grows with the number of clients and calls.
+		 */
+		BLOCKING,
+		/**
+		 * A few I/O threads multiplexing all connections with selectors, and a
+		 * bounded pool of worker threads executing the calls. The number of
+		 * threads is fixed. Calls blocked in the server object occupy a worker
+		 * each, so servers whose methods block until another call is made, as
+		 * <code>Service.lock</code> does, need enough workers for all the
+		 * calls that may block at once.
+		 */
+		SELECTOR
+	}
+
+	/**
+	 * The ways in which stubs in the same JVM call a running skeleton.
+	 */
+	public enum InProcess {
+		/**
+		 * Through a connection, as stubs in other processes do.
+		 */
+		OFF,
+		/**
+		 * Directly, in the calling thread. Arguments and results are encoded
+		 * and decoded as for a remote call, so that the server object and the
+		 * caller never share a mutable object.
+		 */
+		COPY,
+		/**
+		 * Directly, in the calling thread, passing arguments and results by
+		 * reference. This is the cheapest, but the server object and the
+		 * caller then share the objects they exchange, which remote calls
+		 * never do. Batches are still copied.
+		 */
+		REFERENCE
+	}
+
 	/**
 	 * Max waiting connection queue length for server socket
 	 */
 	public static final int maxQueueLength = 50;
+	/**
+	 * The system property naming the default transport:
+	 * <code>blocking</code> or <code>selector</code>.
+	 */
+	public static final String TRANSPORT_PROPERTY = "rmi.transport";
+	/**
+	 * The system property giving the default number of worker threads of the
+	 * selector transport.
+	 */
+	public static final String WORKER_THREADS_PROPERTY = "rmi.selector.workers";
+	/**
+	 * The system property giving the default number of calls a skeleton runs
+	 * at once.
+	 */
+	public static final String MAX_CALLS_PROPERTY = "rmi.maxCalls";
+	/**
+	 * The system property enabling virtual threads by default:
+	 * <code>true</code> or <code>false</code>.
+	 */
+	public static final String VIRTUAL_THREADS_PROPERTY = "rmi.virtualThreads";
+	/**
+	 * The system property offering compression on connections by default:
+	 * <code>true</code> or <code>false</code>. Stubs read it too, when they
+	 * open a connection; a connection is compressed only if both of its ends
+	 * offer it.
+	 */
+	public static final String COMPRESSION_PROPERTY = "rmi.compression";
+	/**
+	 * The system property disabling Unix domain sockets when
+	 * <code>false</code>. Stubs read it too: with it set to <code>false</code>,
+	 * they reach local skeletons over TCP.
+	 */
+	public static final String LOCAL_SOCKETS_PROPERTY = "rmi.localSockets";
+	/**
+	 * The system property naming the default way in which stubs in the same
+	 * JVM call a skeleton: <code>off</code>, <code>copy</code> or
+	 * <code>reference</code>.
+	 */
+	public static final String IN_PROCESS_PROPERTY = "rmi.inProcess";
+	/**
+	 * Default number of I/O threads of the selector transport.
+	 */
+	public static final int DEFAULT_IO_THREADS = 2;
+	/**
+	 * Default number of worker threads of the selector transport.
+	 */
+	public static final int DEFAULT_WORKER_THREADS = 256;
+	/**
+	 * Default number of calls that may wait for a worker thread of the selector
+	 * transport.
+	 */
+	public static final int DEFAULT_WORKER_QUEUE_LENGTH = 4096;
+	/**
+	 * Default number of calls a skeleton runs at once in the normal lane. With
+	 * the selector transport on platform threads, the number of worker
+	 * threads bounds it further.
+	 */
+	public static final int DEFAULT_MAX_CALLS = 1024;
+	/**
+	 * Default number of calls to priority methods a skeleton runs at once.
+	 */
+	public static final int DEFAULT_PRIORITY_CALLS = 16;
+	/**
+	 * Default number of calls to isolated methods a skeleton runs at once on
+	 * platform threads. With the selector transport, the number of worker
+	 * threads bounds it further.
+	 */
+	public static final int DEFAULT_ISOLATED_CALLS = 1024;
+
+	/**
+	 * The connection of the call each thread running a remote call is serving.
+	 */
+	private static final ThreadLocal<ResponseChannel> callers = new ThreadLocal<>();
+
+	/**
+	 * The caller of in-process calls made by reference, which have no
+	 * connection: a client in this JVM, on the loopback address, sending no
+	 * client ID.
+	 */
+	private static final ResponseChannel IN_PROCESS_CALLER = new ResponseChannel() {
+		@Override
+		public void sendResponse(long callId, Message response) {
+		}
+
+		@Override
+		public void endRequest() {
+		}
+
+		@Override
+		public InetAddress remoteAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public long clientId() {
+			return 0;
+		}
+	};
+
+	/**
+	 * The running skeletons that accept in-process calls, by port.
+	 */
+	private static final ConcurrentHashMap<Integer, Skeleton<?>> running = new ConcurrentHashMap<>();
 
 	/**
 	 * The server object on which the skeleton executes the remote method calls
@@ -46,16 +238,90 @@ public class Skeleton<T> {
 	 * The remote interface class object represented by the skeleton.
 	 */
 	private Class<T> serverClass;
+	/**
+	 * The table through which remote calls are dispatched to the server
+	 * object, built once at construction.
+	 */
+	private DispatchTable dispatchTable;
 	/**
 	 * The socket address on which the listener socket binds to accept
 	 * connections.
 	 */
 	private InetSocketAddress bindAddress;
+	/**
+	 * The transport used when the skeleton is next started.
+	 */
+	private Transport transport = defaultTransport();
+	/**
+	 * Number of I/O threads of the selector transport.
+	 */
+	private int ioThreads = DEFAULT_IO_THREADS;
+	/**
+	 * Number of worker threads of the selector transport.
+	 */
+	private int workerThreads = Integer.getInteger(WORKER_THREADS_PROPERTY, DEFAULT_WORKER_THREADS);
+	/**
+	 * Number of calls that may wait for their turn in each lane.
+	 */
+	private int workerQueueLength = DEFAULT_WORKER_QUEUE_LENGTH;
+	/**
+	 * Number of calls run at once in the normal lane.
+	 */
+	private int maxCalls = Integer.getInteger(MAX_CALLS_PROPERTY, DEFAULT_MAX_CALLS);
+	/**
+	 * Number of calls to priority methods run at once.
+	 */
+	private int priorityCalls = DEFAULT_PRIORITY_CALLS;
+	/**
+	 * Number of calls to isolated methods run at once on platform threads.
+	 */
+	private int isolatedCalls = DEFAULT_ISOLATED_CALLS;
+	/**
+	 * Whether calls run on virtual threads when the skeleton is next started.
+	 */
+	private boolean virtualThreads = defaultVirtualThreads();
+	/**
+	 * Whether compression is offered to stubs connecting.
+	 */
+	private boolean compression = Boolean.getBoolean(COMPRESSION_PROPERTY);
+	/**
+	 * Whether the skeleton also listens on a Unix domain socket when next
+	 * started.
+	 */
+	private boolean localSockets = LocalSockets.allowed();
+	/**
+	 * The way in which stubs in the same JVM call the skeleton when it is next
+	 * started.
+	 */
+	private InProcess inProcess = defaultInProcess();
+	/**
+	 * The address the skeleton is listening on, if it accepts in-process
+	 * calls; <code>null</code> otherwise.
+	 */
+	private volatile InetSocketAddress runningAddress;
+	/**
+	 * The way in which in-process calls are made while the skeleton runs.
+	 */
+	private volatile InProcess runningInProcess;
+	/**
+	 * The admission control of the calls while the skeleton runs;
+	 * <code>null</code> otherwise.
+	 */
+	private volatile CallAdmission admission;
+	/**
+	 * The streams returned by remote methods and not yet read to their end.
+	 */
+	private final ExportedStreams streams = new ExportedStreams();
+	/**
+	 * The object answering remote calls on {@link Stats} and
+	 * {@link StreamService}.
+	 */
+	private final BuiltIns builtIns = new BuiltIns();
 	/**
 	 * The listener thread that implements the socket listener that listens on
 	 * the given bind address and spawns handler threads.
 	 */
-	private ListenerThread<T> listener;
+	private SkeletonListener listener;
 	/**
 	 * The listener socket on which skeleton accepts connections for remote
 	 * calls.
@@ -105,6 +371,7 @@ public class Skeleton<T> {
 
 		this.serverObject = server;
 		this.serverClass = c;
+		this.dispatchTable = new DispatchTable(c);
 		this.bindAddress = null;
 		this.listenerSocket = null;
 		this.listener = null;
@@ -151,6 +418,7 @@ public class Skeleton<T> {
 
 		this.serverObject = server;
 		this.serverClass = c;
+		this.dispatchTable = new DispatchTable(c);
 		this.bindAddress = address;
 		this.listenerSocket = null;
 		this.listener = null;
@@ -231,17 +499,49 @@ public class Skeleton<T> {
 	public synchronized void start() throws RMIException {
 
 		if (!isActive) {
+			ServerSocketChannel localChannel = null;
 			try {
-				if (bindAddress != null) {
-					listenerSocket = new ServerSocket(bindAddress.getPort(), maxQueueLength, bindAddress.getAddress());
+				if (transport == Transport.SELECTOR) {
+					ServerSocketChannel channel = ServerSocketChannel.open();
+					try {
+						channel.bind(bindAddress, maxQueueLength);
+						listenerSocket = channel.socket();
+						localChannel = bindLocal(listenerSocket.getInetAddress(), listenerSocket.getLocalPort());
+						ExecutorService workers = newWorkers();
+						listener = new SelectorListenerThread<T>(this, serverClass, serverObject, channel,
+								localChannel, ioThreads, workers,
+								virtualThreads ? newAdmission(workers, maxCalls, Integer.MAX_VALUE)
+										: newAdmission(workers, Math.min(maxCalls, workerThreads),
+												Math.min(isolatedCalls, workerThreads)));
+					} catch (IOException e) {
+						channel.close();
+						throw e;
+					}
 				} else {
-					listenerSocket = new ServerSocket(0, maxQueueLength);
+					if (bindAddress != null) {
+						listenerSocket = new ServerSocket(bindAddress.getPort(), maxQueueLength,
+								bindAddress.getAddress());
+					} else {
+						listenerSocket = new ServerSocket(0, maxQueueLength);
+					}
+					localChannel = bindLocal(listenerSocket.getInetAddress(), listenerSocket.getLocalPort());
+					ExecutorService threadPool = virtualThreads
+							? ThreadPools.newVirtualThreadExecutor(workerPrefix())
+							: Executors.newCachedThreadPool();
+					listener = new ListenerThread<T>(this, serverClass, serverObject, listenerSocket, localChannel,
+							threadPool, newAdmission(threadPool, maxCalls,
+									virtualThreads ? Integer.MAX_VALUE : isolatedCalls));
+				}
+				if (bindAddress == null) {
 					bindAddress = new InetSocketAddress(listenerSocket.getInetAddress(), listenerSocket.getLocalPort());
 				}
-				listener = new ListenerThread<T>(this, serverClass, serverObject, listenerSocket);
 				listener.start();
 				isActive = true;
+				register();
 			} catch (IOException e) {
+				if (localChannel != null) {
+					LocalSockets.close(localChannel);
+				}
 				System.err.println("Failed to bind Skeleton listener: " + "ServerClass: " + serverClass.getName() + ", "
 						+ "IPAddress: " + bindAddress.getAddress().toString() + ", " + "Port: "
 						+ bindAddress.getPort());
@@ -263,10 +563,585 @@ public class Skeleton<T> {
 	 * method return. The server stops at some later time; the method
 	 * <code>stopped</code> is called at that point. The server may then be
 	 * restarted.
+	 * 
+	 * <p>
+	 * Idle persistent connections are closed. When called from any thread
+	 * other than the listening thread, this method returns only once the
+	 * listening socket has been released.
+	 */
+	public void stop() {
+		SkeletonListener stopping;
+		synchronized (this) {
+			if (!isActive) {
+				return;
+			}
+			stopping = listener;
+			unregister();
+			stopping.terminate();
+		}
+
+		// The listening socket is only released once the accepting thread
+		// has left accept(). Wait for it so that the address can be bound
+		// again as soon as stop returns.
+		if (Thread.currentThread() != stopping) {
+			boolean interrupted = false;
+			while (stopping.isAlive()) {
+				try {
+					stopping.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Sets the transport used when the skeleton is next started.
+	 *
+	 * @param transport
+	 *            The transport.
+	 * @throws NullPointerException
+	 *             If <code>transport</code> is <code>null</code>.
+	 */
+	public synchronized void setTransport(Transport transport) {
+		if (transport == null) {
+			throw new NullPointerException("Transport cannot be null.");
+		}
+		this.transport = transport;
+	}
+
+	/**
+	 * Returns the transport used when the skeleton is next started.
+	 *
+	 * @return the transport
+	 */
+	public synchronized Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets the number of I/O threads of the selector transport, used when the
+	 * skeleton is next started.
+	 *
+	 * @param ioThreads
+	 *            The new number of threads.
+	 * @throws IllegalArgumentException
+	 *             If the number is not positive.
+	 */
+	public synchronized void setIoThreads(int ioThreads) {
+		if (ioThreads <= 0) {
+			throw new IllegalArgumentException("I/O threads must be positive.");
+		}
+		this.ioThreads = ioThreads;
+	}
+
+	/**
+	 * Sets the number of worker threads of the selector transport, used when
+	 * the skeleton is next started.
+	 *
+	 * @param workerThreads
+	 *            The new number of threads.
+	 * @throws IllegalArgumentException
+	 *             If the number is not positive.
+	 */
+	public synchronized void setWorkerThreads(int workerThreads) {
+		if (workerThreads <= 0) {
+			throw new IllegalArgumentException("Worker threads must be positive.");
+		}
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * Sets the number of calls that may wait for their turn to run, in each
+	 * lane, used when the skeleton is next started. Calls arriving when the
+	 * queue of their lane is full fail with an {@link OverloadedException}.
+	 *
+	 * @param workerQueueLength
+	 *            The new queue length.
+	 * @throws IllegalArgumentException
+	 *             If the length is not positive.
+	 */
+	public synchronized void setWorkerQueueLength(int workerQueueLength) {
+		if (workerQueueLength <= 0) {
+			throw new IllegalArgumentException("Worker queue length must be positive.");
+		}
+		this.workerQueueLength = workerQueueLength;
+	}
+
+	/**
+	 * Sets the number of calls run at once in the normal lane, used when the
+	 * skeleton is next started. Further calls wait in the queue set by
+	 * {@link #setWorkerQueueLength(int)}. With the selector transport on
+	 * platform threads, the number of worker threads bounds it further.
+	 *
+	 * @param maxCalls
+	 *            The new number of calls.
+	 * @throws IllegalArgumentException
+	 *             If the number is not positive.
+	 */
+	public synchronized void setMaxCalls(int maxCalls) {
+		if (maxCalls <= 0) {
+			throw new IllegalArgumentException("Maximum calls must be positive.");
+		}
+		this.maxCalls = maxCalls;
+	}
+
+	/**
+	 * Sets the number of calls to priority methods run at once, used when the
+	 * skeleton is next started.
+	 *
+	 * @param priorityCalls
+	 *            The new number of calls.
+	 * @throws IllegalArgumentException
+	 *             If the number is not positive.
+	 */
+	public synchronized void setPriorityCalls(int priorityCalls) {
+		if (priorityCalls <= 0) {
+			throw new IllegalArgumentException("Priority calls must be positive.");
+		}
+		this.priorityCalls = priorityCalls;
+	}
+
+	/**
+	 * Sets the number of calls to isolated methods run at once on platform
+	 * threads, used when the skeleton is next started. Further calls wait in
+	 * the queue set by {@link #setWorkerQueueLength(int)}. With the selector
+	 * transport, the number of worker threads bounds it further. On virtual
+	 * threads, isolated calls are not limited.
+	 *
+	 * @param isolatedCalls
+	 *            The new number of calls.
+	 * @throws IllegalArgumentException
+	 *             If the number is not positive.
+	 */
+	public synchronized void setIsolatedCalls(int isolatedCalls) {
+		if (isolatedCalls <= 0) {
+			throw new IllegalArgumentException("Isolated calls must be positive.");
+		}
+		this.isolatedCalls = isolatedCalls;
+	}
+
+	/**
+	 * Returns the address of the host that made the remote call the current
+	 * thread is running. Server objects may use it, for instance, to prefer
+	 * resources on the caller's host.
+	 *
+	 * @return the address of the caller; the loopback address for calls made
+	 *         in this JVM or over a Unix domain socket; <code>null</code> if
+	 *         the thread is not running a remote call.
+	 */
+	public static InetAddress getCallerAddress() {
+		ResponseChannel caller = callers.get();
+		return (caller == null) ? null : caller.remoteAddress();
+	}
+
+	/**
+	 * Returns the client ID of the process that made the remote call the
+	 * current thread is running. Unlike the address of the caller, it tells
+	 * apart clients on the same host, so server objects may use it to keep
+	 * track of their clients.
+	 *
+	 * @return the ID the stubs of the calling process sent; zero for calls
+	 *         made in this JVM, or if the thread is not running a remote call.
+	 */
+	public static long getCallerId() {
+		ResponseChannel caller = callers.get();
+		return (caller == null) ? 0 : caller.clientId();
+	}
+
+	/**
+	 * Checks whether the deadline of the remote call the current thread is
+	 * running has passed. The caller has then given up on the response, so a
+	 * server object that has acquired something on its behalf while the call
+	 * waited, such as a lock, may give it up again rather than return it.
+	 *
+	 * @return <code>true</code> if the call was made through a stub with a
+	 *         timeout and its deadline has passed; <code>false</code>
+	 *         otherwise, or if the thread is not running a remote call.
+	 */
+	public static boolean isCallExpired() {
+		return DeadlineTimer.isExpired();
+	}
+
+	/**
+	 * Sets the connection whose caller {@link #getCallerAddress()} and
+	 * {@link #getCallerId()} describe in the current thread.
+	 *
+	 * @param caller
+	 *            The connection the call arrived on, or <code>null</code> once
+	 *            the call has completed and no call encloses it.
+	 * @return the connection set before, to be restored when the call
+	 *         completes.
+	 */
+	static ResponseChannel enterCall(ResponseChannel caller) {
+		ResponseChannel previous = callers.get();
+		if (caller == null) {
+			callers.remove();
+		} else {
+			callers.set(caller);
+		}
+		return previous;
+	}
+
+	/**
+	 * Returns the number of calls received over the network that are running
+	 * or waiting for their turn, in all lanes. Servers report it as a measure
+	 * of their load.
+	 *
+	 * @return the number of calls in progress; <code>0</code> if the skeleton
+	 *         is not running.
+	 */
+	public int getCallsInProgress() {
+		CallAdmission calls = admission;
+		return (calls == null) ? 0 : calls.inProgress();
+	}
+
+	/**
+	 * Admits the calls to the methods of the remote interface with the given
+	 * name in the priority lane, from the next start of the skeleton on. Such
+	 * calls never wait behind calls to other methods, however many of those
+	 * are blocked in the server object. Calls to the methods every skeleton
+	 * answers itself are always admitted in the priority lane.
+	 *
+	 * @param methodName
+	 *            The name of the methods, such as <code>unlock</code>.
+	 * @throws IllegalArgumentException
+	 *             If the remote interface has no method with that name.
+	 */
+	public synchronized void prioritize(String methodName) {
+		dispatchTable.prioritize(methodName);
+	}
+
+	/**
+	 * Admits the calls to the methods of the remote interface with the given
+	 * name in the isolated lane, from the next start of the skeleton on. The
+	 * lane is meant for methods that block until another call is made, such
+	 * as <code>lock</code>: however many calls to them are blocked, they take
+	 * no slot from the calls to other methods.
+	 *
+	 * @param methodName
+	 *            The name of the methods, such as <code>lock</code>.
+	 * @throws IllegalArgumentException
+	 *             If the remote interface has no method with that name.
+	 */
+	public synchronized void isolate(String methodName) {
+		dispatchTable.isolate(methodName);
+	}
+
+	/**
+	 * Sets whether calls run on virtual threads when the skeleton is next
+	 * started. With the blocking transport, connections are then also read on
+	 * virtual threads. With the selector transport, each call gets a virtual
+	 * thread instead of waiting for a thread of the bounded worker pool, and
+	 * the worker thread limit does not apply.
+	 *
+	 * @param virtualThreads
+	 *            <code>true</code> to use virtual threads.
+	 * @throws UnsupportedOperationException
+	 *             If virtual threads are requested and the runtime does not
+	 *             support them.
+	 */
+	public synchronized void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !ThreadPools.virtualThreadsSupported()) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+		}
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Returns whether calls run on virtual threads when the skeleton is next
+	 * started.
+	 *
+	 * @return <code>true</code> if virtual threads are used.
+	 */
+	public synchronized boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Sets whether compression is offered to stubs, on the connections
+	 * accepted from now on. Stubs offer it when the
+	 * <code>rmi.compression</code> system property is set. On a connection
+	 * where both ends offer it, large requests and responses are deflated;
+	 * this trades processor time for bandwidth, and pays off on links slower
+	 * than the compressor.
+	 *
+	 * @param compression
+	 *            <code>true</code> to offer compression.
+	 */
+	public synchronized void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Returns whether compression is offered to stubs.
+	 *
+	 * @return <code>true</code> if compression is offered.
+	 */
+	public synchronized boolean usesCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets whether the skeleton also listens on a Unix domain socket, from the
+	 * next time it is started. Stubs on the same host then reach it through
+	 * the domain socket rather than TCP, which saves the TCP stack on every
+	 * call. The default is <code>true</code>, unless the
+	 * <code>rmi.localSockets</code> system property is <code>false</code>; it
+	 * has no effect where domain sockets are not supported.
+	 *
+	 * @param localSockets
+	 *            <code>true</code> to listen on a domain socket.
+	 */
+	public synchronized void setLocalSockets(boolean localSockets) {
+		this.localSockets = localSockets;
+	}
+
+	/**
+	 * Returns whether the skeleton also listens on a Unix domain socket when
+	 * next started.
+	 *
+	 * @return <code>true</code> if a domain socket is used.
+	 */
+	public synchronized boolean usesLocalSockets() {
+		return localSockets && LocalSockets.available();
+	}
+
+	/**
+	 * Binds the domain socket of the skeleton, if it uses one. Failing to bind
+	 * it is not fatal: stubs then connect over TCP.
+	 *
+	 * @param address
+	 *            The TCP address the skeleton is bound to.
+	 * @param port
+	 *            The TCP port the skeleton is bound to.
+	 * @return the bound server channel, in blocking mode, or
+	 *         <code>null</code>
+	 */
+	private ServerSocketChannel bindLocal(InetAddress address, int port) {
+		if (!usesLocalSockets()) {
+			return null;
+		}
+
+		try {
+			return LocalSockets.bind(address, port);
+		} catch (IOException e) {
+			System.err.println("Failed to bind Skeleton domain socket, listening on TCP only: " + "ServerClass: "
+					+ serverClass.getName() + ", " + "Port: " + port);
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the way in which stubs in the same JVM call the skeleton, from the
+	 * next time it is started. The default is {@link InProcess#COPY}, unless
+	 * set by the <code>rmi.inProcess</code> system property.
+	 *
+	 * <p>
+	 * Calls made in the calling thread, whether copied or by reference,
+	 * bypass more than the socket:
+	 * <ul>
+	 * <li>They are not admitted through the lanes of the skeleton, so the
+	 * limits on concurrent and queued calls do not apply to them, and they
+	 * are never rejected with an {@link OverloadedException}.</li>
+	 * <li>They carry no client ID, so {@link #getCallerId()} returns zero in
+	 * the server object. A server that leases resources to its clients by
+	 * client ID, as the naming server does its locks, does not lease them to
+	 * such callers.</li>
+	 * </ul>
+	 * {@link InProcess#OFF} keeps every call on the network, subject to both.
+	 *
+	 * @param inProcess
+	 *            The way in-process calls are made.
+	 * @throws NullPointerException
+	 *             If <code>inProcess</code> is <code>null</code>.
+	 */
+	public synchronized void setInProcess(InProcess inProcess) {
+		if (inProcess == null) {
+			throw new NullPointerException("In-process mode cannot be null.");
+		}
+		this.inProcess = inProcess;
+	}
+
+	/**
+	 * Returns the way in which stubs in the same JVM call the skeleton when it
+	 * is next started.
+	 *
+	 * @return the in-process mode
+	 */
+	public synchronized InProcess getInProcess() {
+		return inProcess;
+	}
+
+	/**
+	 * Returns the running skeleton listening on an address, if it is in this
+	 * JVM and accepts in-process calls.
+	 *
+	 * @param address
+	 *            The address a stub is to call.
+	 * @return the skeleton, or <code>null</code> if the call is to go through
+	 *         a connection
+	 */
+	static Skeleton<?> running(InetSocketAddress address) {
+		if (running.isEmpty() || address.isUnresolved()) {
+			return null;
+		}
+
+		Skeleton<?> skeleton = running.get(address.getPort());
+		if (skeleton == null) {
+			return null;
+		}
+		InetSocketAddress listening = skeleton.runningAddress;
+		if (listening == null) {
+			return null;
+		}
+
+		InetAddress bound = listening.getAddress();
+		if (bound.isAnyLocalAddress() ? LocalSockets.isLocal(address.getAddress())
+				: bound.equals(address.getAddress())) {
+			return skeleton;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether in-process calls pass arguments and results by
+	 * reference.
+	 *
+	 * @return <code>true</code> for {@link InProcess#REFERENCE}
+	 */
+	boolean passesReferences() {
+		return runningInProcess == InProcess.REFERENCE;
+	}
+
+	/**
+	 * Serves an in-process call, or batch of calls, in the calling thread.
+	 * The request and the response are copied, so that no array is shared
+	 * between the caller and the server object.
+	 *
+	 * @param message
+	 *            The encoded request.
+	 * @return the encoded response
+	 */
+	Message serveLocal(Message message) {
+		final Message[] response = new Message[1];
+		new MethodInvocationTask<T>(this, serverObject, serverClass, new ResponseChannel() {
+			@Override
+			public void sendResponse(long callId, Message encoded) {
+				response[0] = encoded;
+			}
+
+			@Override
+			public void endRequest() {
+			}
+
+			@Override
+			public InetAddress remoteAddress() {
+				return InetAddress.getLoopbackAddress();
+			}
+
+			@Override
+			public long clientId() {
+				return 0;
+			}
+		}, message.copy(), System.nanoTime()).run();
+
+		return response[0].copy();
+	}
+
+	/**
+	 * Makes an in-process call in the calling thread, passing arguments and
+	 * results by reference. The call is counted as a remote call would be,
+	 * with no bytes in or out.
+	 *
+	 * @param method
+	 *            The remote method called on the stub.
+	 * @param args
+	 *            The arguments, or <code>null</code> if the method takes none.
+	 * @param timeout
+	 *            The time allowed to the call, in milliseconds, or
+	 *            <code>0</code> for no deadline.
+	 * @param deadline
+	 *            The deadline, in the time base of
+	 *            <code>System.nanoTime</code>, if the timeout is not zero. The
+	 *            calling thread is interrupted if the call runs past it.
+	 * @return the return value of the method
+	 * @throws Throwable
+	 *             The exception thrown by the method, an
+	 *             <code>RMIException</code> if the skeleton does not implement
+	 *             the method, or a <code>DeadlineExceededException</code> if
+	 *             the call ran past its deadline.
+	 */
+	Object invokeLocal(Method method, Object[] args, int timeout, long deadline) throws Throwable {
+		RemoteInterface iface = RemoteInterface.of(method.getDeclaringClass());
+		DispatchTable.Entry entry = dispatchTable.lookup(iface.getFingerprint(), iface.ordinalOf(method));
+		if (entry == null) {
+			throw new RMIException(new NoSuchMethodException("No such remote method: " + method.getName()));
+		}
+
+		Object target = entry.builtIn ? builtIns : serverObject;
+		Object[] arguments = (args == null) ? new Object[0] : args;
+		Object returnValue = null;
+		Throwable thrown = null;
+		DeadlineTimer timer = (timeout != 0) ? DeadlineTimer.start(deadline) : null;
+		ResponseChannel caller = enterCall(IN_PROCESS_CALLER);
+		long start = System.nanoTime();
+		try {
+			returnValue = entry.invoke(target, arguments);
+		} catch (Exception e) {
+			thrown = e;
+		} catch (Throwable t) {
+			System.err.println("Remote method failed with an error: " + "ServerClass: " + serverClass.getName() + ", "
+					+ "Method: " + method.getName());
+			RMIException exception = new RMIException(t);
+			service_error(exception);
+			thrown = exception;
+		} finally {
+			enterCall(caller);
+		}
+		long latency = System.nanoTime() - start;
+		boolean expired = timer != null && timer.finish();
+		entry.counters.record(latency, thrown != null, 0, 0);
+
+		// As with a remote call, the caller sees the deadline pass whatever
+		// the server object did.
+		if (expired) {
+			throw new DeadlineExceededException("The call did not complete before the deadline.");
+		}
+		if (thrown != null) {
+			throw thrown;
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Accepts in-process calls, if enabled, once the skeleton has started.
+	 * Another skeleton of this JVM listening on the same port, on another
+	 * address, keeps its place; calls to this one then use connections.
+	 */
+	private void register() {
+		if (inProcess == InProcess.OFF) {
+			return;
+		}
+
+		runningInProcess = inProcess;
+		runningAddress = new InetSocketAddress(listenerSocket.getInetAddress(), listenerSocket.getLocalPort());
+		if (running.putIfAbsent(runningAddress.getPort(), this) != null) {
+			runningAddress = null;
+		}
+	}
+
+	/**
+	 * Stops accepting in-process calls. Calls in progress complete.
 	 */
-	public synchronized void stop() {
-		if (isActive) {
-			listener.terminate();
+	private void unregister() {
+		InetSocketAddress address = runningAddress;
+		if (address != null) {
+			runningAddress = null;
+			running.remove(address.getPort(), this);
 		}
 	}
 
@@ -280,6 +1155,143 @@ public class Skeleton<T> {
 		return bindAddress;
 	}
 
+	/**
+	 * Returns the counters of every remote method of the skeleton. The same
+	 * counters are available remotely, through a {@link Stats} stub created
+	 * from the address of the skeleton.
+	 *
+	 * @return a snapshot of the counters of each method, sorted by method name
+	 */
+	public MethodStats[] getMethodStats() {
+		return dispatchTable.snapshot();
+	}
+
+	/**
+	 * Returns the object answering remote calls on {@link Stats} and
+	 * {@link StreamService}.
+	 *
+	 * @return built-in server object
+	 */
+	Object getBuiltIns() {
+		return builtIns;
+	}
+
+	/**
+	 * Returns the streams returned by remote methods and not yet read to
+	 * their end.
+	 *
+	 * @return exported streams
+	 */
+	ExportedStreams getStreams() {
+		return streams;
+	}
+
+	/**
+	 * Returns the table through which remote calls are dispatched.
+	 * 
+	 * @return dispatch table of the remote interface and its ancestors.
+	 */
+	DispatchTable getDispatchTable() {
+		return dispatchTable;
+	}
+
+	/**
+	 * Creates the executor running the calls of the selector transport.
+	 *
+	 * @return a virtual thread executor, or a bounded pool of platform threads
+	 */
+	private ExecutorService newWorkers() {
+		if (virtualThreads) {
+			return ThreadPools.newVirtualThreadExecutor(workerPrefix());
+		}
+		// The lanes bound the calls handed to the pool, so that it never
+		// queues more than the calls about to take a thread.
+		int threads = Math.min(maxCalls, workerThreads) + priorityCalls + Math.min(isolatedCalls, workerThreads);
+		return ThreadPools.newBoundedPool(workerPrefix(), threads, threads);
+	}
+
+	/**
+	 * Creates the admission control of the calls of the skeleton, about to
+	 * start.
+	 *
+	 * @param executor
+	 *            The executor running the calls.
+	 * @param limit
+	 *            The number of calls run at once in the normal lane.
+	 * @param isolatedLimit
+	 *            The number of calls run at once in the isolated lane.
+	 * @return the admission control
+	 */
+	private CallAdmission newAdmission(ExecutorService executor, int limit, int isolatedLimit) {
+		admission = new CallAdmission(executor, limit, priorityCalls, isolatedLimit, workerQueueLength);
+		return admission;
+	}
+
+	/**
+	 * Returns the prefix of the names of the threads running calls.
+	 *
+	 * @return thread name prefix
+	 */
+	private String workerPrefix() {
+		return "rmi-" + serverClass.getSimpleName() + "-worker-";
+	}
+
+	/**
+	 * Returns whether the <code>rmi.virtualThreads</code> system property
+	 * enables virtual threads. The property is reported and ignored if the
+	 * runtime does not support them.
+	 *
+	 * @return the default virtual thread setting
+	 */
+	private static boolean defaultVirtualThreads() {
+		if (!Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+			return false;
+		}
+		if (!ThreadPools.virtualThreadsSupported()) {
+			System.err.println("Virtual threads are not supported, ignoring: " + VIRTUAL_THREADS_PROPERTY + "=true");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the in-process mode named by the <code>rmi.inProcess</code>
+	 * system property. An unknown name is reported and ignored.
+	 *
+	 * @return the default in-process mode
+	 */
+	private static InProcess defaultInProcess() {
+		String name = System.getProperty(IN_PROCESS_PROPERTY);
+		if (name == null) {
+			return InProcess.COPY;
+		}
+		try {
+			return InProcess.valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown RMI in-process mode, using copy: " + IN_PROCESS_PROPERTY + "=" + name);
+			return InProcess.COPY;
+		}
+	}
+
+	/**
+	 * Returns the transport named by the <code>rmi.transport</code> system
+	 * property. An unknown name is reported and ignored.
+	 *
+	 * @return the default transport
+	 */
+	private static Transport defaultTransport() {
+		String name = System.getProperty(TRANSPORT_PROPERTY);
+		if (name == null) {
+			return Transport.BLOCKING;
+		}
+		try {
+			return Transport.valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown RMI transport, using blocking: " + TRANSPORT_PROPERTY + "=" + name);
+			return Transport.BLOCKING;
+		}
+	}
+
 	/**
 	 * The method is called by the listener thread when it terminates. It is
 	 * used to clean-up and update inner state, before stopped is called.
@@ -298,9 +1310,42 @@ public class Skeleton<T> {
 			//		+ serverClass.getName() + ", " + "IPAddress: " + bindAddress.getAddress().toString() + ", "
 			//		+ "Port: " + bindAddress.getPort());
 		}
+		unregister();
+		streams.closeAll();
+		admission = null;
 		isActive = false;
 		listenerSocket = null;
 		listener = null;
 		stopped(cause);
 	}
+
+	/**
+	 * The server object for the interfaces every skeleton answers itself.
+	 */
+	private final class BuiltIns implements Stats, StreamService {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public MethodStats[] getMethodStats() {
+			return dispatchTable.snapshot();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Object next(long stream, long sequence) throws RMIException, IOException {
+			return streams.next(stream, sequence);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void close(long stream) {
+			streams.close(stream);
+		}
+	}
 }
@@ -0,0 +1,24 @@
+package rmi;
+
+/**
+ * The thread through which a started {@link Skeleton} accepts connections.
+ * Each transport provides its own listener.
+ */
+abstract class SkeletonListener extends Thread {
+
+	/**
+	 * Creates a listener thread.
+	 *
+	 * @param name
+	 *            The thread name.
+	 */
+	SkeletonListener(String name) {
+		super(name);
+	}
+
+	/**
+	 * Initiates termination of the listener. The listening socket is closed,
+	 * and the thread closes the connections and exits some time later.
+	 */
+	public abstract void terminate();
+}
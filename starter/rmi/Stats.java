@@ -0,0 +1,33 @@
+package rmi;
+
+/**
+ * Remote interface through which every skeleton reports the calls it serves.
+ *
+ * <p>
+ * A skeleton answers calls on this interface in addition to its own remote
+ * interface, at the same address, so that the load of any server can be read
+ * with a stub created from the address of any of its skeletons:
+ *
+ * <pre>
+ * Stats stats = Stub.create(Stats.class, address);
+ * for (MethodStats method : stats.getMethodStats()) {
+ * 	System.out.println(method);
+ * }
+ * </pre>
+ *
+ * <p>
+ * The same counters are available locally through
+ * {@link Skeleton#getMethodStats()}.
+ */
+public interface Stats {
+
+	/**
+	 * Returns the counters of every remote method of the skeleton, including
+	 * the methods of this interface.
+	 *
+	 * @return a snapshot of the counters of each method, sorted by method name
+	 * @throws RMIException
+	 *             If the call cannot be completed due to a network error.
+	 */
+	public MethodStats[] getMethodStats() throws RMIException;
+}
@@ -0,0 +1,76 @@
+package rmi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import rmi.io.ValueCodec;
+import rmi.io.WireCodec;
+
+/**
+ * The value sent in place of a {@link RemoteStream} returned by a remote
+ * method: the ID under which the skeleton keeps the stream, and its first
+ * chunk. A stream with at most one chunk is not kept at all, and its handle
+ * marks the end of the stream.
+ */
+final class StreamHandle {
+
+	/**
+	 * The tag under which handles are written by the wire codec.
+	 */
+	static final int WIRE_TAG = WireCodec.LAST_USER_TAG;
+
+	// Registered here so that decoding a handle initializes the class; the
+	// remote interfaces of methods returning streams initialize it as well.
+	static {
+		WireCodec.register(WIRE_TAG, StreamHandle.class, new ValueCodec<StreamHandle>() {
+			@Override
+			public void write(DataOutput out, StreamHandle handle) throws IOException {
+				out.writeLong(handle.id);
+				out.writeBoolean(handle.end);
+				WireCodec.writeValue(out, handle.first);
+			}
+
+			@Override
+			public StreamHandle read(DataInput in) throws IOException {
+				long id = in.readLong();
+				boolean end = in.readBoolean();
+				try {
+					return new StreamHandle(id, WireCodec.readValue(in), end);
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Failed to decode the first chunk of a stream.", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The ID of the stream on the skeleton, or <code>0</code> if the skeleton
+	 * has not kept it.
+	 */
+	final long id;
+	/**
+	 * The first chunk, or <code>null</code> if the stream is empty.
+	 */
+	final Object first;
+	/**
+	 * Whether the stream has no chunk after the first.
+	 */
+	final boolean end;
+
+	/**
+	 * Creates a handle.
+	 *
+	 * @param id
+	 *            The ID of the stream on the skeleton, or <code>0</code>.
+	 * @param first
+	 *            The first chunk, or <code>null</code>.
+	 * @param end
+	 *            Whether the stream has no chunk after the first.
+	 */
+	StreamHandle(long id, Object first, boolean end) {
+		this.id = id;
+		this.first = first;
+		this.end = end;
+	}
+}
@@ -0,0 +1,282 @@
+package rmi;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+import rmi.io.Message;
+
+/**
+ * The stream returned by a stub in place of a {@link RemoteStream} returned
+ * by a remote method.
+ *
+ * <p>
+ * The reader starts with the first chunk, sent with the response to the call,
+ * and fetches the others from the skeleton through {@link StreamService}. To
+ * hide the round trip, it keeps up to a window of chunk requests in flight on
+ * the pooled connections, taking one more each time a chunk is consumed. The
+ * window is taken from the <code>rmi.streamWindow</code> system property, and
+ * bounds the chunks held at either end. Chunks of a stream kept by a skeleton
+ * in this JVM are fetched one at a time, in the calling thread.
+ *
+ * @param <T>
+ *            the type of the chunks.
+ */
+final class StreamReader<T> implements RemoteStream<T> {
+
+	/**
+	 * The name of the system property setting the number of chunk requests
+	 * kept in flight.
+	 */
+	static final String WINDOW_PROPERTY = "rmi.streamWindow";
+	/**
+	 * The number of chunk requests kept in flight when the property is not
+	 * set.
+	 */
+	static final int DEFAULT_WINDOW = 4;
+
+	/**
+	 * {@link StreamService#next(long, long)}.
+	 */
+	private static final Method NEXT;
+	/**
+	 * {@link StreamService#close(long)}.
+	 */
+	private static final Method CLOSE;
+
+	static {
+		try {
+			NEXT = StreamService.class.getMethod("next", long.class, long.class);
+			CLOSE = StreamService.class.getMethod("close", long.class);
+		} catch (NoSuchMethodException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * The network address of the skeleton keeping the stream.
+	 */
+	private final InetSocketAddress address;
+	/**
+	 * The ID of the stream on the skeleton.
+	 */
+	private final long id;
+	/**
+	 * The number of chunk requests kept in flight.
+	 */
+	private final int window;
+	/**
+	 * The responses to the chunk requests in flight, in order.
+	 */
+	private final ArrayDeque<CompletableFuture<Message>> inFlight = new ArrayDeque<>();
+	/**
+	 * The number of the next chunk to request.
+	 */
+	private long requested = 1;
+	/**
+	 * The next chunk, once fetched and until consumed.
+	 */
+	private Object chunk;
+	/**
+	 * Whether no more chunks are to be fetched.
+	 */
+	private boolean finished;
+	/**
+	 * Whether the skeleton still keeps the stream.
+	 */
+	private boolean open;
+
+	/**
+	 * Creates the reader of a stream.
+	 *
+	 * @param address
+	 *            The network address of the skeleton keeping the stream.
+	 * @param handle
+	 *            The handle returned by the call.
+	 */
+	StreamReader(InetSocketAddress address, StreamHandle handle) {
+		this.address = address;
+		this.id = handle.id;
+		this.window = Math.max(1, Math.min(ExportedStreams.MAX_AHEAD, Integer.getInteger(WINDOW_PROPERTY,
+				DEFAULT_WINDOW)));
+		this.chunk = handle.first;
+		this.finished = handle.end;
+		this.open = !handle.end;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean hasNext() throws RMIException, IOException {
+		if (chunk != null) {
+			return true;
+		}
+		if (finished) {
+			return false;
+		}
+
+		try {
+			chunk = fetch();
+		} catch (RMIException | IOException | RuntimeException | Error e) {
+			close();
+			throw e;
+		}
+
+		if (chunk == null) {
+			// The skeleton forgets the stream once its end has been fetched.
+			// The requests in flight past the end fail, unread.
+			finished = true;
+			open = false;
+			inFlight.clear();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() throws RMIException, IOException {
+		if (!hasNext()) {
+			throw new NoSuchElementException("End of stream.");
+		}
+
+		Object next = chunk;
+		chunk = null;
+		return (T) next;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() {
+		finished = true;
+		chunk = null;
+		inFlight.clear();
+
+		if (open) {
+			open = false;
+			// Nobody waits for the answer: the skeleton releases the stream
+			// in due time even if this request is lost.
+			try {
+				if (Skeleton.running(address) != null) {
+					Stub.transmit(address, Stub.encodeCall(CLOSE, new Object[] { id }));
+				} else {
+					send(CLOSE, new Object[] { id });
+				}
+			} catch (RMIException e) {
+				// As above.
+			}
+		}
+	}
+
+	/**
+	 * Fetches the next chunk from the skeleton, topping up the requests in
+	 * flight first. Responses are decoded here, in the consuming thread.
+	 *
+	 * @return the chunk, or <code>null</code> at the end of the stream.
+	 */
+	private Object fetch() throws RMIException, IOException {
+		Message response;
+		if (inFlight.isEmpty() && Skeleton.running(address) != null) {
+			response = Stub.transmit(address, Stub.encodeCall(NEXT, new Object[] { id, requested++ }));
+		} else {
+			while (inFlight.size() < window) {
+				inFlight.add(send(NEXT, new Object[] { id, requested++ }));
+			}
+
+			try {
+				response = inFlight.poll().get();
+			} catch (ExecutionException e) {
+				throw new RMIException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RMIException("Interrupted while waiting for a chunk.", e);
+			}
+		}
+
+		try {
+			return Stub.decodeResult(address, NEXT, response);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	/**
+	 * Sends a request on a pooled connection without waiting for the
+	 * response. The connection goes back to the pool when the response
+	 * arrives.
+	 *
+	 * @param method
+	 *            The method of {@link StreamService} called.
+	 * @param args
+	 *            The arguments.
+	 * @return the future response.
+	 * @throws RMIException
+	 *             If the request cannot be sent.
+	 */
+	private CompletableFuture<Message> send(Method method, Object[] args) throws RMIException {
+		Message request = Stub.encodeCall(method, args);
+		final ConnectionPool pool = ConnectionPool.getSharedPool();
+		final Connection connection;
+		try {
+			connection = pool.acquire(address);
+		} catch (IOException e) {
+			throw new RMIException(e);
+		}
+
+		CompletableFuture<Message> response;
+		try {
+			response = connection.send(request);
+		} catch (IOException e) {
+			pool.discard(connection);
+			throw new RMIException(e);
+		}
+
+		response.whenComplete(new BiConsumer<Message, Throwable>() {
+			@Override
+			public void accept(Message received, Throwable failure) {
+				if (failure == null) {
+					pool.release(connection);
+				} else {
+					pool.discard(connection);
+				}
+			}
+		});
+		return response;
+	}
+
+	/**
+	 * Rethrows the exception raised while fetching a chunk, if it can be
+	 * thrown by the methods of the stream, and wraps it otherwise.
+	 *
+	 * @param cause
+	 *            The exception.
+	 * @return an <code>RMIException</code> wrapping the exception, to be
+	 *         thrown by the caller.
+	 */
+	private static RMIException rethrow(Throwable cause) throws IOException {
+		if (cause instanceof RMIException) {
+			return (RMIException) cause;
+		}
+		if (cause instanceof IOException) {
+			throw (IOException) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new RMIException(cause);
+	}
+}
@@ -0,0 +1,46 @@
+package rmi;
+
+import java.io.IOException;
+
+/**
+ * Remote interface through which stubs fetch the chunks of the streams
+ * returned by remote methods.
+ *
+ * <p>
+ * Every skeleton answers calls on this interface itself, as it does for
+ * {@link Stats}, from the streams its remote methods have returned and that
+ * have not yet been read to their end. Chunks are numbered from
+ * <code>1</code>; chunk <code>0</code> is sent with the response to the call
+ * that returned the stream.
+ */
+interface StreamService {
+
+	/**
+	 * Returns a chunk of a stream.
+	 *
+	 * @param stream
+	 *            The ID of the stream.
+	 * @param sequence
+	 *            The number of the chunk.
+	 * @return the chunk, or <code>null</code> if the stream ends before it.
+	 * @throws IllegalArgumentException
+	 *             If the chunk has already been fetched, or is too far ahead
+	 *             of the chunks fetched so far.
+	 * @throws IOException
+	 *             If the stream fails to produce the chunk.
+	 * @throws RMIException
+	 *             If the skeleton holds no stream with the given ID, or the
+	 *             call cannot be completed due to a network error.
+	 */
+	public Object next(long stream, long sequence) throws RMIException, IOException;
+
+	/**
+	 * Closes a stream before its end. Closing an unknown stream has no effect.
+	 *
+	 * @param stream
+	 *            The ID of the stream.
+	 * @throws RMIException
+	 *             If the call cannot be completed due to a network error.
+	 */
+	public void close(long stream) throws RMIException;
+}
@@ -5,18 +5,20 @@
 package rmi;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
+import rmi.io.Message;
 import rmi.io.RMIRequest;
 import rmi.io.RMIResponse;
+import rmi.io.WireProtocol;
 
 /**
  * RMI stub factory.
@@ -52,6 +54,11 @@ public abstract class Stub {
 
 		private InetSocketAddress serverSocketAddress;
 		private Class<?> c;
+		/**
+		 * The time allowed to each call, in milliseconds, or <code>0</code> for
+		 * no deadline.
+		 */
+		private int timeout;
 
 		/**
 		 * Creates a new StubInvocationHandler constructed with the specified
@@ -123,70 +130,14 @@ public abstract class Stub {
 		 *             proxy instance
 		 *
 		 */
-		@SuppressWarnings("rawtypes")
 		private Object remoteInvoke(Object proxy, Method method, Object[] args) throws Throwable {
-			Socket socket = null;
-			ObjectOutputStream out;
-			ObjectInputStream in;
-			RMIRequest request;
-			RMIResponse response;
-
-			try {
-				socket = new Socket();
-				socket.connect(serverSocketAddress);
-			} catch (IOException e) {
-				//System.err.println("Failed to connect to server skeleton.");
-				closeConnection(socket);
-				throw (Throwable) (new RMIException(e));
+			long deadline = System.nanoTime() + timeout * 1000000L;
+			Skeleton<?> skeleton = Skeleton.running(serverSocketAddress);
+			if (skeleton != null && skeleton.passesReferences()) {
+				return skeleton.invokeLocal(method, args, timeout, deadline);
 			}
-
-			try {
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.flush();
-			} catch (IOException e) {
-				closeConnection(socket);
-				//System.err.println("Failed to connect to get OutputStream from socket.");
-				throw (Throwable) (new RMIException(e));
-			}
-			try {
-				in = new ObjectInputStream(socket.getInputStream());
-			} catch (IOException e) {
-				closeConnection(socket);
-				//System.err.println("Failed to connect to get InputStream from socket.");
-				throw (Throwable) (new RMIException(e));
-			}
-
-			String[] argumentTypes = getArgumentTypes(method);
-			// System.err.println("Calling Remote Method: " +
-			// method.getDeclaringClass().getName() + "." + method.getName()
-			// + "(" + args + " : " + argumentTypes.toString() + ")");
-			request = new RMIRequest(method.getDeclaringClass().getName(), method.getName(), args, argumentTypes);
-			try {
-				out.writeObject(request);
-			} catch (IOException e) {
-				closeConnection(socket);
-				System.err.println("Failed to write request to socket.");
-				throw (Throwable) (new RMIException(e));
-			}
-
-			try {
-				response = (RMIResponse) in.readObject();
-			} catch (ClassNotFoundException | IOException e) {
-				closeConnection(socket);
-				System.err.println("Failed to read response from socket.");
-				throw (Throwable) (new RMIException(e));
-			}
-
-			closeConnection(socket);
-
-			if (response.getException() == null) {
-				return response.getReturnValue();
-			} else {
-				// System.out.println("Remote method execution threw an
-				// exception." + response.getException().getClass().getName());
-				throw (Throwable) response.getException();
-			}
-
+			return decodeResult(serverSocketAddress, method,
+					transmit(serverSocketAddress, encodeCall(method, args, timeout), timeout, deadline));
 		}
 
 		/**
@@ -276,45 +227,181 @@ public abstract class Stub {
 
 			return method.invoke(sih, args);
 		}
+	}
 
+	/**
+	 * The invocation handler of asynchronous stubs.
+	 *
+	 * <p>
+	 * Each method of the asynchronous interface is mapped, when the stub is
+	 * created, to the remote method of the same name and parameter types. A
+	 * call sends the request on a pooled connection and returns at once; the
+	 * future it returns is completed when the response arrives. Results are
+	 * decoded and the futures completed in the common fork/join pool, never in
+	 * the thread reading responses from the connection, so that a continuation
+	 * may itself make remote calls.
+	 */
+	private static class AsyncInvocationHandler implements InvocationHandler {
+
+		private final InetSocketAddress serverSocketAddress;
+		private final Class<?> c;
+		private final Class<?> asyncClass;
 		/**
-		 * <p>
-		 * This function accepts the socket and closes the connection associated
-		 * with the socket
-		 *
-		 * @param socket
-		 *            The socket used for communication between the skeleton and
-		 *            the stub
+		 * The remote method called by each method of the asynchronous
+		 * interface.
+		 */
+		private final HashMap<Method, Method> remoteMethods;
+
+		/**
+		 * Creates a new AsyncInvocationHandler.
 		 *
+		 * @param address
+		 *            The network address of the remote skeleton.
+		 * @param c
+		 *            The remote interface.
+		 * @param asyncClass
+		 *            The asynchronous interface.
+		 * @param remoteMethods
+		 *            The remote method called by each method of the
+		 *            asynchronous interface.
+		 */
+		AsyncInvocationHandler(InetSocketAddress address, Class<?> c, Class<?> asyncClass,
+				HashMap<Method, Method> remoteMethods) {
+			this.serverSocketAddress = address;
+			this.c = c;
+			this.asyncClass = asyncClass;
+			this.remoteMethods = remoteMethods;
+		}
+
+		/**
+		 * {@inheritDoc}
 		 */
-		private void closeConnection(Socket socket) {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Method remote = remoteMethods.get(method);
+			if (remote == null) {
+				// equals, hashCode and toString.
+				return method.invoke(this, args);
+			}
+
+			CompletableFuture<Object> result = new CompletableFuture<>();
+			Message message;
 			try {
-				socket.close();
-			} catch (IOException e) {
-				System.err.println("Failed to close socket.");
+				message = encodeCall(remote, args);
+			} catch (RMIException e) {
+				result.completeExceptionally(e);
+				return result;
 			}
+
+			send(remote, message, true, result);
+			return result;
 		}
 
 		/**
-		 * <p>
-		 * This function takes a method object and returns the array of strings
-		 * where each string is the type of an argument of the method
+		 * Sends a request on a pooled connection, and arranges for the result
+		 * to be completed with the response.
 		 *
 		 * @param method
-		 *            The method object
-		 *
-		 * @return Array of strings of argument types of method
+		 *            The remote method called.
+		 * @param message
+		 *            The encoded request.
+		 * @param mayRetry
+		 *            Whether the request may be sent again on a new connection
+		 *            if the pooled one turns out to be stale before the request
+		 *            is written.
+		 * @param result
+		 *            The future returned to the caller.
+		 */
+		private void send(final Method method, final Message message, final boolean mayRetry,
+				final CompletableFuture<Object> result) {
+			final ConnectionPool pool = ConnectionPool.getSharedPool();
+			final Connection connection;
+			try {
+				connection = pool.acquire(serverSocketAddress);
+			} catch (IOException e) {
+				result.completeExceptionally(new RMIException(e));
+				return;
+			}
+
+			CompletableFuture<Message> response;
+			try {
+				response = connection.send(message);
+			} catch (IOException e) {
+				failed(pool, connection, method, message, mayRetry, result, e);
+				return;
+			}
+
+			response.whenCompleteAsync(new BiConsumer<Message, Throwable>() {
+				@Override
+				public void accept(Message received, Throwable failure) {
+					if (failure != null) {
+						failed(pool, connection, method, message, mayRetry, result, failure);
+						return;
+					}
+
+					pool.release(connection);
+					try {
+						result.complete(decodeResult(serverSocketAddress, method, received));
+					} catch (Throwable t) {
+						result.completeExceptionally(t);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Handles a connection failing before the response arrived, by
+		 * retrying on a new connection if the failed one had gone stale in the
+		 * pool before the request could be written, and otherwise failing the
+		 * call.
+		 */
+		private void failed(ConnectionPool pool, Connection connection, Method method, Message message,
+				boolean mayRetry, CompletableFuture<Object> result, Throwable failure) {
+			pool.discard(connection);
+			if (mayRetry && connection.isReused() && failure instanceof Connection.RequestNotSentException) {
+				send(method, message, false, result);
+			} else {
+				result.completeExceptionally(new RMIException(failure));
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int hashCode() {
+			return toString().hashCode();
+		}
+
+		/**
+		 * Returns true if the argument is an asynchronous stub for the same
+		 * interfaces and skeleton as this one.
 		 *
+		 * @return The boolean value after comparison
 		 */
-		private String[] getArgumentTypes(Method method) {
-			ArrayList<String> list = new ArrayList<>();
-			for (Class clazz : method.getParameterTypes()) {
-				list.add(clazz.getName());
+		@Override
+		public boolean equals(Object proxy) {
+			if (proxy == null || !Proxy.isProxyClass(proxy.getClass())) {
+				return false;
 			}
 
-			String[] argumentTypes = new String[list.size()];
+			InvocationHandler handler = Proxy.getInvocationHandler(proxy);
+			if (!(handler instanceof AsyncInvocationHandler)) {
+				return false;
+			}
 
-			return (String[]) list.toArray(argumentTypes);
+			AsyncInvocationHandler other = (AsyncInvocationHandler) handler;
+			return serverSocketAddress.equals(other.serverSocketAddress) && c.equals(other.c)
+					&& asyncClass.equals(other.asyncClass);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			return "PORT : " + serverSocketAddress.getPort() + " HOSTNAME : " + serverSocketAddress.getHostName()
+					+ " INTERFACE-NAME : " + c.getName() + " ASYNC-INTERFACE-NAME : " + asyncClass.getName();
 		}
 	}
 
@@ -460,6 +547,92 @@ public abstract class Stub {
 		return doCreate(c, address);
 	}
 
+	/**
+	 * Creates an asynchronous stub, given the address of a remote server.
+	 *
+	 * <p>
+	 * The asynchronous interface <code>a</code> declares, for each remote
+	 * method it makes available, a method with the same name and parameter
+	 * types returning a <code>CompletableFuture</code> of the result (or one
+	 * of its supertypes, such as <code>CompletionStage</code>), for example:
+	 *
+	 * <pre>
+	 * public interface AsyncStorage {
+	 * 	CompletableFuture&lt;byte[]&gt; read(Path file, long offset, int length);
+	 * }
+	 * </pre>
+	 *
+	 * <p>
+	 * A call on the stub sends the request and returns immediately, so one
+	 * thread may have any number of calls in progress, to any number of
+	 * skeletons. The future is completed with the return value, or
+	 * exceptionally with the exception thrown by the remote method or with an
+	 * <code>RMIException</code> if the call could not be completed. Calls
+	 * travel on the same pooled connections as those of synchronous stubs.
+	 *
+	 * @param a
+	 *            The asynchronous interface.
+	 * @param c
+	 *            The remote interface implemented by the remote object.
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @param <A>
+	 *            The asynchronous interface type.
+	 * @param <T>
+	 *            The remote interface type.
+	 * @return The asynchronous stub created.
+	 * @throws NullPointerException
+	 *             If any argument is <code>null</code>.
+	 * @throws Error
+	 *             If <code>c</code> is not a remote interface, or if
+	 *             <code>a</code> is not an interface whose methods all return
+	 *             futures and correspond to remote methods of <code>c</code>.
+	 */
+	public static <A, T> A createAsync(Class<A> a, Class<T> c, InetSocketAddress address) {
+		if (a == null || c == null || address == null) {
+			throw new NullPointerException("Paramater of createAsync should be non-null.");
+		}
+
+		if (!RemotePattern.isRemoteInterface(c)) {
+			throw new Error("c is not a remote interface.");
+		}
+
+		return doCreateAsync(a, c, address);
+	}
+
+	/**
+	 * Creates an asynchronous stub calling the same skeleton as an existing
+	 * stub, such as one returned by a remote call.
+	 *
+	 * @param a
+	 *            The asynchronous interface, as described in
+	 *            {@link #createAsync(Class, Class, InetSocketAddress)}.
+	 * @param c
+	 *            The remote interface implemented by <code>stub</code>.
+	 * @param stub
+	 *            A stub created by one of the <code>create</code> methods.
+	 * @param <A>
+	 *            The asynchronous interface type.
+	 * @param <T>
+	 *            The remote interface type.
+	 * @return The asynchronous stub created.
+	 * @throws NullPointerException
+	 *             If any argument is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub.
+	 * @throws Error
+	 *             If <code>a</code> is not an interface whose methods all
+	 *             return futures and correspond to remote methods of
+	 *             <code>c</code>.
+	 */
+	public static <A, T> A createAsync(Class<A> a, Class<T> c, T stub) {
+		if (a == null || c == null || stub == null) {
+			throw new NullPointerException("Paramater of createAsync should be non-null.");
+		}
+
+		return doCreateAsync(a, c, addressOf(stub));
+	}
+
 	/**
 	 * <p>
 	 * Stub.create calls doCreate function with the class and InetSocketAddress
@@ -477,9 +650,316 @@ public abstract class Stub {
 	 */
 	@SuppressWarnings("unchecked")
 	private static <T> T doCreate(Class<T> c, InetSocketAddress address) {
+		// Number the remote methods now rather than on the first call.
+		RemoteInterface.hierarchyOf(c);
+
 		InvocationHandler invocationHandler = new StubInvocationHandler(address, c);
 		T instance = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c, Serializable.class },
 				invocationHandler);
 		return instance;
 	}
+
+	/**
+	 * Creates the proxy of an asynchronous stub, mapping each method of the
+	 * asynchronous interface to its remote method.
+	 *
+	 * @param a
+	 *            The asynchronous interface.
+	 * @param c
+	 *            The remote interface.
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @return The asynchronous stub created.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <A> A doCreateAsync(Class<A> a, Class<?> c, InetSocketAddress address) {
+		HashMap<Method, Method> remoteMethods = asyncMethods(a, c);
+		RemoteInterface.hierarchyOf(c);
+
+		InvocationHandler invocationHandler = new AsyncInvocationHandler(address, c, a, remoteMethods);
+		return (A) Proxy.newProxyInstance(a.getClassLoader(), new Class<?>[] { a }, invocationHandler);
+	}
+
+	/**
+	 * Maps each method of an asynchronous interface to the remote method of
+	 * the same name and parameter types.
+	 *
+	 * @param a
+	 *            The asynchronous interface.
+	 * @param c
+	 *            The remote interface.
+	 * @return the remote method called by each method of <code>a</code>
+	 * @throws Error
+	 *             If <code>a</code> is not an interface whose methods all
+	 *             return futures and correspond to remote methods of
+	 *             <code>c</code>.
+	 */
+	static HashMap<Method, Method> asyncMethods(Class<?> a, Class<?> c) {
+		if (!a.isInterface()) {
+			throw new Error(a.getName() + " is not an interface.");
+		}
+
+		HashMap<Method, Method> remoteMethods = new HashMap<>();
+		for (Method method : a.getMethods()) {
+			if (!method.getReturnType().isAssignableFrom(CompletableFuture.class)) {
+				throw new Error(a.getName() + "." + method.getName() + " does not return a CompletableFuture.");
+			}
+
+			Method remote;
+			try {
+				remote = c.getMethod(method.getName(), method.getParameterTypes());
+			} catch (NoSuchMethodException e) {
+				throw new Error(a.getName() + "." + method.getName() + " has no counterpart in " + c.getName() + ".");
+			}
+			if (!RemotePattern.isRemoteMethod(remote)) {
+				throw new Error(c.getName() + "." + remote.getName() + " is not a remote method.");
+			}
+
+			remoteMethods.put(method, remote);
+		}
+
+		return remoteMethods;
+	}
+
+	/**
+	 * Returns the address of the skeleton a stub calls.
+	 *
+	 * @param stub
+	 *            A stub created by one of the <code>create</code> methods.
+	 * @return the network address of the remote skeleton
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub.
+	 */
+	public static InetSocketAddress addressOf(Object stub) {
+		if (!Proxy.isProxyClass(stub.getClass())
+				|| !(Proxy.getInvocationHandler(stub) instanceof StubInvocationHandler)) {
+			throw new IllegalArgumentException("stub was not created by Stub.create.");
+		}
+
+		return ((StubInvocationHandler) Proxy.getInvocationHandler(stub)).serverSocketAddress;
+	}
+
+	/**
+	 * Returns a stub calling the same skeleton as another, whose calls each
+	 * have a deadline. The timeout is sent with every request. The skeleton
+	 * rejects a call that reaches it after its deadline, and interrupts a call
+	 * still running at its deadline; the stub throws a
+	 * {@link DeadlineExceededException} if the response has not arrived by
+	 * then. The stub is equal to the stub it was made from.
+	 *
+	 * <p>
+	 * A call that times out may still have completed on the server. Calls
+	 * whose effects the caller must undo, such as <code>Service.lock</code>,
+	 * should therefore not be made through such a stub.
+	 *
+	 * @param stub
+	 *            A stub created by one of the <code>Stub.create</code>
+	 *            methods.
+	 * @param timeout
+	 *            The time allowed to each call, or <code>0</code> for no
+	 *            deadline. Rounded up to milliseconds.
+	 * @param unit
+	 *            The unit of <code>timeout</code>.
+	 * @param <T>
+	 *            The remote interface type.
+	 * @return the stub with the timeout
+	 * @throws NullPointerException
+	 *             If <code>stub</code> or <code>unit</code> is
+	 *             <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub, or the timeout is
+	 *             negative or longer than <code>Integer.MAX_VALUE</code>
+	 *             milliseconds.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T withTimeout(T stub, long timeout, TimeUnit unit) {
+		if (stub == null || unit == null) {
+			throw new NullPointerException("Paramaters of withTimeout should be non-null.");
+		}
+
+		long nanos = unit.toNanos(timeout);
+		long millis = nanos / 1000000 + ((nanos % 1000000 == 0) ? 0 : 1);
+		if (timeout < 0 || millis > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Timeout out of range: " + timeout + " " + unit);
+		}
+
+		addressOf(stub);
+		StubInvocationHandler handler = (StubInvocationHandler) Proxy.getInvocationHandler(stub);
+		StubInvocationHandler timed = new StubInvocationHandler(handler.serverSocketAddress, handler.c);
+		timed.timeout = (int) millis;
+		return (T) Proxy.newProxyInstance(stub.getClass().getClassLoader(), stub.getClass().getInterfaces(), timed);
+	}
+
+	/**
+	 * Sends an encoded request on a pooled connection and waits for the
+	 * response. If the pooled connection turns out to be stale, the request is
+	 * sent once more on a new connection. A request to a skeleton running in
+	 * this JVM is served in the calling thread instead.
+	 *
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @param message
+	 *            The encoded request.
+	 * @return the response message
+	 * @throws RMIException
+	 *             If no connection can be established, or the connection fails
+	 *             before the response arrives.
+	 */
+	static Message transmit(InetSocketAddress address, Message message) throws RMIException {
+		return transmit(address, message, 0, 0);
+	}
+
+	/**
+	 * Sends an encoded request, as {@link #transmit(InetSocketAddress, Message)}
+	 * does, and waits for the response until a deadline.
+	 *
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @param message
+	 *            The encoded request.
+	 * @param timeout
+	 *            The timeout encoded in the request, in milliseconds, or
+	 *            <code>0</code> to wait for as long as it takes.
+	 * @param deadline
+	 *            The deadline, in the time base of
+	 *            <code>System.nanoTime</code>, if the timeout is not zero.
+	 * @return the response message
+	 * @throws DeadlineExceededException
+	 *             If the response has not arrived by the deadline.
+	 * @throws RMIException
+	 *             If no connection can be established, or the connection fails
+	 *             before the response arrives.
+	 */
+	static Message transmit(InetSocketAddress address, Message message, int timeout, long deadline)
+			throws RMIException {
+		Skeleton<?> skeleton = Skeleton.running(address);
+		if (skeleton != null) {
+			Message response = skeleton.serveLocal(message);
+			if (timeout != 0 && deadline - System.nanoTime() <= 0) {
+				throw new DeadlineExceededException("The call did not complete before the deadline.");
+			}
+			return response;
+		}
+
+		ConnectionPool pool = ConnectionPool.getSharedPool();
+
+		for (boolean mayRetry = true;; mayRetry = false) {
+			Connection connection;
+			try {
+				connection = pool.acquire(address);
+			} catch (IOException e) {
+				throw new RMIException(e);
+			}
+
+			Message response;
+			try {
+				response = (timeout == 0) ? connection.call(message) : connection.call(message, deadline);
+			} catch (RMIException e) {
+				pool.release(connection);
+				throw e;
+			} catch (IOException e) {
+				pool.discard(connection);
+				if (mayRetry && connection.isReused() && e instanceof Connection.RequestNotSentException) {
+					// The skeleton closes idle connections when it stops, so
+					// a pooled connection may have gone stale. Only a request
+					// that was never written is sent again: one that was may
+					// already have run, and calls need not be idempotent.
+					continue;
+				}
+				throw new RMIException(e);
+			}
+
+			pool.release(connection);
+			return response;
+		}
+	}
+
+	/**
+	 * Encodes a call to a remote method.
+	 *
+	 * @param method
+	 *            The remote method.
+	 * @param args
+	 *            The arguments, or <code>null</code> if the method takes none.
+	 * @return the encoded request
+	 * @throws RMIException
+	 *             If an argument cannot be encoded.
+	 */
+	static Message encodeCall(Method method, Object[] args) throws RMIException {
+		return encodeCall(method, args, 0);
+	}
+
+	/**
+	 * Encodes a call to a remote method, with a timeout.
+	 *
+	 * @param method
+	 *            The remote method.
+	 * @param args
+	 *            The arguments, or <code>null</code> if the method takes none.
+	 * @param timeout
+	 *            The time allowed to the call, in milliseconds, or
+	 *            <code>0</code> for no deadline.
+	 * @return the encoded request
+	 * @throws RMIException
+	 *             If an argument cannot be encoded.
+	 */
+	static Message encodeCall(Method method, Object[] args, int timeout) throws RMIException {
+		RemoteInterface iface = RemoteInterface.of(method.getDeclaringClass());
+		RMIRequest request = new RMIRequest(iface.getFingerprint(), iface.ordinalOf(method), args);
+		request.setTimeout(timeout);
+
+		try {
+			return WireProtocol.encodeRequest(request);
+		} catch (IOException e) {
+			throw new RMIException("Failed to encode the arguments of " + method.getName() + ".", e);
+		}
+	}
+
+	/**
+	 * Decodes the response to a call, returning its result or throwing the
+	 * exception raised by the remote method.
+	 *
+	 * @param address
+	 *            The network address of the skeleton that sent the response.
+	 * @param method
+	 *            The remote method.
+	 * @param response
+	 *            The response message.
+	 * @return the return value of the remote method
+	 * @throws Throwable
+	 *             The exception thrown by the remote method, or an
+	 *             <code>RMIException</code> if the response cannot be decoded.
+	 */
+	static Object decodeResult(InetSocketAddress address, Method method, Message response) throws Throwable {
+		RMIResponse decoded;
+		try {
+			decoded = WireProtocol.decodeResponse(response);
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RMIException("Failed to decode the result of " + method.getName() + ".", e);
+		}
+
+		if (decoded.getException() == null) {
+			return resolve(address, decoded.getReturnValue());
+		} else {
+			throw (Throwable) decoded.getException();
+		}
+	}
+
+	/**
+	 * Turns a value returned by a remote method into the value returned to
+	 * the caller: the handle of a stream becomes a stream fetching its chunks
+	 * from the skeleton.
+	 *
+	 * @param address
+	 *            The network address of the skeleton that returned the value.
+	 * @param value
+	 *            The decoded value.
+	 * @return the value to return to the caller
+	 */
+	static Object resolve(InetSocketAddress address, Object value) {
+		if (value instanceof StreamHandle) {
+			return new StreamReader<Object>(address, (StreamHandle) value);
+		}
+		return value;
+	}
 }
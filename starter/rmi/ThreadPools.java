@@ -0,0 +1,125 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors in which skeletons serve connections and run calls.
+ *
+ * <p>
+ * Virtual threads are created through reflection, so that the library still
+ * builds and runs on Java versions without them. They are available when the
+ * runtime provides <code>Thread.ofVirtual</code> and
+ * <code>Executors.newThreadPerTaskExecutor</code>, from Java 21 on.
+ */
+final class ThreadPools {
+
+	/**
+	 * <code>Thread.ofVirtual()</code>, or <code>null</code> if virtual threads
+	 * are not available.
+	 */
+	private static final Method ofVirtual;
+	/**
+	 * <code>Thread.Builder.name(String, long)</code>.
+	 */
+	private static final Method builderName;
+	/**
+	 * <code>Thread.Builder.factory()</code>.
+	 */
+	private static final Method builderFactory;
+	/**
+	 * <code>Executors.newThreadPerTaskExecutor(ThreadFactory)</code>.
+	 */
+	private static final Method newThreadPerTaskExecutor;
+
+	static {
+		Method virtual = null;
+		Method name = null;
+		Method factory = null;
+		Method perTask = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			virtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			// Virtual threads are a preview feature on Java 19 and 20; make
+			// sure they can actually be created.
+			virtual.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			virtual = null;
+		}
+		ofVirtual = virtual;
+		builderName = name;
+		builderFactory = factory;
+		newThreadPerTaskExecutor = perTask;
+	}
+
+	private ThreadPools() {
+	}
+
+	/**
+	 * Returns whether the runtime supports virtual threads.
+	 *
+	 * @return <code>true</code> if virtual threads can be created.
+	 */
+	static boolean virtualThreadsSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Creates an executor that runs each task in a new virtual thread.
+	 *
+	 * @param prefix
+	 *            The prefix of the thread names.
+	 * @return the executor
+	 * @throws UnsupportedOperationException
+	 *             If the runtime does not support virtual threads.
+	 */
+	static ExecutorService newVirtualThreadExecutor(String prefix) {
+		if (ofVirtual == null) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+		}
+
+		try {
+			Object builder = builderName.invoke(ofVirtual.invoke(null), prefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderFactory.invoke(builder);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Cannot create virtual threads.", e);
+		}
+	}
+
+	/**
+	 * Creates a pool of at most <code>threads</code> platform threads, in
+	 * which at most <code>queueLength</code> tasks may wait. Further tasks are
+	 * rejected with a <code>RejectedExecutionException</code>.
+	 *
+	 * @param prefix
+	 *            The prefix of the thread names.
+	 * @param threads
+	 *            The number of threads.
+	 * @param queueLength
+	 *            The number of tasks that may wait for a thread.
+	 * @return the pool
+	 */
+	static ExecutorService newBoundedPool(final String prefix, int threads, int queueLength) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueLength), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, prefix + count.getAndIncrement());
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+}
@@ -0,0 +1,95 @@
+package rmi.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rmi.RMIException;
+import rmi.Skeleton;
+import rmi.Stub;
+import rmi.server.IPingServer;
+import rmi.server.PingServerFactory;
+
+/**
+ * The driver class measuring remote call throughput and latency against a
+ * {@code PingServer} skeleton.
+ *
+ * <p>
+ * Usage: <code>BenchmarkDriver [calls [threads [host port]]]</code>. Without a
+ * host and port, a skeleton is started in the same JVM on a system-assigned
+ * port and all calls go over loopback.
+ */
+public class BenchmarkDriver {
+
+	public static void main(String[] args) throws Exception {
+
+		int calls = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+
+		Skeleton<IPingServer> skeleton = null;
+		final IPingServer server;
+		if (args.length > 3) {
+			server = Stub.create(IPingServer.class, new InetSocketAddress(args[2], Integer.parseInt(args[3])));
+		} else {
+			skeleton = new Skeleton<IPingServer>(IPingServer.class, PingServerFactory.makePingServer());
+			skeleton.start();
+			server = Stub.create(IPingServer.class, new InetSocketAddress("127.0.0.1",
+					skeleton.getBindAddress().getPort()));
+		}
+
+		// Warm up the connection and the JIT before measuring.
+		runCalls(server, Math.min(calls, 20000), threads);
+
+		long start = System.nanoTime();
+		long failures = runCalls(server, calls, threads);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(calls + " calls on " + threads + " thread(s) in " + (elapsed / 1000000) + " ms: "
+				+ (long) (calls / (elapsed / 1e9)) + " calls/s, " + (elapsed / 1000 * threads / calls)
+				+ " us/call, " + failures + " failed");
+
+		if (skeleton != null) {
+			skeleton.stop();
+		}
+	}
+
+	/**
+	 * Makes the given number of ping calls, split evenly across threads.
+	 *
+	 * @param server
+	 *            stub for the ping server
+	 * @param calls
+	 *            total number of calls
+	 * @param threads
+	 *            number of calling threads
+	 * @return number of calls that failed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the threads
+	 */
+	private static long runCalls(final IPingServer server, int calls, int threads) throws InterruptedException {
+		final AtomicLong failures = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		final int perThread = calls / threads;
+
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						try {
+							if (!("Pong " + i).equals(server.ping(i))) {
+								failures.incrementAndGet();
+							}
+						} catch (RMIException e) {
+							failures.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+
+		done.await();
+		return failures.get();
+	}
+
+}
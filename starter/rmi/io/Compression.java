@@ -0,0 +1,270 @@
+package rmi.io;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of messages on connections that negotiated it.
+ *
+ * <p>
+ * A compressed message holds, in place of its head, the route at the start
+ * of the original head, as it was, then the uncompressed length of the rest,
+ * followed by the deflated length of the rest of the head, the rest of the
+ * head and the data of the original message. Compression is tuned for speed rather than ratio: it uses the
+ * fastest deflate level, and gives up on messages that do not shrink enough to
+ * be worth it. Before a large message is compressed whole, its start is
+ * compressed as a sample, so that incompressible file contents cost little
+ * more than a sample.
+ *
+ * <p>
+ * Deflaters and inflaters hold native memory and are costly to create, so a
+ * few are kept for reuse.
+ */
+final class Compression {
+
+	/**
+	 * The number of bytes compressed as a sample of a large message.
+	 */
+	private static final int SAMPLE_LENGTH = 64 << 10;
+	/**
+	 * The fraction of its length, in eighths, that a message must shrink to
+	 * for its compressed form to be sent.
+	 */
+	private static final int MAX_RATIO_EIGHTHS = 7;
+	/**
+	 * The number of idle deflaters and inflaters kept for reuse.
+	 */
+	private static final int POOL_SIZE = 16;
+
+	/**
+	 * Idle deflaters, at the fastest level, and inflaters.
+	 */
+	private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+	private static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+	private Compression() {
+	}
+
+	/**
+	 * Compresses a message.
+	 *
+	 * @param message
+	 *            The uncompressed message.
+	 * @return the compressed message, or <code>message</code> itself if
+	 *         compressing it does not save enough
+	 */
+	static Message deflate(Message message) {
+		// The head length, head and data of the message, as in a frame, less
+		// the route, which is left readable.
+		byte[] head = message.getHead();
+		byte[][] data = message.getData();
+		int route = message.getRouteLength();
+		byte[][] input = new byte[2 + data.length][];
+		input[0] = intBytes(head.length - route);
+		input[1] = (route == 0) ? head : Arrays.copyOfRange(head, route, head.length);
+		System.arraycopy(data, 0, input, 2, data.length);
+		int length = message.length() - 1 - route;
+
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		}
+		try {
+			if (length > 2 * SAMPLE_LENGTH) {
+				// The sample is compressed as a stream of its own, which costs
+				// it a little ratio compared to the whole message.
+				if (deflate(deflater, input, SAMPLE_LENGTH, 0) == null) {
+					return message;
+				}
+				deflater.reset();
+			}
+
+			byte[] compressed = deflate(deflater, input, length, route + 4);
+			if (compressed == null) {
+				return message;
+			}
+
+			System.arraycopy(head, 0, compressed, 0, route);
+			System.arraycopy(intBytes(length), 0, compressed, route, 4);
+			return new Message(message.getCallId(), compressed, Message.NO_DATA, true, route);
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Decompresses a message.
+	 *
+	 * @param message
+	 *            The compressed message.
+	 * @param route
+	 *            The length of the route at the start of the head, which was
+	 *            not compressed.
+	 * @return the uncompressed message, carrying the same call ID
+	 * @throws IOException
+	 *             If the compressed message is malformed.
+	 */
+	static Message inflate(Message message, int route) throws IOException {
+		byte[] compressed = message.getHead();
+		if (compressed.length - route < 4) {
+			throw new StreamCorruptedException("Compressed message too short.");
+		}
+
+		int length = ((compressed[route] & 0xff) << 24) | ((compressed[route + 1] & 0xff) << 16)
+				| ((compressed[route + 2] & 0xff) << 8) | (compressed[route + 3] & 0xff);
+		if (length < 4) {
+			throw new StreamCorruptedException("Malformed uncompressed length: " + length);
+		}
+
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		try {
+			inflater.setInput(compressed, route + 4, compressed.length - route - 4);
+
+			byte[] headLength = new byte[4];
+			inflate(inflater, headLength, 0);
+			int head = ((headLength[0] & 0xff) << 24) | ((headLength[1] & 0xff) << 16)
+					| ((headLength[2] & 0xff) << 8) | (headLength[3] & 0xff);
+			if (head < 0 || head > length - 4) {
+				throw new StreamCorruptedException("Malformed message head length: " + head);
+			}
+
+			byte[] headBytes = new byte[route + head];
+			System.arraycopy(compressed, 0, headBytes, 0, route);
+			inflate(inflater, headBytes, route);
+			byte[][] data = Message.NO_DATA;
+			if (length - 4 > head) {
+				data = new byte[][] { new byte[length - 4 - head] };
+				inflate(inflater, data[0], 0);
+			}
+
+			checkFinished(inflater);
+			return new Message(message.getCallId(), headBytes, data);
+		} finally {
+			inflater.reset();
+			if (!inflaters.offer(inflater)) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Compresses the start of a list of arrays, ending the stream. Gives up as
+	 * soon as the output grows past the largest acceptable length for the
+	 * input.
+	 *
+	 * @param deflater
+	 *            The deflater, freshly reset.
+	 * @param input
+	 *            The arrays.
+	 * @param length
+	 *            The number of bytes to compress, from the start of the first
+	 *            array.
+	 * @param offset
+	 *            The number of bytes to leave free at the start of the result.
+	 * @return the compressed bytes, after <code>offset</code> free bytes, or
+	 *         <code>null</code> if they do not save enough
+	 */
+	private static byte[] deflate(Deflater deflater, byte[][] input, int length, int offset) {
+		int limit = offset + (int) ((long) length * MAX_RATIO_EIGHTHS / 8);
+		byte[] output = new byte[Math.min(limit, offset + Math.max(length / 4, 64))];
+		int written = offset;
+		int index = 0;
+		int remaining = length;
+
+		while (!deflater.finished()) {
+			if (deflater.needsInput()) {
+				if (remaining == 0) {
+					deflater.finish();
+				} else {
+					int count = Math.min(input[index].length, remaining);
+					deflater.setInput(input[index++], 0, count);
+					remaining -= count;
+					continue;
+				}
+			}
+
+			if (written == output.length) {
+				if (output.length == limit) {
+					return null;
+				}
+				output = Arrays.copyOf(output, (int) Math.min(limit, 2L * output.length));
+			}
+			written += deflater.deflate(output, written, output.length - written);
+		}
+
+		return written == output.length ? output : Arrays.copyOf(output, written);
+	}
+
+	/**
+	 * Returns the big-endian bytes of an integer.
+	 *
+	 * @param value
+	 *            The integer.
+	 * @return four bytes
+	 */
+	private static byte[] intBytes(int value) {
+		return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+	}
+
+	/**
+	 * Fills the rest of an array from an inflater.
+	 *
+	 * @param inflater
+	 *            The inflater.
+	 * @param target
+	 *            The array.
+	 * @param offset
+	 *            The index from which the array is filled.
+	 * @throws IOException
+	 *             If the compressed input ends first, or is malformed.
+	 */
+	private static void inflate(Inflater inflater, byte[] target, int offset) throws IOException {
+		int filled = offset;
+		try {
+			while (filled < target.length) {
+				int count = inflater.inflate(target, filled, target.length - filled);
+				if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					throw new StreamCorruptedException("Compressed message shorter than its uncompressed length.");
+				}
+				filled += count;
+			}
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Malformed compressed message: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Checks that an inflater has reached the end of its stream, and of its
+	 * input.
+	 *
+	 * @param inflater
+	 *            The inflater, once all the expected bytes have been read.
+	 * @throws IOException
+	 *             If more output or input remains.
+	 */
+	private static void checkFinished(Inflater inflater) throws IOException {
+		try {
+			// Reading past the expected output consumes the end of the stream.
+			if (!inflater.finished() && inflater.inflate(new byte[1]) != 0) {
+				throw new StreamCorruptedException("Compressed message longer than its uncompressed length.");
+			}
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Malformed compressed message: " + e.getMessage());
+		}
+
+		if (!inflater.finished() || inflater.getRemaining() != 0) {
+			throw new StreamCorruptedException("Compressed message not ended.");
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package rmi.io;
+
+/**
+ * An encoded request or response, as carried by one frame.
+ *
+ * <p>
+ * A message has a head, holding the encoded call or result, and data: the
+ * contents of large byte arrays passed as arguments or returned, which are
+ * not copied into the head but referenced from it. The data arrays are
+ * written to the connection as they are, after the head, and on the receiving
+ * side are read straight into the arrays handed to the remote method or
+ * returned to the caller.
+ *
+ * <p>
+ * A message may also be compressed, in which case its head holds the deflated
+ * head and data of the original message, and it has no data of its own. The
+ * route of a request, the part of its head naming the methods called, is not
+ * deflated, so that it can be read without inflating the message.
+ *
+ * <p>
+ * The arrays of a message are shared, not copied. They must not be modified
+ * while the message is in use.
+ */
+public final class Message {
+
+	/**
+	 * An empty data list.
+	 */
+	static final byte[][] NO_DATA = new byte[0][];
+
+	/**
+	 * The encoded call or result.
+	 */
+	private final byte[] head;
+	/**
+	 * The data arrays referenced by the head, in order.
+	 */
+	private final byte[][] data;
+	/**
+	 * The call ID carried by the frame the message was read from, or
+	 * <code>0</code> for a message that has not been sent.
+	 */
+	private final long callId;
+	/**
+	 * Whether the head holds a compressed message.
+	 */
+	private final boolean compressed;
+	/**
+	 * The number of bytes at the start of the head that compression leaves
+	 * as they are: the route of a request encoded on this side, and
+	 * <code>0</code> for other messages.
+	 */
+	private final int routeLength;
+
+	/**
+	 * Creates an uncompressed message.
+	 *
+	 * @param callId
+	 *            The call ID of the frame, or <code>0</code>.
+	 * @param head
+	 *            The encoded call or result.
+	 * @param data
+	 *            The data arrays referenced by the head.
+	 */
+	Message(long callId, byte[] head, byte[][] data) {
+		this(callId, head, data, false);
+	}
+
+	/**
+	 * Creates a message.
+	 *
+	 * @param callId
+	 *            The call ID of the frame, or <code>0</code>.
+	 * @param head
+	 *            The encoded call or result, or the compressed message.
+	 * @param data
+	 *            The data arrays referenced by the head.
+	 * @param compressed
+	 *            Whether the head holds a compressed message.
+	 */
+	Message(long callId, byte[] head, byte[][] data, boolean compressed) {
+		this(callId, head, data, compressed, 0);
+	}
+
+	/**
+	 * Creates a message whose head starts with a route.
+	 *
+	 * @param callId
+	 *            The call ID of the frame, or <code>0</code>.
+	 * @param head
+	 *            The encoded call or result, or the compressed message.
+	 * @param data
+	 *            The data arrays referenced by the head.
+	 * @param compressed
+	 *            Whether the head holds a compressed message.
+	 * @param routeLength
+	 *            The number of bytes at the start of the head left as they
+	 *            are by compression.
+	 */
+	Message(long callId, byte[] head, byte[][] data, boolean compressed, int routeLength) {
+		this.callId = callId;
+		this.head = head;
+		this.data = data;
+		this.compressed = compressed;
+		this.routeLength = routeLength;
+	}
+
+	/**
+	 * Returns the call ID carried by the frame the message was read from.
+	 *
+	 * @return call ID, or <code>0</code> for a message that has not been sent
+	 */
+	public long getCallId() {
+		return callId;
+	}
+
+	/**
+	 * Checks whether the message is compressed.
+	 *
+	 * @return <code>true</code> if the head holds a compressed message
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Returns the number of bytes at the start of the head that compression
+	 * leaves as they are.
+	 *
+	 * @return route length, or <code>0</code> if the message was not encoded
+	 *         as a request on this side
+	 */
+	int getRouteLength() {
+		return routeLength;
+	}
+
+	/**
+	 * Returns the encoded call or result.
+	 *
+	 * @return head
+	 */
+	byte[] getHead() {
+		return head;
+	}
+
+	/**
+	 * Returns the data arrays referenced by the head.
+	 *
+	 * @return data arrays, in order; not copied
+	 */
+	byte[][] getData() {
+		return data;
+	}
+
+	/**
+	 * Returns a copy of the message for delivery within the same JVM. The data
+	 * arrays are copied, so that the values decoded from the copy share no
+	 * array with the values the message was encoded from. The head is shared:
+	 * decoding never hands it out.
+	 *
+	 * @return the copy
+	 */
+	public Message copy() {
+		byte[][] copied = new byte[data.length][];
+		for (int i = 0; i < data.length; i++) {
+			copied[i] = data[i].clone();
+		}
+		return new Message(callId, head, copied, compressed, routeLength);
+	}
+
+	/**
+	 * Returns the number of bytes the message takes in a frame, excluding the
+	 * frame length and call ID. Messages are only created within the frame
+	 * size limit, so the length fits in an <code>int</code>.
+	 *
+	 * @return encoded length
+	 */
+	public int length() {
+		int length = 5 + head.length;
+		for (byte[] array : data) {
+			length += array.length;
+		}
+		return length;
+	}
+}
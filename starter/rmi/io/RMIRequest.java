@@ -5,64 +5,118 @@
 package rmi.io;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * The {@code Serializable} class representing the remote method call sent from
- * stub to the skeleton.
+ * stub to the skeleton. It is written on the wire by {@link WireProtocol}.
  */
 public class RMIRequest implements Serializable {
 
 	private static final long serialVersionUID = -2462856798587765532L;
 
 	/**
-	 * The remote interface class name on which the remote method is called.
+	 * The fingerprint of the remote interface declaring the called method.
 	 */
-	private String className;
+	private long interfaceId;
 	/**
-	 * The remote method name that has been called.
+	 * The ordinal of the called method within its declaring interface.
 	 */
-	private String methodName;
+	private int methodId;
 	/**
 	 * The arguments objects passed to the remote method call.
 	 */
 	private Object[] arguments;
 	/**
-	 * The argument type names for the arguments being passed to the remote
-	 * method.
+	 * The ID correlating this request with its response on a multiplexed
+	 * connection.
 	 */
-	private String[] argumentTypes;
+	private long callId;
+	/**
+	 * The calls carried by a batch request, in the order they are to be
+	 * executed, or {@code null} if this is a single call.
+	 */
+	private List<RMIRequest> batch;
+	/**
+	 * The number of bytes the request took on the wire, before compression,
+	 * or <code>0</code> for a request that was not received.
+	 */
+	private int length;
+	/**
+	 * The time the caller allows the call, in milliseconds, or <code>0</code>
+	 * if the call has no deadline.
+	 */
+	private int timeout;
+	/**
+	 * The deadline of a received call, in the time base of
+	 * <code>System.nanoTime</code>. Set when the request is decoded, if it
+	 * has a timeout.
+	 */
+	private long deadline;
 
 	/**
 	 * The constructor to create an instance of {@code RMIRequest}.
 	 * 
-	 * @param className
-	 * @param methodName
+	 * @param interfaceId
+	 * @param methodId
 	 * @param arguments
-	 * @param argumentTypes
 	 */
-	public RMIRequest(String className, String methodName, Object[] arguments, String[] argumentTypes) {
-		this.className = className;
-		this.methodName = methodName;
+	public RMIRequest(long interfaceId, int methodId, Object[] arguments) {
+		this.interfaceId = interfaceId;
+		this.methodId = methodId;
 		this.arguments = ((arguments == null) ? new Object[] {} : arguments);
-		this.argumentTypes = ((argumentTypes == null) ? new String[] {} : argumentTypes);
 	}
 
 	/**
-	 * Returns the class name.
+	 * Creates a batch request, carrying several calls to be executed in order
+	 * by the skeleton and answered by a single batch response.
 	 * 
-	 * @return class name
+	 * @param calls
+	 *            the calls, in execution order
+	 * @return the batch request
 	 */
-	public String getClassName() {
-		return className;
+	public static RMIRequest batch(List<RMIRequest> calls) {
+		RMIRequest request = new RMIRequest(WireProtocol.BATCH_INTERFACE_ID, 0, null);
+		request.batch = calls;
+		return request;
 	}
 
 	/**
-	 * Returns the method name.
+	 * Checks whether this request is a batch of calls.
 	 * 
-	 * @return method name
+	 * @return {@code true} if the request was created by
+	 *         {@link #batch(List)}.
 	 */
-	public String getMethodName() {
-		return methodName;
+	public boolean isBatch() {
+		return batch != null;
+	}
+
+	/**
+	 * Returns the calls carried by a batch request.
+	 * 
+	 * @return calls in execution order, or {@code null} if this is a single
+	 *         call
+	 */
+	public List<RMIRequest> getBatch() {
+		return batch;
+	}
+
+	/**
+	 * Returns the fingerprint of the remote interface declaring the method.
+	 * 
+	 * @return interface fingerprint
+	 */
+	public long getInterfaceId() {
+		return interfaceId;
+	}
+
+	/**
+	 * Returns the ordinal of the method within its declaring interface.
+	 * 
+	 * @return method ordinal
+	 */
+	public int getMethodId() {
+		return methodId;
 	}
 
 	/**
@@ -75,12 +129,89 @@ public class RMIRequest implements Serializable {
 	}
 
 	/**
-	 * Returns the argument type names of the remote method.
+	 * Returns the number of bytes the request took on the wire, before
+	 * compression. For a call of a batch, this is its share of the batch.
+	 * 
+	 * @return encoded length, or <code>0</code> for a request that was not
+	 *         received
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Sets the number of bytes the request took on the wire.
+	 * 
+	 * @param length
+	 *            encoded length
+	 */
+	public void setLength(int length) {
+		this.length = length;
+	}
+
+	/**
+	 * Returns the time the caller allows the call.
+	 * 
+	 * @return timeout, in milliseconds, or <code>0</code> if the call has no
+	 *         deadline
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets the time the caller allows the call. The deadline of the call is
+	 * set from it when the request is received.
+	 * 
+	 * @param timeout
+	 *            timeout, in milliseconds, or <code>0</code> for no deadline
+	 * @throws IllegalArgumentException
+	 *             If the timeout is negative.
+	 */
+	public void setTimeout(int timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative: " + timeout);
+		}
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Returns the deadline of a received call.
+	 * 
+	 * @return deadline, in the time base of <code>System.nanoTime</code>;
+	 *         meaningful only if the request has a timeout
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Sets the deadline of a received call.
+	 * 
+	 * @param deadline
+	 *            deadline, in the time base of <code>System.nanoTime</code>
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Returns the ID correlating the request and its response.
+	 * 
+	 * @return call ID
+	 */
+	public long getCallId() {
+		return callId;
+	}
+
+	/**
+	 * Sets the ID correlating the request and its response.
 	 * 
-	 * @return {@code Array} of argument type names
+	 * @param callId
+	 *            call ID, unique among the calls in progress on a connection
 	 */
-	public String[] getArgumentTypes() {
-		return argumentTypes;
+	public void setCallId(long callId) {
+		this.callId = callId;
 	}
 
 }
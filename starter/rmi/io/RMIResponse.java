@@ -5,10 +5,12 @@
 package rmi.io;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * The {@code Serializable} class representing the remote method call response
- * including the return or exception from the skeleton to the stub.
+ * including the return or exception from the skeleton to the stub. It is
+ * written on the wire by {@link WireProtocol}.
  */
 public class RMIResponse implements Serializable {
 
@@ -22,6 +24,15 @@ public class RMIResponse implements Serializable {
 	 * The exception thrown by the remote method call.
 	 */
 	private Exception exception;
+	/**
+	 * The ID of the request this response answers.
+	 */
+	private long callId;
+	/**
+	 * The responses to the calls of a batch request, in the order of the
+	 * calls, or {@code null} if this answers a single call.
+	 */
+	private List<RMIResponse> batch;
 
 	/**
 	 * The constructor to create an instance of {@code RMIResponse}.
@@ -39,6 +50,39 @@ public class RMIResponse implements Serializable {
 		this.exception = exception;
 	}
 
+	/**
+	 * Creates the response to a batch request.
+	 * 
+	 * @param responses
+	 *            the responses to the calls, in the order of the calls
+	 * @return the batch response
+	 */
+	public static RMIResponse batch(List<RMIResponse> responses) {
+		RMIResponse response = new RMIResponse((Object) null);
+		response.batch = responses;
+		return response;
+	}
+
+	/**
+	 * Checks whether this response answers a batch request.
+	 * 
+	 * @return {@code true} if the response was created by
+	 *         {@link #batch(List)}.
+	 */
+	public boolean isBatch() {
+		return batch != null;
+	}
+
+	/**
+	 * Returns the responses to the calls of a batch request.
+	 * 
+	 * @return responses in the order of the calls, or {@code null} if this
+	 *         answers a single call
+	 */
+	public List<RMIResponse> getBatch() {
+		return batch;
+	}
+
 	/**
 	 * Returns the return value object of the remote method.
 	 * 
@@ -57,4 +101,23 @@ public class RMIResponse implements Serializable {
 		return exception;
 	}
 
+	/**
+	 * Returns the ID correlating the request and its response.
+	 * 
+	 * @return call ID
+	 */
+	public long getCallId() {
+		return callId;
+	}
+
+	/**
+	 * Sets the ID correlating the request and its response.
+	 * 
+	 * @param callId
+	 *            call ID, unique among the calls in progress on a connection
+	 */
+	public void setCallId(long callId) {
+		this.callId = callId;
+	}
+
 }
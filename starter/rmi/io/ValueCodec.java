@@ -0,0 +1,43 @@
+package rmi.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A hand-written encoder and decoder for the values of a single class, used in
+ * place of Java serialization when such values are passed as arguments or
+ * returned by remote calls.
+ *
+ * <p>
+ * Codecs are registered with {@link WireCodec#register(int, Class, ValueCodec)}
+ * under a tag that identifies the class on the wire.
+ *
+ * @param <V>
+ *            the class of values handled by the codec.
+ */
+public interface ValueCodec<V> {
+
+	/**
+	 * Writes a value.
+	 *
+	 * @param out
+	 *            The output to write to.
+	 * @param value
+	 *            The value to be written; never <code>null</code>.
+	 * @throws IOException
+	 *             If the value cannot be written.
+	 */
+	void write(DataOutput out, V value) throws IOException;
+
+	/**
+	 * Reads a value written by {@link #write(DataOutput, Object)}.
+	 *
+	 * @param in
+	 *            The input to read from.
+	 * @return the value read.
+	 * @throws IOException
+	 *             If the value cannot be read.
+	 */
+	V read(DataInput in) throws IOException;
+}
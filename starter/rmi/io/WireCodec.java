@@ -0,0 +1,441 @@
+package rmi.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import rmi.RMIException;
+
+/**
+ * The encoder and decoder for argument and return values on the wire.
+ *
+ * <p>
+ * Every value is written as a one-byte tag followed by its encoding.
+ * <code>null</code>, the primitive wrappers, strings and byte arrays have
+ * built-in encodings. Arrays of strings, or of any class with a registered
+ * codec, are written element by element. The exceptions commonly thrown by
+ * remote methods are written as a kind and a message when they carry no cause;
+ * the remote stack trace is not transmitted for them. Other classes may
+ * register a {@link ValueCodec}; <code>common.Path</code> does so.
+ *
+ * <p>
+ * Any other value is written with Java serialization, as a length-prefixed
+ * block. This covers stubs passed as arguments and exceptions with causes.
+ */
+public final class WireCodec {
+
+	/**
+	 * The smallest tag available to registered codecs. Smaller tags are
+	 * reserved for the built-in encodings.
+	 */
+	public static final int FIRST_USER_TAG = 32;
+	/**
+	 * The largest tag available to registered codecs.
+	 */
+	public static final int LAST_USER_TAG = 127;
+
+	private static final int NULL = 0;
+	private static final int TRUE = 1;
+	private static final int FALSE = 2;
+	private static final int BYTE = 3;
+	private static final int SHORT = 4;
+	private static final int CHAR = 5;
+	private static final int INT = 6;
+	private static final int LONG = 7;
+	private static final int FLOAT = 8;
+	private static final int DOUBLE = 9;
+	private static final int STRING = 10;
+	private static final int BYTES = 11;
+	private static final int ARRAY = 12;
+	private static final int EXCEPTION = 13;
+	private static final int SERIALIZED = 14;
+	/**
+	 * A byte array sent after the message head; see {@link WireProtocol}.
+	 * Never written by this class.
+	 */
+	static final int DATA = 15;
+
+	/**
+	 * The exception classes written as a kind and a message, indexed by kind.
+	 * Each has a constructor taking only the message.
+	 */
+	private static final Class<?>[] exceptionKinds = { FileNotFoundException.class, IOException.class,
+			IndexOutOfBoundsException.class, IllegalArgumentException.class, IllegalStateException.class,
+			NullPointerException.class, UnsupportedOperationException.class, RMIException.class };
+
+	/**
+	 * A codec registered for a class.
+	 */
+	private static final class Registration {
+		final int tag;
+		final Class<?> type;
+		final ValueCodec<Object> codec;
+
+		@SuppressWarnings("unchecked")
+		Registration(int tag, Class<?> type, ValueCodec<?> codec) {
+			this.tag = tag;
+			this.type = type;
+			this.codec = (ValueCodec<Object>) codec;
+		}
+	}
+
+	/**
+	 * Registered codecs by exact class.
+	 */
+	private static final ConcurrentHashMap<Class<?>, Registration> byClass = new ConcurrentHashMap<>();
+	/**
+	 * Registered codecs by tag.
+	 */
+	private static final AtomicReferenceArray<Registration> byTag = new AtomicReferenceArray<>(LAST_USER_TAG + 1);
+
+	private WireCodec() {
+	}
+
+	/**
+	 * Registers a codec for values of exactly the given class. Registration is
+	 * normally done in a static initializer of the class itself; both ends of
+	 * a connection must register the same codec under the same tag.
+	 *
+	 * @param tag
+	 *            The tag identifying the class on the wire, between
+	 *            {@link #FIRST_USER_TAG} and {@link #LAST_USER_TAG}.
+	 * @param type
+	 *            The class of values handled by the codec.
+	 * @param codec
+	 *            The codec.
+	 * @param <V>
+	 *            the class of values handled by the codec.
+	 * @throws IllegalArgumentException
+	 *             If the tag is out of range, or already registered for another
+	 *             class.
+	 * @throws NullPointerException
+	 *             If <code>type</code> or <code>codec</code> is
+	 *             <code>null</code>.
+	 */
+	public static synchronized <V> void register(int tag, Class<V> type, ValueCodec<V> codec) {
+		if (type == null || codec == null) {
+			throw new NullPointerException("Type and codec must be non-null.");
+		}
+		if (tag < FIRST_USER_TAG || tag > LAST_USER_TAG) {
+			throw new IllegalArgumentException("Tag out of range: " + tag);
+		}
+
+		Registration existing = byTag.get(tag);
+		if (existing != null && existing.type != type) {
+			throw new IllegalArgumentException("Tag " + tag + " already registered for " + existing.type.getName());
+		}
+
+		Registration registration = new Registration(tag, type, codec);
+		byTag.set(tag, registration);
+		byClass.put(type, registration);
+	}
+
+	/**
+	 * Writes a value.
+	 *
+	 * @param out
+	 *            The output to write to.
+	 * @param value
+	 *            The value to be written; may be <code>null</code>.
+	 * @throws IOException
+	 *             If the value cannot be written, or is not serializable.
+	 */
+	public static void writeValue(DataOutput out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+			return;
+		}
+
+		Class<?> type = value.getClass();
+		if (type == String.class) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		} else if (type == Boolean.class) {
+			out.writeByte(((Boolean) value) ? TRUE : FALSE);
+		} else if (type == Integer.class) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (type == Long.class) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (type == byte[].class) {
+			byte[] bytes = (byte[]) value;
+			out.writeByte(BYTES);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} else if (type == Byte.class) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (type == Short.class) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if (type == Character.class) {
+			out.writeByte(CHAR);
+			out.writeChar((Character) value);
+		} else if (type == Float.class) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (type == Double.class) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else {
+			Registration registration = byClass.get(type);
+			if (registration != null) {
+				out.writeByte(registration.tag);
+				registration.codec.write(out, value);
+			} else if (type.isArray() && elementTag(type.getComponentType()) >= 0) {
+				int length = Array.getLength(value);
+				out.writeByte(ARRAY);
+				out.writeByte(elementTag(type.getComponentType()));
+				out.writeInt(length);
+				for (int i = 0; i < length; i++) {
+					writeValue(out, Array.get(value, i));
+				}
+			} else if (exceptionKind(value) >= 0) {
+				out.writeByte(EXCEPTION);
+				out.writeByte(exceptionKind(value));
+				writeNullableString(out, ((Throwable) value).getMessage());
+			} else {
+				out.writeByte(SERIALIZED);
+				writeSerialized(out, value);
+			}
+		}
+	}
+
+	/**
+	 * Reads a value written by {@link #writeValue(DataOutput, Object)}.
+	 *
+	 * @param in
+	 *            The input to read from.
+	 * @return the value read; may be <code>null</code>.
+	 * @throws IOException
+	 *             If the value cannot be read.
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized value cannot be found.
+	 */
+	public static Object readValue(DataInput in) throws IOException, ClassNotFoundException {
+		return readValue(in.readUnsignedByte(), in);
+	}
+
+	/**
+	 * Reads a value whose tag has already been read.
+	 *
+	 * @param tag
+	 *            The tag.
+	 * @param in
+	 *            The input to read the rest of the value from.
+	 * @return the value read; may be <code>null</code>.
+	 * @throws IOException
+	 *             If the value cannot be read.
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized value cannot be found.
+	 */
+	static Object readValue(int tag, DataInput in) throws IOException, ClassNotFoundException {
+		switch (tag) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case BYTE:
+			return in.readByte();
+		case SHORT:
+			return in.readShort();
+		case CHAR:
+			return in.readChar();
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			return readString(in);
+		case BYTES:
+			byte[] bytes = new byte[readLength(in)];
+			in.readFully(bytes);
+			return bytes;
+		case ARRAY:
+			Class<?> componentType = elementType(in.readUnsignedByte());
+			Object array = Array.newInstance(componentType, readLength(in));
+			for (int i = 0; i < Array.getLength(array); i++) {
+				Array.set(array, i, readValue(in));
+			}
+			return array;
+		case EXCEPTION:
+			return readException(in.readUnsignedByte(), readNullableString(in));
+		case SERIALIZED:
+			return readSerialized(in);
+		default:
+			Registration registration = (tag <= LAST_USER_TAG) ? byTag.get(tag) : null;
+			if (registration == null) {
+				throw new StreamCorruptedException("Unknown value tag: " + tag);
+			}
+			return registration.codec.read(in);
+		}
+	}
+
+	/**
+	 * Writes a string as a length-prefixed block of UTF-8 bytes.
+	 *
+	 * @param out
+	 *            The output to write to.
+	 * @param value
+	 *            The string; must not be <code>null</code>.
+	 * @throws IOException
+	 *             If the string cannot be written.
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 *
+	 * @param in
+	 *            The input to read from.
+	 * @return the string read.
+	 * @throws IOException
+	 *             If the string cannot be read.
+	 */
+	public static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[readLength(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a string that may be <code>null</code>.
+	 */
+	private static void writeNullableString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			writeString(out, value);
+		}
+	}
+
+	/**
+	 * Reads a string that may be <code>null</code>.
+	 */
+	private static String readNullableString(DataInput in) throws IOException {
+		return in.readBoolean() ? readString(in) : null;
+	}
+
+	/**
+	 * Reads a length and checks that it is not negative.
+	 */
+	private static int readLength(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new StreamCorruptedException("Negative length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the tag under which elements of arrays of the given component
+	 * type are written, or -1 if such arrays are serialized whole.
+	 */
+	private static int elementTag(Class<?> componentType) {
+		if (componentType == String.class) {
+			return STRING;
+		}
+		Registration registration = byClass.get(componentType);
+		return (registration == null) ? -1 : registration.tag;
+	}
+
+	/**
+	 * Returns the component type of arrays whose elements are written under
+	 * the given tag.
+	 */
+	private static Class<?> elementType(int tag) throws IOException {
+		if (tag == STRING) {
+			return String.class;
+		}
+		Registration registration = (tag <= LAST_USER_TAG) ? byTag.get(tag) : null;
+		if (registration == null) {
+			throw new StreamCorruptedException("Unknown array element tag: " + tag);
+		}
+		return registration.type;
+	}
+
+	/**
+	 * Returns the kind under which the given exception is written, or -1 if it
+	 * must be serialized.
+	 */
+	private static int exceptionKind(Object value) {
+		if (!(value instanceof Throwable) || ((Throwable) value).getCause() != null) {
+			return -1;
+		}
+		for (int kind = 0; kind < exceptionKinds.length; kind++) {
+			if (exceptionKinds[kind] == value.getClass()) {
+				return kind;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Creates an exception of the given kind.
+	 */
+	private static Exception readException(int kind, String message) throws IOException {
+		switch (kind) {
+		case 0:
+			return new FileNotFoundException(message);
+		case 1:
+			return new IOException(message);
+		case 2:
+			return new IndexOutOfBoundsException(message);
+		case 3:
+			return new IllegalArgumentException(message);
+		case 4:
+			return new IllegalStateException(message);
+		case 5:
+			return new NullPointerException(message);
+		case 6:
+			return new UnsupportedOperationException(message);
+		case 7:
+			return new RMIException(message);
+		default:
+			throw new StreamCorruptedException("Unknown exception kind: " + kind);
+		}
+	}
+
+	/**
+	 * Writes a value with Java serialization, as a length-prefixed block.
+	 */
+	private static void writeSerialized(DataOutput out, Object value) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try (ObjectOutputStream stream = new ObjectOutputStream(buffer)) {
+			stream.writeObject(value);
+		}
+		out.writeInt(buffer.size());
+		out.write(buffer.toByteArray());
+	}
+
+	/**
+	 * Reads a value written with Java serialization.
+	 */
+	private static Object readSerialized(DataInput in) throws IOException, ClassNotFoundException {
+		byte[] bytes = new byte[readLength(in)];
+		in.readFully(bytes);
+		try (ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return stream.readObject();
+		}
+	}
+}
@@ -0,0 +1,925 @@
+package rmi.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The framing of requests and responses exchanged by stubs and skeletons.
+ *
+ * <p>
+ * A connection starts with each side sending a four-byte magic number, a
+ * protocol version, the optional features it is willing to use and an
+ * eight-byte client ID. A feature is used on the connection only if both sides
+ * offer it. The client ID tells apart the processes a skeleton serves, even
+ * when they share a host: each process picks one at random for its stubs, and
+ * skeletons send zero. After that, every
+ * message is a frame: a four-byte length followed by that many bytes of body.
+ * A frame body starts with the call ID, a flags byte and the length of the
+ * message head. In a request, the head holds the interface
+ * fingerprint, the method ordinal, the timeout of the call in milliseconds,
+ * zero for none, the argument count and the arguments. A timeout rather than
+ * an absolute deadline is sent, so that the clocks of the two hosts need not
+ * agree; the deadline runs from the time the receiver read the request. In a
+ * response, it holds a status byte telling a return value from an exception,
+ * and the value. Values are written by {@link WireCodec}.
+ *
+ * <p>
+ * Byte arrays of at least {@link #DATA_THRESHOLD} bytes passed as arguments or
+ * returned are not copied into the head. The head only records their length,
+ * and their contents follow the head, as the rest of the frame. They are
+ * written from the caller's array and read into the array handed to the
+ * receiver, with no encoding buffer in between; this is the path taken by
+ * file contents read from and written to storage servers.
+ *
+ * <p>
+ * On connections using {@link #FEATURE_COMPRESSION}, messages of at least
+ * {@link #COMPRESSION_THRESHOLD} bytes are deflated before they are sent,
+ * unless they do not shrink enough to be worth it, and the frame flags mark
+ * them as compressed. Path lists, directory listings and file contents all go
+ * through the same path. The route of a request, the fingerprint and ordinal
+ * of each method it calls, is never compressed: the thread reading the
+ * connection reads it with {@link #readRoute(Message)} to admit the call, and
+ * leaves inflating and decoding the rest to the thread running the call.
+ *
+ * <p>
+ * Messages are encoded, without the call ID, before a connection is chosen
+ * for them. A value that cannot be encoded therefore fails only its own call,
+ * and a request can be sent again on another connection without being encoded
+ * again.
+ *
+ * <p>
+ * A batch request carries several calls in one frame. In place of an
+ * interface fingerprint it has {@link #BATCH_INTERFACE_ID}, followed by the
+ * number of calls, the fingerprint and ordinal of each call, and the rest of
+ * the head of each call, length-prefixed. The skeleton
+ * answers with a single response, whose status marks it as a batch, followed
+ * by the number of responses and the head of each response, length-prefixed,
+ * in the order of the calls. The data of all the calls, or responses, follows
+ * in the same order.
+ */
+public final class WireProtocol {
+
+	/**
+	 * The magic number opening every connection.
+	 */
+	public static final int MAGIC = 0x444653ca;
+	/**
+	 * The protocol version sent after the magic number.
+	 */
+	public static final int VERSION = 6;
+	/**
+	 * The length of the connection header: magic number, protocol version,
+	 * features and client ID.
+	 */
+	public static final int HEADER_LENGTH = 20;
+	/**
+	 * The feature bit offering to compress messages.
+	 */
+	public static final int FEATURE_COMPRESSION = 1;
+	/**
+	 * The length from which messages are compressed on connections using
+	 * {@link #FEATURE_COMPRESSION}. Shorter messages gain too little to pay
+	 * for the compression.
+	 */
+	public static final int COMPRESSION_THRESHOLD = 1024;
+
+	/**
+	 * The interface fingerprint marking a batch request. No remote interface
+	 * has this fingerprint.
+	 */
+	public static final long BATCH_INTERFACE_ID = 0L;
+	/**
+	 * The length from which byte array arguments and return values are sent as
+	 * data after the message head, rather than copied into it.
+	 */
+	public static final int DATA_THRESHOLD = 4096;
+	/**
+	 * The largest frame body, bounded by the largest array the receiver can
+	 * allocate.
+	 */
+	private static final int MAX_FRAME_LENGTH = Integer.MAX_VALUE - 16;
+
+	private static final int STATUS_RETURN = 0;
+	private static final int STATUS_EXCEPTION = 1;
+	private static final int STATUS_BATCH = 2;
+
+	/**
+	 * The length of the route of a single call: interface fingerprint and
+	 * method ordinal.
+	 */
+	private static final int CALL_ROUTE_LENGTH = 10;
+	/**
+	 * The length of the route of a batch request before the routes of its
+	 * calls: batch fingerprint and call count.
+	 */
+	private static final int BATCH_ROUTE_LENGTH = 12;
+
+	/**
+	 * The frame flag marking a compressed message.
+	 */
+	private static final int FLAG_COMPRESSED = 1;
+	/**
+	 * The length of the frame body before the message head: call ID, flags and
+	 * head length.
+	 */
+	private static final int FRAME_PREFIX_LENGTH = 13;
+
+	private WireProtocol() {
+	}
+
+	/**
+	 * The connection header sent by the peer.
+	 */
+	public static final class Header {
+		/**
+		 * The feature bits the peer is willing to use.
+		 */
+		public final int features;
+		/**
+		 * The client ID of the peer; zero for a skeleton.
+		 */
+		public final long clientId;
+
+		Header(int features, long clientId) {
+			this.features = features;
+			this.clientId = clientId;
+		}
+	}
+
+	/**
+	 * The methods called by a request, read without decoding its arguments.
+	 */
+	public static final class Route {
+		/**
+		 * The interface fingerprint of each call, in order.
+		 */
+		public final long[] interfaceIds;
+		/**
+		 * The method ordinal of each call, in order.
+		 */
+		public final int[] methodIds;
+		/**
+		 * Whether the request is a batch, even of a single call.
+		 */
+		public final boolean batch;
+		/**
+		 * The number of bytes the route takes at the start of the head.
+		 */
+		final int length;
+
+		Route(long[] interfaceIds, int[] methodIds, boolean batch, int length) {
+			this.interfaceIds = interfaceIds;
+			this.methodIds = methodIds;
+			this.batch = batch;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Writes the magic number, protocol version, offered features and client
+	 * ID. The stream is not flushed.
+	 *
+	 * @param out
+	 *            The connection output stream.
+	 * @param features
+	 *            The feature bits this side is willing to use.
+	 * @param clientId
+	 *            The client ID of this side; zero for a skeleton.
+	 * @throws IOException
+	 *             If the header cannot be written.
+	 */
+	public static void writeHeader(DataOutputStream out, int features, long clientId) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(features);
+		out.writeLong(clientId);
+	}
+
+	/**
+	 * Reads and checks the header sent by the peer.
+	 *
+	 * @param in
+	 *            The connection input stream.
+	 * @return the features and client ID of the peer
+	 * @throws IOException
+	 *             If the header cannot be read, or the peer does not speak this
+	 *             protocol version.
+	 */
+	public static Header readHeader(DataInputStream in) throws IOException {
+		int magic = in.readInt();
+		int version = in.readInt();
+		int features = in.readInt();
+		long clientId = in.readLong();
+		if (magic != MAGIC) {
+			throw new StreamCorruptedException("Not an RMI connection.");
+		}
+		if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported protocol version: " + version);
+		}
+		return new Header(features, clientId);
+	}
+
+	/**
+	 * Compresses an encoded message, for a connection using
+	 * {@link #FEATURE_COMPRESSION}.
+	 *
+	 * @param message
+	 *            The message.
+	 * @return the compressed message, or <code>message</code> itself if it is
+	 *         shorter than {@link #COMPRESSION_THRESHOLD}, already compressed,
+	 *         or does not shrink enough
+	 */
+	public static Message compress(Message message) {
+		if (message.isCompressed() || message.length() < COMPRESSION_THRESHOLD) {
+			return message;
+		}
+		return Compression.deflate(message);
+	}
+
+	/**
+	 * Encodes a request.
+	 *
+	 * @param request
+	 *            The request.
+	 * @return encoded message
+	 * @throws IOException
+	 *             If an argument cannot be encoded, or the request is too large
+	 *             for a frame.
+	 */
+	public static Message encodeRequest(RMIRequest request) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(buffer);
+		ArrayList<byte[]> data = new ArrayList<>(0);
+
+		Object[] arguments = request.getArguments();
+		out.writeLong(request.getInterfaceId());
+		out.writeShort(request.getMethodId());
+		out.writeInt(request.getTimeout());
+		out.writeByte(arguments.length);
+		for (Object argument : arguments) {
+			writeValue(out, argument, data);
+		}
+
+		return newMessage(buffer.toByteArray(), data, CALL_ROUTE_LENGTH);
+	}
+
+	/**
+	 * Reads the methods called by a request, without inflating or decoding
+	 * the rest of it.
+	 *
+	 * @param message
+	 *            The message read by {@link #readFrame(DataInputStream)}.
+	 * @return the route of the request
+	 * @throws IOException
+	 *             If the route is malformed.
+	 */
+	public static Route readRoute(Message message) throws IOException {
+		byte[] head = message.getHead();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(head));
+
+		long interfaceId = in.readLong();
+		if (interfaceId != BATCH_INTERFACE_ID) {
+			return new Route(new long[] { interfaceId }, new int[] { in.readUnsignedShort() }, false,
+					CALL_ROUTE_LENGTH);
+		}
+
+		int count = in.readInt();
+		if (count < 0 || count > (head.length - BATCH_ROUTE_LENGTH) / CALL_ROUTE_LENGTH) {
+			throw new StreamCorruptedException("Malformed batch size: " + count);
+		}
+		long[] interfaceIds = new long[count];
+		int[] methodIds = new int[count];
+		for (int i = 0; i < count; i++) {
+			interfaceIds[i] = in.readLong();
+			if (interfaceIds[i] == BATCH_INTERFACE_ID) {
+				throw new StreamCorruptedException("Nested batch request.");
+			}
+			methodIds[i] = in.readUnsignedShort();
+		}
+		return new Route(interfaceIds, methodIds, true, BATCH_ROUTE_LENGTH + count * CALL_ROUTE_LENGTH);
+	}
+
+	/**
+	 * Decodes a request, including its call ID, received now.
+	 *
+	 * @param message
+	 *            The message read by {@link #readFrame(DataInputStream)}.
+	 * @return the request
+	 * @throws IOException
+	 *             If the message is malformed.
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized argument cannot be found.
+	 */
+	public static RMIRequest decodeRequest(Message message) throws IOException, ClassNotFoundException {
+		return decodeRequest(message, System.nanoTime());
+	}
+
+	/**
+	 * Decodes a request, including its call ID.
+	 *
+	 * @param message
+	 *            The message read by {@link #readFrame(DataInputStream)}.
+	 * @param received
+	 *            The time, from {@link System#nanoTime()}, at which the
+	 *            request was read, from which its deadline runs.
+	 * @return the request
+	 * @throws IOException
+	 *             If the message is malformed.
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized argument cannot be found.
+	 */
+	public static RMIRequest decodeRequest(Message message, long received)
+			throws IOException, ClassNotFoundException {
+		Route route = readRoute(message);
+		if (message.isCompressed()) {
+			message = Compression.inflate(message, route.length);
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(message.getHead()));
+		DataCursor data = new DataCursor(message.getData());
+		in.skipBytes(route.length);
+
+		RMIRequest request;
+		if (route.batch) {
+			ArrayList<RMIRequest> calls = new ArrayList<>(route.interfaceIds.length);
+			for (int i = 0; i < route.interfaceIds.length; i++) {
+				byte[] body = readBody(in);
+				int taken = data.taken();
+				DataInputStream call = new DataInputStream(new ByteArrayInputStream(body));
+				RMIRequest single = readCall(call, route.interfaceIds[i], route.methodIds[i], data, received);
+				single.setLength(4 + CALL_ROUTE_LENGTH + body.length + data.taken() - taken);
+				calls.add(single);
+			}
+			request = RMIRequest.batch(calls);
+		} else {
+			request = readCall(in, route.interfaceIds[0], route.methodIds[0], data, received);
+		}
+
+		data.checkConsumed();
+		request.setCallId(message.getCallId());
+		request.setLength(message.length());
+		return request;
+	}
+
+	/**
+	 * Reads the timeout and arguments of a single call.
+	 *
+	 * @param in
+	 *            The head, positioned after the route of the call.
+	 * @param interfaceId
+	 *            The interface fingerprint from the route.
+	 * @param methodId
+	 *            The method ordinal from the route.
+	 * @param data
+	 *            The data of the message.
+	 * @param received
+	 *            The time the request was received, from which its deadline
+	 *            runs.
+	 * @return the request, without call ID
+	 * @throws IOException
+	 *             If the head is malformed.
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized argument cannot be found.
+	 */
+	private static RMIRequest readCall(DataInputStream in, long interfaceId, int methodId, DataCursor data,
+			long received) throws IOException, ClassNotFoundException {
+		int timeout = in.readInt();
+		if (timeout < 0) {
+			throw new StreamCorruptedException("Malformed call timeout: " + timeout);
+		}
+		Object[] arguments = new Object[in.readUnsignedByte()];
+		for (int i = 0; i < arguments.length; i++) {
+			arguments[i] = readValue(in, data);
+		}
+
+		RMIRequest request = new RMIRequest(interfaceId, methodId, arguments);
+		request.setTimeout(timeout);
+		request.setDeadline(received + timeout * 1000000L);
+		return request;
+	}
+
+	/**
+	 * Encodes a batch request.
+	 *
+	 * @param calls
+	 *            The calls, each encoded by {@link #encodeRequest(RMIRequest)},
+	 *            in the order they are to be executed.
+	 * @return encoded message
+	 * @throws IOException
+	 *             If the batch is too large for a frame.
+	 */
+	public static Message encodeBatchRequest(List<Message> calls) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(buffer);
+		ArrayList<byte[]> data = new ArrayList<>(0);
+
+		// The routes of the calls are gathered ahead of their bodies, so that
+		// they stay readable when the rest of the batch is compressed.
+		out.writeLong(BATCH_INTERFACE_ID);
+		out.writeInt(calls.size());
+		for (Message call : calls) {
+			out.write(call.getHead(), 0, CALL_ROUTE_LENGTH);
+		}
+		for (Message call : calls) {
+			byte[] head = call.getHead();
+			out.writeInt(head.length - CALL_ROUTE_LENGTH);
+			out.write(head, CALL_ROUTE_LENGTH, head.length - CALL_ROUTE_LENGTH);
+			data.addAll(Arrays.asList(call.getData()));
+		}
+
+		return newMessage(buffer.toByteArray(), data, BATCH_ROUTE_LENGTH + calls.size() * CALL_ROUTE_LENGTH);
+	}
+
+	/**
+	 * Encodes a response.
+	 *
+	 * @param response
+	 *            The response.
+	 * @return encoded message
+	 * @throws IOException
+	 *             If the return value or exception cannot be encoded, or the
+	 *             response is too large for a frame.
+	 */
+	public static Message encodeResponse(RMIResponse response) throws IOException {
+		if (response.isBatch()) {
+			ArrayList<Message> responses = new ArrayList<>(response.getBatch().size());
+			for (RMIResponse single : response.getBatch()) {
+				responses.add(encodeResponse(single));
+			}
+			return encodeBatchResponse(responses);
+		}
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(buffer);
+		ArrayList<byte[]> data = new ArrayList<>(0);
+
+		if (response.getException() == null) {
+			out.writeByte(STATUS_RETURN);
+			writeValue(out, response.getReturnValue(), data);
+		} else {
+			out.writeByte(STATUS_EXCEPTION);
+			WireCodec.writeValue(out, response.getException());
+		}
+
+		return newMessage(buffer.toByteArray(), data, 0);
+	}
+
+	/**
+	 * Decodes a response, including its call ID.
+	 *
+	 * @param message
+	 *            The message read by {@link #readFrame(DataInputStream)}.
+	 * @return the response
+	 * @throws IOException
+	 *             If the message is malformed.
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized value cannot be found.
+	 */
+	public static RMIResponse decodeResponse(Message message) throws IOException, ClassNotFoundException {
+		if (message.isCompressed()) {
+			message = Compression.inflate(message, 0);
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(message.getHead()));
+		DataCursor data = new DataCursor(message.getData());
+
+		int status = in.readUnsignedByte();
+
+		RMIResponse response;
+		if (status == STATUS_BATCH) {
+			int count = readCount(in);
+			ArrayList<RMIResponse> responses = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				DataInputStream single = new DataInputStream(new ByteArrayInputStream(readBody(in)));
+				responses.add(readResult(single, single.readUnsignedByte(), data));
+			}
+			response = RMIResponse.batch(responses);
+		} else {
+			response = readResult(in, status, data);
+		}
+
+		data.checkConsumed();
+		response.setCallId(message.getCallId());
+		return response;
+	}
+
+	/**
+	 * Reads the return value or exception of a single call.
+	 *
+	 * @param in
+	 *            The head, positioned after the status byte.
+	 * @param status
+	 *            The status byte already read.
+	 * @param data
+	 *            The data of the message.
+	 * @return the response, without call ID
+	 * @throws IOException
+	 *             If the head is malformed.
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized value cannot be found.
+	 */
+	private static RMIResponse readResult(DataInputStream in, int status, DataCursor data)
+			throws IOException, ClassNotFoundException {
+		Object value = readValue(in, data);
+
+		if (status == STATUS_RETURN) {
+			return new RMIResponse(value);
+		} else if (status == STATUS_EXCEPTION && value instanceof Exception) {
+			return new RMIResponse((Exception) value);
+		} else {
+			throw new StreamCorruptedException("Malformed response status: " + status);
+		}
+	}
+
+	/**
+	 * Encodes the response to a batch request.
+	 *
+	 * @param responses
+	 *            The responses, each encoded by
+	 *            {@link #encodeResponse(RMIResponse)}, in the order of the
+	 *            calls.
+	 * @return encoded message
+	 * @throws IOException
+	 *             If the response is too large for a frame.
+	 */
+	public static Message encodeBatchResponse(List<Message> responses) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(buffer);
+		ArrayList<byte[]> data = new ArrayList<>(0);
+
+		out.writeByte(STATUS_BATCH);
+		out.writeInt(responses.size());
+		writeBodies(out, responses, data);
+
+		return newMessage(buffer.toByteArray(), data, 0);
+	}
+
+	/**
+	 * Writes an argument or return value, setting a large byte array aside as
+	 * data instead of copying it into the head.
+	 *
+	 * @param out
+	 *            The head.
+	 * @param value
+	 *            The value.
+	 * @param data
+	 *            The data of the message being encoded.
+	 * @throws IOException
+	 *             If the value cannot be encoded.
+	 */
+	private static void writeValue(DataOutputStream out, Object value, List<byte[]> data) throws IOException {
+		if (value instanceof byte[] && ((byte[]) value).length >= DATA_THRESHOLD) {
+			out.writeByte(WireCodec.DATA);
+			out.writeInt(((byte[]) value).length);
+			data.add((byte[]) value);
+		} else {
+			WireCodec.writeValue(out, value);
+		}
+	}
+
+	/**
+	 * Reads an argument or return value written by
+	 * {@link #writeValue(DataOutputStream, Object, List)}.
+	 *
+	 * @param in
+	 *            The head.
+	 * @param data
+	 *            The data of the message being decoded.
+	 * @return the value
+	 * @throws IOException
+	 *             If the value is malformed.
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized value cannot be found.
+	 */
+	private static Object readValue(DataInputStream in, DataCursor data) throws IOException, ClassNotFoundException {
+		int tag = in.readUnsignedByte();
+		if (tag == WireCodec.DATA) {
+			return data.take(in.readInt());
+		}
+		return WireCodec.readValue(tag, in);
+	}
+
+	/**
+	 * Writes length-prefixed message heads, and collects the data of the
+	 * messages.
+	 *
+	 * @param out
+	 *            The output stream.
+	 * @param messages
+	 *            The messages.
+	 * @param data
+	 *            The data of the enclosing message.
+	 * @throws IOException
+	 *             If the stream cannot be written.
+	 */
+	private static void writeBodies(DataOutputStream out, List<Message> messages, List<byte[]> data)
+			throws IOException {
+		for (Message message : messages) {
+			out.writeInt(message.getHead().length);
+			out.write(message.getHead());
+			data.addAll(Arrays.asList(message.getData()));
+		}
+	}
+
+	/**
+	 * Reads the number of calls or responses in a batch.
+	 *
+	 * @param in
+	 *            The head.
+	 * @return the count
+	 * @throws IOException
+	 *             If the count is negative, larger than the rest of the head
+	 *             can hold, or cannot be read.
+	 */
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		// Every entry takes at least its four-byte length.
+		if (count < 0 || count > in.available() / 4) {
+			throw new StreamCorruptedException("Malformed batch size: " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a length-prefixed head of a batch.
+	 *
+	 * @param in
+	 *            The enclosing head.
+	 * @return the head
+	 * @throws IOException
+	 *             If the length is negative or the head is truncated.
+	 */
+	private static byte[] readBody(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new StreamCorruptedException("Malformed batch entry length: " + length);
+		}
+
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return body;
+	}
+
+	/**
+	 * Creates a message, checking that it fits in a frame.
+	 *
+	 * @param head
+	 *            The head.
+	 * @param data
+	 *            The data.
+	 * @param routeLength
+	 *            The length of the route at the start of the head of a
+	 *            request, or <code>0</code>.
+	 * @return the message
+	 * @throws IOException
+	 *             If the message is too large for a frame.
+	 */
+	private static Message newMessage(byte[] head, List<byte[]> data, int routeLength) throws IOException {
+		long length = (long) FRAME_PREFIX_LENGTH + head.length;
+		for (byte[] array : data) {
+			length += array.length;
+		}
+		if (length > MAX_FRAME_LENGTH) {
+			throw new IOException("Message too large for a frame: " + length + " bytes.");
+		}
+
+		return new Message(0, head, data.isEmpty() ? Message.NO_DATA : data.toArray(new byte[data.size()][]), false,
+				routeLength);
+	}
+
+	/**
+	 * Writes a frame carrying an encoded message. The stream is not flushed.
+	 * The data of the message is written from its own arrays.
+	 *
+	 * @param out
+	 *            The connection output stream.
+	 * @param callId
+	 *            The call ID of the message.
+	 * @param message
+	 *            The message encoded by {@link #encodeRequest(RMIRequest)} or
+	 *            {@link #encodeResponse(RMIResponse)}.
+	 * @throws IOException
+	 *             If the frame cannot be written.
+	 */
+	public static void writeFrame(DataOutputStream out, long callId, Message message) throws IOException {
+		out.writeInt(8 + message.length());
+		out.writeLong(callId);
+		out.writeByte(message.isCompressed() ? FLAG_COMPRESSED : 0);
+		out.writeInt(message.getHead().length);
+		out.write(message.getHead());
+		for (byte[] array : message.getData()) {
+			out.write(array);
+		}
+	}
+
+	/**
+	 * Returns the buffers of a frame carrying an encoded message, for a
+	 * gathering write to a channel. The data of the message is wrapped, not
+	 * copied.
+	 *
+	 * @param callId
+	 *            The call ID of the message.
+	 * @param message
+	 *            The message encoded by {@link #encodeRequest(RMIRequest)} or
+	 *            {@link #encodeResponse(RMIResponse)}.
+	 * @return the frame buffers, ready to be written
+	 */
+	public static ByteBuffer[] frameBuffers(long callId, Message message) {
+		byte[] head = message.getHead();
+		byte[][] data = message.getData();
+		ByteBuffer[] buffers = new ByteBuffer[1 + data.length];
+
+		buffers[0] = ByteBuffer.allocate(4 + FRAME_PREFIX_LENGTH + head.length);
+		buffers[0].putInt(8 + message.length()).putLong(callId).put((byte) (message.isCompressed() ? FLAG_COMPRESSED : 0))
+				.putInt(head.length).put(head).flip();
+		for (int i = 0; i < data.length; i++) {
+			buffers[1 + i] = ByteBuffer.wrap(data[i]);
+		}
+		return buffers;
+	}
+
+	/**
+	 * Reads a frame. The data following the message head is read straight
+	 * into the array that decoding hands out, when the frame carries a single
+	 * byte array.
+	 *
+	 * @param in
+	 *            The connection input stream.
+	 * @return the message, carrying the call ID of the frame
+	 * @throws java.io.EOFException
+	 *             If the connection was closed before a frame started.
+	 * @throws IOException
+	 *             If the frame cannot be read.
+	 */
+	public static Message readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < FRAME_PREFIX_LENGTH) {
+			throw new StreamCorruptedException("Malformed frame length: " + length);
+		}
+
+		long callId = in.readLong();
+		boolean compressed = compressed(in.readUnsignedByte());
+		byte[] head = new byte[headLength(in.readInt(), length)];
+		in.readFully(head);
+
+		byte[][] data = Message.NO_DATA;
+		if (length > FRAME_PREFIX_LENGTH + head.length) {
+			data = new byte[][] { new byte[length - FRAME_PREFIX_LENGTH - head.length] };
+			in.readFully(data[0]);
+		}
+
+		return new Message(callId, head, data, compressed);
+	}
+
+	/**
+	 * Reads a frame from a buffer holding all of it.
+	 *
+	 * @param in
+	 *            The buffer, positioned at the frame length, with at least
+	 *            {@link #frameLength(ByteBuffer)} bytes remaining.
+	 * @return the message, carrying the call ID of the frame
+	 * @throws IOException
+	 *             If the frame is malformed.
+	 */
+	public static Message readFrame(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		if (length < FRAME_PREFIX_LENGTH) {
+			throw new StreamCorruptedException("Malformed frame length: " + length);
+		}
+
+		long callId = in.getLong();
+		boolean compressed = compressed(in.get() & 0xff);
+		byte[] head = new byte[headLength(in.getInt(), length)];
+		in.get(head);
+
+		byte[][] data = Message.NO_DATA;
+		if (length > FRAME_PREFIX_LENGTH + head.length) {
+			data = new byte[][] { new byte[length - FRAME_PREFIX_LENGTH - head.length] };
+			in.get(data[0]);
+		}
+
+		return new Message(callId, head, data, compressed);
+	}
+
+	/**
+	 * Returns the number of bytes taken by the frame starting at the position
+	 * of a buffer, including its length.
+	 *
+	 * @param in
+	 *            The buffer, with at least four bytes remaining.
+	 * @return frame size
+	 * @throws IOException
+	 *             If the frame length is malformed.
+	 */
+	public static int frameLength(ByteBuffer in) throws IOException {
+		int length = in.getInt(in.position());
+		if (length < FRAME_PREFIX_LENGTH || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Malformed frame length: " + length);
+		}
+		return 4 + length;
+	}
+
+	/**
+	 * Checks the flags of a frame.
+	 *
+	 * @return whether the frame carries a compressed message
+	 */
+	private static boolean compressed(int flags) throws IOException {
+		if ((flags & ~FLAG_COMPRESSED) != 0) {
+			throw new StreamCorruptedException("Unknown frame flags: " + flags);
+		}
+		return flags == FLAG_COMPRESSED;
+	}
+
+	/**
+	 * Checks the length of a message head against the length of its frame.
+	 */
+	private static int headLength(int headLength, int frameLength) throws IOException {
+		if (headLength < 0 || headLength > frameLength - FRAME_PREFIX_LENGTH) {
+			throw new StreamCorruptedException("Malformed message head length: " + headLength);
+		}
+		return headLength;
+	}
+
+	/**
+	 * The data of a message being decoded, handed out in order.
+	 *
+	 * <p>
+	 * A byte array spanning a whole data array is handed out as is. This is
+	 * always the case for messages decoded where they were encoded, and for
+	 * received messages carrying a single array. Otherwise, the array is
+	 * copied out of the data read.
+	 */
+	private static final class DataCursor {
+
+		private final byte[][] data;
+		private int index;
+		private int offset;
+		private int taken;
+
+		DataCursor(byte[][] data) {
+			this.data = data;
+		}
+
+		/**
+		 * Returns the next byte array.
+		 *
+		 * @param length
+		 *            The length of the array.
+		 * @return the array
+		 * @throws IOException
+		 *             If the message does not carry that many more bytes of
+		 *             data.
+		 */
+		byte[] take(int length) throws IOException {
+			if (length < 0 || index >= data.length || length > data[index].length - offset) {
+				throw new StreamCorruptedException("Message data too short for a byte array of length " + length);
+			}
+
+			byte[] current = data[index];
+			byte[] array;
+			if (offset == 0 && length == current.length) {
+				array = current;
+			} else {
+				array = Arrays.copyOfRange(current, offset, offset + length);
+			}
+
+			offset += length;
+			taken += length;
+			if (offset == current.length) {
+				index++;
+				offset = 0;
+			}
+			return array;
+		}
+
+		/**
+		 * Returns the number of bytes handed out so far.
+		 *
+		 * @return bytes taken
+		 */
+		int taken() {
+			return taken;
+		}
+
+		/**
+		 * Checks that all the data has been handed out.
+		 *
+		 * @throws IOException
+		 *             If data remains.
+		 */
+		void checkConsumed() throws IOException {
+			if (index < data.length) {
+				throw new StreamCorruptedException("Message data not consumed.");
+			}
+		}
+	}
+}
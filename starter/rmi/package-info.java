@@ -23,6 +23,86 @@
     provides methods for creating stubs. Each stub object is given the network
     address of the skeleton with which it is to communicate when it is created.
 
+    <p>
+    Connections between stubs and skeletons are persistent and multiplexed. A
+    stub places each call on a connection from the JVM-wide
+    <code>ConnectionPool</code>, so that consecutive calls to the same skeleton
+    do not pay for a new TCP connection each time. Many threads may have calls
+    in progress on one connection: each request carries a call ID, the skeleton
+    runs the calls concurrently, and responses are matched to their callers as
+    they arrive, in any order. The skeleton closes idle connections when it is
+    stopped.
+
+    <p>
+    Calls travel in a compact binary format defined in <code>rmi.io</code>
+    rather than as serialized objects. A method is identified by a fingerprint
+    of its interface and its ordinal within that interface, both derived from
+    the interface itself, so that stubs and skeletons agree on them without any
+    negotiation. Common argument and return types have hand-written encodings;
+    any other value is sent with Java serialization, and must therefore be
+    serializable.
+
+    <p>
+    By default a skeleton serves each connection and each call with its own
+    thread. A skeleton may instead use the selector transport, set with
+    <code>Skeleton.setTransport</code> or the <code>rmi.transport</code>
+    system property, in which a few I/O threads serve all connections and a
+    bounded pool runs the calls, so that a burst of clients does not create a
+    burst of threads.
+
+    <p>
+    With either transport, a skeleton runs a bounded number of calls at once
+    and queues a bounded number more; a call arriving beyond both fails at once
+    with an <code>OverloadedException</code>. Methods marked with
+    <code>Skeleton.prioritize</code> are admitted in a lane of their own, so
+    that, for instance, <code>unlock</code> calls never wait behind a crowd of
+    blocked <code>lock</code> calls. Methods marked with
+    <code>Skeleton.isolate</code>, such as <code>lock</code> itself, are
+    admitted in a third lane, so that such a crowd leaves the calls to every
+    other method room to run.
+
+    <p>
+    Skeletons also listen on a Unix domain socket named after their TCP port,
+    and stubs reach skeletons on the same host through it, bypassing the TCP
+    stack. Setting the <code>rmi.localSockets</code> system property to
+    <code>false</code> keeps all traffic on TCP.
+
+    <p>
+    Stubs for a skeleton running in the same JVM skip the network entirely and
+    call it in the calling thread. Arguments and results are still copied
+    through the wire encoding unless the skeleton is set to pass them by
+    reference with <code>Skeleton.setInProcess</code> or the
+    <code>rmi.inProcess</code> system property. Asynchronous stubs always go
+    through a connection.
+
+    <p>
+    A stub made with <code>Stub.withTimeout</code> gives each call a deadline.
+    The timeout travels with the request, so the skeleton drops a call whose
+    caller has already given up, and interrupts the thread of a call still
+    running at its deadline. The caller gets a
+    <code>DeadlineExceededException</code> when the deadline passes.
+
+    <p>
+    A remote method may return a <code>RemoteStream</code> of chunks rather
+    than a single large value. The skeleton keeps the stream and the stub
+    fetches its chunks as they are consumed, with a few requests in flight,
+    so that large files and directories move with bounded memory at both
+    ends.
+
+    <p>
+    A stub made with <code>Stub.createAsync</code> implements an
+    <em>asynchronous interface</em> mirroring a remote interface, in which each
+    method returns a <code>CompletableFuture</code> of the result. Calls on it
+    return as soon as the request is sent, so one thread may have calls in
+    progress to several skeletons at once. Asynchronous and synchronous stubs
+    share the same pooled connections.
+
+    <p>
+    Calls can also be gathered in a <code>Batch</code>: stubs obtained from the
+    batch queue their calls, and flushing the batch sends them all in one
+    request. The skeleton executes the calls in order and returns all their
+    results in one response.
+
     <p>
     To use the library, first define a <em>remote interface</em>: an interface
     in which all public methods are marked as throwing
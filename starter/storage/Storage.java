@@ -2,8 +2,11 @@ package storage;
 
 import java.io.*;
 
+import java.util.NoSuchElementException;
+
 import common.*;
 import rmi.RMIException;
+import rmi.RemoteStream;
 
 /** Storage server client interface.
 
@@ -14,6 +17,10 @@ import rmi.RMIException;
  */
 public interface Storage
 {
+    /** The length of the chunks of the streams returned by
+        <code>readStream</code>, except the last. */
+    public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
     /** Returns the length of a file, in bytes.
 
         @param file Path to the file.
@@ -46,6 +53,74 @@ public interface Storage
     public byte[] read(Path file, long offset, int length)
         throws RMIException, FileNotFoundException, IOException;
 
+    /** Reads a sequence of bytes from a file as a stream of chunks.
+
+        <p>
+        Unlike <code>read</code>, the sequence may be of any length, and is
+        never held in memory as a whole: it is returned in chunks of
+        {@link #STREAM_CHUNK_SIZE} bytes, the last of which may be shorter,
+        which are fetched from the server as they are consumed.
+
+        <p>
+        The default implementation reads each chunk with <code>read</code>.
+
+        @param file Path to the file.
+        @param offset Offset into the file to the beginning of the sequence.
+        @param length The number of bytes to be read.
+        @return A stream of the bytes read. If the stream is read to its end,
+                the number of bytes read is equal to the number of bytes
+                requested.
+        @throws IndexOutOfBoundsException If the sequence specified by
+                                          <code>offset</code> and
+                                          <code>length</code> is outside the
+                                          bounds of the file, or if
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file read cannot be completed on the server.
+                            Also thrown by the stream.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default RemoteStream<byte[]> readStream(final Path file,
+                                                   final long offset,
+                                                   final long length)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        if(offset < 0 || length < 0 || length > size(file) - offset)
+            throw new IndexOutOfBoundsException("Sequence outside the file.");
+
+        return new RemoteStream<byte[]>()
+        {
+            /** Offset of the next chunk. */
+            private long    position = offset;
+
+            @Override
+            public boolean hasNext()
+            {
+                return position < offset + length;
+            }
+
+            @Override
+            public byte[] next() throws RMIException, IOException
+            {
+                if(!hasNext())
+                    throw new NoSuchElementException("End of sequence.");
+
+                int     chunk = (int)Math.min(STREAM_CHUNK_SIZE,
+                                              offset + length - position);
+                byte[]  data = Storage.this.read(file, position, chunk);
+                position += chunk;
+                return data;
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
     /** Writes bytes to a file.
 
         @param file Path to the file.
@@ -4,8 +4,15 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import common.*;
 import rmi.*;
@@ -20,7 +27,17 @@ import naming.*;
  * local filesystem.
  */
 public class StorageServer implements Storage, Command {
-	
+
+	/**
+	 * The system property setting the interval, in milliseconds, at which the
+	 * storage server sends heartbeats to the naming server.
+	 */
+	public static final String HEARTBEAT_INTERVAL_PROPERTY = "storage.heartbeatInterval";
+	/**
+	 * The heartbeat interval, in milliseconds, when the property is not set.
+	 */
+	public static final long DEFAULT_HEARTBEAT_INTERVAL = 1000;
+
 	private File root;
 	private int clientPort;
 	private int commandPort;
@@ -31,6 +48,23 @@ public class StorageServer implements Storage, Command {
 	private boolean startedOnce;
 	private boolean active;
 
+	/**
+	 * Serializes access to the files under <code>root</code>. A lock rather than
+	 * a monitor, so that a virtual thread waiting for it, or holding it across
+	 * the remote calls of <code>copy</code>, does not pin its carrier thread.
+	 */
+	private final ReentrantLock fileLock = new ReentrantLock();
+	/**
+	 * The number of files under <code>root</code>, reported with each
+	 * heartbeat. Changed while holding <code>fileLock</code>, and read without
+	 * it, so that a heartbeat never waits for a long copy.
+	 */
+	private volatile int fileCount;
+	/**
+	 * Sends the heartbeats while the server runs.
+	 */
+	private ScheduledExecutorService heartbeats;
+
 	/**
 	 * Creates a storage server, given a directory on the local filesystem, and
 	 * ports to use for the client and command interfaces.
@@ -186,9 +220,11 @@ public class StorageServer implements Storage, Command {
 			ArrayList<Path> fileList = parseFiles(root, new Path(Path.pathSeparator), new ArrayList<Path>());
 
 			Path[] filesToDelete = naming_server.register(storageStub, commandStub, fileList.toArray(new Path[fileList.size()]));
+			fileCount = fileList.size();
 			for(Path path : filesToDelete) {
 				delete(path);
 			}
+			startHeartbeats(naming_server, storageStub);
 
 			startedOnce = true;
 			active = true;
@@ -210,6 +246,7 @@ public class StorageServer implements Storage, Command {
 	 */
 	public void stop() {
 		if (active) {
+			heartbeats.shutdownNow();
 			storageSkeleton.stop();
 			commandSkeleton.stop();
 			active = false;
@@ -218,6 +255,54 @@ public class StorageServer implements Storage, Command {
 		stopped(null);
 	}
 
+	/**
+	 * Starts sending heartbeats to the naming server, every
+	 * <code>storage.heartbeatInterval</code> milliseconds, until the server
+	 * stops. Each heartbeat carries the free space under <code>root</code>, the
+	 * number of files and the number of client calls in progress. A heartbeat
+	 * that fails is not retried: the next one follows at the usual interval.
+	 * 
+	 * @param naming_server
+	 *            The naming server the storage server registered with.
+	 * @param storageStub
+	 *            The client service stub given to the naming server.
+	 */
+	private void startHeartbeats(final Registration naming_server, final Storage storageStub) {
+		long interval = Long.getLong(HEARTBEAT_INTERVAL_PROPERTY, DEFAULT_HEARTBEAT_INTERVAL);
+		heartbeats = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "storage-heartbeat-" + storageSkeleton.getBindAddress().getPort());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		heartbeats.scheduleWithFixedDelay(new Runnable() {
+			/**
+			 * Whether the naming server has been found not to know this
+			 * server, which is reported once.
+			 */
+			private boolean unknown;
+
+			@Override
+			public void run() {
+				StorageStatus status = new StorageStatus(root.getUsableSpace(), fileCount,
+						storageSkeleton.getCallsInProgress());
+				try {
+					boolean registered = naming_server.heartbeat(storageStub, status);
+					if (!registered && !unknown) {
+						System.err.println("Storage server is not registered with the naming server: " + "Port: "
+								+ storageSkeleton.getBindAddress().getPort());
+					}
+					unknown = !registered;
+				} catch (RMIException e) {
+					// The naming server is unreachable; it suspects this server
+					// until a heartbeat gets through.
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * Called when the storage server has shut down.
 	 * 
@@ -230,149 +315,272 @@ public class StorageServer implements Storage, Command {
 
 	// The following methods are documented in Storage.java.
 	@Override
-	public synchronized long size(Path file) throws FileNotFoundException {
-		File f = file.toFile(root);
+	public long size(Path file) throws FileNotFoundException {
+		fileLock.lock();
+		try {
+			File f = file.toFile(root);
 
-		if (f != null && f.exists() && f.isFile()) {
-			return f.length();
-		} else {
-			throw new FileNotFoundException("Size cannot be obtained for File" + f);
+			if (f != null && f.exists() && f.isFile()) {
+				return f.length();
+			} else {
+				throw new FileNotFoundException("Size cannot be obtained for File" + f);
+			}
+		} finally {
+			fileLock.unlock();
 		}
 	}
 
 	@Override
-	public synchronized byte[] read(Path file, long offset, int length) throws FileNotFoundException, IOException {
-		File fileRead = file.toFile(root);
-		FileInputStream fis;
-		byte[] buffer;
-
-		if (fileRead != null && fileRead.exists()) {
-			if (fileRead.isFile()) {
-				if (offset >= 0 && offset + length <= size(file) && length >= 0) {
-					fis = new FileInputStream(fileRead);
-					fis.skip(offset);
-					buffer = new byte[length];
-					fis.read(buffer);
-					fis.close();
-					return buffer;
+	public byte[] read(Path file, long offset, int length) throws FileNotFoundException, IOException {
+		fileLock.lock();
+		try {
+			File fileRead = file.toFile(root);
+
+			if (fileRead != null && fileRead.exists()) {
+				if (fileRead.isFile()) {
+					if (offset >= 0 && offset + length <= size(file) && length >= 0) {
+						// Read straight into the array that is returned, and
+						// sent as is after the response head.
+						byte[] buffer = new byte[length];
+						try (FileChannel channel = FileChannel.open(fileRead.toPath(), StandardOpenOption.READ)) {
+							ByteBuffer target = ByteBuffer.wrap(buffer);
+							while (target.hasRemaining()) {
+								if (channel.read(target, offset + target.position()) < 0) {
+									throw new IOException("File shrank while being read.");
+								}
+							}
+						}
+						return buffer;
+					} else {
+						throw new IndexOutOfBoundsException("Length and offset should be positive");
+					}
 				} else {
-					throw new IndexOutOfBoundsException("Length and offset should be positive");
+					throw new FileNotFoundException("Not a file");
 				}
 			} else {
+				throw new FileNotFoundException("File doesn't exist");
+			}
+		} finally {
+			fileLock.unlock();
+		}
+	}
+
+	@Override
+	public RemoteStream<byte[]> readStream(Path file, final long offset, final long length)
+			throws FileNotFoundException, IOException {
+		final FileChannel channel;
+		fileLock.lock();
+		try {
+			File fileRead = file.toFile(root);
+
+			if (fileRead == null || !fileRead.exists()) {
+				throw new FileNotFoundException("File doesn't exist");
+			}
+			if (!fileRead.isFile()) {
 				throw new FileNotFoundException("Not a file");
 			}
-		} else {
-			throw new FileNotFoundException("File doesn't exist");
+			if (offset < 0 || length < 0 || length > fileRead.length() - offset) {
+				throw new IndexOutOfBoundsException("Sequence outside the file.");
+			}
+			channel = FileChannel.open(fileRead.toPath(), StandardOpenOption.READ);
+		} finally {
+			fileLock.unlock();
 		}
+
+		// The file stays open until the stream is closed, and each chunk is
+		// read under the file lock, as by read.
+		return new RemoteStream<byte[]>() {
+			private long position = offset;
+
+			@Override
+			public boolean hasNext() {
+				return position < offset + length;
+			}
+
+			@Override
+			public byte[] next() throws IOException {
+				if (!hasNext()) {
+					throw new NoSuchElementException("End of sequence.");
+				}
+
+				byte[] chunk = new byte[(int) Math.min(STREAM_CHUNK_SIZE, offset + length - position)];
+				fileLock.lock();
+				try {
+					ByteBuffer target = ByteBuffer.wrap(chunk);
+					while (target.hasRemaining()) {
+						if (channel.read(target, position + target.position()) < 0) {
+							throw new IOException("File shrank while being read.");
+						}
+					}
+				} finally {
+					fileLock.unlock();
+				}
+				position += chunk.length;
+				return chunk;
+			}
+
+			@Override
+			public void close() {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Nothing more can be done with it.
+				}
+			}
+		};
 	}
 
 	@Override
-	public synchronized void write(Path file, long offset, byte[] data) throws FileNotFoundException, IOException {
-		File fileToWrite = file.toFile(root);
-		FileChannel channel;
-		long bytesWritten;
-
-		if (fileToWrite.isFile()) {
-			if (offset >= 0) {
-				channel = new FileOutputStream(fileToWrite).getChannel();
-				channel.position(offset);
-				bytesWritten = channel.write(ByteBuffer.wrap(data));
-
-				if (data.length != bytesWritten) {
-					throw new IOException(
-							"Failed in writing data to the file. Wrote " + bytesWritten + " instead of " + data.length);
+	public void write(Path file, long offset, byte[] data) throws FileNotFoundException, IOException {
+		fileLock.lock();
+		try {
+			File fileToWrite = file.toFile(root);
+
+			if (fileToWrite.isFile()) {
+				if (offset >= 0) {
+					// Positional writes leave the rest of the file in place.
+					try (FileChannel channel = FileChannel.open(fileToWrite.toPath(), StandardOpenOption.WRITE)) {
+						ByteBuffer source = ByteBuffer.wrap(data);
+						while (source.hasRemaining()) {
+							channel.write(source, offset + source.position());
+						}
+					}
+				} else {
+					throw new IndexOutOfBoundsException("Offset cannot be negative.");
 				}
 			} else {
-				throw new IndexOutOfBoundsException("Offset cannot be negative.");
+				throw new FileNotFoundException(fileToWrite + " is not a file.");
 			}
-		} else {
-			throw new FileNotFoundException(fileToWrite + " is not a file.");
+		} finally {
+			fileLock.unlock();
 		}
 	}
 
 	// The following methods are documented in Command.java.
 	@Override
-	public synchronized boolean create(Path file) {
-		File fileToCreate = file.toFile(root);
-		if (file.isRoot()) {
-			return false;
-		}
+	public boolean create(Path file) {
+		fileLock.lock();
+		try {
+			File fileToCreate = file.toFile(root);
+			if (file.isRoot()) {
+				return false;
+			}
 
-		File parentFile = file.parent().toFile(root);
+			File parentFile = file.parent().toFile(root);
 
-		//if (!parentFile.isDirectory()) {
-			parentFile.mkdirs();
-		//}
+			//if (!parentFile.isDirectory()) {
+				parentFile.mkdirs();
+			//}
 
-		try {
-			return fileToCreate.createNewFile();
-		} catch (IOException e) {
-			return false;
+			try {
+				if (fileToCreate.createNewFile()) {
+					fileCount++;
+					return true;
+				}
+				return false;
+			} catch (IOException e) {
+				return false;
+			}
+		} finally {
+			fileLock.unlock();
 		}
 	}
 
 	@Override
-	public synchronized boolean delete(Path path) {
-		File fileToDelete = path.toFile(root);
+	public boolean delete(Path path) {
+		fileLock.lock();
+		try {
+			File fileToDelete = path.toFile(root);
 		
-		if (path.isRoot()) {
-			return false;
-		}
+			if (path.isRoot()) {
+				return false;
+			}
 		
-		Path parentPath = path.parent();
+			Path parentPath = path.parent();
 		
-		if (fileToDelete.isDirectory()) {
-			File[] fileList = fileToDelete.listFiles();
-
-			if (fileList != null) {
-				for (File fil : fileList) {
-					deleteDir(fil);
+			boolean isFile = fileToDelete.isFile();
+			if (fileToDelete.isDirectory()) {
+				File[] fileList = fileToDelete.listFiles();
+
+				if (fileList != null) {
+					for (File fil : fileList) {
+						fileCount -= deleteDir(fil);
+					}
 				}
-			}
 			
-		}
+			}
 		
-		boolean deleteSuccess = fileToDelete.delete();
-		while(!parentPath.isRoot() && parentPath.toFile(root).listFiles().length == 0) {
-			Path temp = parentPath.parent();
-			parentPath.toFile(root).delete();
-			parentPath = temp;
-		}
+			boolean deleteSuccess = fileToDelete.delete();
+			if (deleteSuccess && isFile) {
+				fileCount--;
+			}
+			while(!parentPath.isRoot() && parentPath.toFile(root).listFiles().length == 0) {
+				Path temp = parentPath.parent();
+				parentPath.toFile(root).delete();
+				parentPath = temp;
+			}
 		
-		return deleteSuccess;
+			return deleteSuccess;
+		} finally {
+			fileLock.unlock();
+		}
 	}
 
-	private boolean deleteDir(File f) {
+	/**
+	 * Deletes a file, or a directory and everything under it.
+	 * 
+	 * @param f
+	 *            The file or directory.
+	 * @return the number of files deleted, not counting directories.
+	 */
+	private int deleteDir(File f) {
 		File[] fileList = f.listFiles();
+		int deleted = 0;
 
 		if (fileList != null) {
 			for (File f1 : fileList) {
-				deleteDir(f1);
+				deleted += deleteDir(f1);
 			}
 		}
 
-		return f.delete();
+		boolean isFile = f.isFile();
+		if (f.delete() && isFile) {
+			deleted++;
+		}
+		return deleted;
 	}
 
 	@Override
-	public synchronized boolean copy(Path file, Storage server)
+	public boolean copy(Path file, Storage server)
 			throws RMIException, FileNotFoundException, IOException {
-		File f = file.toFile(root);
-		long fSize = server.size(file);
-		byte[] bytes;
-		int reads = Integer.MAX_VALUE;
+		fileLock.lock();
+		try {
+			File f = file.toFile(root);
+			long fSize = server.size(file);
 
-		if (f.exists()) {
-			f.delete();
-		}
-		create(file);
+			if (f.isFile() && f.delete()) {
+				fileCount--;
+			} else if (f.exists()) {
+				f.delete();
+			}
+			create(file);
+
+			// The file arrives as a stream of chunks, with a few chunk requests
+			// in flight, and is written as the chunks arrive, so that neither
+			// server holds more than a few chunks of it at a time.
+			try (RemoteStream<byte[]> chunks = server.readStream(file, 0, fSize);
+					FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+				while (chunks.hasNext()) {
+					ByteBuffer source = ByteBuffer.wrap(chunks.next());
+					while (source.hasRemaining()) {
+						channel.write(source);
+					}
+				}
+			}
 
-		for (long offset = 0; offset < fSize; offset += reads) {
-			reads = (int) Math.min(reads, fSize - offset);
-			bytes = server.read(file, offset, reads);
-			write(file, offset, bytes);
+			return true;
+		} finally {
+			fileLock.unlock();
 		}
-
-		return true;
 	}
 }
@@ -0,0 +1,91 @@
+package storage;
+
+import java.io.*;
+
+import rmi.io.ValueCodec;
+import rmi.io.WireCodec;
+
+/** State of a storage server, reported to the naming server with each
+    heartbeat.
+
+    <p>
+    The naming server uses the reports to tell live storage servers from dead
+    ones, and as inputs for choosing among them.
+ */
+public class StorageStatus implements Serializable
+{
+    private static final long serialVersionUID = 4702618842313651007L;
+
+    /** The tag under which reports are written by the RMI wire codec. */
+    public static final int WIRE_TAG = WireCodec.FIRST_USER_TAG + 1;
+
+    /** Bytes available for new data under the storage server root. */
+    private final long      freeSpace;
+    /** Number of files hosted. */
+    private final int       files;
+    /** Client calls running or waiting on the storage server. */
+    private final int       pendingCalls;
+
+    // Reports travel with every heartbeat, so they are written as their three
+    // fields rather than serialized.
+    static
+    {
+        WireCodec.register(WIRE_TAG, StorageStatus.class,
+                           new ValueCodec<StorageStatus>() {
+            @Override
+            public void write(DataOutput out, StorageStatus status)
+                throws IOException
+            {
+                out.writeLong(status.freeSpace);
+                out.writeInt(status.files);
+                out.writeInt(status.pendingCalls);
+            }
+
+            @Override
+            public StorageStatus read(DataInput in) throws IOException
+            {
+                return new StorageStatus(in.readLong(), in.readInt(),
+                                         in.readInt());
+            }
+        });
+    }
+
+    /** Creates a report.
+
+        @param freeSpace Bytes available for new data.
+        @param files Number of files hosted.
+        @param pendingCalls Client calls running or waiting.
+     */
+    public StorageStatus(long freeSpace, int files, int pendingCalls)
+    {
+        this.freeSpace = freeSpace;
+        this.files = files;
+        this.pendingCalls = pendingCalls;
+    }
+
+    /** Returns the number of bytes available for new data. */
+    public long getFreeSpace()
+    {
+        return freeSpace;
+    }
+
+    /** Returns the number of files hosted. */
+    public int getFiles()
+    {
+        return files;
+    }
+
+    /** Returns the number of client calls running or waiting on the storage
+        server when the report was made. */
+    public int getPendingCalls()
+    {
+        return pendingCalls;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "free " + freeSpace + " bytes, " + files + " files, " +
+               pendingCalls + " pending calls";
+    }
+}
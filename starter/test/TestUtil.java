@@ -60,4 +60,21 @@ public abstract class TestUtil
         // same elements.
         return multiset.isEmpty();
     }
+
+    /** Sleeps for the given time.
+
+        @param millis Time to sleep, in milliseconds.
+        @throws TestFailed If interrupted.
+     */
+    public static void sleep(long millis) throws TestFailed
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted");
+        }
+    }
 }
@@ -5,7 +5,29 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Tests performed are:
+    <ul>
+    <li>{@link naming.HeartbeatTest}</li>
+    <li>{@link naming.HotnessTest}</li>
+    <li>{@link naming.LeaseTest}</li>
+    <li>{@link naming.ListStreamTest}</li>
+    <li>{@link naming.LockAdmissionTest}</li>
+    <li>{@link naming.LockCancellationTest}</li>
+    <li>{@link naming.LockManagerTest}</li>
+    <li>{@link naming.PlacementTest}</li>
+    <li>{@link naming.ReplicaPolicyTest}</li>
+    <li>{@link rmi.AdmissionTest}</li>
+    <li>{@link rmi.AsyncStubTest}</li>
+    <li>{@link rmi.BatchTest}</li>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.DeadlineTest}</li>
+    <li>{@link rmi.InProcessTest}</li>
+    <li>{@link rmi.LocalSocketTest}</li>
+    <li>{@link rmi.SelectorTransportTest}</li>
+    <li>{@link rmi.StatsTest}</li>
+    <li>{@link rmi.StreamTest}</li>
+    <li>{@link rmi.io.WireCodecTest}</li>
+    </ul>
  */
 public class UnitTests
 {
@@ -18,7 +40,26 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {naming.HeartbeatTest.class,
+                         naming.HotnessTest.class,
+                         naming.LeaseTest.class,
+                         naming.ListStreamTest.class,
+                         naming.LockAdmissionTest.class,
+                         naming.LockCancellationTest.class,
+                         naming.LockManagerTest.class,
+                         naming.PlacementTest.class,
+                         naming.ReplicaPolicyTest.class,
+                         rmi.AdmissionTest.class,
+                         rmi.AsyncStubTest.class,
+                         rmi.BatchTest.class,
+                         rmi.ConnectionPoolTest.class,
+                         rmi.DeadlineTest.class,
+                         rmi.InProcessTest.class,
+                         rmi.LocalSocketTest.class,
+                         rmi.SelectorTransportTest.class,
+                         rmi.StatsTest.class,
+                         rmi.StreamTest.class,
+                         rmi.io.WireCodecTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
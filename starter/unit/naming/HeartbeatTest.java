@@ -0,0 +1,261 @@
+package naming;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import common.Path;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Unit tests for storage server heartbeats.
+
+    <p>
+    The test checks that a started storage server reports its state to the
+    naming server at a fixed interval, that the naming server stops handing
+    out a storage server that has stopped reporting, preferring a live replica
+    of the file, that it trusts storage servers that have never reported, and
+    that a suspected storage server is handed out again once it reports.
+ */
+public class HeartbeatTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage server heartbeats";
+
+    /** Heartbeat timeout of the naming server, in milliseconds. */
+    private static final long   TIMEOUT = 200;
+
+    /** Naming server, used without being started. */
+    private NamingServer        server;
+    /** Client stub of the first storage server, which is never started. */
+    private Storage             first;
+    /** Client stub of the second storage server, which is never started. */
+    private Storage             second;
+    /** Path of the file hosted by the first storage server. */
+    private Path                file;
+
+    /** Skeleton of the registration server receiving real heartbeats. */
+    private Skeleton<Registration>  registrationSkeleton;
+    /** Storage server sending real heartbeats. */
+    private StorageServer       storageServer;
+    /** Directory served by the storage server. */
+    private File                directory;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+        server.setHeartbeatTimeout(TIMEOUT);
+        // The test checks which servers are live, not how reads spread.
+        server.setReplicaPolicy(ReplicaPolicies.first());
+        first = Stub.create(Storage.class,
+                            new InetSocketAddress("127.0.0.1", 7022));
+        second = Stub.create(Storage.class,
+                             new InetSocketAddress("127.0.0.1", 7023));
+        file = new Path("/file");
+
+        server.register(first, command(7024), new Path[] {file});
+        server.register(second, command(7025), new Path[] {new Path("/other")});
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("trusting a storage server that never reported");
+
+        expectStorage(first);
+
+        task("rejecting heartbeats from unknown storage servers");
+
+        Storage     unknown = Stub.create(Storage.class,
+                                  new InetSocketAddress("127.0.0.1", 7026));
+        if(server.heartbeat(unknown, new StorageStatus(0, 0, 0)))
+            throw new TestFailed("heartbeat from unknown server accepted");
+
+        task("suspecting a storage server that stopped reporting");
+
+        server.heartbeat(first, new StorageStatus(0, 1, 0));
+        expectStorage(first);
+        TestUtil.sleep(3 * TIMEOUT);
+
+        try
+        {
+            server.getStorage(file);
+            throw new TestFailed("suspected storage server handed out");
+        }
+        catch(FileNotFoundException e) { }
+
+        task("preferring a live replica");
+
+        server.getNode(file).addStorage(info(second));
+        expectStorage(second);
+
+        task("recovering a suspected storage server");
+
+        server.heartbeat(first, new StorageStatus(0, 1, 0));
+        expectStorage(first);
+
+        task("sending heartbeats from a storage server");
+
+        checkStorageServer();
+
+        task();
+    }
+
+    /** Stops the servers started by the test. */
+    @Override
+    protected void clean()
+    {
+        if(storageServer != null)
+        {
+            storageServer.stop();
+            storageServer = null;
+        }
+
+        if(registrationSkeleton != null)
+        {
+            registrationSkeleton.stop();
+            registrationSkeleton = null;
+        }
+
+        if(directory != null)
+        {
+            new File(directory, "hosted").delete();
+            directory.delete();
+            directory = null;
+        }
+    }
+
+    /** Starts a storage server and checks the heartbeats it sends.
+
+        @throws TestFailed If heartbeats do not arrive, or report the wrong
+                           state.
+     */
+    private void checkStorageServer() throws TestFailed
+    {
+        Reports     reports = new Reports();
+
+        System.setProperty(StorageServer.HEARTBEAT_INTERVAL_PROPERTY, "50");
+        try
+        {
+            directory = Files.createTempDirectory("heartbeat").toFile();
+            new File(directory, "hosted").createNewFile();
+
+            registrationSkeleton = new Skeleton<Registration>(
+                Registration.class, reports,
+                new InetSocketAddress("127.0.0.1", 7021));
+            registrationSkeleton.start();
+
+            storageServer = new StorageServer(directory);
+            storageServer.start("127.0.0.1",
+                                Stub.create(Registration.class,
+                                            registrationSkeleton));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start storage server", t);
+        }
+        finally
+        {
+            System.clearProperty(StorageServer.HEARTBEAT_INTERVAL_PROPERTY);
+        }
+
+        for(int i = 0; i < 3; ++i)
+        {
+            StorageStatus   status;
+            try
+            {
+                status = reports.received.poll(2, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted");
+            }
+
+            if(status == null)
+                throw new TestFailed("no heartbeat received");
+            if(status.getFiles() != 1)
+                throw new TestFailed("wrong file count: " + status);
+            if(status.getFreeSpace() <= 0)
+                throw new TestFailed("no free space reported: " + status);
+        }
+    }
+
+    /** Checks that the naming server hands out the given storage server for
+        the test file.
+
+        @param expected The expected storage server.
+        @throws TestFailed If another storage server is handed out, or none.
+     */
+    private void expectStorage(Storage expected) throws TestFailed
+    {
+        try
+        {
+            if(!server.getStorage(file).equals(expected))
+                throw new TestFailed("wrong storage server handed out");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("no storage server handed out", t);
+        }
+    }
+
+    /** Returns the naming server record of a registered storage server.
+
+        @param stub Client stub of the storage server.
+        @throws TestFailed If the storage server is not registered.
+     */
+    private StorageInfo info(Storage stub) throws TestFailed
+    {
+        for(StorageInfo storage : server.availableStorages)
+        {
+            if(storage.clientStub.equals(stub))
+                return storage;
+        }
+
+        throw new TestFailed("storage server not registered");
+    }
+
+    /** Creates a command stub for a storage server that is never started.
+
+        @param port Port of the storage server.
+     */
+    private static Command command(int port)
+    {
+        return Stub.create(Command.class,
+                           new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /** Registration server recording the heartbeats it receives. */
+    private static class Reports implements Registration
+    {
+        /** States reported, in order of arrival. */
+        final BlockingQueue<StorageStatus>  received =
+            new ArrayBlockingQueue<>(1024);
+
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files)
+        {
+            return new Path[0];
+        }
+
+        @Override
+        public boolean heartbeat(Storage client_stub, StorageStatus status)
+        {
+            received.offer(status);
+            return true;
+        }
+    }
+}
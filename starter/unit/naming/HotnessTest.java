@@ -0,0 +1,260 @@
+package naming;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.Path;
+import rmi.*;
+import storage.*;
+
+import test.*;
+
+/** Unit tests for replication driven by file hotness.
+
+    <p>
+    The test checks that the heat of a file grows with reads and halves every
+    half-life, that the number of replicas a file wants follows its heat up to
+    the maximum, and that replicas are kept until the file has cooled to half
+    the heat that earned them. It then checks that a naming server gives a
+    file read in a burst all the copies it wants at once, and sheds them once
+    the file has cooled.
+ */
+public class HotnessTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking hotness-driven replication";
+
+    /** One millisecond, in nanoseconds. */
+    private static final long   MILLISECOND = 1000000L;
+    /** Half-life used by the naming server under test, in milliseconds. */
+    private static final long   HALF_LIFE = 100;
+
+    /** Command servers of the storage servers, which are never started. */
+    private CommandServer[]     commands;
+    /** Skeletons of the command servers. */
+    private ArrayList<Skeleton<Command>> skeletons;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("heating a file with reads");
+
+        HotnessTracker  tracker = new HotnessTracker(1000, 10, 4);
+        TreeNode        file = new TreeNode(null, "file",
+                                            TreeNode.NodeType.FILE);
+        long            start = 1000 * MILLISECOND;
+
+        int             wanted = 0;
+        for(int i = 0; i < 25; ++i)
+            wanted = tracker.recordRead(file, start);
+
+        if(wanted != 3)
+            throw new TestFailed("25 reads want " + wanted + " replicas");
+
+        task("cooling a file");
+
+        expectHeat(tracker, file, start + 1000 * MILLISECOND, 12.5);
+        expectTarget(tracker.targetReplicas(file, 3, start + 1000 * MILLISECOND),
+                     3);
+        expectHeat(tracker, file, start + 2000 * MILLISECOND, 6.25);
+        expectTarget(tracker.targetReplicas(file, 3, start + 2000 * MILLISECOND),
+                     2);
+        expectTarget(tracker.targetReplicas(file, 2, start + 6000 * MILLISECOND),
+                     1);
+
+        task("capping the replicas of a file");
+
+        for(int i = 0; i < 100; ++i)
+            wanted = tracker.recordRead(file, start + 6000 * MILLISECOND);
+
+        if(wanted != 4)
+            throw new TestFailed("100 reads want " + wanted + " replicas");
+
+        task("fanning out and shedding replicas");
+
+        checkNamingServer();
+
+        task();
+    }
+
+    /** Stops the command servers. */
+    @Override
+    protected void clean()
+    {
+        if(skeletons == null)
+            return;
+
+        for(Skeleton<Command> skeleton : skeletons)
+            skeleton.stop();
+        skeletons = null;
+    }
+
+    /** Checks that a naming server adds and sheds replicas of a file as it
+        heats and cools.
+
+        @throws TestFailed If the replicas are not added or shed.
+     */
+    private void checkNamingServer() throws TestFailed
+    {
+        commands = new CommandServer[3];
+        skeletons = new ArrayList<>(commands.length);
+
+        NamingServer    server;
+        System.setProperty(HotnessTracker.HALF_LIFE_PROPERTY,
+                           String.valueOf(HALF_LIFE));
+        System.setProperty(HotnessTracker.READS_PER_REPLICA_PROPERTY, "5");
+        try
+        {
+            server = new NamingServer();
+        }
+        finally
+        {
+            System.clearProperty(HotnessTracker.HALF_LIFE_PROPERTY);
+            System.clearProperty(HotnessTracker.READS_PER_REPLICA_PROPERTY);
+        }
+
+        Path            file = new Path("/file");
+        Storage[]       stubs = new Storage[commands.length];
+
+        for(int i = 0; i < commands.length; ++i)
+        {
+            commands[i] = new CommandServer();
+            Skeleton<Command>   skeleton =
+                new Skeleton<Command>(Command.class, commands[i],
+                    new InetSocketAddress("127.0.0.1", 7031 + i));
+            skeletons.add(skeleton);
+
+            try
+            {
+                skeleton.start();
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to start command server", t);
+            }
+
+            stubs[i] = Stub.create(Storage.class,
+                                   new InetSocketAddress("127.0.0.1", 7041 + i));
+            server.register(stubs[i],
+                            Stub.create(Command.class, skeleton),
+                            (i == 0) ? new Path[] {file} : new Path[0]);
+        }
+
+        // Fifteen reads want four replicas, as many as there are servers.
+        for(int i = 0; i < 15; ++i)
+        {
+            try
+            {
+                server.lock(file, false);
+                server.unlock(file, false);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to read " + file, t);
+            }
+        }
+
+        TreeNode        node = server.getNode(file);
+        awaitReplicas(node, 3);
+        if(commands[1].copies.get() != 1 || commands[2].copies.get() != 1)
+            throw new TestFailed("file not copied to every server");
+
+        TestUtil.sleep(10 * HALF_LIFE);
+        server.sweepReplicas();
+        awaitReplicas(node, 1);
+
+        if(!node.storages.get(0).clientStub.equals(stubs[0]))
+            throw new TestFailed("first copy of the file shed");
+        if(commands[1].deletes.get() != 1 || commands[2].deletes.get() != 1)
+            throw new TestFailed("extra copies not deleted");
+
+        server.sweepReplicas();
+        if(commands[0].deletes.get() != 0)
+            throw new TestFailed("last copy of the file deleted");
+    }
+
+    /** Waits for a file to have the given number of replicas.
+
+        @param node The node of the file.
+        @param replicas The number of replicas.
+        @throws TestFailed If the file does not have the replicas within two
+                           seconds.
+     */
+    private static void awaitReplicas(TreeNode node, int replicas)
+        throws TestFailed
+    {
+        long    deadline = System.currentTimeMillis() + 2000;
+
+        while(node.storages.size() != replicas)
+        {
+            if(System.currentTimeMillis() > deadline)
+            {
+                throw new TestFailed("file has " + node.storages.size() +
+                                     " replicas, expected " + replicas);
+            }
+
+            TestUtil.sleep(10);
+        }
+    }
+
+    /** Checks the heat of a file.
+
+        @throws TestFailed If the heat is not as expected.
+     */
+    private static void expectHeat(HotnessTracker tracker, TreeNode file,
+                                   long now, double expected)
+        throws TestFailed
+    {
+        double      heat = tracker.heat(file, now);
+        if(Math.abs(heat - expected) > 0.001)
+            throw new TestFailed("heat " + heat + ", expected " + expected);
+    }
+
+    /** Checks the number of replicas to keep.
+
+        @throws TestFailed If the number is not as expected.
+     */
+    private static void expectTarget(int target, int expected)
+        throws TestFailed
+    {
+        if(target != expected)
+        {
+            throw new TestFailed("target of " + target + " replicas, " +
+                                 "expected " + expected);
+        }
+    }
+
+    /** Command server counting the copies and deletions requested. */
+    private static class CommandServer implements Command
+    {
+        /** Copies requested. */
+        final AtomicInteger     copies = new AtomicInteger();
+        /** Deletions requested. */
+        final AtomicInteger     deletes = new AtomicInteger();
+
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            deletes.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean copy(Path file, Storage server)
+        {
+            copies.incrementAndGet();
+            return true;
+        }
+    }
+}
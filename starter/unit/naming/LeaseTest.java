@@ -0,0 +1,303 @@
+package naming;
+
+import java.net.InetSocketAddress;
+
+import common.Path;
+import rmi.*;
+
+import test.*;
+
+/** Unit tests for lock leases.
+
+    <p>
+    The test locks paths on a naming server through a stub calling over TCP,
+    so that the locks are leased to the test process. It checks that the
+    locks of a client that stops calling are released once its lease expires,
+    that any call from the client renews its lease, that a client waiting for
+    a lock keeps the locks it holds, however long it waits, and that a leased
+    lock cannot be released by another caller.
+ */
+public class LeaseTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking lock leases";
+
+    /** Lease period of the naming server under test, in milliseconds. */
+    private static final long   LEASE = 200;
+
+    /** Naming server under test. */
+    private NamingServer        server;
+    /** Skeleton of the naming server. */
+    private Skeleton<Service>   skeleton;
+    /** Stub calling the naming server as a remote client. */
+    private Service             client;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        System.setProperty(LockLeases.LEASE_PROPERTY, String.valueOf(LEASE));
+        try
+        {
+            server = new NamingServer();
+        }
+        finally
+        {
+            System.clearProperty(LockLeases.LEASE_PROPERTY);
+        }
+
+        skeleton = new Skeleton<Service>(Service.class, server,
+                                         new InetSocketAddress("127.0.0.1",
+                                                               7034));
+        skeleton.setInProcess(Skeleton.InProcess.OFF);
+        try
+        {
+            skeleton.start();
+            client = Stub.create(Service.class, skeleton);
+            client.createDirectory(new Path("/silent"));
+            client.createDirectory(new Path("/renewed"));
+            client.createDirectory(new Path("/held"));
+            client.createDirectory(new Path("/busy"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start naming server", t);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("reporting the lease period to clients");
+
+        try
+        {
+            if(client.getLeasePeriod() != LEASE)
+                throw new TestFailed("lease period reported incorrectly");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to get lease period", e);
+        }
+
+        task("releasing the locks of a silent client");
+
+        Path        silent = new Path("/silent");
+        clientLock(silent);
+        waitLeases(3);
+
+        try
+        {
+            client.unlock(silent, true);
+            throw new TestFailed("expired lock released by its client");
+        }
+        catch(IllegalArgumentException e)
+        {
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception releasing " +
+                                 "expired lock", t);
+        }
+
+        Locker      locker = new Locker(silent);
+        locker.start();
+        expectLocked(locker, true);
+        server.unlock(silent, true);
+
+        task("renewing a lease with other calls");
+
+        Path        renewed = new Path("/renewed");
+        clientLock(renewed);
+        for(int i = 0; i < 6; ++i)
+        {
+            TestUtil.sleep(LEASE / 2);
+            try
+            {
+                client.isDirectory(renewed);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to call naming server", t);
+            }
+            server.expireLeases();
+        }
+
+        locker = new Locker(renewed);
+        locker.start();
+        expectLocked(locker, false);
+        clientUnlock(renewed);
+        expectLocked(locker, true);
+        server.unlock(renewed, true);
+
+        task("keeping the lease of a waiting client");
+
+        Path        held = new Path("/held");
+        Path        busy = new Path("/busy");
+        try
+        {
+            server.lock(busy, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock " + busy, t);
+        }
+
+        clientLock(held);
+        Locker      waiting = new Locker(busy, client);
+        waiting.start();
+        waitLeases(3);
+
+        locker = new Locker(held);
+        locker.start();
+        expectLocked(locker, false);
+
+        task("keeping leased locks from other callers");
+
+        try
+        {
+            server.unlock(held, true);
+            throw new TestFailed("leased lock released by another caller");
+        }
+        catch(IllegalArgumentException e)
+        {
+        }
+
+        server.unlock(busy, true);
+        expectLocked(waiting, true);
+        clientUnlock(busy);
+        clientUnlock(held);
+        expectLocked(locker, true);
+        server.unlock(held, true);
+
+        task();
+    }
+
+    /** Locks a path for exclusive access through the client stub.
+
+        @throws TestFailed If the lock cannot be taken.
+     */
+    private void clientLock(Path path) throws TestFailed
+    {
+        try
+        {
+            client.lock(path, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock " + path, t);
+        }
+    }
+
+    /** Unlocks a path locked for exclusive access through the client stub.
+
+        @throws TestFailed If the lock cannot be released.
+     */
+    private void clientUnlock(Path path) throws TestFailed
+    {
+        try
+        {
+            client.unlock(path, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to unlock " + path, t);
+        }
+    }
+
+    /** Lets the given number of lease periods pass without calls from the
+        client, expiring leases along the way. */
+    private void waitLeases(int periods) throws TestFailed
+    {
+        for(int i = 0; i < 4 * periods; ++i)
+        {
+            TestUtil.sleep(LEASE / 4);
+            server.expireLeases();
+        }
+    }
+
+    /** Checks whether a locking thread has taken its lock.
+
+        @param locker The thread.
+        @param locked Whether the lock should be taken. If so, the thread is
+                      given two seconds to take it; if not, a tenth of a
+                      second.
+        @throws TestFailed If the thread is not in the expected state, or
+                           failed.
+     */
+    private static void expectLocked(Locker locker, boolean locked)
+        throws TestFailed
+    {
+        try
+        {
+            locker.join(locked ? 2000 : 100);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted");
+        }
+
+        if(locker.failure != null)
+            throw new TestFailed("unable to lock " + locker.path,
+                                 locker.failure);
+        if(locker.isAlive() == locked)
+        {
+            throw new TestFailed("lock on " + locker.path +
+                                 (locked ? " not" : "") + " granted");
+        }
+    }
+
+    /** Thread locking a path for exclusive access. */
+    private class Locker extends Thread
+    {
+        /** Path to lock. */
+        final Path                  path;
+        /** Naming server interface to lock through. */
+        private final Service       service;
+        /** Exception raised while locking, if any. */
+        volatile Throwable          failure;
+
+        /** Creates a thread locking the path directly on the server, without
+            a lease. */
+        Locker(Path path)
+        {
+            this(path, server);
+        }
+
+        /** Creates a thread locking the path through the given interface. */
+        Locker(Path path, Service service)
+        {
+            this.path = path;
+            this.service = service;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                service.lock(path, true);
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package naming;
+
+import java.io.IOException;
+import java.util.HashSet;
+
+import common.Path;
+import rmi.RemoteStream;
+
+import test.*;
+
+/** Unit tests for directory listings streamed by the naming server.
+
+    <p>
+    The test lists a directory of several chunks of entries, and checks that
+    each entry is returned once, in chunks no larger than the chunk size. It
+    then checks that a listing of a directory changed while it is read fails,
+    rather than returning entries twice or not at all.
+ */
+public class ListStreamTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking streamed directory listings";
+
+    /** Number of entries in the listed directory. */
+    private static final int    ENTRIES = 2 * Service.LIST_CHUNK_SIZE + 10;
+
+    /** Naming server under test. */
+    private NamingServer        server;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+        try
+        {
+            server.createDirectory(new Path("/listed"));
+            for(int i = 0; i < ENTRIES; ++i)
+                server.createDirectory(new Path("/listed/entry" + i));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create directory", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("listing a directory in chunks");
+
+        Path                    listed = new Path("/listed");
+        HashSet<String>         seen = new HashSet<>();
+        try(RemoteStream<String[]> stream = server.listStream(listed))
+        {
+            while(stream.hasNext())
+            {
+                String[]        chunk = stream.next();
+                if(chunk.length == 0 ||
+                   chunk.length > Service.LIST_CHUNK_SIZE)
+                {
+                    throw new TestFailed("chunk of " + chunk.length +
+                                         " entries returned");
+                }
+
+                for(String name : chunk)
+                {
+                    if(!seen.add(name))
+                        throw new TestFailed("entry " + name + " listed twice");
+                }
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to list directory", t);
+        }
+
+        if(seen.size() != ENTRIES)
+        {
+            throw new TestFailed(seen.size() + " entries listed instead of " +
+                                 ENTRIES);
+        }
+
+        task("failing the listing of a changed directory");
+
+        try(RemoteStream<String[]> stream = server.listStream(listed))
+        {
+            stream.next();
+            server.createDirectory(new Path("/listed/late"));
+
+            try
+            {
+                stream.next();
+                throw new TestFailed("changed directory listed");
+            }
+            catch(IOException e)
+            {
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to list directory", t);
+        }
+
+        task();
+    }
+}
@@ -0,0 +1,229 @@
+package naming;
+
+import java.net.InetSocketAddress;
+
+import common.Path;
+import rmi.*;
+import storage.*;
+
+import test.*;
+
+/** Unit tests for the admission of lock calls by the naming server.
+
+    <p>
+    The test starts a naming server whose skeletons run only a few calls at
+    once outside their priority lane, and calls it over TCP. It locks a file,
+    blocks more lock calls on the file than that limit, and checks that the
+    holder of the lock can still call <code>getStorage</code> before it
+    unlocks the file, and that the blocked calls are then granted in turn.
+ */
+public class LockAdmissionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the admission of naming server lock calls";
+
+    /** Number of calls the skeletons of the naming server run at once in
+        their normal lane. */
+    private static final int    MAX_CALLS = 4;
+    /** Number of lock calls blocked behind the holder of the lock. */
+    private static final int    WAITERS = 2 * MAX_CALLS;
+
+    /** Naming server under test. */
+    private NamingServer        server;
+    /** Stub calling the naming server as a remote client. */
+    private Service             client;
+    /** Client stub of the storage server, which is never started. */
+    private Storage             storage;
+    /** Path of the file locked. */
+    private Path                file;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        file = new Path("/file");
+        storage = Stub.create(Storage.class,
+                              new InetSocketAddress("127.0.0.1", 7026));
+
+        // Calls from this JVM must reach the skeletons over the network to
+        // go through their admission control.
+        System.setProperty(Skeleton.MAX_CALLS_PROPERTY,
+                           String.valueOf(MAX_CALLS));
+        System.setProperty(Skeleton.IN_PROCESS_PROPERTY, "off");
+        try
+        {
+            server = new NamingServer();
+            server.register(storage,
+                            Stub.create(Command.class,
+                                        new InetSocketAddress("127.0.0.1",
+                                                              7027)),
+                            new Path[] {file});
+            server.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start naming server", t);
+        }
+        finally
+        {
+            System.clearProperty(Skeleton.MAX_CALLS_PROPERTY);
+            System.clearProperty(Skeleton.IN_PROCESS_PROPERTY);
+        }
+
+        client = NamingStubs.service("127.0.0.1");
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("blocking more lock calls than the naming server runs at once");
+
+        try
+        {
+            client.lock(file, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock " + file, t);
+        }
+
+        Locker[]    lockers = new Locker[WAITERS];
+        for(int i = 0; i < lockers.length; ++i)
+        {
+            lockers[i] = new Locker();
+            lockers[i].start();
+        }
+
+        // Give the lock calls time to block in the naming server.
+        TestUtil.sleep(200);
+
+        for(Locker locker : lockers)
+        {
+            if(!locker.isAlive())
+                throw new TestFailed("lock granted to a second client");
+        }
+
+        task("looking up the storage of a locked file");
+
+        StorageLookup   lookup = new StorageLookup();
+        lookup.start();
+
+        try
+        {
+            lookup.join(5000);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted");
+        }
+
+        if(lookup.isAlive())
+            throw new TestFailed("getStorage queued behind blocked lock calls");
+        if(lookup.failure != null)
+            throw new TestFailed("unable to get storage", lookup.failure);
+        if(!storage.equals(lookup.result))
+            throw new TestFailed("getStorage returned the wrong storage");
+
+        task("granting the blocked lock calls");
+
+        try
+        {
+            client.unlock(file, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to unlock " + file, t);
+        }
+
+        for(Locker locker : lockers)
+        {
+            try
+            {
+                locker.join(5000);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted");
+            }
+
+            if(locker.isAlive())
+                throw new TestFailed("blocked lock call not granted");
+            if(locker.failure != null)
+                throw new TestFailed("blocked lock call failed",
+                                     locker.failure);
+        }
+
+        task();
+    }
+
+    /** Thread locking the file for exclusive access, then unlocking it. */
+    private class Locker extends Thread
+    {
+        /** Exception raised while locking or unlocking, if any. */
+        volatile Throwable          failure;
+
+        /** Creates the thread. */
+        Locker()
+        {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                client.lock(file, true);
+                client.unlock(file, true);
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+
+    /** Thread looking up the storage of the file. */
+    private class StorageLookup extends Thread
+    {
+        /** Storage returned, if any. */
+        volatile Storage            result;
+        /** Exception raised by the call, if any. */
+        volatile Throwable          failure;
+
+        /** Creates the thread. */
+        StorageLookup()
+        {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                result = client.getStorage(file);
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package naming;
+
+import java.util.concurrent.TimeUnit;
+
+import common.Path;
+import rmi.*;
+import test.*;
+
+/** Unit tests for interrupted lock requests.
+
+    <p>
+    The test checks that a thread waiting for a lock on the naming server
+    stops waiting when interrupted, and that its lock request is withdrawn, so
+    that the lock can still be granted to later requests once released.
+    It then makes a lock call over the network with a deadline, holds the
+    request back until the deadline has passed, and checks that the lock,
+    granted after the deadline, is not left held.
+ */
+public class LockCancellationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking interrupted lock requests";
+
+    /** Time allowed to the lock call made with a deadline, in
+        milliseconds. */
+    private static final int    TIMEOUT = 200;
+
+    /** Naming server, used without being started. */
+    private NamingServer        server;
+    /** Path of the root directory. */
+    private Path                root;
+    /** Naming server called over the network, once started. */
+    private NamingServer        remote;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+        root = new Path("/");
+    }
+
+    /** Stops the naming server called over the network. */
+    @Override
+    protected void clean()
+    {
+        if(remote != null)
+        {
+            remote.stop();
+            remote = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("locking the root directory");
+
+        try
+        {
+            server.lock(root, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock root directory", t);
+        }
+
+        task("interrupting a waiting lock request");
+
+        Locker      waiting = new Locker(server, root);
+        waiting.start();
+
+        try
+        {
+            // The request cannot be granted while the first lock is held.
+            waiting.join(200);
+            if(!waiting.isAlive())
+                throw new TestFailed("lock granted while held exclusively");
+
+            waiting.interrupt();
+            waiting.join(2000);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted");
+        }
+
+        if(waiting.isAlive())
+            throw new TestFailed("lock request not interrupted");
+        if(!(waiting.failure instanceof IllegalStateException))
+            throw new TestFailed("interrupted lock request did not fail",
+                                 waiting.failure);
+
+        task("granting the lock after release");
+
+        server.unlock(root, true);
+
+        Locker      later = new Locker(server, root);
+        later.start();
+
+        try
+        {
+            later.join(TimeUnit.SECONDS.toMillis(2));
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted");
+        }
+
+        if(later.isAlive())
+        {
+            later.interrupt();
+            throw new TestFailed("withdrawn lock request still queued");
+        }
+        if(later.failure != null)
+            throw new TestFailed("unable to lock root directory",
+                                 later.failure);
+
+        server.unlock(root, true);
+
+        task("granting a lock after the caller has given up");
+
+        checkExpired();
+
+        task();
+    }
+
+    /** Checks that a lock granted after the deadline of the call asking for
+        it is released. The lock call is held back on the tree lock of the
+        naming server, which it takes before queueing a request for an
+        exclusive lock on a file, until the deadline has passed.
+
+        @throws TestFailed If the lock is left held, or a call fails.
+     */
+    private void checkExpired() throws TestFailed
+    {
+        Path        file = new Path("/file");
+
+        // The call must reach the skeleton over the network for the caller
+        // to give up while the call is still running.
+        System.setProperty(Skeleton.IN_PROCESS_PROPERTY, "off");
+        try
+        {
+            remote = new NamingServer();
+            TreeNode    top = remote.getNode(root);
+            top.addChild(new TreeNode(top, "file", TreeNode.NodeType.FILE));
+            remote.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start naming server", t);
+        }
+        finally
+        {
+            System.clearProperty(Skeleton.IN_PROCESS_PROPERTY);
+        }
+
+        Service     timed = Stub.withTimeout(NamingStubs.service("127.0.0.1"),
+                                             TIMEOUT, TimeUnit.MILLISECONDS);
+        Throwable   thrown = null;
+
+        remote.treeLock.lock();
+        try
+        {
+            try
+            {
+                timed.lock(file, true);
+            }
+            catch(Throwable t)
+            {
+                thrown = t;
+            }
+
+            // The deadline of the call on the server runs from the time the
+            // request was read, so it passes a little after the caller gives
+            // up. A lock granted in between cannot be told from one granted
+            // in time, which is why Service.lock must not be called through a
+            // timed stub.
+            TestUtil.sleep(TIMEOUT);
+        }
+        finally
+        {
+            remote.treeLock.unlock();
+        }
+
+        if(!(thrown instanceof DeadlineExceededException))
+        {
+            throw new TestFailed("lock call held back past its deadline " +
+                                 "did not time out", thrown);
+        }
+
+        // The request is queued, and granted, once the tree lock is released.
+        Locker      later = new Locker(remote, file);
+        later.start();
+
+        try
+        {
+            later.join(TimeUnit.SECONDS.toMillis(2));
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted");
+        }
+
+        if(later.isAlive())
+        {
+            later.interrupt();
+            throw new TestFailed("lock granted after its deadline still held");
+        }
+        if(later.failure != null)
+            throw new TestFailed("unable to lock " + file, later.failure);
+
+        remote.unlock(file, true);
+    }
+
+    /** Thread requesting an exclusive lock. */
+    private class Locker extends Thread
+    {
+        /** Naming server asked for the lock. */
+        private final NamingServer  target;
+        /** Path locked. */
+        private final Path          path;
+        /** Exception thrown by the lock request, if any. */
+        volatile Throwable          failure;
+
+        /** Creates the thread.
+
+            @param target Naming server asked for the lock.
+            @param path Path locked.
+         */
+        Locker(NamingServer target, Path path)
+        {
+            this.target = target;
+            this.path = path;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                target.lock(path, true);
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+}
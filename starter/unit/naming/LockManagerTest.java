@@ -0,0 +1,524 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.Path;
+import test.*;
+
+/** Unit tests for the lock manager.
+
+    <p>
+    The test checks that locks on one path are granted in the order they are
+    requested, readers together and writers alone, that locks in disjoint
+    subtrees do not wait for each other, that a lock on a directory holds back
+    locks below it, that locks below a directory leave intention locks on it,
+    which hold back exclusive but not shared locks on the directory, that a
+    client can only release a lock it holds, and not one of a replica task,
+    including among many shared holders, and that a withdrawn request no
+    longer holds back the requests behind it, and that a request waiting for
+    a path that is deleted fails and leaves no intention locks. It measures the memory taking
+    and releasing locks allocates, which should be little more than the locks
+    themselves. Finally, it runs many threads
+    locking in their own directories and on a shared file, and checks that
+    exclusive locks on the shared file are never held at once.
+ */
+public class LockManagerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the lock manager";
+
+    /** Number of shared locks held on one file at once. */
+    private static final int    HOLDERS = 1000;
+    /** Number of rounds of locks taken to measure allocation. */
+    private static final int    ALLOCATION_ROUNDS = 20000;
+    /** Most memory, in bytes, taking and releasing a lock may allocate. The
+        lock itself takes about half of it. */
+    private static final long   MAX_BYTES_PER_LOCK = 96;
+    /** Number of threads in the concurrent run. */
+    private static final int    THREADS = 8;
+    /** Number of locks each thread takes in the concurrent run. */
+    private static final int    ROUNDS = 2000;
+
+    /** Root of the test tree. */
+    private TreeNode            root;
+    /** Lock manager of the test tree. */
+    private LockManager         manager;
+    /** Number of lock requests made, used as their identifiers. */
+    private int                 requests = 0;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        root = new TreeNode();
+        TreeNode    a = root.addChild(new TreeNode(root, "a",
+                                          TreeNode.NodeType.DIRECTORY));
+        TreeNode    b = root.addChild(new TreeNode(root, "b",
+                                          TreeNode.NodeType.DIRECTORY));
+        a.addChild(new TreeNode(a, "file", TreeNode.NodeType.FILE));
+        b.addChild(new TreeNode(b, "file", TreeNode.NodeType.FILE));
+        manager = new LockManager(root);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("granting locks on a file in order");
+
+        Path        file = new Path("/a/file");
+        DfsLock     writer = request(file, true);
+        DfsLock     reader = request(file, false);
+        DfsLock     nextWriter = request(file, true);
+        DfsLock     lastReader = request(file, false);
+
+        expectGranted(writer, true);
+        expectGranted(reader, false);
+
+        manager.release(writer);
+        expectGranted(reader, true);
+        expectGranted(nextWriter, false);
+        expectGranted(lastReader, false);
+
+        manager.release(reader);
+        expectGranted(nextWriter, true);
+        expectGranted(lastReader, false);
+
+        manager.release(nextWriter);
+        expectGranted(lastReader, true);
+        manager.release(lastReader);
+
+        task("granting locks in disjoint subtrees");
+
+        writer = request(file, true);
+        DfsLock     other = request(new Path("/b/file"), true);
+        expectGranted(writer, true);
+        expectGranted(other, true);
+        manager.release(writer);
+        manager.release(other);
+
+        task("holding back locks below a locked directory");
+
+        DfsLock     directory = request(new Path("/a"), true);
+        reader = request(file, false);
+        other = request(new Path("/b/file"), false);
+        expectGranted(directory, true);
+        expectGranted(reader, false);
+        expectGranted(other, true);
+
+        manager.release(directory);
+        expectGranted(reader, true);
+        manager.release(reader);
+        manager.release(other);
+
+        task("leaving intention locks on directories");
+
+        TreeNode    a = root.getChild("a");
+        writer = request(file, true);
+        reader = request(new Path("/b/file"), false);
+        expectIntentions(root, 1, 1);
+        expectIntentions(a, 0, 1);
+
+        DfsLock     shared = request(new Path("/a"), false);
+        directory = request(new Path("/a"), true);
+        DfsLock     sharedRoot = request(new Path("/"), false);
+        expectGranted(shared, true);
+        expectGranted(directory, false);
+        expectGranted(sharedRoot, true);
+
+        manager.release(writer);
+        expectIntentions(a, 0, 0);
+        expectGranted(directory, false);
+        manager.release(shared);
+        expectGranted(directory, true);
+
+        manager.release(directory);
+        manager.release(reader);
+        manager.release(sharedRoot);
+        expectIntentions(root, 0, 0);
+
+        task("releasing only locks that are held");
+
+        TreeNode    node = root.getChild("a").getChild("file");
+        reader = request(file, false);
+        if(manager.releaseHeld(node, true) != null)
+            throw new TestFailed("exclusive lock released, none held");
+        if(manager.releaseHeld(node, false) == null)
+            throw new TestFailed("shared lock held not released");
+        if(manager.releaseHeld(node, false) != null)
+            throw new TestFailed("shared lock released twice");
+
+        DfsLock     internal = new DfsLock(requests++, file, false, true);
+        manager.enqueue(internal);
+        expectGranted(internal, true);
+        if(manager.releaseHeld(node, false) != null)
+            throw new TestFailed("shared lock of a replica task released");
+        manager.release(internal);
+
+        for(int i = 0; i < HOLDERS; ++i)
+            request(file, false);
+        writer = request(file, true);
+        for(int i = 0; i < HOLDERS; ++i)
+        {
+            expectGranted(writer, false);
+            if(manager.releaseHeld(node, false) == null)
+                throw new TestFailed("shared lock " + i + " not released");
+        }
+        expectGranted(writer, true);
+        manager.release(writer);
+
+        task("withdrawing a waiting request");
+
+        reader = request(file, false);
+        writer = request(file, true);
+        DfsLock     behind = request(file, false);
+        expectGranted(writer, false);
+        expectGranted(behind, false);
+
+        manager.withdraw(writer);
+        expectGranted(behind, true);
+        manager.release(reader);
+        manager.release(behind);
+        expectIntentions(root, 0, 0);
+        expectIntentions(root.getChild("a"), 0, 0);
+
+        task("failing a request whose path is deleted while it waits");
+
+        checkDeleted();
+
+        task("locking without allocating");
+
+        checkAllocation();
+
+        task("locking from many threads");
+
+        checkConcurrent();
+
+        task();
+    }
+
+    /** Checks that a lock requested on a file through a naming server, and
+        held back by an exclusive lock on its directory, fails with
+        <code>FileNotFoundException</code> when the file is deleted before the
+        directory is unlocked, and that no intention locks are left behind.
+
+        @throws TestFailed If the request does not fail as expected.
+     */
+    private void checkDeleted() throws TestFailed
+    {
+        final NamingServer  server = new NamingServer();
+        Path                directory = new Path("/directory");
+        final Path          file = new Path("/directory/file");
+        final Throwable[]   failure = new Throwable[1];
+
+        TreeNode            parent;
+        try
+        {
+            server.createDirectory(directory);
+            parent = server.getNode(directory);
+            parent.addChild(new TreeNode(parent, "file",
+                                         TreeNode.NodeType.FILE));
+            server.lock(directory, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock directory", t);
+        }
+
+        Thread              locker = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    server.lock(file, false);
+                }
+                catch(Throwable t)
+                {
+                    failure[0] = t;
+                }
+            }
+        });
+        locker.setDaemon(true);
+        locker.start();
+
+        // Wait for the request to be held back at the directory.
+        long                deadline = System.currentTimeMillis() + 5000;
+        while(true)
+        {
+            parent.latch.lock();
+            try
+            {
+                if(!parent.pendingLocks.isEmpty())
+                    break;
+            }
+            finally
+            {
+                parent.latch.unlock();
+            }
+
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("request not queued at directory");
+            Thread.yield();
+        }
+
+        try
+        {
+            server.delete(file);
+            server.unlock(directory, true);
+            locker.join(5000);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to delete file", t);
+        }
+
+        if(locker.isAlive())
+            throw new TestFailed("request on deleted file still waiting");
+        if(!(failure[0] instanceof FileNotFoundException))
+        {
+            throw new TestFailed("request on deleted file did not fail " +
+                                 "with FileNotFoundException", failure[0]);
+        }
+
+        expectIntentions(server.getNode(new Path("/")), 0, 0);
+        expectIntentions(parent, 0, 0);
+    }
+
+    /** Checks that taking and releasing locks through a naming server
+        allocates little more than the locks themselves. The check is skipped
+        if the virtual machine does not count the memory each thread
+        allocates.
+
+        @throws TestFailed If locking allocates too much, or fails.
+     */
+    private void checkAllocation() throws TestFailed
+    {
+        ThreadMXBean    threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean))
+            return;
+
+        com.sun.management.ThreadMXBean allocations =
+            (com.sun.management.ThreadMXBean)threads;
+        if(!allocations.isThreadAllocatedMemorySupported() ||
+           !allocations.isThreadAllocatedMemoryEnabled())
+        {
+            return;
+        }
+
+        NamingServer    server = new NamingServer();
+        Path            directory = new Path("/directory");
+        Path            file = new Path("/directory/file");
+        long            thread = Thread.currentThread().getId();
+
+        try
+        {
+            server.createDirectory(directory);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create directory", t);
+        }
+        TreeNode        parent = server.getNode(directory);
+        parent.addChild(new TreeNode(parent, "file",
+                                     TreeNode.NodeType.FILE));
+
+        // Warm up, so that the measured run is not charged for compilation
+        // or for the first use of any structure.
+        lockAndUnlock(server, directory, file, ALLOCATION_ROUNDS);
+
+        long            before = allocations.getThreadAllocatedBytes(thread);
+        lockAndUnlock(server, directory, file, ALLOCATION_ROUNDS);
+        long            after = allocations.getThreadAllocatedBytes(thread);
+
+        long            perLock = (after - before) / (4L * ALLOCATION_ROUNDS);
+        if(perLock > MAX_BYTES_PER_LOCK)
+        {
+            throw new TestFailed("locking allocates " + perLock +
+                                 " bytes per lock");
+        }
+    }
+
+    /** Takes and releases shared and exclusive locks on a directory and a
+        file.
+
+        @throws TestFailed If locking fails.
+     */
+    private static void lockAndUnlock(NamingServer server, Path directory,
+                                      Path file, int rounds)
+        throws TestFailed
+    {
+        try
+        {
+            for(int round = 0; round < rounds; ++round)
+            {
+                server.lock(directory, false);
+                server.unlock(directory, false);
+                server.lock(directory, true);
+                server.unlock(directory, true);
+                server.lock(file, false);
+                server.unlock(file, false);
+                server.lock(file, true);
+                server.unlock(file, true);
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock", t);
+        }
+    }
+
+    /** Runs threads locking in their own directories and on a shared file,
+        and checks that no two hold an exclusive lock on the shared file at
+        once.
+
+        @throws TestFailed If exclusive locks overlap, or a thread fails.
+     */
+    private void checkConcurrent() throws TestFailed
+    {
+        final NamingServer      server = new NamingServer();
+        final Path              shared = new Path("/shared");
+        final AtomicInteger     holders = new AtomicInteger();
+        final AtomicInteger     overlaps = new AtomicInteger();
+        final Throwable[]       failures = new Throwable[THREADS];
+        Thread[]                threads = new Thread[THREADS];
+
+        try
+        {
+            server.createDirectory(shared);
+            for(int i = 0; i < THREADS; ++i)
+                server.createDirectory(new Path("/own" + i));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create directories", t);
+        }
+
+        for(int i = 0; i < THREADS; ++i)
+        {
+            final int   index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    Path    own = new Path("/own" + index);
+                    try
+                    {
+                        for(int round = 0; round < ROUNDS; ++round)
+                        {
+                            server.lock(own, (round % 2) == 0);
+                            server.unlock(own, (round % 2) == 0);
+
+                            if(round % 10 != 0)
+                                continue;
+
+                            server.lock(shared, true);
+                            if(holders.incrementAndGet() != 1)
+                                overlaps.incrementAndGet();
+                            holders.decrementAndGet();
+                            server.unlock(shared, true);
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failures[index] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for(int i = 0; i < THREADS; ++i)
+        {
+            try
+            {
+                threads[i].join(30000);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted");
+            }
+
+            if(threads[i].isAlive())
+                throw new TestFailed("locking thread stuck");
+            if(failures[i] != null)
+                throw new TestFailed("locking thread failed", failures[i]);
+        }
+
+        if(overlaps.get() != 0)
+            throw new TestFailed("exclusive locks held at once");
+    }
+
+    /** Requests a lock on the test tree.
+
+        @param path The path to lock.
+        @param exclusive Whether the lock is exclusive.
+        @return The lock requested.
+     */
+    private DfsLock request(Path path, boolean exclusive)
+    {
+        DfsLock     lock = new DfsLock(requests++, path, exclusive, false);
+        manager.enqueue(lock);
+        return lock;
+    }
+
+    /** Checks the intention locks on a node.
+
+        @param node The node.
+        @param shared The number of shared locks expected below the node.
+        @param exclusive The number of exclusive locks expected below the
+                         node.
+        @throws TestFailed If the node has other intention locks.
+     */
+    private static void expectIntentions(TreeNode node, int shared,
+                                         int exclusive)
+        throws TestFailed
+    {
+        node.latch.lock();
+        try
+        {
+            if(node.intentionShared != shared ||
+               node.intentionExclusive != exclusive)
+            {
+                throw new TestFailed("node " + node.getPathToCurrent() +
+                                     " has " + node.intentionShared +
+                                     " shared and " +
+                                     node.intentionExclusive +
+                                     " exclusive intention locks, expected " +
+                                     shared + " and " + exclusive);
+            }
+        }
+        finally
+        {
+            node.latch.unlock();
+        }
+    }
+
+    /** Checks whether a lock has been granted.
+
+        @param lock The lock.
+        @param granted Whether the lock should have been granted.
+        @throws TestFailed If the lock is not in the expected state.
+     */
+    private static void expectGranted(DfsLock lock, boolean granted)
+        throws TestFailed
+    {
+        if(lock.isGranted() != granted)
+        {
+            throw new TestFailed((lock.isExclusive ? "exclusive" : "shared") +
+                                 " lock " + lock.id + " on " +
+                                 lock.lockedPath + (granted ? " not" : "") +
+                                 " granted");
+        }
+    }
+}
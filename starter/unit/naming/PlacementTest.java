@@ -0,0 +1,207 @@
+package naming;
+
+import common.Path;
+import storage.*;
+
+import test.*;
+
+/** Unit tests for the placement of new files.
+
+    <p>
+    The test checks that storage servers that have never reported are chosen
+    uniformly, that servers are chosen in proportion to their free space or
+    inverse load, that a server with no weight is never chosen, also among
+    enough servers to grow the engine's tree, that heartbeats and policy
+    changes take effect, and that servers suspected dead are skipped. It also
+    checks that the naming server refuses to create a file when no storage
+    server is connected.
+ */
+public class PlacementTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking placement of new files";
+
+    /** Number of choices made to check a distribution. */
+    private static final int    CHOICES = 10000;
+    /** Heartbeat timeout used when no server should be suspected. */
+    private static final long   NEVER = Long.MAX_VALUE / 1000000L;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("choosing among no storage servers");
+
+        PlacementEngine engine =
+            new PlacementEngine(PlacementPolicy.MOST_FREE_SPACE);
+        if(engine.choose(NEVER) != null)
+            throw new TestFailed("storage server chosen from none");
+
+        task("choosing among storage servers that never reported");
+
+        StorageInfo[]   servers = servers(4);
+        for(StorageInfo server : servers)
+            engine.add(server);
+
+        int[]           counts = count(engine, servers, NEVER);
+        for(int count : counts)
+        {
+            if(count < CHOICES / 8)
+                throw new TestFailed("unreported servers not chosen evenly");
+        }
+
+        task("choosing in proportion to free space");
+
+        report(engine, servers[0], 100L << 20, 0);
+        report(engine, servers[1], 300L << 20, 0);
+        report(engine, servers[2], 0, 0);
+        report(engine, servers[3], 200L << 20, 0);
+
+        counts = count(engine, servers, NEVER);
+        if(counts[2] != 0)
+            throw new TestFailed("full storage server chosen");
+        expectRatio(counts[1], counts[0], 3);
+        expectRatio(counts[3], counts[0], 2);
+
+        task("weighing new heartbeats");
+
+        report(engine, servers[2], 600L << 20, 0);
+        counts = count(engine, servers, NEVER);
+        expectRatio(counts[2], counts[0], 6);
+
+        task("choosing the least loaded storage servers");
+
+        report(engine, servers[0], 0, 0);
+        report(engine, servers[1], 0, 3);
+        report(engine, servers[2], 0, 1);
+        report(engine, servers[3], 0, 1);
+        engine.setPolicy(PlacementPolicy.LEAST_LOADED);
+
+        counts = count(engine, servers, NEVER);
+        expectRatio(counts[0], counts[1], 4);
+        expectRatio(counts[2], counts[3], 1);
+
+        task("skipping storage servers suspected dead");
+
+        TestUtil.sleep(50);
+        report(engine, servers[1], 0, 3);
+        counts = count(engine, servers, 20);
+        if(counts[1] != CHOICES)
+            throw new TestFailed("suspected storage server chosen");
+
+        TestUtil.sleep(50);
+        if(engine.choose(20) == null)
+            throw new TestFailed("no storage server chosen with all suspected");
+
+        task("choosing among many storage servers");
+
+        engine = new PlacementEngine(PlacementPolicy.MOST_FREE_SPACE);
+        servers = servers(100);
+        for(int i = 0; i < servers.length; ++i)
+        {
+            engine.add(servers[i]);
+            report(engine, servers[i], (i % 2 == 0) ? 0 : (1L << 20), 0);
+        }
+
+        counts = count(engine, servers, NEVER);
+        for(int i = 0; i < counts.length; ++i)
+        {
+            if(i % 2 == 0 && counts[i] != 0)
+                throw new TestFailed("storage server " + i + " chosen");
+            if(i % 2 == 1 && counts[i] == 0)
+                throw new TestFailed("storage server " + i + " not chosen");
+        }
+
+        task("creating a file with no storage servers");
+
+        try
+        {
+            new NamingServer().createFile(new Path("/file"));
+            throw new TestFailed("file created with no storage servers");
+        }
+        catch(IllegalStateException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Creates records of storage servers that are never started.
+
+        @param count Number of records to create.
+     */
+    private static StorageInfo[] servers(int count)
+    {
+        StorageInfo[]   servers = new StorageInfo[count];
+        for(int i = 0; i < count; ++i)
+            servers[i] = new StorageInfo(null, null);
+        return servers;
+    }
+
+    /** Makes a storage server report its state to an engine.
+
+        @param engine The engine.
+        @param server The storage server.
+        @param freeSpace Bytes free reported.
+        @param pendingCalls Calls in progress reported.
+     */
+    private static void report(PlacementEngine engine, StorageInfo server,
+                               long freeSpace, int pendingCalls)
+    {
+        server.heartbeat(new StorageStatus(freeSpace, 0, pendingCalls));
+        engine.update(server);
+    }
+
+    /** Counts the number of times each storage server is chosen.
+
+        @param engine The engine.
+        @param servers The storage servers added to the engine.
+        @param timeout Heartbeat timeout, in milliseconds.
+        @return Number of times each server is chosen, by index.
+        @throws TestFailed If a server not in <code>servers</code> is chosen.
+     */
+    private static int[] count(PlacementEngine engine, StorageInfo[] servers,
+                               long timeout) throws TestFailed
+    {
+        int[]       counts = new int[servers.length];
+
+        choices:
+        for(int i = 0; i < CHOICES; ++i)
+        {
+            StorageInfo chosen = engine.choose(timeout);
+            for(int j = 0; j < servers.length; ++j)
+            {
+                if(servers[j] == chosen)
+                {
+                    ++counts[j];
+                    continue choices;
+                }
+            }
+
+            throw new TestFailed("unknown storage server chosen");
+        }
+
+        return counts;
+    }
+
+    /** Checks that one count is roughly the given multiple of another.
+
+        @throws TestFailed If the ratio is off by more than a third.
+     */
+    private static void expectRatio(int count, int base, double expected)
+        throws TestFailed
+    {
+        double      ratio = (double)count / Math.max(base, 1);
+        if(ratio < expected * 2 / 3 || ratio > expected * 4 / 3)
+        {
+            throw new TestFailed("expected ratio " + expected + ", got " +
+                                 ratio);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package naming;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import common.Path;
+import rmi.*;
+import storage.*;
+
+import test.*;
+
+/** Unit tests for the replica selection policies.
+
+    <p>
+    The test checks each built-in policy on replicas reporting different
+    loads: that the first replica policy never moves, that round robin visits
+    every replica in turn, that the least loaded replica is chosen, that two
+    random choices never choose the most loaded replica, and that replicas on
+    the client's host are preferred. It also checks that the naming server
+    hands out replicas according to the policy set.
+ */
+public class ReplicaPolicyTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking replica selection policies";
+
+    /** Replicas on the local host, in order of increasing load. */
+    private List<StorageInfo>   local;
+    /** Replica on another host, reporting no load. */
+    private StorageInfo         remote;
+    /** Address of the other host. */
+    private InetAddress         remoteHost;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            remoteHost = InetAddress.getByName("10.11.12.13");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create remote address", t);
+        }
+
+        local = Arrays.asList(replica("127.0.0.1", 7027, 5),
+                              replica("127.0.0.1", 7028, 1),
+                              replica("127.0.0.1", 7029, 9));
+        remote = replica("10.11.12.13", 7030, 0);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("choosing the first replica");
+
+        ReplicaPolicy   policy = ReplicaPolicies.first();
+        for(int i = 0; i < 10; ++i)
+        {
+            if(policy.choose(local, null) != local.get(0))
+                throw new TestFailed("first replica not chosen");
+        }
+
+        task("choosing replicas in turn");
+
+        policy = ReplicaPolicies.roundRobin();
+        StorageInfo     previous = policy.choose(local, null);
+        int             start = local.indexOf(previous);
+        for(int i = 1; i <= 2 * local.size(); ++i)
+        {
+            if(policy.choose(local, null) !=
+               local.get((start + i) % local.size()))
+            {
+                throw new TestFailed("replicas not chosen in turn");
+            }
+        }
+
+        task("choosing the least loaded replica");
+
+        policy = ReplicaPolicies.leastLoaded();
+        if(policy.choose(local, null) != local.get(1))
+            throw new TestFailed("least loaded replica not chosen");
+
+        task("choosing the less loaded of two replicas");
+
+        policy = ReplicaPolicies.twoChoices();
+        boolean[]       chosen = new boolean[local.size()];
+        for(int i = 0; i < 200; ++i)
+            chosen[local.indexOf(policy.choose(local, null))] = true;
+
+        if(chosen[2])
+            throw new TestFailed("most loaded replica chosen");
+        if(!chosen[0] || !chosen[1])
+            throw new TestFailed("choices not spread over the replicas");
+
+        task("preferring a replica on the client's host");
+
+        policy = ReplicaPolicies.sameHost(ReplicaPolicies.first());
+        List<StorageInfo>   mixed = Arrays.asList(local.get(0), remote);
+        if(policy.choose(mixed, remoteHost) != remote)
+            throw new TestFailed("replica on remote client host not chosen");
+        if(policy.choose(Arrays.asList(remote, local.get(0)),
+                         InetAddress.getLoopbackAddress()) != local.get(0))
+        {
+            throw new TestFailed("replica on local client host not chosen");
+        }
+        if(policy.choose(Arrays.asList(remote, local.get(0)), null) != remote)
+            throw new TestFailed("fallback not used for unknown client");
+
+        task("looking up policies by name");
+
+        for(String name : new String[] {"first", "round-robin", "least-loaded",
+                                        "two-choices", "same-host"})
+        {
+            if(ReplicaPolicies.forName(name) == null)
+                throw new TestFailed("policy " + name + " not found");
+        }
+
+        try
+        {
+            ReplicaPolicies.forName("random");
+            throw new TestFailed("unknown policy found");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task("handing out replicas by the naming server policy");
+
+        checkNamingServer();
+
+        task();
+    }
+
+    /** Checks that the naming server hands out the replicas of a file chosen
+        by its policy.
+
+        @throws TestFailed If other replicas are handed out.
+     */
+    private void checkNamingServer() throws TestFailed
+    {
+        NamingServer    server = new NamingServer();
+        Path            file = new Path("/file");
+
+        server.register(local.get(0).clientStub, local.get(0).commandStub,
+                        new Path[] {file});
+        server.register(local.get(1).clientStub, local.get(1).commandStub,
+                        new Path[0]);
+        server.getNode(file).addStorage(info(server, local.get(1).clientStub));
+
+        server.setReplicaPolicy(ReplicaPolicies.leastLoaded());
+        server.heartbeat(local.get(0).clientStub, new StorageStatus(0, 1, 4));
+        server.heartbeat(local.get(1).clientStub, new StorageStatus(0, 1, 2));
+
+        try
+        {
+            for(int i = 0; i < 5; ++i)
+            {
+                if(!server.getStorage(file).equals(local.get(1).clientStub))
+                    throw new TestFailed("policy not used by naming server");
+            }
+
+            server.heartbeat(local.get(1).clientStub,
+                             new StorageStatus(0, 1, 8));
+            if(!server.getStorage(file).equals(local.get(0).clientStub))
+                throw new TestFailed("new load not used by naming server");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("no storage server handed out", t);
+        }
+
+        try
+        {
+            server.setReplicaPolicy(null);
+            throw new TestFailed("null policy accepted");
+        }
+        catch(NullPointerException e) { }
+    }
+
+    /** Returns the naming server record of a registered storage server.
+
+        @param server The naming server.
+        @param stub Client stub of the storage server.
+        @throws TestFailed If the storage server is not registered.
+     */
+    private static StorageInfo info(NamingServer server, Storage stub)
+        throws TestFailed
+    {
+        for(StorageInfo storage : server.availableStorages)
+        {
+            if(storage.clientStub.equals(stub))
+                return storage;
+        }
+
+        throw new TestFailed("storage server not registered");
+    }
+
+    /** Creates the record of a storage server that is never started.
+
+        @param host Host of the storage server.
+        @param port Port of the client interface of the storage server.
+        @param load Client calls the storage server reports in progress.
+     */
+    private static StorageInfo replica(String host, int port, int load)
+    {
+        StorageInfo     storage = new StorageInfo(
+            Stub.create(Storage.class, new InetSocketAddress(host, port)),
+            Stub.create(Command.class, new InetSocketAddress(host, port + 100)));
+
+        storage.heartbeat(new StorageStatus(0, 1, load));
+        return storage;
+    }
+}
@@ -0,0 +1,285 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Unit tests for the admission control of skeletons.
+
+    <p>
+    With each transport, the test fills the calls a skeleton may run and the
+    queue behind them with calls blocked in the server, and checks that a
+    further call is rejected at once with an <code>OverloadedException</code>,
+    that a call to a priority method still runs and releases the blocked
+    calls, and that the queued calls then run too.
+ */
+public class AdmissionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking skeleton admission control";
+
+    /** Number of calls the test skeletons run at once. */
+    private static final int    MAX_CALLS = 2;
+    /** Number of calls that may wait in the test skeletons. */
+    private static final int    QUEUE_LENGTH = 2;
+
+    /** Address at which the test skeletons run. */
+    private InetSocketAddress   address;
+    /** Server object shared by the test skeletons. */
+    private GateServer          server;
+    /** Skeleton currently serving the test interface. */
+    private Skeleton<Gate>      skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress("127.0.0.1", 7020);
+        server = new GateServer();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("prioritizing an unknown method");
+
+        try
+        {
+            new Skeleton<Gate>(Gate.class, server, address).prioritize("close");
+            throw new TestFailed("unknown method prioritized");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task("isolating an unknown method");
+
+        try
+        {
+            new Skeleton<Gate>(Gate.class, server, address).isolate("close");
+            throw new TestFailed("unknown method isolated");
+        }
+        catch(IllegalArgumentException e) { }
+
+        checkTransport(Skeleton.Transport.BLOCKING);
+        checkTransport(Skeleton.Transport.SELECTOR);
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Checks the admission of calls by a skeleton using the given transport.
+
+        @param transport The transport of the skeleton.
+        @throws TestFailed If the test fails.
+     */
+    private void checkTransport(Skeleton.Transport transport)
+        throws TestFailed
+    {
+        String          name = transport.name().toLowerCase();
+        final Gate      stub = Stub.create(Gate.class, address);
+
+        server.reset();
+        skeleton = startSkeleton(transport);
+
+        task("filling the " + name + " skeleton");
+
+        Thread[]        threads = new Thread[MAX_CALLS + QUEUE_LENGTH];
+        final Throwable[]   failures = new Throwable[threads.length];
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            final int   index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        stub.pass();
+                    }
+                    catch(Throwable t)
+                    {
+                        failures[index] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        awaitStarted(MAX_CALLS);
+
+        // Give the remaining calls time to reach the queue.
+        TestUtil.sleep(200);
+
+        if(server.started.get() != MAX_CALLS)
+        {
+            throw new TestFailed("skeleton ran " + server.started.get() +
+                                 " calls at once");
+        }
+
+        task("rejecting a call to the full " + name + " skeleton");
+
+        long            start = System.nanoTime();
+        try
+        {
+            stub.pass();
+            throw new TestFailed("call accepted with calls and queue full");
+        }
+        catch(OverloadedException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        if(System.nanoTime() - start > 1000000000L)
+            throw new TestFailed("rejection not immediate");
+
+        task("calling a priority method of the full " + name + " skeleton");
+
+        try
+        {
+            stub.open(threads.length);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("priority call failed", t);
+        }
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            try
+            {
+                threads[i].join(5000);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted");
+            }
+
+            if(threads[i].isAlive())
+                throw new TestFailed("queued call did not complete");
+            if(failures[i] != null)
+                throw new TestFailed("queued call failed", failures[i]);
+        }
+
+        if(server.started.get() != threads.length)
+            throw new TestFailed("queued calls not run");
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Waits for the given number of calls to start in the server.
+
+        @param calls The number of calls.
+        @throws TestFailed If the calls do not start within two seconds.
+     */
+    private void awaitStarted(int calls) throws TestFailed
+    {
+        long    deadline = System.currentTimeMillis() + 2000;
+
+        while(server.started.get() < calls)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("calls not started");
+
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted");
+            }
+        }
+    }
+
+    /** Starts a new skeleton at the test address.
+
+        @param transport The transport of the skeleton.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private Skeleton<Gate> startSkeleton(Skeleton.Transport transport)
+        throws TestFailed
+    {
+        Skeleton<Gate>  started = new Skeleton<Gate>(Gate.class, server, address);
+
+        started.setTransport(transport);
+        started.setInProcess(Skeleton.InProcess.OFF);
+        started.setMaxCalls(MAX_CALLS);
+        started.setWorkerQueueLength(QUEUE_LENGTH);
+        started.prioritize("open");
+
+        try
+        {
+            started.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return started;
+    }
+
+    /** Remote interface used by the test. */
+    public interface Gate
+    {
+        /** Blocks until the gate lets the caller pass. */
+        public void pass() throws RMIException, InterruptedException;
+
+        /** Lets the given number of callers pass. */
+        public void open(int callers) throws RMIException;
+    }
+
+    /** Server implementation of <code>Gate</code>. */
+    private static class GateServer implements Gate
+    {
+        /** Calls to <code>pass</code> started. */
+        final AtomicInteger     started = new AtomicInteger();
+        /** Permits of the callers allowed to pass. */
+        private volatile Semaphore  permits;
+
+        /** Creates the server. */
+        GateServer()
+        {
+            reset();
+        }
+
+        /** Resets the call count and closes the gate. */
+        void reset()
+        {
+            started.set(0);
+            permits = new Semaphore(0);
+        }
+
+        @Override
+        public void pass() throws InterruptedException
+        {
+            started.incrementAndGet();
+            permits.acquire();
+        }
+
+        @Override
+        public void open(int callers)
+        {
+            permits.release(callers);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import test.*;
+
+/** Unit tests for asynchronous stubs.
+
+    <p>
+    The test checks that one thread can have many calls in progress through an
+    asynchronous stub, that remote exceptions and connection failures complete
+    the futures exceptionally, that a continuation may itself make remote
+    calls, that an asynchronous stub can be made from an existing stub, and
+    that an asynchronous interface that does not match the remote interface is
+    rejected.
+ */
+public class AsyncStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+
+    /** Number of calls placed at once by a single thread. */
+    private static final int    CALLS = 16;
+
+    /** Address at which the test skeleton runs. */
+    private InetSocketAddress   address;
+    /** Server object. */
+    private CalculatorServer    server;
+    /** Skeleton serving the test interface. */
+    private Skeleton<Calculator> skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress("127.0.0.1", 7012);
+        server = new CalculatorServer(CALLS);
+        skeleton = new Skeleton<Calculator>(Calculator.class, server, address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        final Calculator    stub = Stub.create(Calculator.class, address);
+        AsyncCalculator     async =
+            Stub.createAsync(AsyncCalculator.class, Calculator.class, address);
+
+        task("placing many calls from one thread");
+
+        // Each call to gather returns only once all of them have reached the
+        // server, so the calls complete only if they are in progress at once.
+        ArrayList<CompletionStage<Integer>>     futures = new ArrayList<>();
+        for(int i = 0; i < CALLS; ++i)
+            futures.add(async.gather());
+
+        for(CompletionStage<Integer> future : futures)
+        {
+            if(get(future) != CALLS)
+                throw new TestFailed("incorrect result from gathered call");
+        }
+
+        task("receiving a remote exception");
+
+        try
+        {
+            async.open("missing").get(10, TimeUnit.SECONDS);
+            throw new TestFailed("remote exception not reported");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+                throw new TestFailed("wrong exception reported", e.getCause());
+        }
+        catch(InterruptedException | TimeoutException e)
+        {
+            throw new TestFailed("call did not complete", e);
+        }
+
+        task("making a remote call from a continuation");
+
+        CompletableFuture<Integer>  chained =
+            async.add(1, 2).thenApply(new Function<Integer, Integer>() {
+                @Override
+                public Integer apply(Integer sum)
+                {
+                    try
+                    {
+                        return stub.add(sum, 3);
+                    }
+                    catch(RMIException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+
+        if(get(chained) != 6)
+            throw new TestFailed("incorrect result from chained call");
+
+        task("creating an asynchronous stub from a stub");
+
+        AsyncCalculator     converted =
+            Stub.createAsync(AsyncCalculator.class, Calculator.class, stub);
+
+        if(get(converted.add(20, 22)) != 42)
+            throw new TestFailed("incorrect result from converted stub");
+
+        if(!converted.equals(async))
+            throw new TestFailed("equal asynchronous stubs compare unequal");
+
+        task("rejecting a mismatched asynchronous interface");
+
+        try
+        {
+            Stub.createAsync(Mismatched.class, Calculator.class, address);
+            throw new TestFailed("mismatched asynchronous interface accepted");
+        }
+        catch(Error e) { }
+
+        try
+        {
+            Stub.createAsync(Blocking.class, Calculator.class, address);
+            throw new TestFailed("asynchronous interface not returning " +
+                                 "futures accepted");
+        }
+        catch(Error e) { }
+
+        task("calling a stopped skeleton");
+
+        skeleton.stop();
+        skeleton = null;
+
+        try
+        {
+            async.add(1, 1).get(10, TimeUnit.SECONDS);
+            throw new TestFailed("call to stopped skeleton succeeded");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof RMIException))
+                throw new TestFailed("wrong exception reported", e.getCause());
+        }
+        catch(InterruptedException | TimeoutException e)
+        {
+            throw new TestFailed("call did not complete", e);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Waits for a call to complete and returns its result.
+
+        @throws TestFailed If the call fails or does not complete in time.
+     */
+    private int get(CompletionStage<Integer> future) throws TestFailed
+    {
+        try
+        {
+            return future.toCompletableFuture().get(10, TimeUnit.SECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            throw new TestFailed("asynchronous call failed", e.getCause());
+        }
+        catch(InterruptedException | TimeoutException e)
+        {
+            throw new TestFailed("asynchronous call did not complete", e);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface Calculator
+    {
+        /** Returns the sum of its arguments. */
+        public int add(int a, int b) throws RMIException;
+
+        /** Waits until a fixed number of calls have entered the method, and
+            returns that number. */
+        public int gather() throws RMIException;
+
+        /** Always throws <code>FileNotFoundException</code>. */
+        public String open(String name)
+            throws RMIException, FileNotFoundException;
+    }
+
+    /** Asynchronous counterpart of <code>Calculator</code>. */
+    public interface AsyncCalculator
+    {
+        public CompletableFuture<Integer> add(int a, int b);
+
+        public CompletionStage<Integer> gather();
+
+        public CompletableFuture<String> open(String name);
+    }
+
+    /** Asynchronous interface with a method missing from
+        <code>Calculator</code>. */
+    public interface Mismatched
+    {
+        public CompletableFuture<Integer> add(long a, long b);
+    }
+
+    /** Asynchronous interface with a method not returning a future. */
+    public interface Blocking
+    {
+        public int add(int a, int b);
+    }
+
+    /** Server implementation of <code>Calculator</code>. */
+    private static class CalculatorServer implements Calculator
+    {
+        /** Number of calls <code>gather</code> waits for. */
+        private final int   expected;
+        /** Number of calls that have entered <code>gather</code>. */
+        private int         gathered = 0;
+
+        CalculatorServer(int expected)
+        {
+            this.expected = expected;
+        }
+
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        @Override
+        public synchronized int gather()
+        {
+            ++gathered;
+            notifyAll();
+
+            while(gathered < expected)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e)
+                {
+                    break;
+                }
+            }
+
+            return gathered;
+        }
+
+        @Override
+        public String open(String name) throws FileNotFoundException
+        {
+            throw new FileNotFoundException(name);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import test.*;
+
+/** Unit tests for batched remote calls.
+
+    <p>
+    The test checks that queued calls are not sent until the batch is flushed,
+    that the skeleton executes them in order and returns every result, that an
+    exception thrown by one call does not affect the others, that a call whose
+    arguments cannot be encoded fails at once, and that a batch sent to a
+    stopped skeleton fails every queued call.
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batched remote calls";
+
+    /** Number of calls placed in the large batch. */
+    private static final int    CALLS = 1000;
+
+    /** Address at which the test skeleton runs. */
+    private InetSocketAddress   address;
+    /** Server object. */
+    private RecorderServer      server;
+    /** Skeleton serving the test interface. */
+    private Skeleton<Recorder>  skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress("127.0.0.1", 7013);
+        server = new RecorderServer();
+        skeleton = new Skeleton<Recorder>(Recorder.class, server, address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Recorder        stub = Stub.create(Recorder.class, address);
+        Batch           batch = new Batch(stub);
+        AsyncRecorder   queued = batch.stub(AsyncRecorder.class,
+                                            Recorder.class);
+
+        task("queueing calls without sending them");
+
+        ArrayList<CompletableFuture<Integer>>   results = new ArrayList<>();
+        for(int i = 0; i < CALLS; ++i)
+            results.add(queued.record("path" + i));
+
+        if(batch.size() != CALLS)
+            throw new TestFailed("queued calls not counted");
+
+        if(server.count() != 0 || results.get(0).isDone())
+            throw new TestFailed("queued call sent before flush");
+
+        task("flushing a batch");
+
+        flush(batch);
+
+        if(batch.size() != 0)
+            throw new TestFailed("flushed calls still queued");
+
+        for(int i = 0; i < CALLS; ++i)
+        {
+            if(get(results.get(i)) != i)
+                throw new TestFailed("calls executed out of order");
+        }
+
+        task("failing one call of a batch");
+
+        CompletableFuture<Integer>  before = queued.record("before");
+        CompletableFuture<Integer>  failed = queued.record(null);
+        CompletableFuture<Integer>  after = queued.record("after");
+
+        flush(batch);
+
+        if(get(before) != CALLS || get(after) != CALLS + 1)
+            throw new TestFailed("failed call affected the rest of its batch");
+
+        try
+        {
+            failed.get();
+            throw new TestFailed("exception thrown in batch not reported");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+                throw new TestFailed("wrong exception reported", e.getCause());
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        task("queueing a call with an argument that cannot be encoded");
+
+        if(!queued.recordObject(new Object()).isCompletedExceptionally())
+            throw new TestFailed("unencodable call queued");
+
+        if(batch.size() != 0)
+            throw new TestFailed("unencodable call queued");
+
+        task("flushing a batch to a stopped skeleton");
+
+        CompletableFuture<Integer>  lost = queued.record("lost");
+
+        skeleton.stop();
+        skeleton = null;
+
+        try
+        {
+            batch.flush();
+            throw new TestFailed("batch to stopped skeleton succeeded");
+        }
+        catch(RMIException e) { }
+
+        if(!lost.isCompletedExceptionally())
+            throw new TestFailed("call in failed batch not completed");
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Flushes a batch.
+
+        @throws TestFailed If the flush fails.
+     */
+    private void flush(Batch batch) throws TestFailed
+    {
+        try
+        {
+            batch.flush();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to flush batch", e);
+        }
+    }
+
+    /** Returns the result of a flushed call.
+
+        @throws TestFailed If the call failed or has not completed.
+     */
+    private int get(CompletableFuture<Integer> result) throws TestFailed
+    {
+        if(!result.isDone())
+            throw new TestFailed("flushed call not completed");
+
+        try
+        {
+            return result.get();
+        }
+        catch(ExecutionException e)
+        {
+            throw new TestFailed("batched call failed", e.getCause());
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface Recorder
+    {
+        /** Records a name and returns the number of names recorded before
+            it. */
+        public int record(String name)
+            throws RMIException, FileNotFoundException;
+
+        /** Records any object. */
+        public int recordObject(Object value) throws RMIException;
+    }
+
+    /** Asynchronous counterpart of <code>Recorder</code>. */
+    public interface AsyncRecorder
+    {
+        public CompletableFuture<Integer> record(String name);
+
+        public CompletableFuture<Integer> recordObject(Object value);
+    }
+
+    /** Server implementation of <code>Recorder</code>. */
+    private static class RecorderServer implements Recorder
+    {
+        /** Names recorded. */
+        private final ArrayList<Object> names = new ArrayList<>();
+
+        @Override
+        public synchronized int record(String name)
+            throws FileNotFoundException
+        {
+            if(name == null)
+                throw new FileNotFoundException("no name");
+
+            names.add(name);
+            return names.size() - 1;
+        }
+
+        @Override
+        public synchronized int recordObject(Object value)
+        {
+            names.add(value);
+            return names.size() - 1;
+        }
+
+        /** Returns the number of names recorded. */
+        synchronized int count()
+        {
+            return names.size();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+
+import test.*;
+
+/** Unit tests for persistent, multiplexed stub connections.
+
+    <p>
+    The test checks that consecutive calls through a stub reuse a single pooled
+    connection, that a call blocked in the server does not hold up other calls
+    sharing its connection, and that a stub keeps working when the skeleton it
+    talks to is
+    stopped and a new skeleton is started at the same address: the idle pooled
+    connection to the old skeleton is stale and must be replaced transparently.
+    Finally, it checks that a burst of concurrent first calls to a skeleton
+    does not open more connections than the pool allows.
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking stub connection pooling";
+
+    /** Address at which the test skeletons run. */
+    private InetSocketAddress   address;
+    /** Server object shared by the test skeletons. */
+    private EchoServer          server;
+    /** Skeleton currently serving the test interface. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress("127.0.0.1", 7010);
+        server = new EchoServer();
+        skeleton = startSkeleton();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ConnectionPool  pool = ConnectionPool.getSharedPool();
+        Echo            stub = Stub.create(Echo.class, address);
+
+        long            hits = pool.getHitCount();
+        long            misses = pool.getMissCount();
+
+        task("making consecutive calls through one stub");
+
+        for(int i = 0; i < 10; ++i)
+            call(stub, i);
+
+        if(pool.getMissCount() - misses != 1)
+        {
+            throw new TestFailed("consecutive calls opened " +
+                                 (pool.getMissCount() - misses) +
+                                 " connections instead of one");
+        }
+
+        if(pool.getHitCount() - hits != 9)
+            throw new TestFailed("consecutive calls did not reuse connection");
+
+        task("making a call while another is blocked on the same connection");
+
+        BlockedCall     blocked = new BlockedCall(stub);
+        Thread          thread = new Thread(blocked);
+        thread.start();
+
+        server.awaitBlocked();
+        call(stub, 11);
+
+        try
+        {
+            stub.unblock();
+            thread.join();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to unblock first call", t);
+        }
+
+        if(blocked.failure != null)
+            throw new TestFailed("blocked call failed", blocked.failure);
+
+        if(pool.getMissCount() - misses != 1)
+            throw new TestFailed("concurrent calls were not multiplexed");
+
+        task("calling a skeleton restarted at the same address");
+
+        skeleton.stop();
+        skeleton = startSkeleton();
+
+        call(stub, 42);
+
+        task("making a burst of calls to a skeleton with no open connection");
+
+        skeleton.stop();
+        pool.clear();
+        skeleton = startSkeleton();
+
+        final Echo          burstStub = stub;
+        final Throwable[]   failures = new Throwable[32];
+        Thread[]            threads = new Thread[failures.length];
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            final int   index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        burstStub.echo(index);
+                    }
+                    catch(Throwable t)
+                    {
+                        failures[index] = t;
+                    }
+                }
+            });
+        }
+
+        for(Thread burst : threads)
+            burst.start();
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            try
+            {
+                threads[i].join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while waiting for call", e);
+            }
+
+            if(failures[i] != null)
+                throw new TestFailed("call in burst failed", failures[i]);
+        }
+
+        if(pool.getOpenCount() > ConnectionPool.DEFAULT_MAX_CONNECTIONS)
+        {
+            throw new TestFailed("burst of calls opened " +
+                                 pool.getOpenCount() + " connections");
+        }
+
+        task();
+    }
+
+    /** Makes a call that blocks in the server until <code>unblock</code> is
+        called. */
+    private static class BlockedCall implements Runnable
+    {
+        /** Stub through which the call is made. */
+        private final Echo  stub;
+        /** Exception raised by the call, if any. */
+        volatile Throwable  failure = null;
+
+        /** Creates the blocked call runnable. */
+        BlockedCall(Echo stub)
+        {
+            this.stub = stub;
+        }
+
+        /** Calls <code>block</code> on the stub. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                stub.block();
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.unblock();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Starts a new skeleton at the test address.
+
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private Skeleton<Echo> startSkeleton() throws TestFailed
+    {
+        Skeleton<Echo>  started =
+            new Skeleton<Echo>(Echo.class, server, address);
+
+        // Calls must go through connections for the pool to be observed.
+        started.setInProcess(Skeleton.InProcess.OFF);
+
+        try
+        {
+            started.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return started;
+    }
+
+    /** Calls <code>echo</code> through the stub and checks the result.
+
+        @throws TestFailed If the call fails or returns the wrong value.
+     */
+    private void call(Echo stub, int value) throws TestFailed
+    {
+        try
+        {
+            if(stub.echo(value) != value)
+                throw new TestFailed("incorrect result from stub");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when using stub", t);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface Echo
+    {
+        /** Returns its argument. */
+        public int echo(int value) throws RMIException;
+
+        /** Blocks until <code>unblock</code> is called. */
+        public void block() throws RMIException;
+
+        /** Wakes the thread blocked in <code>block</code>. */
+        public void unblock() throws RMIException;
+    }
+
+    /** Server implementation of <code>Echo</code>. */
+    private static class EchoServer implements Echo
+    {
+        /** Whether a thread has entered <code>block</code>. */
+        private boolean     blocked = false;
+        /** Whether <code>unblock</code> has been called. */
+        private boolean     released = false;
+
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+
+        @Override
+        public synchronized void block()
+        {
+            blocked = true;
+            notifyAll();
+
+            while(!released)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        @Override
+        public synchronized void unblock()
+        {
+            released = true;
+            notifyAll();
+        }
+
+        /** Waits until a thread has entered <code>block</code>. */
+        synchronized void awaitBlocked()
+        {
+            while(!blocked)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Unit tests for call deadlines.
+
+    <p>
+    The test checks that a stub with a timeout gives up on a call blocked in
+    the server at its deadline, that the server method is interrupted at the
+    same time, and that the connection remains usable. It then checks that a
+    call left waiting for a worker thread past its deadline is not run at all,
+    and that in-process calls are bounded by their deadlines too.
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call deadlines";
+
+    /** Timeout of the calls made with a deadline, in milliseconds. */
+    private static final int    TIMEOUT = 200;
+
+    /** Address at which the test skeletons run. */
+    private InetSocketAddress   address;
+    /** Server object shared by the test skeletons. */
+    private BlockerServer       server;
+    /** Skeleton currently serving the test interface. */
+    private Skeleton<Blocker>   skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress("127.0.0.1", 7018);
+        server = new BlockerServer();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        final Blocker   stub = Stub.create(Blocker.class, address);
+        Blocker         timed =
+            Stub.withTimeout(stub, TIMEOUT, TimeUnit.MILLISECONDS);
+
+        if(!timed.equals(stub))
+            throw new TestFailed("stub with timeout differs from its stub");
+
+        task("giving up on a blocked call");
+
+        skeleton = startSkeleton(Skeleton.Transport.BLOCKING, 0,
+                                 Skeleton.InProcess.OFF);
+        expectDeadline(timed);
+
+        task("interrupting the blocked call");
+
+        awaitInterrupt();
+
+        task("reusing the connection");
+
+        try
+        {
+            if(timed.count() != 1)
+                throw new TestFailed("wrong number of calls run");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("connection unusable after deadline", t);
+        }
+
+        task("rejecting a call queued past its deadline");
+
+        skeleton.stop();
+        server.reset();
+        skeleton = startSkeleton(Skeleton.Transport.SELECTOR, 1,
+                                 Skeleton.InProcess.OFF);
+
+        // Occupy the only worker, without a deadline, for longer than the
+        // timeout of the queued call.
+        Thread          occupier = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stub.sleep(3 * TIMEOUT);
+                }
+                catch(Throwable t) { }
+            }
+        };
+        occupier.start();
+
+        try
+        {
+            server.sleeping.await();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted");
+        }
+
+        expectDeadline(timed);
+
+        try
+        {
+            occupier.join();
+            if(stub.count() != 1)
+                throw new TestFailed("call run after its deadline");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to count calls", t);
+        }
+
+        task("bounding in-process calls");
+
+        skeleton.stop();
+        server.reset();
+        skeleton = startSkeleton(Skeleton.Transport.BLOCKING, 0,
+                                 Skeleton.InProcess.COPY);
+        expectDeadline(timed);
+        awaitInterrupt();
+
+        if(Thread.interrupted())
+            throw new TestFailed("interrupt left on the calling thread");
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Makes a blocking call with a deadline and checks that it fails in
+        time.
+
+        @throws TestFailed If the call does not fail with
+                           <code>DeadlineExceededException</code> shortly after
+                           its deadline.
+     */
+    private void expectDeadline(Blocker timed) throws TestFailed
+    {
+        long    start = System.nanoTime();
+
+        try
+        {
+            timed.block();
+            throw new TestFailed("blocked call returned");
+        }
+        catch(DeadlineExceededException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        long    elapsed = (System.nanoTime() - start) / 1000000;
+        if(elapsed < TIMEOUT - 10 || elapsed > TIMEOUT + 2000)
+            throw new TestFailed("deadline exceeded after " + elapsed + " ms");
+    }
+
+    /** Waits for the blocked call to be interrupted.
+
+        @throws TestFailed If the server method is not interrupted.
+     */
+    private void awaitInterrupt() throws TestFailed
+    {
+        try
+        {
+            if(!server.interrupted.await(2, TimeUnit.SECONDS))
+                throw new TestFailed("server method not interrupted");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted");
+        }
+    }
+
+    /** Starts a new skeleton at the test address.
+
+        @param transport The transport of the skeleton.
+        @param workers Number of worker threads of the selector transport.
+        @param inProcess The way in-process calls are made.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private Skeleton<Blocker> startSkeleton(Skeleton.Transport transport,
+                                            int workers,
+                                            Skeleton.InProcess inProcess)
+        throws TestFailed
+    {
+        Skeleton<Blocker>   started =
+            new Skeleton<Blocker>(Blocker.class, server, address);
+
+        started.setTransport(transport);
+        started.setInProcess(inProcess);
+        if(workers > 0)
+            started.setWorkerThreads(workers);
+
+        try
+        {
+            started.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return started;
+    }
+
+    /** Remote interface used by the test. */
+    public interface Blocker
+    {
+        /** Blocks until interrupted. */
+        public void block() throws RMIException;
+
+        /** Sleeps for the given number of milliseconds. */
+        public void sleep(int millis) throws RMIException;
+
+        /** Returns the number of calls to <code>block</code> and
+            <code>sleep</code> run. */
+        public int count() throws RMIException;
+    }
+
+    /** Server implementation of <code>Blocker</code>. */
+    private static class BlockerServer implements Blocker
+    {
+        /** Calls to <code>block</code> and <code>sleep</code> run. */
+        private final AtomicInteger     calls = new AtomicInteger();
+        /** Counted down when a call to <code>block</code> is interrupted. */
+        volatile CountDownLatch         interrupted;
+        /** Counted down when a call to <code>sleep</code> starts. */
+        volatile CountDownLatch         sleeping;
+
+        /** Creates the server. */
+        BlockerServer()
+        {
+            reset();
+        }
+
+        /** Resets the call count and latches. */
+        void reset()
+        {
+            calls.set(0);
+            interrupted = new CountDownLatch(1);
+            sleeping = new CountDownLatch(1);
+        }
+
+        @Override
+        public void block()
+        {
+            calls.incrementAndGet();
+            try
+            {
+                new CountDownLatch(1).await();
+            }
+            catch(InterruptedException e)
+            {
+                interrupted.countDown();
+            }
+        }
+
+        @Override
+        public void sleep(int millis)
+        {
+            calls.incrementAndGet();
+            sleeping.countDown();
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e) { }
+        }
+
+        @Override
+        public int count()
+        {
+            return calls.get();
+        }
+    }
+}
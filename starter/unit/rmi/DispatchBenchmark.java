@@ -0,0 +1,104 @@
+package rmi;
+
+import java.lang.reflect.Method;
+
+import rmi.server.IPingServer;
+import rmi.server.PingServerFactory;
+
+/**
+ * Microbenchmark of the cost of dispatching a decoded request to the server
+ * object, without any network or encoding cost.
+ *
+ * <p>
+ * Three strategies are timed on <code>IPingServer.ping</code>: matching the
+ * method by name and parameter type names over <code>getDeclaredMethods</code>
+ * and calling it through reflection, as skeletons did when requests carried
+ * names; resolving the method from its fingerprint and ordinal and calling it
+ * through reflection; and the {@link DispatchTable} used by skeletons.
+ *
+ * <p>
+ * The benchmark lives with the unit tests, in the package of the classes it
+ * times, so that it is not part of the library.
+ *
+ * <p>
+ * Usage: <code>java -cp .:unit rmi.DispatchBenchmark [calls]</code>.
+ */
+class DispatchBenchmark {
+
+	public static void main(String[] args) throws Throwable {
+		int calls = (args.length > 0) ? Integer.parseInt(args[0]) : 5000000;
+
+		IPingServer server = PingServerFactory.makePingServer();
+		RemoteInterface iface = RemoteInterface.of(IPingServer.class);
+		Method ping = IPingServer.class.getMethod("ping", int.class);
+		long interfaceId = iface.getFingerprint();
+		int methodId = iface.ordinalOf(ping);
+		DispatchTable table = new DispatchTable(IPingServer.class);
+		String[] argumentTypes = { int.class.getName() };
+
+		// Each round runs every strategy, so that all are equally warmed up;
+		// only the last round is reported.
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				Method method = matchByName(IPingServer.class, "ping", argumentTypes);
+				method.invoke(server, new Object[] { i });
+			}
+			long byName = System.nanoTime() - start;
+
+			Method[] methods = iface.getMethods();
+			start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				Method method = (interfaceId == iface.getFingerprint()) ? methods[methodId] : null;
+				method.invoke(server, new Object[] { i });
+			}
+			long byOrdinal = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				Object[] arguments = new Object[] { i };
+				DispatchTable.Entry entry = table.lookup(interfaceId, methodId);
+				if (entry.accepts(arguments)) {
+					entry.invoke(server, arguments);
+				}
+			}
+			long byTable = System.nanoTime() - start;
+
+			if (round == 2) {
+				System.out.println("name lookup + reflection:    " + (byName / calls) + " ns/call");
+				System.out.println("ordinal lookup + reflection: " + (byOrdinal / calls) + " ns/call");
+				System.out.println("dispatch table:              " + (byTable / calls) + " ns/call");
+			}
+		}
+	}
+
+	/**
+	 * Finds a method by name and parameter type names, searching the
+	 * interface and its ancestors.
+	 */
+	private static Method matchByName(Class<?> clazz, String methodName, String[] argumentTypes) {
+		for (Method method : clazz.getDeclaredMethods()) {
+			Class<?>[] paramTypes = method.getParameterTypes();
+			if (methodName.equals(method.getName()) && (argumentTypes.length == paramTypes.length)) {
+				boolean found = true;
+				for (int i = 0; i < argumentTypes.length; i++) {
+					if (!paramTypes[i].getName().equals(argumentTypes[i])) {
+						found = false;
+					}
+				}
+				if (found) {
+					return method;
+				}
+			}
+		}
+
+		for (Class<?> parent : clazz.getInterfaces()) {
+			Method method = matchByName(parent, methodName, argumentTypes);
+			if (method != null) {
+				return method;
+			}
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,201 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+
+import test.*;
+
+/** Unit tests for in-process calls to skeletons running in the same JVM.
+
+    <p>
+    The test checks that calls to a running skeleton in this JVM run in the
+    calling thread, that arguments and results are copied by default and
+    shared when passing by reference, that exceptions and method counters
+    behave as for remote calls, and that stopped skeletons and skeletons with
+    in-process calls turned off are called through connections.
+ */
+public class InProcessTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking in-process calls";
+
+    /** Length of the arrays exchanged, above the raw data threshold. */
+    private static final int    LENGTH = 8192;
+
+    /** Address at which the test skeletons run. */
+    private InetSocketAddress   address;
+    /** Server object shared by the test skeletons. */
+    private HolderServer        server;
+    /** Skeleton currently serving the test interface. */
+    private Skeleton<Holder>    skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress("127.0.0.1", 7017);
+        server = new HolderServer();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Holder      stub = Stub.create(Holder.class, address);
+
+        try
+        {
+            task("copying arguments and results");
+
+            skeleton = startSkeleton(Skeleton.InProcess.COPY);
+
+            byte[]  data = new byte[LENGTH];
+            stub.put(data);
+            if(server.caller != Thread.currentThread())
+                throw new TestFailed("call not made in the calling thread");
+            if(server.held == data)
+                throw new TestFailed("argument shared with the server");
+
+            byte[]  result = stub.get();
+            if(result == server.held || result.length != LENGTH)
+                throw new TestFailed("result shared with the server");
+
+            task("passing arguments and results by reference");
+
+            skeleton.stop();
+            skeleton = startSkeleton(Skeleton.InProcess.REFERENCE);
+
+            stub.put(data);
+            if(server.held != data || stub.get() != data)
+                throw new TestFailed("argument or result copied");
+
+            task("throwing exceptions");
+
+            try
+            {
+                stub.fail();
+                throw new TestFailed("exception not thrown");
+            }
+            catch(FileNotFoundException e) { }
+
+            task("counting in-process calls");
+
+            for(MethodStats method : skeleton.getMethodStats())
+            {
+                if(method.getName().equals("Holder.fail()") &&
+                   (method.getCalls() != 1 || method.getErrors() != 1))
+                {
+                    throw new TestFailed("call not counted: " + method);
+                }
+            }
+
+            task("calling through a connection");
+
+            skeleton.stop();
+            skeleton = startSkeleton(Skeleton.InProcess.OFF);
+
+            stub.put(data);
+            if(server.caller == Thread.currentThread() || server.held == data)
+                throw new TestFailed("call made in process");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call skeleton", t);
+        }
+
+        task("calling a stopped skeleton");
+
+        skeleton.stop();
+        skeleton = null;
+
+        try
+        {
+            stub.get();
+            throw new TestFailed("stopped skeleton called");
+        }
+        catch(RMIException e) { }
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Starts a new skeleton at the test address.
+
+        @param inProcess The way in-process calls are made.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private Skeleton<Holder> startSkeleton(Skeleton.InProcess inProcess)
+        throws TestFailed
+    {
+        Skeleton<Holder>    started =
+            new Skeleton<Holder>(Holder.class, server, address);
+
+        started.setInProcess(inProcess);
+
+        try
+        {
+            started.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return started;
+    }
+
+    /** Remote interface used by the test. */
+    public interface Holder
+    {
+        /** Holds the given array. */
+        public void put(byte[] data) throws RMIException;
+
+        /** Returns the array held. */
+        public byte[] get() throws RMIException;
+
+        /** Always throws <code>FileNotFoundException</code>. */
+        public void fail() throws RMIException, FileNotFoundException;
+    }
+
+    /** Server implementation of <code>Holder</code>. */
+    private static class HolderServer implements Holder
+    {
+        /** Array held. */
+        volatile byte[]     held;
+        /** Thread that made the last call to <code>put</code>. */
+        volatile Thread     caller;
+
+        @Override
+        public void put(byte[] data)
+        {
+            held = data;
+            caller = Thread.currentThread();
+        }
+
+        @Override
+        public byte[] get()
+        {
+            return held;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("always");
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+
+import test.*;
+
+/** Unit tests for the Unix domain sockets of skeletons.
+
+    <p>
+    The test checks that a started skeleton listens on the domain socket of
+    its address, that a stub for that address reaches it through the socket,
+    that a skeleton on the same port but another address gets a socket of its
+    own and keeps its stubs, that a socket still in use is not replaced while
+    one left behind is, that stubs fall back to TCP for skeletons without a
+    socket, and that the socket file is removed when the skeleton stops.
+ */
+public class LocalSocketTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking Unix domain sockets";
+
+    /** Port of the skeleton listening on a domain socket. */
+    private static final int    LOCAL_PORT = 7015;
+    /** Port of the skeleton listening on TCP only. */
+    private static final int    TCP_PORT = 7016;
+    /** Port of a socket left behind, on which no skeleton listens. */
+    private static final int    STALE_PORT = 7035;
+    /** Address of the skeleton listening on a domain socket. */
+    private static final String LOCAL_HOST = "127.0.0.1";
+    /** Other loopback address, on which a second skeleton shares the port. */
+    private static final String OTHER_HOST = "127.0.0.2";
+    /** Value the second skeleton adds to its arguments. */
+    private static final int    OTHER_OFFSET = 1000;
+
+    /** Skeleton listening on a domain socket. */
+    private Skeleton<Echo>      local;
+    /** Skeleton on the same port as <code>local</code>, on another
+        address. */
+    private Skeleton<Echo>      other;
+    /** Skeleton listening on TCP only. */
+    private Skeleton<Echo>      tcp;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        if(!LocalSockets.available())
+            return;
+
+        local = new Skeleton<Echo>(Echo.class, new EchoServer(0),
+                    new InetSocketAddress(LOCAL_HOST, LOCAL_PORT));
+        local.setLocalSockets(true);
+        local.setInProcess(Skeleton.InProcess.OFF);
+
+        other = new Skeleton<Echo>(Echo.class, new EchoServer(OTHER_OFFSET),
+                    new InetSocketAddress(OTHER_HOST, LOCAL_PORT));
+        other.setLocalSockets(true);
+        other.setInProcess(Skeleton.InProcess.OFF);
+
+        tcp = new Skeleton<Echo>(Echo.class, new EchoServer(0),
+                    new InetSocketAddress(LOCAL_HOST, TCP_PORT));
+        tcp.setLocalSockets(false);
+        tcp.setInProcess(Skeleton.InProcess.OFF);
+
+        try
+        {
+            local.start();
+            other.start();
+            tcp.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        // Nothing to check where the platform has no domain sockets.
+        if(!LocalSockets.available())
+            return;
+
+        task("binding the domain socket");
+
+        InetSocketAddress   localAddress =
+            new InetSocketAddress(LOCAL_HOST, LOCAL_PORT);
+        InetSocketAddress   otherAddress =
+            new InetSocketAddress(OTHER_HOST, LOCAL_PORT);
+
+        if(!Files.exists(LocalSockets.path(localAddress.getAddress(),
+                                           LOCAL_PORT)))
+        {
+            throw new TestFailed("domain socket not created");
+        }
+
+        if(Files.exists(LocalSockets.path(localAddress.getAddress(),
+                                          TCP_PORT)))
+        {
+            throw new TestFailed("domain socket created although disabled");
+        }
+
+        task("calling through the domain socket");
+
+        expectDomainSocket(localAddress);
+        expectEcho(Stub.create(Echo.class, localAddress), 0);
+
+        task("keeping apart skeletons on the same port");
+
+        if(!Files.exists(LocalSockets.path(otherAddress.getAddress(),
+                                           LOCAL_PORT)))
+        {
+            throw new TestFailed("domain socket of second skeleton not " +
+                                 "created");
+        }
+
+        expectDomainSocket(otherAddress);
+        expectEcho(Stub.create(Echo.class, otherAddress), OTHER_OFFSET);
+        expectEcho(Stub.create(Echo.class, localAddress), 0);
+
+        task("refusing to replace a socket in use");
+
+        try
+        {
+            LocalSockets.bind(localAddress.getAddress(), LOCAL_PORT).close();
+            throw new TestFailed("socket in use replaced");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IOException e) { }
+        expectEcho(Stub.create(Echo.class, localAddress), 0);
+
+        task("replacing a socket left behind");
+
+        try
+        {
+            // Closing the channel without removing the file leaves it as a
+            // crashed skeleton would.
+            LocalSockets.bind(localAddress.getAddress(), STALE_PORT).close();
+            ServerSocketChannel rebound =
+                LocalSockets.bind(localAddress.getAddress(), STALE_PORT);
+            LocalSockets.close(rebound);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to replace socket left behind", e);
+        }
+
+        task("falling back to TCP");
+
+        try
+        {
+            if(Stub.create(Echo.class, tcp).echo(7) != 7)
+                throw new TestFailed("wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call skeleton over TCP", t);
+        }
+
+        task("removing the domain socket");
+
+        local.stop();
+        local = null;
+
+        if(Files.exists(LocalSockets.path(localAddress.getAddress(),
+                                          LOCAL_PORT)))
+        {
+            throw new TestFailed("domain socket not removed");
+        }
+
+        task();
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(local != null)
+        {
+            local.stop();
+            local = null;
+        }
+
+        if(other != null)
+        {
+            other.stop();
+            other = null;
+        }
+
+        if(tcp != null)
+        {
+            tcp.stop();
+            tcp = null;
+        }
+    }
+
+    /** Checks that a stub for an address is given a domain socket.
+
+        @throws TestFailed If no domain socket accepts the connection.
+     */
+    private static void expectDomainSocket(InetSocketAddress address)
+        throws TestFailed
+    {
+        SocketChannel   channel = LocalSockets.connect(address);
+        if(channel == null)
+            throw new TestFailed("no domain socket for " + address);
+
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e) { }
+    }
+
+    /** Calls a skeleton through a stub, and checks that the results come
+        from the expected server.
+
+        @param stub The stub.
+        @param offset The value the server adds to its arguments.
+        @throws TestFailed If a call fails or returns the wrong result.
+     */
+    private static void expectEcho(Echo stub, int offset) throws TestFailed
+    {
+        try
+        {
+            for(int i = 0; i < 100; ++i)
+            {
+                if(stub.echo(i) != i + offset)
+                    throw new TestFailed("call reached the wrong skeleton");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call skeleton through domain " +
+                                 "socket", t);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface Echo
+    {
+        /** Returns its argument. */
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Server implementation of <code>Echo</code>, adding an offset to its
+        arguments so that the server a call reached can be told. */
+    private static class EchoServer implements Echo
+    {
+        /** Value added to the arguments. */
+        private final int   offset;
+
+        EchoServer(int offset)
+        {
+            this.offset = offset;
+        }
+
+        @Override
+        public int echo(int value)
+        {
+            return value + offset;
+        }
+    }
+}
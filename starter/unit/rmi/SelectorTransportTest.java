@@ -0,0 +1,407 @@
+package rmi;
+
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import rmi.io.WireProtocol;
+import test.*;
+
+/** Unit tests for the selector skeleton transport.
+
+    <p>
+    The test serves a remote interface through a skeleton using the selector
+    transport and checks that calls from many threads complete, that values
+    larger than the socket buffers are read and written whole, that a call
+    blocked in the server does not hold up other calls, that a call arriving
+    when the worker pool and its queue are full fails instead of waiting, that
+    many open connections do not create threads, and that the skeleton can be
+    restarted at the same address.
+ */
+public class SelectorTransportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking selector skeleton transport";
+
+    /** Number of client connections opened at once. */
+    private static final int    CONNECTIONS = 200;
+
+    /** Address at which the test skeletons run. */
+    private InetSocketAddress   address;
+    /** Server object shared by the test skeletons. */
+    private TransferServer      server;
+    /** Skeleton currently serving the test interface. */
+    private Skeleton<Transfer>  skeleton;
+    /** Raw client connections opened by the test. */
+    private ArrayList<Socket>   sockets = new ArrayList<>();
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress("127.0.0.1", 7011);
+        server = new TransferServer();
+        skeleton = startSkeleton(4, 64);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        final Transfer  stub = Stub.create(Transfer.class, address);
+
+        task("making calls from many threads");
+
+        Thread[]        threads = new Thread[16];
+        final Throwable[]   failures = new Throwable[threads.length];
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            final int   index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int j = 0; j < 200; ++j)
+                        {
+                            if(stub.add(index, j) != index + j)
+                                throw new IllegalStateException("bad sum");
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failures[index] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            join(threads[i]);
+            if(failures[i] != null)
+                throw new TestFailed("concurrent call failed", failures[i]);
+        }
+
+        task("transferring a value larger than the socket buffers");
+
+        byte[]          data = new byte[4 << 20];
+        for(int i = 0; i < data.length; ++i)
+            data[i] = (byte)(i * 31);
+
+        try
+        {
+            if(!Arrays.equals(data, stub.echo(data)))
+                throw new TestFailed("large value changed in transfer");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to transfer large value", t);
+        }
+
+        task("making a call while another is blocked");
+
+        Thread          blocked = startBlockedCall(stub);
+        server.awaitBlocked(1);
+        add(stub);
+
+        task("making a call when the worker pool is full");
+
+        release(blocked);
+        skeleton.stop();
+        skeleton = startSkeleton(1, 1);
+
+        blocked = startBlockedCall(stub);
+        server.awaitBlocked(2);
+        Thread          queued = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stub.add(1, 1);
+                }
+                catch(Throwable t) { }
+            }
+        });
+        queued.start();
+
+        // Wait for the queued call to take the only queue slot.
+        try
+        {
+            Thread.sleep(200);
+        }
+        catch(InterruptedException e) { }
+
+        try
+        {
+            stub.add(2, 2);
+            throw new TestFailed("call accepted with worker pool and queue " +
+                                 "full");
+        }
+        catch(RMIException e) { }
+
+        release(blocked);
+        join(queued);
+
+        task("opening many connections");
+
+        skeleton.stop();
+        skeleton = startSkeleton(4, 64);
+        add(stub);
+
+        int             threadsBefore = Thread.activeCount();
+
+        try
+        {
+            for(int i = 0; i < CONNECTIONS; ++i)
+            {
+                Socket              socket = new Socket();
+                sockets.add(socket);
+                socket.connect(address);
+
+                DataOutputStream    out =
+                    new DataOutputStream(socket.getOutputStream());
+                WireProtocol.writeHeader(out, 0, 0);
+                out.flush();
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to open connections", t);
+        }
+
+        add(stub);
+
+        if(Thread.activeCount() - threadsBefore >= CONNECTIONS / 2)
+        {
+            throw new TestFailed("open connections created " +
+                                 (Thread.activeCount() - threadsBefore) +
+                                 " threads");
+        }
+
+        closeSockets();
+
+        task("calling a skeleton restarted at the same address");
+
+        skeleton.stop();
+        skeleton = startSkeleton(4, 64);
+        add(stub);
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.unblock();
+
+        closeSockets();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Starts a new skeleton using the selector transport at the test
+        address.
+
+        @param workers Number of worker threads.
+        @param queueLength Number of calls that may wait for a worker.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private Skeleton<Transfer> startSkeleton(int workers, int queueLength)
+        throws TestFailed
+    {
+        Skeleton<Transfer>  started =
+            new Skeleton<Transfer>(Transfer.class, server, address);
+
+        started.setTransport(Skeleton.Transport.SELECTOR);
+        started.setWorkerThreads(workers);
+        started.setWorkerQueueLength(queueLength);
+        started.setInProcess(Skeleton.InProcess.OFF);
+
+        try
+        {
+            started.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return started;
+    }
+
+    /** Starts a thread calling <code>block</code> on the stub. */
+    private Thread startBlockedCall(final Transfer stub)
+    {
+        Thread      thread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stub.block();
+                }
+                catch(Throwable t) { }
+            }
+        });
+
+        thread.start();
+        return thread;
+    }
+
+    /** Unblocks the blocked call and waits for its thread to exit.
+
+        @throws TestFailed If the thread cannot be joined.
+     */
+    private void release(Thread blocked) throws TestFailed
+    {
+        server.unblock();
+        join(blocked);
+        server.reset();
+    }
+
+    /** Waits for a thread to exit.
+
+        @throws TestFailed If the thread is interrupted.
+     */
+    private void join(Thread thread) throws TestFailed
+    {
+        try
+        {
+            thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for thread", e);
+        }
+    }
+
+    /** Calls <code>add</code> through the stub and checks the result.
+
+        @throws TestFailed If the call fails or returns the wrong value.
+     */
+    private void add(Transfer stub) throws TestFailed
+    {
+        try
+        {
+            if(stub.add(20, 22) != 42)
+                throw new TestFailed("incorrect result from stub");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when using stub", t);
+        }
+    }
+
+    /** Closes the raw connections opened by the test. */
+    private void closeSockets()
+    {
+        for(Socket socket : sockets)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(Throwable t) { }
+        }
+
+        sockets.clear();
+    }
+
+    /** Remote interface used by the test. */
+    public interface Transfer
+    {
+        /** Returns the sum of its arguments. */
+        public int add(int a, int b) throws RMIException;
+
+        /** Returns its argument. */
+        public byte[] echo(byte[] data) throws RMIException;
+
+        /** Blocks until <code>unblock</code> is called. */
+        public void block() throws RMIException;
+    }
+
+    /** Server implementation of <code>Transfer</code>. */
+    private static class TransferServer implements Transfer
+    {
+        /** Number of calls that have entered <code>block</code>. */
+        private int         blocked = 0;
+        /** Whether <code>unblock</code> has been called. */
+        private boolean     released = false;
+
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public synchronized void block()
+        {
+            ++blocked;
+            notifyAll();
+
+            while(!released)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+
+        /** Wakes the threads blocked in <code>block</code>. */
+        synchronized void unblock()
+        {
+            released = true;
+            notifyAll();
+        }
+
+        /** Makes later calls to <code>block</code> block again. */
+        synchronized void reset()
+        {
+            released = false;
+        }
+
+        /** Waits until the given number of calls have entered
+            <code>block</code>. */
+        synchronized void awaitBlocked(int count)
+        {
+            while(blocked < count)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+    }
+}
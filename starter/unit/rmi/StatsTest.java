@@ -0,0 +1,216 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+
+import test.*;
+
+/** Unit tests for the per-method counters of skeletons.
+
+    <p>
+    The test checks that the latency buckets bound every value tightly, and
+    that calls, errors, bytes and latencies of each method are counted and
+    reported both locally and through a remote <code>Stats</code> stub
+    created from the address of the skeleton.
+ */
+public class StatsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking skeleton method counters";
+
+    /** Number of fast calls made. */
+    private static final int    CALLS = 200;
+    /** Time taken by each slow call, in milliseconds. */
+    private static final int    SLOW_MILLIS = 20;
+
+    /** Address at which the test skeleton runs. */
+    private InetSocketAddress   address;
+    /** Skeleton serving the test interface. */
+    private Skeleton<Counted>   skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress("127.0.0.1", 7014);
+        skeleton = new Skeleton<Counted>(Counted.class, new CountedServer(),
+                                         address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("bucketing latencies");
+
+        for(long value = 0; value < (1L << 41); value = value * 5 / 4 + 1)
+        {
+            long    highest =
+                MethodCounters.highestValueOf(MethodCounters.bucketOf(value));
+
+            if(value < (1L << 40) &&
+               (highest < value || highest > value + value / 32))
+            {
+                throw new TestFailed("latency " + value + " counted up to " +
+                                     highest);
+            }
+
+            if(MethodCounters.bucketOf(value) >= MethodCounters.BUCKETS)
+                throw new TestFailed("latency " + value + " out of range");
+        }
+
+        task("counting calls");
+
+        Counted     stub = Stub.create(Counted.class, address);
+
+        try
+        {
+            for(int i = 0; i < CALLS; ++i)
+                stub.echo(new byte[100]);
+
+            for(int i = 0; i < 3; ++i)
+            {
+                try
+                {
+                    stub.fail();
+                    throw new TestFailed("exception not thrown");
+                }
+                catch(FileNotFoundException e) { }
+            }
+
+            stub.sleep(SLOW_MILLIS);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call skeleton", t);
+        }
+
+        task("reading counters through a remote stub");
+
+        MethodStats[]   remote;
+        try
+        {
+            remote = Stub.create(Stats.class, address).getMethodStats();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read counters remotely", t);
+        }
+
+        MethodStats     echo = find(remote, "Counted.echo(byte[])");
+        MethodStats     fail = find(remote, "Counted.fail()");
+        MethodStats     sleep = find(remote, "Counted.sleep(int)");
+        find(remote, "Stats.getMethodStats()");
+
+        if(echo.getCalls() != CALLS || echo.getErrors() != 0)
+            throw new TestFailed("calls not counted");
+
+        if(echo.getBytesIn() < CALLS * 100L ||
+           echo.getBytesOut() == 0 || echo.getBytesOut() >= CALLS * 100L)
+        {
+            throw new TestFailed("bytes not counted");
+        }
+
+        if(fail.getCalls() != 3 || fail.getErrors() != 3)
+            throw new TestFailed("errors not counted");
+
+        long            slow = SLOW_MILLIS * 1000000L;
+        if(sleep.getLatency(0.5) < slow || sleep.getLatency(1) < slow ||
+           echo.getLatency(0.5) > echo.getLatency(0.999) ||
+           echo.getLatency(0.999) >= slow)
+        {
+            throw new TestFailed("latencies not measured: " + sleep + ", " +
+                                 echo);
+        }
+
+        task("reading counters locally");
+
+        MethodStats[]   local = skeleton.getMethodStats();
+        if(find(local, "Counted.echo(byte[])").getCalls() != CALLS ||
+           find(local, "Stats.getMethodStats()").getCalls() != 1)
+        {
+            throw new TestFailed("local counters differ from remote ones");
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Finds the counters of a method.
+
+        @throws TestFailed If the method is not reported.
+     */
+    private MethodStats find(MethodStats[] stats, String name)
+        throws TestFailed
+    {
+        for(MethodStats method : stats)
+        {
+            if(method.getName().equals(name))
+                return method;
+        }
+
+        throw new TestFailed("no counters for " + name);
+    }
+
+    /** Remote interface used by the test. */
+    public interface Counted
+    {
+        /** Returns the length of the given array. */
+        public int echo(byte[] data) throws RMIException;
+
+        /** Always throws <code>FileNotFoundException</code>. */
+        public void fail() throws RMIException, FileNotFoundException;
+
+        /** Sleeps for the given number of milliseconds. */
+        public void sleep(int millis) throws RMIException;
+    }
+
+    /** Server implementation of <code>Counted</code>. */
+    private static class CountedServer implements Counted
+    {
+        @Override
+        public int echo(byte[] data)
+        {
+            return data.length;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("always");
+        }
+
+        @Override
+        public void sleep(int millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e) { }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Unit tests for streams returned by remote methods.
+
+    <p>
+    The test checks that a long stream arrives complete and in order, that
+    the server produces its chunks no faster than the client consumes them,
+    that streams are released once read to their end or closed, that an
+    exception thrown by a stream reaches the client after the chunks before
+    it, and that streams returned by skeletons in the same JVM work the same
+    way.
+ */
+public class StreamTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking remote streams";
+
+    /** Number of chunks in the long stream. */
+    private static final int    CHUNKS = 200;
+    /** Length of each chunk, above the raw data threshold. */
+    private static final int    LENGTH = 8192;
+
+    /** Address at which the test skeletons run. */
+    private InetSocketAddress   address;
+    /** Server object shared by the test skeletons. */
+    private SourceServer        server;
+    /** Skeleton currently serving the test interface. */
+    private Skeleton<Source>    skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress("127.0.0.1", 7019);
+        server = new SourceServer();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Source      stub = Stub.create(Source.class, address);
+
+        try
+        {
+            task("reading a long stream");
+
+            skeleton = startSkeleton(Skeleton.InProcess.OFF);
+            readAll(stub.chunks(CHUNKS), CHUNKS, true);
+
+            task("releasing a stream read to its end");
+
+            awaitReleased();
+            if(server.closed.get() != 1)
+                throw new TestFailed("stream not closed on the server");
+
+            task("releasing a stream closed early");
+
+            RemoteStream<byte[]>    stream = stub.chunks(CHUNKS);
+            stream.next();
+            stream.next();
+            stream.close();
+            awaitReleased();
+            if(stream.hasNext())
+                throw new TestFailed("closed stream has chunks");
+
+            task("returning short streams");
+
+            readAll(stub.chunks(1), 1, false);
+            readAll(stub.chunks(0), 0, false);
+            if(skeleton.getStreams().size() != 0)
+                throw new TestFailed("short stream kept on the server");
+
+            task("failing in the middle of a stream");
+
+            expectFailure(stub.failing(5), 5);
+            awaitReleased();
+
+            task("reading a stream in process");
+
+            skeleton.stop();
+            skeleton = startSkeleton(Skeleton.InProcess.COPY);
+            readAll(stub.chunks(20), 20, false);
+            expectFailure(stub.failing(3), 3);
+            awaitReleased();
+
+            skeleton.stop();
+            skeleton = startSkeleton(Skeleton.InProcess.REFERENCE);
+            readAll(stub.chunks(20), 20, false);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read stream", t);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Reads a stream to its end and checks its chunks.
+
+        @param stream The stream.
+        @param chunks The number of chunks expected.
+        @param bounded Whether to check that the server produces the chunks
+                       no faster than they are consumed.
+        @throws TestFailed If the stream does not have the chunks expected.
+        @throws Throwable If the stream cannot be read.
+     */
+    private void readAll(RemoteStream<byte[]> stream, int chunks,
+                         boolean bounded) throws Throwable
+    {
+        server.taken.set(0);
+
+        for(int i = 0; i < chunks; ++i)
+        {
+            if(!stream.hasNext())
+                throw new TestFailed("stream ended after " + i + " chunks");
+
+            byte[]  chunk = stream.next();
+            if(chunk.length != LENGTH || chunk[0] != (byte)i ||
+               chunk[LENGTH - 1] != (byte)i)
+            {
+                throw new TestFailed("wrong chunk " + i);
+            }
+
+            // The first chunk, plus one chunk per request in flight.
+            if(bounded &&
+               server.taken.get() > i + 2 + StreamReader.DEFAULT_WINDOW)
+            {
+                throw new TestFailed("server ran ahead of the client");
+            }
+        }
+
+        if(stream.hasNext())
+            throw new TestFailed("stream longer than expected");
+
+        try
+        {
+            stream.next();
+            throw new TestFailed("chunk returned after the end");
+        }
+        catch(NoSuchElementException e) { }
+    }
+
+    /** Reads a failing stream and checks the exception thrown.
+
+        @param stream The stream.
+        @param chunks The number of chunks before the failure.
+        @throws TestFailed If the stream does not fail after the chunks.
+        @throws Throwable If the chunks cannot be read.
+     */
+    private void expectFailure(RemoteStream<byte[]> stream, int chunks)
+        throws Throwable
+    {
+        for(int i = 0; i < chunks; ++i)
+        {
+            if(stream.next()[0] != (byte)i)
+                throw new TestFailed("wrong chunk " + i);
+        }
+
+        try
+        {
+            stream.hasNext();
+            throw new TestFailed("stream failure not reported");
+        }
+        catch(IOException e) { }
+
+        if(stream.hasNext())
+            throw new TestFailed("failed stream has chunks");
+    }
+
+    /** Waits for the skeleton to release all its streams.
+
+        @throws TestFailed If a stream is still kept after two seconds.
+     */
+    private void awaitReleased() throws TestFailed
+    {
+        long    deadline = System.currentTimeMillis() + 2000;
+
+        while(skeleton.getStreams().size() != 0)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("stream not released on the server");
+
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted");
+            }
+        }
+    }
+
+    /** Starts a new skeleton at the test address.
+
+        @param inProcess The way in-process calls are made.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private Skeleton<Source> startSkeleton(Skeleton.InProcess inProcess)
+        throws TestFailed
+    {
+        Skeleton<Source>    started =
+            new Skeleton<Source>(Source.class, server, address);
+
+        started.setInProcess(inProcess);
+        server.closed.set(0);
+
+        try
+        {
+            started.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return started;
+    }
+
+    /** Remote interface used by the test. */
+    public interface Source
+    {
+        /** Returns a stream of chunks, each filled with its number. */
+        public RemoteStream<byte[]> chunks(int count) throws RMIException;
+
+        /** Returns a stream that fails with an <code>IOException</code> after
+            the given number of chunks. */
+        public RemoteStream<byte[]> failing(int count) throws RMIException;
+    }
+
+    /** Server implementation of <code>Source</code>. */
+    private static class SourceServer implements Source
+    {
+        /** Chunks taken from the streams since last reset. */
+        final AtomicInteger     taken = new AtomicInteger();
+        /** Streams closed since the skeleton was started. */
+        final AtomicInteger     closed = new AtomicInteger();
+
+        @Override
+        public RemoteStream<byte[]> chunks(int count)
+        {
+            return new Chunks(count, false);
+        }
+
+        @Override
+        public RemoteStream<byte[]> failing(int count)
+        {
+            return new Chunks(count, true);
+        }
+
+        /** Stream of numbered chunks. */
+        private class Chunks implements RemoteStream<byte[]>
+        {
+            /** Number of chunks. */
+            private final int       count;
+            /** Whether the stream fails after its chunks. */
+            private final boolean   fails;
+            /** Number of the next chunk. */
+            private int             next = 0;
+
+            /** Creates the stream. */
+            Chunks(int count, boolean fails)
+            {
+                this.count = count;
+                this.fails = fails;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < count || fails;
+            }
+
+            @Override
+            public byte[] next() throws IOException
+            {
+                if(next == count && fails)
+                    throw new IOException("failing as requested");
+                if(next == count)
+                    throw new NoSuchElementException("end of stream");
+
+                byte[]  chunk = new byte[LENGTH];
+                Arrays.fill(chunk, (byte)next++);
+                taken.incrementAndGet();
+                return chunk;
+            }
+
+            @Override
+            public void close()
+            {
+                closed.incrementAndGet();
+            }
+        }
+    }
+}
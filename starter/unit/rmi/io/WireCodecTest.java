@@ -0,0 +1,457 @@
+package rmi.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+import common.Path;
+import rmi.RMIException;
+import test.*;
+
+/** Unit tests for the RMI wire codec.
+
+    <p>
+    The test writes values of each built-in kind, paths, arrays, exceptions and
+    serializable fallback values, reads them back, and checks that they are
+    equal to the originals. It also checks that a path is written more compactly
+    than by Java serialization, and that requests and responses, single and
+    batched, survive framing, with large byte arrays sent after the message
+    head rather than copied into it, and compression when it saves enough.
+ */
+public class WireCodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking RMI wire codec";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("encoding built-in values");
+
+        Object[]    values = {null, true, false, (byte)-3, (short)300,
+                              'x', 42, -1L << 40, 1.5f, -2.25, "",
+                              "caf\u00e9 \u6587\u4ef6"};
+
+        for(Object value : values)
+        {
+            if(!Objects.equals(value, roundTrip(value)))
+                throw new TestFailed("value " + value + " changed on the wire");
+        }
+
+        byte[]      bytes = {0, 1, -1, 127, -128};
+        if(!Arrays.equals(bytes, (byte[])roundTrip(bytes)))
+            throw new TestFailed("byte array changed on the wire");
+
+        task("encoding paths and arrays");
+
+        Path        path = new Path("/directory/file");
+        if(!path.equals(roundTrip(path)))
+            throw new TestFailed("path changed on the wire");
+
+        if(!new Path().equals(roundTrip(new Path())))
+            throw new TestFailed("root path changed on the wire");
+
+        byte[]      encoded;
+        try
+        {
+            encoded = encode(path);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode " + path, e);
+        }
+
+        if(encoded.length >= serialize(path).length)
+        {
+            throw new TestFailed("path is not written more compactly than " +
+                                 "by serialization");
+        }
+
+        Path[]      paths = {path, null, new Path("/other")};
+        Object      decoded = roundTrip(paths);
+        if(!(decoded instanceof Path[]) ||
+           !Arrays.equals(paths, (Path[])decoded))
+        {
+            throw new TestFailed("path array changed on the wire");
+        }
+
+        String[]    strings = {"a", "b", null};
+        decoded = roundTrip(strings);
+        if(!(decoded instanceof String[]) ||
+           !Arrays.equals(strings, (String[])decoded))
+        {
+            throw new TestFailed("string array changed on the wire");
+        }
+
+        task("encoding exceptions");
+
+        checkException(new FileNotFoundException("missing"));
+        checkException(new IllegalArgumentException());
+        checkException(new RMIException("network"));
+
+        RMIException    wrapped =
+            new RMIException(new IOException("broken pipe"));
+        Object          unwrapped = roundTrip(wrapped);
+        if(!(unwrapped instanceof RMIException) ||
+           !(((Throwable)unwrapped).getCause() instanceof IOException))
+        {
+            throw new TestFailed("exception cause lost on the wire");
+        }
+
+        task("falling back to serialization");
+
+        ArrayList<String>   list = new ArrayList<>(Arrays.asList("x", "y"));
+        if(!list.equals(roundTrip(list)))
+            throw new TestFailed("serializable value changed on the wire");
+
+        try
+        {
+            encode(new Object());
+            throw new TestFailed("non-serializable value encoded");
+        }
+        catch(IOException e) { }
+
+        task("framing requests and responses");
+
+        RMIRequest  request = new RMIRequest(0x1234567890abcdefL, 7,
+                                             new Object[] {path, 5});
+        RMIRequest  readRequest;
+        RMIResponse readResponse;
+
+        try
+        {
+            readRequest = WireProtocol.decodeRequest(
+                frame(17, WireProtocol.encodeRequest(request)));
+            readResponse = WireProtocol.decodeResponse(
+                frame(18, WireProtocol.encodeResponse(
+                    new RMIResponse(new FileNotFoundException("gone")))));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to frame messages", t);
+        }
+
+        if(readRequest.getCallId() != 17 ||
+           readRequest.getInterfaceId() != request.getInterfaceId() ||
+           readRequest.getMethodId() != 7 ||
+           !Arrays.equals(request.getArguments(), readRequest.getArguments()))
+        {
+            throw new TestFailed("request changed on the wire");
+        }
+
+        if(readResponse.getCallId() != 18 ||
+           !(readResponse.getException() instanceof FileNotFoundException))
+        {
+            throw new TestFailed("response changed on the wire");
+        }
+
+        task("framing batch requests and responses");
+
+        try
+        {
+            readRequest = WireProtocol.decodeRequest(
+                frame(19, WireProtocol.encodeBatchRequest(Arrays.asList(
+                    WireProtocol.encodeRequest(request),
+                    WireProtocol.encodeRequest(
+                        new RMIRequest(42, 1, null))))));
+            readResponse = WireProtocol.decodeResponse(
+                frame(20, WireProtocol.encodeResponse(
+                    RMIResponse.batch(Arrays.asList(
+                        new RMIResponse((Object)"done"),
+                        new RMIResponse(new FileNotFoundException("gone")))))));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to frame batch messages", t);
+        }
+
+        if(readRequest.getCallId() != 19 || !readRequest.isBatch() ||
+           readRequest.getBatch().size() != 2 ||
+           readRequest.getBatch().get(0).getMethodId() != 7 ||
+           !Arrays.equals(request.getArguments(),
+                          readRequest.getBatch().get(0).getArguments()) ||
+           readRequest.getBatch().get(1).getInterfaceId() != 42 ||
+           readRequest.getBatch().get(1).getArguments().length != 0)
+        {
+            throw new TestFailed("batch request changed on the wire");
+        }
+
+        if(readResponse.getCallId() != 20 || !readResponse.isBatch() ||
+           readResponse.getBatch().size() != 2 ||
+           !"done".equals(
+               readResponse.getBatch().get(0).getReturnValue()) ||
+           !(readResponse.getBatch().get(1).getException()
+                instanceof FileNotFoundException))
+        {
+            throw new TestFailed("batch response changed on the wire");
+        }
+
+        task("sending large byte arrays after the message head");
+
+        byte[]      small = new byte[WireProtocol.DATA_THRESHOLD - 1];
+        byte[]      large = new byte[1 << 20];
+        for(int i = 0; i < large.length; ++i)
+            large[i] = (byte)(i * 7);
+
+        Message     message;
+        Message     received;
+        try
+        {
+            message = WireProtocol.encodeRequest(
+                new RMIRequest(42, 3, new Object[] {small, large}));
+            received = frame(21, message);
+            readRequest = WireProtocol.decodeRequest(received);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to frame large byte arrays", t);
+        }
+
+        if(message.length() - large.length > small.length + 64)
+            throw new TestFailed("large byte array copied into message head");
+
+        if(!Arrays.equals(small, (byte[])readRequest.getArguments()[0]) ||
+           !Arrays.equals(large, (byte[])readRequest.getArguments()[1]))
+        {
+            throw new TestFailed("byte arrays changed on the wire");
+        }
+
+        // Read through a channel buffer, as by the selector transport, with
+        // the data of two calls in one batch.
+        try
+        {
+            Message         batch = WireProtocol.encodeBatchRequest(
+                Arrays.asList(message, message));
+            ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+            WritableByteChannel     channel = Channels.newChannel(buffer);
+            for(ByteBuffer part : WireProtocol.frameBuffers(22, batch))
+                channel.write(part);
+
+            ByteBuffer      frame = ByteBuffer.wrap(buffer.toByteArray());
+            if(WireProtocol.frameLength(frame) != frame.remaining())
+                throw new TestFailed("frame length incorrect");
+
+            readRequest = WireProtocol.decodeRequest(
+                WireProtocol.readFrame(frame));
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to frame batched byte arrays", t);
+        }
+
+        if(readRequest.getCallId() != 22 ||
+           readRequest.getBatch().size() != 2 ||
+           !Arrays.equals(large, (byte[])readRequest.getBatch().get(1)
+                                                   .getArguments()[1]))
+        {
+            throw new TestFailed("batched byte arrays changed on the wire");
+        }
+
+        task("compressing messages");
+
+        Path[]      listed = new Path[2000];
+        for(int i = 0; i < listed.length; ++i)
+            listed[i] = new Path("/directory/subdirectory/file" + i);
+
+        byte[]      random = new byte[1 << 20];
+        new Random(5).nextBytes(random);
+
+        try
+        {
+            Message     listing = WireProtocol.encodeResponse(
+                new RMIResponse(listed));
+            Message     compressed = WireProtocol.compress(listing);
+            if(!compressed.isCompressed() ||
+               compressed.length() > listing.length() / 2)
+            {
+                throw new TestFailed("path list not compressed");
+            }
+
+            readResponse = WireProtocol.decodeResponse(frame(23, compressed));
+            if(readResponse.getCallId() != 23 ||
+               !Arrays.equals(listed,
+                              (Path[])readResponse.getReturnValue()))
+            {
+                throw new TestFailed("compressed path list changed on the " +
+                                     "wire");
+            }
+
+            compressed = WireProtocol.compress(message);
+            if(!compressed.isCompressed())
+                throw new TestFailed("byte arrays not compressed");
+
+            readRequest = WireProtocol.decodeRequest(frame(24, compressed));
+            if(!Arrays.equals(small, (byte[])readRequest.getArguments()[0]) ||
+               !Arrays.equals(large, (byte[])readRequest.getArguments()[1]))
+            {
+                throw new TestFailed("compressed byte arrays changed on the " +
+                                     "wire");
+            }
+
+            // The route stays readable, so that a call is admitted without
+            // inflating it first.
+            WireProtocol.Route  route =
+                WireProtocol.readRoute(frame(25, compressed));
+            if(route.batch || route.interfaceIds[0] != 42 ||
+               route.methodIds[0] != 3)
+            {
+                throw new TestFailed("route of compressed request unreadable");
+            }
+
+            compressed = WireProtocol.compress(
+                WireProtocol.encodeBatchRequest(Arrays.asList(
+                    WireProtocol.encodeRequest(request), message)));
+            if(!compressed.isCompressed())
+                throw new TestFailed("batch request not compressed");
+
+            route = WireProtocol.readRoute(frame(26, compressed));
+            if(!route.batch || route.interfaceIds.length != 2 ||
+               route.interfaceIds[0] != request.getInterfaceId() ||
+               route.methodIds[0] != 7 || route.interfaceIds[1] != 42 ||
+               route.methodIds[1] != 3)
+            {
+                throw new TestFailed("route of compressed batch unreadable");
+            }
+
+            readRequest = WireProtocol.decodeRequest(frame(26, compressed));
+            if(readRequest.getBatch().size() != 2 ||
+               !Arrays.equals(request.getArguments(),
+                              readRequest.getBatch().get(0).getArguments()) ||
+               !Arrays.equals(large, (byte[])readRequest.getBatch().get(1)
+                                                       .getArguments()[1]))
+            {
+                throw new TestFailed("compressed batch request changed on " +
+                                     "the wire");
+            }
+
+            Message     incompressible = WireProtocol.encodeResponse(
+                new RMIResponse(random));
+            if(WireProtocol.compress(incompressible) != incompressible)
+                throw new TestFailed("random bytes compressed");
+
+            Message     short_ = WireProtocol.encodeResponse(
+                new RMIResponse(new Path("/file")));
+            if(WireProtocol.compress(short_) != short_)
+                throw new TestFailed("short message compressed");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to compress messages", t);
+        }
+
+        // A compressed message truncated on the wire must be rejected rather
+        // than decoded short.
+        try
+        {
+            Message     compressed = WireProtocol.compress(
+                WireProtocol.encodeResponse(new RMIResponse(listed)));
+            ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+            DataOutputStream        out = new DataOutputStream(buffer);
+            WireProtocol.writeFrame(out, 25, compressed);
+            out.flush();
+
+            byte[]      frame = buffer.toByteArray();
+            ByteBuffer  truncated = ByteBuffer.wrap(frame);
+            truncated.putInt(0, frame.length - 4 - 16);
+            truncated.putInt(13, compressed.length() - 5 - 16);
+
+            WireProtocol.decodeResponse(WireProtocol.readFrame(truncated));
+            throw new TestFailed("truncated compressed message decoded");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(StreamCorruptedException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception for truncated " +
+                                 "compressed message", t);
+        }
+
+        task();
+    }
+
+    /** Checks that an exception keeps its class and message on the wire.
+
+        @throws TestFailed If the exception changes.
+     */
+    private void checkException(Exception exception) throws TestFailed
+    {
+        Object  decoded = roundTrip(exception);
+
+        if(decoded == null || decoded.getClass() != exception.getClass() ||
+           !Objects.equals(exception.getMessage(),
+                           ((Exception)decoded).getMessage()))
+        {
+            throw new TestFailed(exception + " changed on the wire");
+        }
+    }
+
+    /** Writes a value and reads it back.
+
+        @throws TestFailed If the value cannot be written or read.
+     */
+    private Object roundTrip(Object value) throws TestFailed
+    {
+        try
+        {
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(encode(value)));
+            Object          decoded = WireCodec.readValue(in);
+
+            if(in.available() != 0)
+                throw new TestFailed("value " + value + " not read whole");
+
+            return decoded;
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode " + value, t);
+        }
+    }
+
+    /** Writes a value with the wire codec. */
+    private byte[] encode(Object value) throws IOException
+    {
+        ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+        WireCodec.writeValue(new DataOutputStream(buffer), value);
+        return buffer.toByteArray();
+    }
+
+    /** Writes a value with Java serialization. */
+    private byte[] serialize(Object value) throws TestFailed
+    {
+        ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+
+        try(ObjectOutputStream stream = new ObjectOutputStream(buffer))
+        {
+            stream.writeObject(value);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to serialize " + value, e);
+        }
+
+        return buffer.toByteArray();
+    }
+
+    /** Frames an encoded message and reads the frame back. */
+    private Message frame(long callId, Message message) throws IOException
+    {
+        ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+        DataOutputStream        out = new DataOutputStream(buffer);
+
+        WireProtocol.writeFrame(out, callId, message);
+        out.flush();
+
+        return WireProtocol.readFrame(new DataInputStream(
+            new ByteArrayInputStream(buffer.toByteArray())));
+    }
+}